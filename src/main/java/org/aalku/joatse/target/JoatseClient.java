@@ -2,27 +2,43 @@ package org.aalku.joatse.target;
 
 import java.io.Console;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.aalku.joatse.target.connection.HttpBackendPool;
 import org.aalku.joatse.target.tools.QrGenerator;
 import org.aalku.joatse.target.tools.QrGenerator.QrMode;
+import org.aalku.joatse.target.tools.concurrent.Threads;
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+import org.aalku.joatse.target.tools.io.AddressAllowlist;
+import org.aalku.joatse.target.tools.io.DnsCache;
+import org.aalku.joatse.target.tools.io.FrameChecksum;
 import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.SocketProfile;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.ListenableFutureCallback;
 import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
@@ -40,6 +56,17 @@ public class JoatseClient implements WebSocketHandler {
 	private static final int TIME_BETWEEN_PING_MS = 5000;
 	private static final int TIMEOUT_PONG_MS = 60000;
 	private static final int MESSAGE_SIZE_LIMIT = 1024*64;
+	private static final int SHARD_RECONNECT_DELAY_MS = 2000;
+
+	/**
+	 * Sends the heartbeat pings. A ping can wait for a big message being sent
+	 * on the same websocket, and that must not hold the timer.
+	 */
+	private static final ExecutorService pingSender = Executors.newCachedThreadPool(r -> {
+		Thread t = Threads.newThread("ws_ping", r);
+		t.setDaemon(true);
+		return t;
+	});
 
 	private enum ClientState { BOOT, WS_CONNECTED, WAITING_RESPONSE, WAITING_CONFIRM, TUNNEL_CONNECTED, FINISHED };
 
@@ -56,47 +83,120 @@ public class JoatseClient implements WebSocketHandler {
     private JoatseSession jSession = null;
     		
     private AtomicLong lastMsgReceivedNanotime = new AtomicLong(System.nanoTime());
+
+	private final int parallelConnections;
+
+	private final boolean lazyTcpReads;
+
+	private final Map<String, Integer> sendWeights;
+
+	private final Set<String> compressedTunnelTypes;
+
+	private final int metricsLogSeconds;
+
+	private long timeBetweenPingMs = TIME_BETWEEN_PING_MS;
+	private long timeoutPongMs = TIMEOUT_PONG_MS;
     
 	public JoatseClient(String cloudUrl, QrMode qrMode) {
+		this(cloudUrl, qrMode, 1, true, Collections.emptyMap(), Collections.emptySet(), 0);
+	}
+
+	/**
+	 * @param parallelConnections websocket connections to open for the session,
+	 *                            if the cloud accepts them
+	 * @param lazyTcpReads        idle tcp tunnels don't hold a read buffer
+	 * @param sendWeights         by tunnel type, to override
+	 *                            {@link JoatseSession#DEFAULT_SEND_WEIGHTS}
+	 * @param compressedTunnelTypes tunnel types whose sockets compress what they
+	 *                            send, if the cloud supports it
+	 * @param metricsLogSeconds   period of the session metrics log line, 0 for
+	 *                            none. They are in JMX anyway.
+	 */
+	public JoatseClient(String cloudUrl, QrMode qrMode, int parallelConnections, boolean lazyTcpReads,
+			Map<String, Integer> sendWeights, Set<String> compressedTunnelTypes, int metricsLogSeconds) {
 		this.cloudUrl = cloudUrl;
 		this.qrMode = qrMode;
+		this.parallelConnections = parallelConnections;
+		this.lazyTcpReads = lazyTcpReads;
+		this.sendWeights = sendWeights;
+		this.compressedTunnelTypes = compressedTunnelTypes;
+		this.metricsLogSeconds = metricsLogSeconds;
 	}
 
 	public JoatseClient connect() throws URISyntaxException {
-        WebSocketHttpHeaders headers = new WebSocketHttpHeaders();
-        final StandardWebSocketClient client = new StandardWebSocketClient();
-		client.doHandshake(this, headers, new URI(cloudUrl)).addCallback(new ListenableFutureCallback<WebSocketSession>() {
+		connectWebSocket(this, lastMsgReceivedNanotime, ex -> {
+			log.error("Exception", ex);
+			setState(ClientState.FINISHED);
+		});
+		return this;
+	}
+
+	/**
+	 * @param lastMsgReceivedNanotime the one the handler updates, for the heartbeat
+	 */
+	private void connectWebSocket(WebSocketHandler handler, AtomicLong lastMsgReceivedNanotime,
+			Consumer<Throwable> onFailure) throws URISyntaxException {
+		handshake(handler).addCallback(new ListenableFutureCallback<WebSocketSession>() {
 			@Override
 			public void onSuccess(WebSocketSession session) {
-				Thread t = new Thread("ws_heartbeat_" + session.getId()) {
-					public void run() {
-						try {
-							while (session.isOpen()) {
-								session.sendMessage(new PingMessage());
-								Thread.sleep(TIME_BETWEEN_PING_MS);
-								long msWithoutMessages = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - JoatseClient.this.lastMsgReceivedNanotime.get());
-								if (msWithoutMessages > TIMEOUT_PONG_MS) {
-									throw new IOException("Pong timeout");
-								}
-							}
-						} catch (Exception e) {
-							log.warn("Exception on heartbeat sender thread. Closing session.", e);
-							IOTools.runFailable(()->session.close(CloseStatus.SESSION_NOT_RELIABLE));
-						}
-					}
-				};
-				t.start();
+				pingSender.execute(() -> ping(session));
+				TimerWheel.shared().schedule(() -> heartbeat(session, lastMsgReceivedNanotime), timeBetweenPingMs,
+						TimeUnit.MILLISECONDS);
 				// We will use the other handler
 			}
 			@Override
 			public void onFailure(Throwable ex) {
-				log.error("Exception", ex);
-				setState(ClientState.FINISHED);
+				onFailure.accept(ex);
 			}
 		});
-		return this;
 	}
 	
+	/**
+	 * Opens a websocket to the cloud. Tests override it.
+	 */
+	ListenableFuture<WebSocketSession> handshake(WebSocketHandler handler) throws URISyntaxException {
+		WebSocketHttpHeaders headers = new WebSocketHttpHeaders();
+		StandardWebSocketClient client = new StandardWebSocketClient();
+		return client.doHandshake(handler, headers, new URI(cloudUrl));
+	}
+
+	/**
+	 * For tests, to not wait minutes
+	 */
+	void setHeartbeat(long timeBetweenPingMs, long timeoutPongMs) {
+		this.timeBetweenPingMs = timeBetweenPingMs;
+		this.timeoutPongMs = timeoutPongMs;
+	}
+
+	/**
+	 * Every timeBetweenPingMs, on the shared timer, while the session is open
+	 */
+	private void heartbeat(WebSocketSession session, AtomicLong lastMsgReceivedNanotime) {
+		if (!session.isOpen()) {
+			return;
+		}
+		long msWithoutMessages = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastMsgReceivedNanotime.get());
+		if (msWithoutMessages > timeoutPongMs) {
+			log.warn("Pong timeout. Closing session {}.", session.getId());
+			pingSender.execute(() -> IOTools.runFailable(() -> session.close(CloseStatus.SESSION_NOT_RELIABLE)));
+			return;
+		}
+		pingSender.execute(() -> ping(session));
+		TimerWheel.shared().schedule(() -> heartbeat(session, lastMsgReceivedNanotime), timeBetweenPingMs,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void ping(WebSocketSession session) {
+		try {
+			ByteBuffer ping = ByteBuffer.allocate(8);
+			ping.putLong(System.nanoTime()).flip(); // Echoed on the pong so we can measure rtt
+			session.sendMessage(new PingMessage(ping));
+		} catch (Exception e) {
+			log.warn("Exception sending heartbeat. Closing session.", e);
+			IOTools.runFailable(()->session.close(CloseStatus.SESSION_NOT_RELIABLE));
+		}
+	}
+
 	public boolean isConnected() {
 		return state.get() == ClientState.WS_CONNECTED;
 	}
@@ -149,7 +249,11 @@ public class JoatseClient implements WebSocketHandler {
 	public void afterConnectionEstablished(WebSocketSession session) throws Exception {
 		session.setBinaryMessageSizeLimit(MESSAGE_SIZE_LIMIT);
 		log.info("connected: {}", session.getId());
-		jSession = new JoatseSession(session);
+		jSession = new JoatseSession(session, parallelConnections);
+		jSession.setLazyTcpReads(lazyTcpReads);
+		jSession.setSendWeights(sendWeights);
+		jSession.setCompressedTunnelTypes(compressedTunnelTypes);
+		jSession.publishMetrics(metricsLogSeconds);
 		setState(ClientState.WS_CONNECTED);
 	}
 
@@ -164,6 +268,14 @@ public class JoatseClient implements WebSocketHandler {
 			log.info("Ping");
 		} else if (message instanceof PongMessage) {
 //			log.info("Pong");
+			handlePong((PongMessage) message);
+		}
+	}
+
+	private void handlePong(PongMessage message) {
+		ByteBuffer payload = message.getPayload();
+		if (payload.remaining() == 8 && jSession != null) {
+			jSession.rttSample(System.nanoTime() - payload.getLong(payload.position()));
 		}
 	}
 	
@@ -260,6 +372,19 @@ public class JoatseClient implements WebSocketHandler {
 							}
 						}
 					}
+					jSession.setFlowControlEnabled(js.optBoolean("flowControl", false));
+					jSession.setBatchingEnabled(js.optBoolean("batching", false));
+					jSession.setCompressionEnabled("deflate".equals(js.optString("compression", null)));
+					jSession.setE2eSocketsEnabled(js.optBoolean("e2eSockets", false));
+					jSession.setFrameChecksum(js.optString("integrity", FrameChecksum.Type.CRC32.getWireName()));
+					int shards = Math.min(parallelConnections, js.optInt("parallelConnections", 1));
+					String joinToken = js.optString("joinToken", null);
+					if (shards > 1 && joinToken != null) {
+						jSession.setShards(shards);
+						for (int i = 1; i < shards; i++) {
+							connectShard(i, joinToken);
+						}
+					}
 					setState(ClientState.TUNNEL_CONNECTED);
 					jSession.handleConnected();
     				return;
@@ -356,16 +481,115 @@ public class JoatseClient implements WebSocketHandler {
 		return false;
 	}
 	
+	void connectShard(int index, String joinToken) {
+		try {
+			ShardHandler handler = new ShardHandler(index, joinToken);
+			connectWebSocket(handler, handler.lastMsgReceivedNanotime, ex -> {
+				log.warn("Can't connect websocket shard {}: {}", index, ex.toString());
+				reconnectShardLater(index, joinToken);
+			});
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e); // It worked for the main one
+		}
+	}
+
+	private void reconnectShardLater(int index, String joinToken) {
+		TimerWheel.shared().schedule(() -> {
+			if (state.get() == ClientState.TUNNEL_CONNECTED) {
+				connectShard(index, joinToken);
+			}
+		}, SHARD_RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Additional websocket connection (shard) of the session. It joins the
+	 * session created by the main one and only carries socket traffic.
+	 */
+	private class ShardHandler implements WebSocketHandler {
+		private final int index;
+		private final String joinToken;
+		private final AtomicLong lastMsgReceivedNanotime = new AtomicLong(System.nanoTime());
+		private volatile boolean joined = false;
+
+		ShardHandler(int index, String joinToken) {
+			this.index = index;
+			this.joinToken = joinToken;
+		}
+
+		@Override
+		public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+			session.setBinaryMessageSizeLimit(MESSAGE_SIZE_LIMIT);
+			JSONObject js = new JSONObject();
+			js.put("request", "JOIN");
+			js.put("joinToken", joinToken);
+			js.put("index", index);
+			session.sendMessage(new TextMessage(js.toString()));
+		}
+
+		@Override
+		public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+			lastMsgReceivedNanotime.set(System.nanoTime());
+			if (message instanceof TextMessage) {
+				JSONObject js = new JSONObject(((TextMessage) message).getPayload());
+				if ("JOIN".equals(js.optString("request")) && "JOINED".equals(js.optString("response"))) {
+					jSession.attachShard(index, session);
+					joined = true;
+				} else {
+					log.error("Websocket shard {} join rejected: {}", index, message.getPayload());
+					session.close();
+				}
+			} else if (message instanceof BinaryMessage) {
+				try {
+					jSession.handleBinaryMessage((BinaryMessage) message);
+				} catch (Exception e) {
+					log.error("Exception processing binary message on shard " + index + ": " + e, e);
+					IOTools.runFailable(()->session.close());
+				}
+			} else if (message instanceof PongMessage) {
+				handlePong((PongMessage) message);
+			}
+		}
+
+		@Override
+		public void handleTransportError(WebSocketSession session, Throwable e) throws Exception {
+			log.warn("Transportation error on websocket shard {}: {}", index, e.toString());
+		}
+
+		@Override
+		public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+			log.info("websocket shard {} disconnected: {} - {}", index, session.getId(), status);
+			if (joined) {
+				jSession.detachShard(index);
+				reconnectShardLater(index, joinToken);
+			}
+		}
+
+		@Override
+		public boolean supportsPartialMessages() {
+			return false;
+		}
+	}
+
 	public static class TunnelRequestItemTcp {
 		public long targetId = new Random().nextLong() & Long.MAX_VALUE;
 		public final String targetHostname;
 		public final int targetPort;
 		public final String targetDescription;
+		/**
+		 * Of the sockets to the target. Local, the cloud doesn't know it.
+		 */
+		public final SocketProfile socketProfile;
 
 		public TunnelRequestItemTcp(String targetHostname, int targetPort, String targetDescription) {
+			this(targetHostname, targetPort, targetDescription, SocketProfile.DEFAULT);
+		}
+
+		public TunnelRequestItemTcp(String targetHostname, int targetPort, String targetDescription,
+				SocketProfile socketProfile) {
 			this.targetHostname = targetHostname;
 			this.targetPort = targetPort;
 			this.targetDescription = targetDescription;
+			this.socketProfile = socketProfile;
 		}
 	}
 
@@ -377,27 +601,70 @@ public class JoatseClient implements WebSocketHandler {
 		public final URL targetUrl;
 		public final boolean unsafe;
 		public final boolean hideProxy;
+		/**
+		 * Null if no warm connections. Outlives the sessions, so it survives
+		 * reconnections to the cloud.
+		 */
+		private final HttpBackendPool backendPool;
 
 		public TunnelRequestItemHttp(URL url, String targetDescription, boolean unsafe, boolean hideProxy) {
+			this(url, targetDescription, unsafe, hideProxy, SocketProfile.DEFAULT, 0);
+		}
+
+		/**
+		 * @param warmConnections to keep open to the target, 0 for none
+		 */
+		public TunnelRequestItemHttp(URL url, String targetDescription, boolean unsafe, boolean hideProxy,
+				SocketProfile socketProfile, int warmConnections) {
 			super(url.getHost(), Optional.of(url.getPort()).filter(p -> p > 0)
-					.orElseGet(() -> url.getDefaultPort()), targetDescription);
+					.orElseGet(() -> url.getDefaultPort()), targetDescription, socketProfile);
 			this.targetUrl = url;
 			this.unsafe = unsafe;
 			this.hideProxy = hideProxy;
+			this.backendPool = warmConnections > 0
+					? new HttpBackendPool(InetSocketAddress.createUnresolved(targetHostname, targetPort),
+							socketProfile, warmConnections)
+					: null;
+		}
+
+		public HttpBackendPool getBackendPool() {
+			return backendPool;
 		}
 	}
 	
 	public static class TunnelRequestItemSocks5 {
 		public final long targetId = new Random().nextLong() & Long.MAX_VALUE;
 		private final Collection<String> authorizedTargets;
+		private final AddressAllowlist allowlist;
+		private final SocketProfile socketProfile;
 
 		public TunnelRequestItemSocks5(Collection<String> authorizedTargets) {
+			this(authorizedTargets, SocketProfile.DEFAULT);
+		}
+
+		public TunnelRequestItemSocks5(Collection<String> authorizedTargets, SocketProfile socketProfile) {
 			this.authorizedTargets = authorizedTargets;
+			this.allowlist = new AddressAllowlist(authorizedTargets, DnsCache.shared());
+			this.socketProfile = socketProfile;
 		}
 
 		public Collection<String> getAuthorizedTargets() {
 			return authorizedTargets;
 		}
+
+		/**
+		 * The authorized targets, parsed
+		 */
+		public AddressAllowlist getAllowlist() {
+			return allowlist;
+		}
+
+		/**
+		 * Of the sockets to the targets
+		 */
+		public SocketProfile getSocketProfile() {
+			return socketProfile;
+		}
 	}
 
 	public static class TunnelRequestItemCommand {
@@ -506,12 +773,13 @@ public class JoatseClient implements WebSocketHandler {
 		if (state.get() != ClientState.WS_CONNECTED) {
 			throw new IllegalStateException("Invalid call to createTunnel when state != WS_CONNECTED");
 		}
-		jSession.createTunnel(tcpTunnels, httpTunnels, socks5Tunnel, commandTunnels, fileTunnels, folderTunnels, preconfirmUuid, autoAuthorizeByHttpUrl);
+		// Before sending, the response can be faster than us
 		if (!preconfirmUuid.isPresent()) {
 			setState(ClientState.WAITING_RESPONSE);
 		} else {
 			setState(ClientState.WAITING_CONFIRM);
 		}
+		jSession.createTunnel(tcpTunnels, httpTunnels, socks5Tunnel, commandTunnels, fileTunnels, folderTunnels, preconfirmUuid, autoAuthorizeByHttpUrl);
 	}
 
 	/**
@@ -1,22 +1,29 @@
 package org.aalku.joatse.target;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemCommand;
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemFile;
@@ -24,16 +31,26 @@ import org.aalku.joatse.target.JoatseClient.TunnelRequestItemFolder;
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemHttp;
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemSocks5;
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemTcp;
+import org.aalku.joatse.target.connection.AbstractSocketConnection;
 import org.aalku.joatse.target.connection.BasicTunnelTcpConnection;
 import org.aalku.joatse.target.connection.CommandConnection;
+import org.aalku.joatse.target.connection.CompressionStats;
+import org.aalku.joatse.target.connection.TunnelStats;
 import org.aalku.joatse.target.connection.FileTunnelConnection;
 import org.aalku.joatse.target.connection.FolderTunnelConnection;
+import org.aalku.joatse.target.connection.HttpBackendPool;
 import org.aalku.joatse.target.connection.Socks5TunnelTcpConnection;
 import org.aalku.joatse.target.connection.TunnelConnection;
 import org.aalku.joatse.target.tools.cipher.JoatseCipher;
 import org.aalku.joatse.target.tools.cipher.JoatseCipher.KeyExchange;
+import org.aalku.joatse.target.tools.cipher.JoatseCipher.Mode;
 import org.aalku.joatse.target.tools.cipher.JoatseCipher.Paired;
+import org.aalku.joatse.target.tools.concurrent.ConcurrentLongMap;
+import org.aalku.joatse.target.tools.io.FrameChecksum;
 import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.QueuedMessage;
+import org.aalku.joatse.target.tools.io.SendFlow;
+import org.aalku.joatse.target.tools.io.SendStats;
 import org.aalku.joatse.target.tools.io.WebSocketSendWorker;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -46,19 +63,27 @@ import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 /**
- * Single websock, several connections for each port, maybe several ports
+ * One or more websocks, several connections for each port, maybe several ports.
+ * 
+ * With more than one websock (shards) the socket ids are sharded across them
+ * with {@link #shardOf(long, int)} and control traffic goes through the main
+ * one (shard 0).
  */
 public class JoatseSession {
 
 	static final byte PROTOCOL_VERSION = 1;
 
+	/**
+	 * Until we measure it
+	 */
+	private static final long DEFAULT_RTT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
 	private Logger log = LoggerFactory.getLogger(JoatseSession.class);
-	ReentrantLock lock = new ReentrantLock();
 	
 	/**
-	 * Map<Long targetId, TunnelRequestItemTcp> for requested tcp and http connections
+	 * targetId -> TunnelRequestItemTcp for requested tcp and http connections
 	 */
-	private Map<Long, TunnelRequestItemTcp> tcpRequestTargets = new LinkedHashMap<>();
+	private final ConcurrentLongMap<TunnelRequestItemTcp> tcpRequestTargets = new ConcurrentLongMap<>();
 	
 	/**
 	 * AtomicReference<TunnelRequestItemSocks5> for requested socks5 connections
@@ -66,143 +91,389 @@ public class JoatseSession {
 	private AtomicReference<TunnelRequestItemSocks5> socks5RequestTarget = new AtomicReference<JoatseClient.TunnelRequestItemSocks5>(null);
 	
 	/**
-	 * Map<Long targetId, TunnelRequestItemCommand> for requested command connections
+	 * targetId -> TunnelRequestItemCommand for requested command connections
 	 */
-	private Map<Long, TunnelRequestItemCommand> commandRequestTargets = new LinkedHashMap<>();
+	private final ConcurrentLongMap<TunnelRequestItemCommand> commandRequestTargets = new ConcurrentLongMap<>();
 	
 	/**
-	 * Map<Long targetId, TunnelRequestItemFile> for requested file connections
+	 * targetId -> TunnelRequestItemFile for requested file connections
 	 */
-	private Map<Long, TunnelRequestItemFile> fileRequestTargets = new LinkedHashMap<>();
+	private final ConcurrentLongMap<TunnelRequestItemFile> fileRequestTargets = new ConcurrentLongMap<>();
 	
 	/**
-	 * Map<Long targetId, TunnelRequestItemFolder> for requested folder connections
+	 * targetId -> TunnelRequestItemFolder for requested folder connections
 	 */
-	private Map<Long, TunnelRequestItemFolder> folderRequestTargets = new LinkedHashMap<>();
+	private final ConcurrentLongMap<TunnelRequestItemFolder> folderRequestTargets = new ConcurrentLongMap<>();
 	
 	/**
-	 * Map<Long socketId, TunnelConnection> for established tunnel connections
+	 * socketId -> TunnelConnection for established tunnel connections. Lookups are
+	 * lock free so dispatch of one tunnel never waits for another.
 	 */
-	private Map<Long, TunnelConnection> connectionMap = new LinkedHashMap<>();
+	private final ConcurrentLongMap<TunnelConnection> connectionMap = new ConcurrentLongMap<>();
 
+	/**
+	 * Main websock (shard 0)
+	 */
 	private WebSocketSendWorker wsSendWorker;
 
 	private WebSocketSession session;
 
+	/**
+	 * How many websocks we'd like to use
+	 */
+	private final int requestedShards;
+
+	/**
+	 * How many websocks the cloud accepted. Socket ids are sharded with this.
+	 */
+	private volatile int shards = 1;
+
+	/**
+	 * Send workers by shard index. Null while that shard is not joined.
+	 */
+	private final AtomicReferenceArray<WebSocketSendWorker> shardWorkers;
+
 	private KeyExchange end2endCipher;
 
+	/**
+	 * Per socket credit based flow control. Negotiated with the cloud on
+	 * CONNECTION so we still work with a cloud that doesn't support it.
+	 */
+	private volatile boolean flowControlEnabled = false;
+
+	/**
+	 * Several socket messages per websocket message. Negotiated like flow
+	 * control.
+	 */
+	private volatile boolean batchingEnabled = false;
+
+	/**
+	 * Checksum of DATA frames. Negotiated like flow control. CRC32 is what a cloud
+	 * that doesn't negotiate it uses.
+	 */
+	private volatile FrameChecksum.Type frameChecksum = FrameChecksum.Type.CRC32;
+
+	/**
+	 * Deflated data frames. Negotiated like flow control.
+	 */
+	private volatile boolean compressionEnabled = false;
+
+	/**
+	 * Tunnel types whose sockets compress what they send, if negotiated
+	 */
+	private volatile Set<String> compressedTunnelTypes = Collections.emptySet();
+
+	private final Map<String, CompressionStats> compressionStats = new ConcurrentHashMap<>();
+
+	/**
+	 * Traffic, opens and closes by tunnel type
+	 */
+	private final Map<String, TunnelStats> tunnelStats = new ConcurrentHashMap<>();
+
+	/**
+	 * Of all the send workers (shards)
+	 */
+	private final SendStats sendStats = new SendStats();
+
+	/**
+	 * JMX and log line. Null if not published.
+	 */
+	private volatile SessionMetrics metrics = null;
+
+	/**
+	 * Sockets other than commands can be ciphered end to end. Negotiated like
+	 * flow control.
+	 */
+	private volatile boolean e2eSocketsEnabled = false;
+
+	/**
+	 * Ciphers for sockets about to be created, see {@link #readSocketCipher(long, ByteBuffer)}
+	 */
+	private final Map<Long, Paired> pendingSocketCiphers = new ConcurrentHashMap<>();
+
+	/**
+	 * Idle tcp tunnels wait for data with a small probe read instead of holding a
+	 * data frame. Local only, nothing to negotiate.
+	 */
+	private volatile boolean lazyTcpReads = true;
+
+	/**
+	 * Share of the websocket each socket gets, by tunnel type, when several are
+	 * sending. See {@link SendFlow}.
+	 */
+	public static final Map<String, Integer> DEFAULT_SEND_WEIGHTS;
+	static {
+		Map<String, Integer> w = new LinkedHashMap<>();
+		w.put("command", 8);
+		w.put("tcp", 2);
+		w.put("http", 2);
+		w.put("socks5", 2);
+		w.put("file", 1);
+		w.put("folder", 1);
+		DEFAULT_SEND_WEIGHTS = Collections.unmodifiableMap(w);
+	}
+
+	private final Map<String, Integer> sendWeights = new ConcurrentHashMap<>(DEFAULT_SEND_WEIGHTS);
+
+	/**
+	 * Smoothed round trip time to the cloud, measured with ws ping/pong.
+	 */
+	private final AtomicLong rttNanos = new AtomicLong(DEFAULT_RTT_NANOS);
 	
 	public JoatseSession(WebSocketSession session) {
+		this(session, 1);
+	}
+
+	public JoatseSession(WebSocketSession session, int requestedShards) {
 		this.session = session;
-		this.wsSendWorker = new WebSocketSendWorker(this.session);
+		this.wsSendWorker = new WebSocketSendWorker(this.session, sendStats);
+		this.requestedShards = requestedShards;
+		this.shardWorkers = new AtomicReferenceArray<>(requestedShards);
+		this.shardWorkers.set(0, wsSendWorker);
 	}
+
+	/**
+	 * Shard (websock index) that carries the traffic of a socket. The cloud uses
+	 * the same function.
+	 */
+	public static int shardOf(long socketId, int shards) {
+		return (int) Long.remainderUnsigned(socketId, shards);
+	}
+
+	/**
+	 * The cloud accepted this number of websocks. Call before any socket is open.
+	 */
+	void setShards(int shards) {
+		if (shards < 1 || shards > requestedShards) {
+			throw new IllegalArgumentException("Invalid shard count " + shards + ". Requested " + requestedShards);
+		}
+		this.shards = shards;
+	}
+
+	int getShards() {
+		return shards;
+	}
+
+	/**
+	 * An additional websock joined the session.
+	 */
+	void attachShard(int index, WebSocketSession shardSession) {
+		WebSocketSendWorker worker = new WebSocketSendWorker(shardSession, sendStats);
+		if (batchingEnabled) {
+			worker.setBatcher(new SocketFrameBatcher());
+		}
+		WebSocketSendWorker old = shardWorkers.getAndSet(index, worker);
+		if (old != null) {
+			old.close();
+		}
+		log.info("Websocket shard {}/{} joined: {}", index, shards, shardSession.getId());
+	}
+
+	/**
+	 * An additional websock was lost. Only its sockets are closed.
+	 */
+	void detachShard(int index) {
+		WebSocketSendWorker old = shardWorkers.getAndSet(index, null);
+		if (old == null) {
+			return;
+		}
+		old.close();
+		int n = shards;
+		IOException e = new IOException("Websocket shard " + index + " lost");
+		int closed = 0;
+		for (TunnelConnection c: connectionMap.values()) {
+			if (shardOf(c.getSocketId(), n) == index) {
+				c.close(e, false);
+				closed++;
+			}
+		}
+		log.warn("Websocket shard {}/{} lost. Closed {} sockets", index, n, closed);
+	}
+
 	
 	void add(TunnelConnection c) {
-		lock.lock();
-		try {
-			connectionMap.put(c.getSocketId(), (TunnelConnection) c);
-		} finally {
-			lock.unlock();
-		}
+		connectionMap.put(c.getSocketId(), c);
 	}
 	
 	public void remove(TunnelConnection c) {
-		lock.lock();
-		try {
-			connectionMap.remove(c.getSocketId(), c);
-			c.assertClosed();
-		} finally {
-			lock.unlock();
-		}
+		connectionMap.remove(c.getSocketId(), c);
+		c.assertClosed();
 	}
 		
 	public void handleBinaryMessage(BinaryMessage message) throws IOException {
 		ByteBuffer buffer = message.getPayload();
 		int version = buffer.get();
-		if (version != PROTOCOL_VERSION) {
+		if (version == SocketFrameBatcher.PROTOCOL_VERSION_BATCH) {
+			handleBatch(buffer);
+			return;
+		} else if (version != PROTOCOL_VERSION) {
 			throw new IOException("Unsupported BinaryMessage protocol version: " + version);
 		}
 		byte type = buffer.get();
 		if (type == TunnelConnection.MESSAGE_PUBLIC_KEY) {
 			sendPublicKeyToCloud();
-		} else if (type == TunnelConnection.MESSAGE_TYPE_NEW_SOCKET) {
+		} else if (SocketFrameBatcher.isBatchable(type)) {
 			long socketId = buffer.getLong();
-			long targetId = buffer.getLong();
-			
-			// Check for TCP/HTTP tunnel
-			TunnelRequestItemTcp target = tcpRequestTargets.get(targetId);
-			if (target != null) {
-				newConnectionTcp(socketId, target);
-				return;
-			}
-			
-			// Check for SOCKS5 tunnel
-			TunnelRequestItemSocks5 socks5 = Optional.ofNullable(socks5RequestTarget.get()).filter(x->x.targetId == targetId).orElse(null);
-			if (socks5 != null) {
-				newConnectionSocks5(socketId, socks5);
-				return;
+			handleSocketMessage(type, socketId, buffer);
+		}
+	}
+
+	/**
+	 * Protocol v2 container, see {@link SocketFrameBatcher}. Each sub frame is
+	 * handled like the v1 message it replaces.
+	 */
+	private void handleBatch(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			byte type = buffer.get();
+			long socketId;
+			int len;
+			try {
+				socketId = IOTools.getVarLong(buffer);
+				len = (int) IOTools.getVarLong(buffer);
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				throw new IOException("Malformed batch message", e);
 			}
-			
-			// Check for command tunnel (has encrypted session key payload)
-			TunnelRequestItemCommand command = commandRequestTargets.get(targetId);
-			if (command != null) {
-				byte[] cipheredSessionKey = new byte[buffer.remaining()];
-				buffer.get(cipheredSessionKey);
-				Paired sessionCipher;
-				try {
-					sessionCipher = end2endCipher.pair(cipheredSessionKey);
-				} catch (Exception e) {
-					throw new IOException("Error pairing e2e cipher", e);
-				}
-				newConnectionCommand(socketId, command, sessionCipher);
-				return;
+			if (len < 0 || len > buffer.remaining()) {
+				throw new IOException("Invalid batch frame length: " + len);
 			}
-			
-			// Check for file request (has payload with offset + length)
-			TunnelRequestItemFile fileTarget = fileRequestTargets.get(targetId);
-			if (fileTarget != null) {
-				ByteBuffer payload = buffer.slice();
-				handleFileReadRequest(socketId, fileTarget, payload);
-				return;
+			ByteBuffer body = buffer.slice();
+			body.limit(len);
+			buffer.position(buffer.position() + len);
+			if (!SocketFrameBatcher.isBatchable(type)) {
+				log.warn("Unsupported message type in batch: " + type);
+				continue;
 			}
-			
-			// Check for folder request (has payload with opCode + path + operation-specific data)
-			TunnelRequestItemFolder folderTarget = folderRequestTargets.get(targetId);
-			if (folderTarget != null) {
-				ByteBuffer payload = buffer.slice();
-				handleFolderRequest(socketId, folderTarget, payload);
-				return;
+			handleSocketMessage(type, socketId, body);
+		}
+	}
+
+	/**
+	 * @param buffer the message after the socket id
+	 */
+	private void handleSocketMessage(byte type, long socketId, ByteBuffer buffer) throws IOException {
+		if (type == TunnelConnection.MESSAGE_TYPE_NEW_SOCKET) {
+			handleNewSocket(socketId, buffer);
+			return;
+		}
+		TunnelConnection c = connectionMap.get(socketId);
+		if (c == null) {
+			log.warn("TunnelConnection is not open: " + socketId);
+			return; // Abort without closing the session
+		}
+		Runnable runAfter;
+		try {
+			runAfter = c.receivedTunnelMessage(buffer, type);
+		} catch (Exception e) {
+			log.warn("Error handling tcp data: " + e, e);
+			c.close();
+			return;
+		}
+		if (runAfter != null) {
+			runAfter.run();
+		}
+	}
+
+	private void handleNewSocket(long socketId, ByteBuffer buffer) throws IOException {
+		try {
+			handleNewSocket(socketId, buffer.getLong(), buffer);
+		} finally {
+			// The socket didn't take it if it failed to start
+			Paired unused = pendingSocketCiphers.isEmpty() ? null : pendingSocketCiphers.remove(socketId);
+			if (unused != null) {
+				unused.close();
 			}
-			
-			log.warn("Received new socket for unknown target id: " + targetId);
+		}
+	}
+
+	private void handleNewSocket(long socketId, long targetId, ByteBuffer buffer) throws IOException {
+		
+		// Check for TCP/HTTP tunnel
+		TunnelRequestItemTcp target = tcpRequestTargets.get(targetId);
+		if (target != null) {
+			readSocketCipher(socketId, buffer);
+			newConnectionTcp(socketId, target);
 			return;
-		} else if (TunnelConnection.supportedMessages.contains(type)) {
-			long socketId = buffer.getLong();
-			Runnable runWithoutLock = null; 
-			TunnelConnection c = null;
-			lock.lock();
+		}
+		
+		// Check for SOCKS5 tunnel
+		TunnelRequestItemSocks5 socks5 = Optional.ofNullable(socks5RequestTarget.get()).filter(x->x.targetId == targetId).orElse(null);
+		if (socks5 != null) {
+			readSocketCipher(socketId, buffer);
+			newConnectionSocks5(socketId, socks5);
+			return;
+		}
+		
+		// Check for command tunnel (has encrypted session key payload)
+		TunnelRequestItemCommand command = commandRequestTargets.get(targetId);
+		if (command != null) {
+			byte[] cipheredSessionKey = new byte[buffer.remaining()];
+			buffer.get(cipheredSessionKey);
+			Paired sessionCipher;
 			try {
-				c = connectionMap.get(socketId);
-				if (c != null) {
-					runWithoutLock = c.receivedTunnelMessage(buffer, type); // blocking with lock is ok
-				} else {
-					log.warn("TunnelConnection is not open: " + socketId);
-					return; // Abort without closing the session
-				}
+				sessionCipher = end2endCipher.pair(cipheredSessionKey);
 			} catch (Exception e) {
-				if (c != null) {
-					log.warn("Error handling tcp data: " + e, e);
-					c.close();
-				} else {
-					throw e;
-				}
-			} finally {
-				lock.unlock();
-			}
-			if (runWithoutLock != null) {
-				runWithoutLock.run();
+				throw new IOException("Error pairing e2e cipher", e);
 			}
+			log.debug("Command socket {} ciphered with {}", socketId, sessionCipher.getMode().getWireName());
+			newConnectionCommand(socketId, command, sessionCipher);
+			return;
+		}
+		
+		// Check for file request (has payload with offset + length)
+		TunnelRequestItemFile fileTarget = fileRequestTargets.get(targetId);
+		if (fileTarget != null) {
+			readSocketCipher(socketId, buffer);
+			ByteBuffer payload = buffer.slice();
+			handleFileReadRequest(socketId, fileTarget, payload);
+			return;
+		}
+		
+		// Check for folder request (has payload with opCode + path + operation-specific data)
+		TunnelRequestItemFolder folderTarget = folderRequestTargets.get(targetId);
+		if (folderTarget != null) {
+			readSocketCipher(socketId, buffer);
+			ByteBuffer payload = buffer.slice();
+			handleFolderRequest(socketId, folderTarget, payload);
+			return;
+		}
+		
+		log.warn("Received new socket for unknown target id: " + targetId);
+	}
+
+	/**
+	 * If negotiated, new sockets other than commands start with [short
+	 * len][session key ciphered with our public key]. Length 0 means not ciphered.
+	 * The socket takes it with {@link #takeSocketCipher(long)} when created, so
+	 * nothing goes out in plain.
+	 */
+	private void readSocketCipher(long socketId, ByteBuffer buffer) throws IOException {
+		if (!e2eSocketsEnabled) {
+			return;
 		}
+		int len = buffer.getShort() & 0xFFFF;
+		if (len == 0) {
+			return;
+		}
+		byte[] cipheredSessionKey = new byte[len];
+		buffer.get(cipheredSessionKey);
+		Paired socketCipher;
+		try {
+			socketCipher = end2endCipher.pair(cipheredSessionKey);
+		} catch (Exception e) {
+			throw new IOException("Error pairing e2e cipher", e);
+		}
+		if (socketCipher.getMode() != Mode.GCM) {
+			socketCipher.close();
+			throw new IOException("Socket data needs " + Mode.GCM.getWireName());
+		}
+		pendingSocketCiphers.put(socketId, socketCipher);
+	}
+
+	/**
+	 * @return the cipher the peer sent for a new socket, or null
+	 */
+	public Paired takeSocketCipher(long socketId) {
+		return pendingSocketCiphers.isEmpty() ? null : pendingSocketCiphers.remove(socketId);
 	}
 
 	private void sendPublicKeyToCloud() {
@@ -217,6 +488,7 @@ public class JoatseSession {
 
 	private void newConnectionSocks5(long socketId, TunnelRequestItemSocks5 socks5) {
 		Socks5TunnelTcpConnection c = new Socks5TunnelTcpConnection(this, socketId, (e)->this.close(e), socks5);
+		configure(c, "socks5");
 		add(c);
 		c.getCloseStatus().thenAccept(remote->{
 			// Connection closed ok
@@ -233,9 +505,16 @@ public class JoatseSession {
 		});
 	}
 
-	private void newConnectionTcp(long socketId, TunnelRequestItemTcp target) throws UnknownHostException {
-		InetSocketAddress targetAddress = new InetSocketAddress(InetAddress.getByName(target.targetHostname), target.targetPort);
-		BasicTunnelTcpConnection c = new BasicTunnelTcpConnection(this, targetAddress, socketId, (e)->this.close(e));
+	private void newConnectionTcp(long socketId, TunnelRequestItemTcp target) {
+		// Resolved when connecting, not on this thread
+		InetSocketAddress targetAddress = InetSocketAddress.createUnresolved(target.targetHostname, target.targetPort);
+		HttpBackendPool pool = target instanceof TunnelRequestItemHttp
+				? ((TunnelRequestItemHttp) target).getBackendPool()
+				: null;
+		BasicTunnelTcpConnection c = pool != null
+				? new BasicTunnelTcpConnection(this, pool, socketId, (e)->this.close(e))
+				: new BasicTunnelTcpConnection(this, targetAddress, socketId, (e)->this.close(e), target.socketProfile);
+		configure(c, target instanceof TunnelRequestItemHttp ? "http" : "tcp");
 		add(c);
 		c.getCloseStatus().thenAccept(remote->{
 			// Connection closed ok
@@ -254,6 +533,7 @@ public class JoatseSession {
 	
 	private void newConnectionCommand(long socketId, TunnelRequestItemCommand target, Paired sessionCipher) {
 		CommandConnection c = new CommandConnection(this, transformCommand(target.getCommand(), target.getTargetHostname(), target.getTargetPort(), target.getTargetUser()), socketId, (e)->this.close(e), sessionCipher);
+		configure(c, "command");
 		if (c.startCommand()) {
 			add(c);
 			c.getCloseStatus().thenAccept(remote->{
@@ -303,6 +583,7 @@ public class JoatseSession {
 			log.error("Failed to create file tunnel connection: {}", e.getMessage());
 			return;
 		}
+		configure(conn, "file");
 		add(conn);
 		
 		// Start streaming after connection is registered
@@ -333,6 +614,7 @@ public class JoatseSession {
 			log.error("Failed to create folder tunnel connection: {}", e.getMessage());
 			return;
 		}
+		configure(conn, "folder");
 		add(conn);
 		
 		// Start operation execution after connection is registered
@@ -358,43 +640,96 @@ public class JoatseSession {
 	}
 	
 	public void close(Throwable e) {
-		lock.lock();
 		try {
 			/*
-			 * We need a copy since c.close() will update the map and we cannot iterate the
-			 * map at the same time.
+			 * values() is a copy since c.close() will update the map.
 			 */
-			ArrayList<TunnelConnection> copy = new ArrayList<>(connectionMap.values());
-			for (TunnelConnection c: copy) {
-				lock.unlock(); // Unlock while closing it so we don't share the lock with anyone else
-				try {
-					c.close(e, false);
-				} finally {
-					lock.lock();
-				}
+			for (TunnelConnection c: connectionMap.values()) {
+				c.close(e, false);
 			}
 		} finally {
-			lock.unlock();
+			SessionMetrics m = metrics;
+			if (m != null) {
+				m.close();
+			}
+			for (int i = 1; i < shardWorkers.length(); i++) {
+				WebSocketSendWorker w = shardWorkers.getAndSet(i, null);
+				if (w != null) {
+					w.close();
+				}
+			}
 			wsSendWorker.close();
 			IOTools.runFailable(()->session.close(CloseStatus.NORMAL));
 		}
 	}
 
+	/**
+	 * Send control traffic (main websock)
+	 */
 	public CompletableFuture<Void> sendMessage(WebSocketMessage<?> message) {
 		return wsSendWorker.sendMessage(message);
 	}
 
+	/**
+	 * Worker of the shard of a socket. If the shard is not there we use the main
+	 * websock so the message isn't lost.
+	 */
+	private WebSocketSendWorker workerOf(long socketId) {
+		int n = shards;
+		WebSocketSendWorker w = n > 1 ? shardWorkers.get(shardOf(socketId, n)) : null;
+		return w != null ? w : wsSendWorker;
+	}
+
+	/**
+	 * Worker of a socket. It's picked with {@link #workerOf(long)} on the first
+	 * message and kept, so a socket opened while its shard was not there stays on
+	 * the main websock even if the shard joins later. Only if that websock is
+	 * lost the rest (the close) goes through another one.
+	 */
+	private WebSocketSendWorker workerOf(SendFlow flow) {
+		while (true) {
+			WebSocketSendWorker w = flow.getSender();
+			if (w != null && !w.isClosed()) {
+				return w;
+			}
+			WebSocketSendWorker n = workerOf(flow.getSocketId());
+			if (flow.compareAndSetSender(w, n)) {
+				return n;
+			}
+		}
+	}
+
+	/**
+	 * Send control traffic of a socket through its websock, before any data
+	 */
+	public CompletableFuture<Void> sendControlMessage(SendFlow flow, WebSocketMessage<?> message) {
+		return workerOf(flow).sendMessage(message);
+	}
+
+	/**
+	 * Send traffic of a socket through its websock, in order with the rest of its
+	 * flow
+	 */
+	public CompletableFuture<Void> sendMessage(SendFlow flow, WebSocketMessage<?> message) {
+		return workerOf(flow).sendMessage(message, flow);
+	}
+
+	/**
+	 * Like {@link #sendMessage(SendFlow, WebSocketMessage)} for recycled messages
+	 */
+	public void sendMessage(SendFlow flow, QueuedMessage message) {
+		workerOf(flow).send(message, flow);
+	}
+
 	public void createTunnel(Collection<TunnelRequestItemTcp> tcpTunnels, Collection<TunnelRequestItemHttp> httpTunnels,
 			Optional<TunnelRequestItemSocks5> socks5Tunnel, Collection<TunnelRequestItemCommand> commandTunnels,
 			Collection<TunnelRequestItemFile> fileTunnels, Collection<TunnelRequestItemFolder> folderTunnels,
 			Optional<UUID> preconfirmUuid, boolean autoAuthorizeByHttpUrl) {
-		if (!commandTunnels.isEmpty()) {
-			// Prepare e2e cypher
-			try {
-				this.end2endCipher = JoatseCipher.forRSAKeyExchange();
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException("Can't activate E2E cipher: " + e, e);
-			}
+		// Prepare e2e cypher, for commands and for any socket if the peer wants
+		try {
+			this.end2endCipher = JoatseCipher.forRSAKeyExchange();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Can't activate E2E cipher: " + e, e);
 		}
 		// TODO udp ports
 		JSONObject js = new JSONObject();
@@ -479,6 +814,17 @@ public class JoatseSession {
 			js.put("preconfirmed", uuid.toString());
 		});
 		js.put("autoAuthorizeByHttpUrl", autoAuthorizeByHttpUrl);
+		js.put("flowControl", true); // We support it. The cloud decides.
+		js.put("batching", true); // Same
+		js.put("integrity", new JSONArray(supportedFrameChecksums())); // The cloud picks one
+		js.put("compression", new JSONArray().put("deflate")); // Same
+		js.put("e2eSockets", true); // Same. The peer decides for each socket.
+		// The peer picks one and tells us with each session key. Always sent, with
+		// or without command tunnels: e2e sockets get session keys too.
+		js.put("e2eCiphers", new JSONArray().put(Mode.GCM.getWireName()).put(Mode.CBC.getWireName()));
+		if (requestedShards > 1) {
+			js.put("parallelConnections", requestedShards); // The cloud decides how many
+		}
 		TextMessage message = new TextMessage(js.toString());
 		log.info("sending request: {}", message.getPayload());
 		sendMessage(message);
@@ -496,6 +842,207 @@ public class JoatseSession {
 		});
 	}
 
+	/**
+	 * Send protocol v2 batches (see {@link SocketFrameBatcher}) if the cloud
+	 * accepted them. We always understand them.
+	 */
+	void setBatchingEnabled(boolean batchingEnabled) {
+		this.batchingEnabled = batchingEnabled;
+		for (int i = 0; i < shardWorkers.length(); i++) {
+			WebSocketSendWorker w = shardWorkers.get(i);
+			if (w != null) {
+				w.setBatcher(batchingEnabled ? new SocketFrameBatcher() : null);
+			}
+		}
+	}
+
+	/**
+	 * In order of preference. No checksum is only offered over TLS, which already
+	 * authenticates every record.
+	 */
+	private List<String> supportedFrameChecksums() {
+		List<String> res = new ArrayList<>();
+		URI uri = session.getUri();
+		if (uri != null && "wss".equalsIgnoreCase(uri.getScheme())) {
+			res.add(FrameChecksum.Type.NONE.getWireName());
+		}
+		res.add(FrameChecksum.Type.CRC32C.getWireName());
+		res.add(FrameChecksum.Type.CRC32.getWireName());
+		return res;
+	}
+
+	/**
+	 * @param wireName what the cloud picked
+	 * @throws IllegalArgumentException if we don't know it
+	 */
+	void setFrameChecksum(String wireName) {
+		FrameChecksum.Type type = FrameChecksum.Type.forWireName(wireName);
+		if (type == null) {
+			throw new IllegalArgumentException("Unsupported integrity check: " + wireName);
+		}
+		this.frameChecksum = type;
+	}
+
+	public FrameChecksum.Type getFrameChecksum() {
+		return frameChecksum;
+	}
+
+	/**
+	 * The cloud can inflate what we send and might deflate what it sends
+	 */
+	void setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	/**
+	 * The peer can send a session key with any new socket
+	 */
+	void setE2eSocketsEnabled(boolean e2eSocketsEnabled) {
+		this.e2eSocketsEnabled = e2eSocketsEnabled;
+	}
+
+	void setFlowControlEnabled(boolean flowControlEnabled) {
+		this.flowControlEnabled = flowControlEnabled;
+	}
+
+	public boolean isFlowControlEnabled() {
+		return flowControlEnabled;
+	}
+
+	/**
+	 * @param weights by tunnel type, see {@link #DEFAULT_SEND_WEIGHTS}. The rest
+	 *                keep their weight.
+	 */
+	public void setSendWeights(Map<String, Integer> weights) {
+		for (Map.Entry<String, Integer> e : weights.entrySet()) {
+			if (!DEFAULT_SEND_WEIGHTS.containsKey(e.getKey())) {
+				throw new IllegalArgumentException("Unknown tunnel type: " + e.getKey());
+			}
+			if (e.getValue() < 1) {
+				throw new IllegalArgumentException("Weight must be positive: " + e.getKey() + ":" + e.getValue());
+			}
+		}
+		sendWeights.putAll(weights);
+	}
+
+	/**
+	 * @param tunnelTypes whose sockets compress what they send, see
+	 *                    {@link #DEFAULT_SEND_WEIGHTS} for the types
+	 */
+	public void setCompressedTunnelTypes(Set<String> tunnelTypes) {
+		for (String t : tunnelTypes) {
+			if (!DEFAULT_SEND_WEIGHTS.containsKey(t)) {
+				throw new IllegalArgumentException("Unknown tunnel type: " + t);
+			}
+		}
+		this.compressedTunnelTypes = new HashSet<>(tunnelTypes);
+	}
+
+	/**
+	 * Compression of the data sent by all the sockets of a tunnel type so far
+	 */
+	public CompressionStats getCompressionStats(String tunnelType) {
+		return compressionStats.computeIfAbsent(tunnelType, k -> new CompressionStats());
+	}
+
+	/**
+	 * Of the tunnel types that compressed something so far
+	 */
+	Map<String, CompressionStats> getAllCompressionStats() {
+		return Collections.unmodifiableMap(compressionStats);
+	}
+
+	/**
+	 * Traffic of all the sockets of a tunnel type so far
+	 */
+	public TunnelStats getTunnelStats(String tunnelType) {
+		return tunnelStats.computeIfAbsent(tunnelType, TunnelStats::new);
+	}
+
+	/**
+	 * Tunnel types seen so far
+	 */
+	public Set<String> getTunnelTypes() {
+		return Collections.unmodifiableSet(tunnelStats.keySet());
+	}
+
+	/**
+	 * Open sockets by tunnel type
+	 */
+	public Map<String, Integer> getActiveConnections() {
+		Map<String, Integer> res = new TreeMap<>();
+		for (TunnelConnection c: connectionMap.values()) {
+			String type = c instanceof AbstractSocketConnection ? ((AbstractSocketConnection) c).getTunnelType() : null;
+			res.merge(type == null ? "unknown" : type, 1, Integer::sum);
+		}
+		return res;
+	}
+
+	public SendStats getSendStats() {
+		return sendStats;
+	}
+
+	/**
+	 * Messages waiting to be sent, in all the shards
+	 */
+	public int getSendQueueDepth() {
+		int n = 0;
+		for (int i = 0; i < shardWorkers.length(); i++) {
+			WebSocketSendWorker w = shardWorkers.get(i);
+			if (w != null) {
+				n += w.getQueueDepth();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Register the metrics of this session in JMX and log them every logSeconds
+	 * (0 to not log them). Until the session is closed.
+	 */
+	SessionMetrics publishMetrics(int logSeconds) {
+		metrics = new SessionMetrics(this, logSeconds);
+		return metrics;
+	}
+
+	String getId() {
+		return session.getId();
+	}
+
+	/**
+	 * What a new socket of that tunnel type gets before it sends anything
+	 */
+	private void configure(AbstractSocketConnection c, String tunnelType) {
+		c.setTunnelStats(getTunnelStats(tunnelType));
+		c.setSendWeight(sendWeights.get(tunnelType));
+		if (compressionEnabled && compressedTunnelTypes.contains(tunnelType)) {
+			c.enableCompression(getCompressionStats(tunnelType));
+		}
+	}
+
+	public void setLazyTcpReads(boolean lazyTcpReads) {
+		this.lazyTcpReads = lazyTcpReads;
+	}
+
+	public boolean isLazyTcpReads() {
+		return lazyTcpReads;
+	}
+
+	/**
+	 * New RTT measure. Smoothed like TCP SRTT (alpha = 1/8).
+	 */
+	void rttSample(long nanos) {
+		rttNanos.updateAndGet(srtt -> srtt - srtt / 8 + nanos / 8);
+	}
+
+	public long getRttNanos() {
+		return rttNanos.get();
+	}
+
 	public byte[] getPublicKey() {
 		return end2endCipher.getPublicKey();
 	}
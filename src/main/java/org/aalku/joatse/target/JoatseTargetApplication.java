@@ -9,8 +9,12 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -22,8 +26,11 @@ import org.aalku.joatse.target.JoatseClient.TunnelRequestItemFolder;
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemHttp;
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemSocks5;
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemTcp;
+import org.aalku.joatse.target.connection.HttpBackendPool;
 import org.aalku.joatse.target.tools.QrGenerator.QrMode;
+import org.aalku.joatse.target.tools.io.BufferPool;
 import org.aalku.joatse.target.tools.io.CommandLineParser;
+import org.aalku.joatse.target.tools.io.SocketProfile;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
@@ -51,6 +58,31 @@ public class JoatseTargetApplication implements ApplicationRunner, DisposableBea
 	@Value("${daemonMode:false}")
 	private boolean daemonMode = false;
 
+	@Value("${parallelConnections:1}")
+	private int parallelConnections = 1;
+
+	@Value("${lazyTcpReads:true}")
+	private boolean lazyTcpReads = true;
+
+	@Value("${sendWeights:}")
+	private String sendWeights = "";
+
+	private Map<String, Integer> sendWeightMap = Collections.emptyMap();
+
+	@Value("${compression:}")
+	private String compression = "";
+
+	private Set<String> compressedTunnelTypes = Collections.emptySet();
+
+	@Value("${bufferPoolMaxMB:256}")
+	private long bufferPoolMaxMB = 256;
+
+	@Value("${metricsLogSeconds:60}")
+	private int metricsLogSeconds = 60;
+
+	@Value("${httpWarmConnections:0}")
+	private int httpWarmConnections = 0;
+
 	private volatile JoatseClient jc;
 
 	private volatile boolean closed = false;
@@ -73,6 +105,13 @@ public class JoatseTargetApplication implements ApplicationRunner, DisposableBea
 
 	@Override
 	public void run(ApplicationArguments args) throws Exception {
+		BufferPool.shared().setMaxBytes(bufferPoolMaxMB * 1024 * 1024);
+		sendWeightMap = parseSendWeights(sendWeights);
+		compressedTunnelTypes = parseCompression(compression);
+		if (httpWarmConnections < 0 || httpWarmConnections > HttpBackendPool.MAX_WARM_CONNECTIONS) {
+			throw new CommandLineException("httpWarmConnections must be 0 to " + HttpBackendPool.MAX_WARM_CONNECTIONS);
+		}
+
 		Collection<TunnelRequestItemTcp> tcpTunnels = parseTcpShareArgs(args);
 		
 		Collection<TunnelRequestItemHttp> httpTunnels = parseHttpShareArgs(args);
@@ -178,17 +217,23 @@ public class JoatseTargetApplication implements ApplicationRunner, DisposableBea
 			Collection<TunnelRequestItemFile> fileTunnels, Collection<TunnelRequestItemFolder> folderTunnels,
 			Optional<UUID> preconfirmUuid,
 			boolean autoAuthorizeByHttpUrl) throws URISyntaxException {
-		while (true) {
-			runAndWaitToFinish(tcpTunnels, httpTunnels, socks5Tunnel, commandTunnels, fileTunnels, folderTunnels, preconfirmUuid, autoAuthorizeByHttpUrl);
-			if (!daemonMode) {
-				break;
-			} else {
-				try {
-					Thread.sleep(SLEEP_BETWEEN_CONNECTION_TRIES);
-				} catch (InterruptedException e) {
-					throw new RuntimeException("Interrupted");
+		// Warm while we connect to the cloud, and across reconnections
+		httpTunnels.stream().map(t -> t.getBackendPool()).filter(p -> p != null).forEach(p -> p.start());
+		try {
+			while (true) {
+				runAndWaitToFinish(tcpTunnels, httpTunnels, socks5Tunnel, commandTunnels, fileTunnels, folderTunnels, preconfirmUuid, autoAuthorizeByHttpUrl);
+				if (!daemonMode) {
+					break;
+				} else {
+					try {
+						Thread.sleep(SLEEP_BETWEEN_CONNECTION_TRIES);
+					} catch (InterruptedException e) {
+						throw new RuntimeException("Interrupted");
+					}
 				}
 			}
+		} finally {
+			httpTunnels.stream().map(t -> t.getBackendPool()).filter(p -> p != null).forEach(p -> p.close());
 		}
 	}
 
@@ -203,7 +248,8 @@ public class JoatseTargetApplication implements ApplicationRunner, DisposableBea
 			tryNumber++;
 			System.out.println("Connection try " + tryNumber + "/"
 					+ Optional.ofNullable(maxTries).map(n -> n.toString()).orElse("inf"));
-			jc = new JoatseClient(cloudUrl, qrMode);
+			jc = new JoatseClient(cloudUrl, qrMode, parallelConnections, lazyTcpReads, sendWeightMap, compressedTunnelTypes,
+					metricsLogSeconds);
 			try {
 				jc.connect().waitUntilConnected();		
 				if (jc.isConnected()) {	
@@ -227,12 +273,51 @@ public class JoatseTargetApplication implements ApplicationRunner, DisposableBea
 		}
 	}
 	
+	/**
+	 * type:weight,type:weight
+	 */
+	private Map<String, Integer> parseSendWeights(String arg) throws CommandLineException {
+		Map<String, Integer> res = new LinkedHashMap<>();
+		if (arg == null || arg.trim().isEmpty()) {
+			return res;
+		}
+		for (String item : arg.split(",")) {
+			Matcher m = Pattern.compile("^\\s*([a-z0-9]+):([1-9][0-9]{0,3})\\s*$").matcher(item);
+			if (!m.matches() || !JoatseSession.DEFAULT_SEND_WEIGHTS.containsKey(m.group(1))) {
+				throw new CommandLineException("sendWeights must be type:weight,type:weight with types in "
+						+ JoatseSession.DEFAULT_SEND_WEIGHTS.keySet() + " and weights from 1 to 9999");
+			}
+			res.put(m.group(1), Integer.parseInt(m.group(2)));
+		}
+		return res;
+	}
+
+	/**
+	 * type,type
+	 */
+	private Set<String> parseCompression(String arg) throws CommandLineException {
+		Set<String> res = new LinkedHashSet<>();
+		if (arg == null || arg.trim().isEmpty()) {
+			return res;
+		}
+		for (String item : arg.split(",")) {
+			String type = item.trim();
+			if (!JoatseSession.DEFAULT_SEND_WEIGHTS.containsKey(type)) {
+				throw new CommandLineException("compression must be a list of tunnel types in "
+						+ JoatseSession.DEFAULT_SEND_WEIGHTS.keySet());
+			}
+			res.add(type);
+		}
+		return res;
+	}
+
 	private TunnelRequestItemTcp prepareTcpConfig(String arg) throws CommandLineException {
-		Pattern pattern = Pattern.compile("^((.*)#)?([^:#]+):([1-9][0-9]*)$"); // Organization beats optimization here
+		Pattern pattern = Pattern.compile("^((.*)#)?([^:#;]+):([1-9][0-9]*)(;(.+))?$"); // Organization beats optimization here
 		Matcher m = pattern.matcher(arg);
 		if (m.matches()) {
 			String host = m.group(3);
 			int port = Integer.parseInt(m.group(4));
+			SocketProfile profile = parseSocketProfile(m.group(6), "shareTcp");
 			String description = m.group(2); // Don't filter empty here, let utility handle it
 			try {
 				InetAddress.getByName(host); // Fail fast
@@ -241,9 +326,9 @@ public class JoatseTargetApplication implements ApplicationRunner, DisposableBea
 			}
 			// Use utility to ensure consistent description logic
 			String finalDescription = getDefaultTcpDescription(description, host, port);
-			return new TunnelRequestItemTcp(host, port, finalDescription);
+			return new TunnelRequestItemTcp(host, port, finalDescription, profile);
 		} else {
-			throw new CommandLineException("shareTcp must be description#targetHost:port or targetHost:port");
+			throw new CommandLineException("shareTcp must be description#targetHost:port or targetHost:port, optionally followed by ;socketProfile");
 		}
 	}
 	
@@ -271,6 +356,17 @@ public class JoatseTargetApplication implements ApplicationRunner, DisposableBea
 		if (m.matches()) {
 			String url = m.group(3);
 			String description = m.group(2); // Don't filter empty here, let utility handle it
+			SocketProfile profile = SocketProfile.DEFAULT;
+			int sep = url.lastIndexOf(';');
+			if (sep > 0) {
+				try {
+					// URLs can have ';' too, so only if it's a profile
+					profile = SocketProfile.parse(url.substring(sep + 1));
+					url = url.substring(0, sep);
+				} catch (IllegalArgumentException e) {
+					// Part of the URL
+				}
+			}
 			URL oUrl;
 			try {
 				oUrl = new URL(url);
@@ -284,24 +380,57 @@ public class JoatseTargetApplication implements ApplicationRunner, DisposableBea
 			}
 			// Use utility to ensure consistent description logic
 			String finalDescription = getDefaultHttpDescription(description, oUrl);
-			return new TunnelRequestItemHttp(oUrl, finalDescription, unsafe, hideProxy);
+			return new TunnelRequestItemHttp(oUrl, finalDescription, unsafe, hideProxy, profile, httpWarmConnections);
 		} else {
 			throw new CommandLineException("shareHttp must be description#URL or URL");
 		}
 	}
 
-	private String prepareSocks5Config(String arg) throws CommandLineException {
-		Pattern pattern = Pattern.compile("^([^, :]+(:[0-9]+)?|[*])$");
+	/**
+	 * @return the target and the socket profile, null if not given
+	 */
+	private String[] prepareSocks5Config(String arg) throws CommandLineException {
+		Pattern pattern = Pattern.compile("^([^, :;]+(:[0-9]+)?|[*])(;(.+))?$");
 		Matcher m = pattern.matcher(arg);
 		if (m.matches()) {
-			return m.group(1);
+			return new String[] { m.group(1), m.group(4) };
 		} else {
-			throw new CommandLineException("shareSocks5 must be targetHost[:port] or *");
+			throw new CommandLineException("shareSocks5 must be targetHost[:port] or *, optionally followed by ;socketProfile");
 		}
 	}
 	
-	private Optional<TunnelRequestItemSocks5> prepareSocks5Config(List<String> items) {
-		return items.isEmpty() ? Optional.empty() : Optional.of(new TunnelRequestItemSocks5(items));
+	private Optional<TunnelRequestItemSocks5> prepareSocks5Config(List<String[]> items) {
+		if (items.isEmpty()) {
+			return Optional.empty();
+		}
+		// One tunnel, so one profile
+		String profileSpec = null;
+		for (String[] item : items) {
+			if (item[1] != null) {
+				if (profileSpec != null && !profileSpec.equals(item[1])) {
+					throw new CommandLineException("shareSocks5 targets must not have different socket profiles: "
+							+ profileSpec + ", " + item[1]);
+				}
+				profileSpec = item[1];
+			}
+		}
+		List<String> targets = items.stream().map(i -> i[0]).collect(Collectors.toList());
+		return Optional.of(new TunnelRequestItemSocks5(targets, parseSocketProfile(profileSpec, "shareSocks5")));
+	}
+
+	/**
+	 * @param spec null for the default
+	 */
+	private static SocketProfile parseSocketProfile(String spec, String option) throws CommandLineException {
+		if (spec == null) {
+			return SocketProfile.DEFAULT;
+		}
+		try {
+			return SocketProfile.parse(spec);
+		} catch (IllegalArgumentException e) {
+			throw new CommandLineException(option + " socket profile must be interactive, bulk, default or options like bulk,nodelay=true: "
+					+ e.getMessage());
+		}
 	}
 
 	private Integer getRetryCount() {
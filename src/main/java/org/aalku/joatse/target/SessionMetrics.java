@@ -0,0 +1,272 @@
+package org.aalku.joatse.target;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.aalku.joatse.target.connection.CompressionStats;
+import org.aalku.joatse.target.connection.TunnelStats;
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+import org.aalku.joatse.target.tools.io.SendStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the metrics of a {@link JoatseSession}: JMX and a periodic log
+ * line. Everything is read from the live counters when asked, so this costs
+ * nothing to the traffic.
+ */
+class SessionMetrics implements SessionMetricsMXBean, AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(SessionMetrics.class);
+
+	private final JoatseSession session;
+
+	private final ObjectName name;
+
+	/** 0 to not log */
+	private final int logSeconds;
+
+	/** Next log line. Null if not logging. */
+	private volatile TimerWheel.Timeout logTask;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * What the last log line saw, by tunnel type: bytes/frames sent and
+	 * received, opened, closed, errors. Only for the log task.
+	 */
+	private final Map<String, long[]> lastTunnels = new HashMap<>();
+	private long lastMessages = 0;
+	private long lastLatencyNanos = 0;
+
+	/**
+	 * @param logSeconds 0 to not log
+	 */
+	SessionMetrics(JoatseSession session, int logSeconds) {
+		this.session = session;
+		this.name = register();
+		this.logSeconds = logSeconds;
+		scheduleLogLine();
+	}
+
+	private void scheduleLogLine() {
+		if (logSeconds > 0 && !closed) {
+			TimerWheel.Timeout t = TimerWheel.shared().schedule(this::logLine, logSeconds, TimeUnit.SECONDS);
+			logTask = t;
+			if (closed) {
+				t.cancel(); // Closed meanwhile
+			}
+		}
+	}
+
+	private ObjectName register() {
+		try {
+			ObjectName n = new ObjectName("org.aalku.joatse.target:type=Session,name=" + ObjectName.quote(session.getId()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+			return n;
+		} catch (Exception e) {
+			log.warn("Session metrics not published in JMX: {}", e.toString());
+			return null;
+		}
+	}
+
+	ObjectName getObjectName() {
+		return name;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		TimerWheel.Timeout t = logTask;
+		if (t != null) {
+			t.cancel();
+		}
+		if (name != null) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (Exception e) {
+				log.warn("Session metrics not unregistered from JMX: {}", e.toString());
+			}
+		}
+	}
+
+	private void logLine() {
+		try {
+			String line = formatLine();
+			if (line != null) {
+				log.info(line);
+			}
+		} catch (RuntimeException e) {
+			log.warn("Error logging session metrics: {}", e, e);
+		}
+		scheduleLogLine();
+	}
+
+	/**
+	 * What happened since the last call, in one line. Null if nothing did and no
+	 * socket is open.
+	 */
+	synchronized String formatLine() {
+		StringBuilder sb = new StringBuilder();
+		boolean activity = false;
+		Map<String, Integer> active = session.getActiveConnections();
+		for (Map.Entry<String, TunnelStats> e: tunnelStatsByType().entrySet()) {
+			String type = e.getKey();
+			TunnelStats t = e.getValue();
+			long[] now = new long[] { t.getBytesSent(), t.getFramesSent(), t.getBytesReceived(), t.getFramesReceived(),
+					t.getOpened(), t.getClosed(), t.getErrorCount() };
+			long[] last = lastTunnels.put(type, now);
+			long[] d = new long[now.length];
+			boolean changed = false;
+			for (int i = 0; i < now.length; i++) {
+				d[i] = now[i] - (last == null ? 0 : last[i]);
+				changed |= d[i] != 0;
+			}
+			int open = active.getOrDefault(type, 0);
+			if (!changed && open == 0) {
+				continue;
+			}
+			activity |= changed;
+			sb.append(String.format(" %s[open=%d out=%dB/%df in=%dB/%df +%d -%d err=%d]", type, open, d[0], d[1], d[2],
+					d[3], d[4], d[5], d[6]));
+		}
+		SendStats s = session.getSendStats();
+		long messages = s.getMessages();
+		long latencyNanos = s.getLatencyNanos();
+		long periodMessages = messages - lastMessages;
+		long periodLatency = latencyNanos - lastLatencyNanos;
+		lastMessages = messages;
+		lastLatencyNanos = latencyNanos;
+		if (!activity && active.isEmpty() && periodMessages == 0) {
+			return null;
+		}
+		return String.format("Session %s:%s queue=%d sendLatency=%dus rtt=%dus", session.getId(), sb,
+				session.getSendQueueDepth(), periodMessages == 0 ? 0 : periodLatency / periodMessages / 1000,
+				getRttMicros());
+	}
+
+	private Map<String, TunnelStats> tunnelStatsByType() {
+		Map<String, TunnelStats> res = new TreeMap<>();
+		for (String type: session.getTunnelTypes()) {
+			res.put(type, session.getTunnelStats(type));
+		}
+		return res;
+	}
+
+	private Map<String, Long> byType(ToLongFunction<TunnelStats> getter) {
+		Map<String, Long> res = new TreeMap<>();
+		tunnelStatsByType().forEach((type, t) -> res.put(type, getter.applyAsLong(t)));
+		return res;
+	}
+
+	@Override
+	public Map<String, Integer> getActiveConnections() {
+		return session.getActiveConnections();
+	}
+
+	@Override
+	public Map<String, Long> getBytesSent() {
+		return byType(TunnelStats::getBytesSent);
+	}
+
+	@Override
+	public Map<String, Long> getBytesReceived() {
+		return byType(TunnelStats::getBytesReceived);
+	}
+
+	@Override
+	public Map<String, Long> getFramesSent() {
+		return byType(TunnelStats::getFramesSent);
+	}
+
+	@Override
+	public Map<String, Long> getFramesReceived() {
+		return byType(TunnelStats::getFramesReceived);
+	}
+
+	@Override
+	public Map<String, Long> getOpened() {
+		return byType(TunnelStats::getOpened);
+	}
+
+	@Override
+	public Map<String, Long> getClosed() {
+		return byType(TunnelStats::getClosed);
+	}
+
+	@Override
+	public Map<String, Long> getConnectedIpv4() {
+		return byType(TunnelStats::getConnectedIpv4);
+	}
+
+	@Override
+	public Map<String, Long> getConnectedIpv6() {
+		return byType(TunnelStats::getConnectedIpv6);
+	}
+
+	@Override
+	public Map<String, Long> getCloseErrors() {
+		Map<String, Long> res = new TreeMap<>();
+		for (TunnelStats t: tunnelStatsByType().values()) {
+			t.getErrors().forEach((k, v) -> res.merge(k, v, Long::sum));
+		}
+		return res;
+	}
+
+	@Override
+	public Map<String, Double> getCompressionRatio() {
+		Map<String, Double> res = new TreeMap<>();
+		for (Map.Entry<String, CompressionStats> e: session.getAllCompressionStats().entrySet()) {
+			res.put(e.getKey(), e.getValue().getRatio());
+		}
+		return res;
+	}
+
+	@Override
+	public int getSendQueueDepth() {
+		return session.getSendQueueDepth();
+	}
+
+	@Override
+	public long getMessagesSent() {
+		return session.getSendStats().getMessages();
+	}
+
+	@Override
+	public long getMessagesFailed() {
+		return session.getSendStats().getFailed();
+	}
+
+	@Override
+	public long getWsMessagesSent() {
+		return session.getSendStats().getWsMessages();
+	}
+
+	@Override
+	public long getWsBytesSent() {
+		return session.getSendStats().getWsBytes();
+	}
+
+	@Override
+	public long getAverageSendLatencyMicros() {
+		SendStats s = session.getSendStats();
+		long m = s.getMessages();
+		return m == 0 ? 0 : s.getLatencyNanos() / m / 1000;
+	}
+
+	@Override
+	public long getRttMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(session.getRttNanos());
+	}
+
+}
@@ -0,0 +1,63 @@
+package org.aalku.joatse.target;
+
+import java.util.Map;
+
+/**
+ * Live metrics of a {@link JoatseSession}, in JMX as
+ * org.aalku.joatse.target:type=Session,name="session id". Maps are by tunnel
+ * type. Bytes are as they go in the frames.
+ */
+public interface SessionMetricsMXBean {
+
+	Map<String, Integer> getActiveConnections();
+
+	Map<String, Long> getBytesSent();
+
+	Map<String, Long> getBytesReceived();
+
+	Map<String, Long> getFramesSent();
+
+	Map<String, Long> getFramesReceived();
+
+	Map<String, Long> getOpened();
+
+	Map<String, Long> getClosed();
+
+	/**
+	 * Sockets that connected to their target over IPv4
+	 */
+	Map<String, Long> getConnectedIpv4();
+
+	Map<String, Long> getConnectedIpv6();
+
+	/**
+	 * Sockets closed because of an error, by exception class
+	 */
+	Map<String, Long> getCloseErrors();
+
+	/**
+	 * Wire bytes per data byte, of the tunnel types that compress
+	 */
+	Map<String, Double> getCompressionRatio();
+
+	/**
+	 * Messages waiting to be sent to the cloud
+	 */
+	int getSendQueueDepth();
+
+	long getMessagesSent();
+
+	long getMessagesFailed();
+
+	long getWsMessagesSent();
+
+	long getWsBytesSent();
+
+	/**
+	 * Average time from queued to sent
+	 */
+	long getAverageSendLatencyMicros();
+
+	long getRttMicros();
+
+}
@@ -0,0 +1,117 @@
+package org.aalku.joatse.target;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.connection.TunnelConnection;
+import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.MessageBatcher;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * Packs v1 socket messages into one protocol v2 container message:
+ *
+ * <pre>
+ * [version=2] then repeated [type][varint socketId][varint bodyLength][body]
+ * </pre>
+ *
+ * The body is whatever followed the socket id in the v1 message, so the
+ * receiver dispatches each sub frame exactly like a v1 message. Only the
+ * per-socket message types are batched, anything else goes alone.
+ */
+class SocketFrameBatcher implements MessageBatcher {
+
+	static final byte PROTOCOL_VERSION_BATCH = 2;
+
+	/**
+	 * Same as the ws message size limit of the cloud side
+	 */
+	static final int MAX_BATCH_SIZE = 64 * 1024;
+
+	static final long DEFAULT_LATENCY_BUDGET_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+	/** version + type + socketId */
+	private static final int V1_SOCKET_HEADER_SIZE = 10;
+
+	private final long latencyBudgetNanos;
+
+	private final ByteBuffer batch = ByteBuffer.allocate(MAX_BATCH_SIZE);
+
+	/**
+	 * The only message added, to send it as is
+	 */
+	private WebSocketMessage<?> single = null;
+	private int count = 0;
+
+	SocketFrameBatcher() {
+		this(DEFAULT_LATENCY_BUDGET_NANOS);
+	}
+
+	SocketFrameBatcher(long latencyBudgetNanos) {
+		this.latencyBudgetNanos = latencyBudgetNanos;
+	}
+
+	@Override
+	public boolean add(WebSocketMessage<?> message) {
+		if (!(message instanceof BinaryMessage)) {
+			return false;
+		}
+		ByteBuffer m = ((BinaryMessage) message).getPayload();
+		int pos = m.position();
+		if (m.remaining() < V1_SOCKET_HEADER_SIZE || m.get(pos) != JoatseSession.PROTOCOL_VERSION) {
+			return false;
+		}
+		byte type = m.get(pos + 1);
+		if (!isBatchable(type)) {
+			return false;
+		}
+		long socketId = m.getLong(pos + 2);
+		int bodyLen = m.remaining() - V1_SOCKET_HEADER_SIZE;
+		int size = 1 + IOTools.varLongSize(socketId) + IOTools.varLongSize(bodyLen) + bodyLen;
+		if (count == 0) {
+			batch.clear();
+			batch.put(PROTOCOL_VERSION_BATCH);
+		}
+		if (size > batch.remaining()) {
+			return false;
+		}
+		batch.put(type);
+		IOTools.putVarLong(batch, socketId);
+		IOTools.putVarLong(batch, bodyLen);
+		// Copy of a view, so the message is left as it was
+		ByteBuffer body = m.duplicate();
+		body.position(pos + V1_SOCKET_HEADER_SIZE);
+		batch.put(body);
+		single = count == 0 ? message : null;
+		count++;
+		return true;
+	}
+
+	/**
+	 * The returned message wraps an internal buffer. It must be sent before the
+	 * next {@link #add(WebSocketMessage)}.
+	 */
+	@Override
+	public WebSocketMessage<?> build() {
+		WebSocketMessage<?> res;
+		if (count == 1) {
+			res = single;
+		} else {
+			batch.flip();
+			res = new BinaryMessage(batch, true);
+		}
+		single = null;
+		count = 0;
+		return res;
+	}
+
+	@Override
+	public long getLatencyBudgetNanos() {
+		return latencyBudgetNanos;
+	}
+
+	static boolean isBatchable(byte type) {
+		return type == TunnelConnection.MESSAGE_TYPE_NEW_SOCKET || TunnelConnection.supportedMessages.contains(type);
+	}
+}
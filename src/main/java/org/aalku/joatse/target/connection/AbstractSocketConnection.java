@@ -1,16 +1,22 @@
 package org.aalku.joatse.target.connection;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.Queue;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayDeque;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
-import java.util.zip.CRC32;
 
 import org.aalku.joatse.target.JoatseSession;
+import org.aalku.joatse.target.tools.cipher.JoatseCipher.CipherException;
+import org.aalku.joatse.target.tools.cipher.JoatseCipher.Mode;
+import org.aalku.joatse.target.tools.cipher.JoatseCipher.Paired;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.aalku.joatse.target.tools.io.FrameChecksum;
+import org.aalku.joatse.target.tools.io.SendFlow;
 import org.slf4j.Logger;
 import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.WebSocketMessage;
@@ -22,30 +28,197 @@ public abstract class AbstractSocketConnection implements TunnelConnection {
 	protected static final int MAX_HEADER_SIZE_BYTES = 50;
 	protected static final int DATA_BUFFER_SIZE = 1024 * 63;
 
+	/**
+	 * Enough for a sender waiting on a send plus the one being sent
+	 */
+	private static final int MAX_FREE_FRAMES = 2;
+
+	/**
+	 * Every buffer of the connection is borrowed through it
+	 */
+	protected final BufferPool.Tracker buffers;
+
+	/**
+	 * Data and close go in order through it
+	 */
+	private final SendFlow sendFlow;
+
 	private final JoatseSession jSession;
 	private final long socketId;
-	private final CRC32 dataCRCW2T = new CRC32();
-	private final CRC32 dataCRCT2W = new CRC32();
+	/**
+	 * Of the data of each direction, as negotiated by the session
+	 */
+	private final FrameChecksum dataCRCW2T;
+	private final FrameChecksum dataCRCT2W;
 	private final CompletableFuture<Boolean> closeStatus = new CompletableFuture<>();
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	/**
+	 * Null if the session didn't negotiate flow control
+	 */
+	private final FlowControl flowControl;
 //	private final Consumer<Throwable> closeSession;
 		
-	public final ByteBuffer sendToCloudRawBuffer = allocateHeaderAndDataBuffer(); 
-	
-	private final Queue<Runnable> sendQueue = new LinkedBlockingDeque<>();
-	private final AtomicBoolean sending = new AtomicBoolean(false);
+	private final CompressionStats compressionStats = new CompressionStats();
+	/**
+	 * Of all the sockets of the tunnel type. Null if we don't compress.
+	 */
+	private volatile CompressionStats tunnelCompressionStats = null;
+	/**
+	 * Of all the sockets of the tunnel type. Null until the session sets it.
+	 */
+	private volatile TunnelStats tunnelStats = null;
+	/**
+	 * Address the socket connected to, if it connects to one. Null until then.
+	 */
+	private volatile InetAddress targetAddress = null;
+	/**
+	 * targetAddress was counted in tunnelStats, they can be set in any order
+	 */
+	private final AtomicBoolean targetCounted = new AtomicBoolean(false);
+	/**
+	 * Data of this socket each way, like {@link TunnelStats}. Sent ones written
+	 * with sendLock, received ones on the receive thread.
+	 */
+	private volatile long bytesSent = 0;
+	private volatile long framesSent = 0;
+	private volatile long bytesReceived = 0;
+	private volatile long framesReceived = 0;
+	/**
+	 * Created on the first frame to compress. Use with sendLock.
+	 */
+	private FrameCompressor compressor = null;
+	/**
+	 * Created on the first deflated frame received. Set with decompressorLock.
+	 */
+	private volatile FrameDecompressor decompressor = null;
+	private final Object decompressorLock = new Object();
+
+	/**
+	 * End to end cipher of the data, if the peer sent a key for this socket.
+	 * Ciphered in place in the frames, so it's always an AEAD mode.
+	 */
+	private final Paired e2eCipher;
+
+	/**
+	 * Sent frames ready to be reused. Use with its monitor. Once closed the frames
+	 * go back to the pool instead.
+	 */
+	private final ArrayDeque<DataFrame> freeFrames = new ArrayDeque<>();
+
+	/**
+	 * Keeps the crc and the queue in the same order
+	 */
 	private final ReentrantLock sendLock = new ReentrantLock(true);
 
 	public AbstractSocketConnection(JoatseSession manager, long socketId, Consumer<Throwable> closeSession) {
 		this.jSession = manager;
 		this.socketId = socketId;
+		this.buffers = BufferPool.shared().tracker(getClass().getSimpleName() + "#" + socketId);
+		this.sendFlow = new SendFlow(socketId, 1);
+		this.dataCRCW2T = manager.getFrameChecksum().create();
+		this.dataCRCT2W = manager.getFrameChecksum().create();
 //		this.closeSession = closeSession;
+		this.flowControl = manager.isFlowControlEnabled() ? new FlowControl(manager::getRttNanos, this::sendCreditToCloud) : null;
+		this.e2eCipher = manager.takeSocketCipher(socketId);
+		if (e2eCipher != null && e2eCipher.getMode() != Mode.GCM) {
+			throw new IllegalArgumentException("Socket data needs " + Mode.GCM.getWireName());
+		}
 		this.closeStatus.whenComplete((r,e)->manager.remove(this));
 	}
 
 	protected abstract Logger getLog();
 
+	/**
+	 * Control message. It goes before any data still queued.
+	 */
 	private final CompletableFuture<Void> sendMessage(WebSocketMessage<?> message) {
-		return jSession.sendMessage(message);
+		return jSession.sendControlMessage(sendFlow, message);
+	}
+
+	/**
+	 * Compress the data sent from now on, if the session negotiated it.
+	 * 
+	 * @param tunnelStats of all the sockets of the tunnel type
+	 */
+	public final void enableCompression(CompressionStats tunnelStats) {
+		if (isEncrypted()) {
+			return;
+		}
+		this.tunnelCompressionStats = tunnelStats;
+	}
+
+	public final CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	/**
+	 * Count this socket in the stats of its tunnel type, from now on
+	 */
+	public final void setTunnelStats(TunnelStats tunnelStats) {
+		tunnelStats.opened();
+		this.tunnelStats = tunnelStats;
+		countTarget();
+	}
+
+	/**
+	 * The socket connected to its target at this address
+	 */
+	protected final void targetConnected(InetAddress address) {
+		this.targetAddress = address;
+		countTarget();
+	}
+
+	private void countTarget() {
+		TunnelStats t = tunnelStats;
+		InetAddress a = targetAddress;
+		if (t != null && a != null && targetCounted.compareAndSet(false, true)) {
+			t.targetConnected(a);
+		}
+	}
+
+	/**
+	 * @return null if it didn't connect to a target (yet)
+	 */
+	public final InetAddress getTargetAddress() {
+		return targetAddress;
+	}
+
+	/**
+	 * @return null if not set
+	 */
+	public final String getTunnelType() {
+		TunnelStats t = tunnelStats;
+		return t == null ? null : t.getTunnelType();
+	}
+
+	public final long getBytesSent() {
+		return bytesSent;
+	}
+
+	public final long getFramesSent() {
+		return framesSent;
+	}
+
+	public final long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public final long getFramesReceived() {
+		return framesReceived;
+	}
+
+	/**
+	 * If the data is ciphered end to end. Then there is no point in compressing it.
+	 */
+	public final boolean isEncrypted() {
+		return e2eCipher != null;
+	}
+
+	/**
+	 * Share of the websocket this socket gets, relative to others
+	 */
+	public final void setSendWeight(int weight) {
+		sendFlow.setWeight(weight);
 	}
 	
 	public final void receivedWsTcpClose() {
@@ -53,100 +226,240 @@ public abstract class AbstractSocketConnection implements TunnelConnection {
 	}
 
 	private void receivedWsTcpMessage(ByteBuffer buffer, long crc32Field) throws IOException {
-		buffer.mark();
-		dataCRCW2T.update(buffer);
-		if (dataCRCW2T.getValue() != crc32Field) {
-			throw new IOException("CRC32 error. Expected " + Long.toHexString(crc32Field) + " but calc was " + Long.toHexString(dataCRCW2T.getValue()));
+		if (dataCRCW2T.isEnabled()) {
+			buffer.mark();
+			dataCRCW2T.update(buffer);
+			if (dataCRCW2T.getValue() != crc32Field) {
+				throw new IOException("Checksum error. Expected " + Long.toHexString(crc32Field) + " but calc was " + Long.toHexString(dataCRCW2T.getValue()));
+			}
+			// log.info("crc is OK: {}", Long.toHexString(crc32Field));
+			buffer.reset();
 		}
-		// log.info("crc is OK: {}", Long.toHexString(crc32Field));
-		buffer.reset();
+		Paired cipher = e2eCipher;
+		if (cipher != null) {
+			int wireLen = buffer.remaining();
+			buffer = decrypt(cipher, buffer);
+			receivedBytesConsumed(wireLen - buffer.remaining()); // The tag. The cloud counts it.
+		}
+		int len = buffer.remaining();
 		receivedBytesFromCloud(buffer);
+		if (!consumesReceivedBytesAsync()) {
+			receivedBytesConsumed(len);
+		}
 	}
-	
-	private final int writeSocketHeader(ByteBuffer buffer, byte type) {
-		buffer.clear();
+
+	/**
+	 * @return true if the subclass calls {@link #receivedBytesConsumed(long)}
+	 *         itself once the bytes passed to
+	 *         {@link #receivedBytesFromCloud(ByteBuffer)} are really consumed.
+	 *         Otherwise they are consumed when that method returns.
+	 */
+	protected boolean consumesReceivedBytesAsync() {
+		return false;
+	}
+
+	/**
+	 * Bytes received from cloud were consumed so it can send more.
+	 */
+	protected final void receivedBytesConsumed(long bytes) {
+		if (flowControl != null) {
+			flowControl.consumed(bytes);
+		}
+	}
+
+	protected final boolean isFlowControlEnabled() {
+		return flowControl != null;
+	}
+
+	private void sendCreditToCloud(int bytes) {
+		ByteBuffer buffer = ByteBuffer.allocate(14);
 		buffer.put(PROTOCOL_VERSION);
-		buffer.put(type);
+		buffer.put(MESSAGE_SOCKET_CREDIT);
 		buffer.putLong(getSocketId());
-		return buffer.position();
+		buffer.putInt(bytes);
+		buffer.flip();
+		sendMessage(new BinaryMessage(buffer));
+	}
+	
+	/**
+	 * A frame to fill and send with
+	 * {@link #sendDataFrameToCloud(DataFrame, Consumer)}. Recycled once sent.
+	 */
+	final DataFrame acquireDataFrame() {
+		DataFrame frame;
+		synchronized (freeFrames) {
+			frame = freeFrames.poll();
+		}
+		if (frame == null) {
+			ByteBuffer buffer = buffers.acquire(MAX_HEADER_SIZE_BYTES + DATA_BUFFER_SIZE);
+			buffer.limit(MAX_HEADER_SIZE_BYTES + DATA_BUFFER_SIZE);
+			return new DataFrame(this, MAX_HEADER_SIZE_BYTES, e2eCipher == null ? 0 : e2eCipher.getMaxOverhead(),
+					buffer);
+		}
+		frame.clear();
+		return frame;
 	}
 
 	/**
+	 * Give back a frame that won't be sent.
+	 */
+	final void releaseDataFrame(DataFrame frame) {
+		synchronized (freeFrames) {
+			if (!closed.get() && freeFrames.size() < MAX_FREE_FRAMES) {
+				freeFrames.add(frame);
+				return;
+			}
+		}
+		buffers.release(frame.buffer());
+	}
+
+	/**
+	 * Give the cached frames back to the pool, for a connection going idle
+	 */
+	final void releaseFreeFrames() {
+		synchronized (freeFrames) {
+			DataFrame frame;
+			while ((frame = freeFrames.poll()) != null) {
+				buffers.release(frame.buffer());
+			}
+		}
+	}
+
+	/**
+	 * Sends the payload of the frame as it is, without copying it. The frame must
+	 * not be touched after this.
 	 * 
-	 * @param payload ready to be read
-	 * @return
+	 * @param onSent called once sent and, if there is flow control, there is
+	 *               credit to send more. With null or with the error, then the
+	 *               socket is already closing. Callers should wait for it before
+	 *               sending the next chunk.
 	 */
-	protected CompletableFuture<Void> sendDataMessageToCloud(ByteBuffer payload) {
+	final void sendDataFrameToCloud(DataFrame frame, Consumer<Throwable> onSent) {
 		sendLock.lock();
 		try {
-			int len = payload.remaining();
-			int crcPos = writeSocketHeader(sendToCloudRawBuffer, MESSAGE_SOCKET_DATA);
-			sendToCloudRawBuffer.putInt(updatedataCRCT2W(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining()));
-			sendToCloudRawBuffer.put(payload);
-			if (sendToCloudRawBuffer.position() != crcPos + 4 + len) {
-				getLog().error("Assertion error. {} != {}", sendToCloudRawBuffer.position(), crcPos + 4 + len);
-				AssertionError e = new AssertionError("Assertion error of msg len and buffer pos");
-				close(e, false);
-				throw e;
-			}
-			sendToCloudRawBuffer.flip();
-			return sendRawMessageToCloud(sendToCloudRawBuffer);
+			Paired cipher = e2eCipher;
+			if (cipher != null) {
+				if (closed.get()) {
+					// The cipher is gone and the close is queued already
+					releaseDataFrame(frame);
+					frame = null;
+					return;
+				}
+				frame.encrypt(cipher);
+			}
+			int len = frame.payloadLength(); // What the cloud gets, plain or ciphered
+			bytesSent += len;
+			framesSent++;
+			TunnelStats stats = tunnelStats;
+			if (stats != null) {
+				stats.sent(len);
+			}
+			int checksum = frame.updateChecksum(dataCRCT2W); // Before compression
+			byte type = MESSAGE_SOCKET_DATA;
+			CompressionStats tunnelStats = tunnelCompressionStats;
+			if (tunnelStats != null && !closed.get()) {
+				if (compressor == null) {
+					compressor = new FrameCompressor(DATA_BUFFER_SIZE, compressionStats, tunnelStats);
+				}
+				if (frame.compress(compressor)) {
+					type = MESSAGE_SOCKET_DATA_DEFLATE;
+				}
+			}
+			frame.writeHeader(PROTOCOL_VERSION, type, socketId, checksum);
+			frame.onSent = onSent;
+			if (flowControl != null) {
+				flowControl.consumeSendCredit(len);
+			}
+			jSession.sendMessage(sendFlow, frame);
 		} finally {
 			sendLock.unlock();
+			if (frame == null) {
+				onSent.accept(new AsynchronousCloseException());
+			}
 		}
 	}
-	
-	private CompletableFuture<Void> sendRawMessageToCloud(ByteBuffer buffer) {
-		if (!sendLock.isHeldByCurrentThread()) {
-			throw new AssertionError("!sendLock.isHeldByCurrentThread()");
-		}
-		// Already sending?
-		boolean wasSending = sending.getAndSet(true);
-
-		// Put on queue
-		final CompletableFuture<Void> res = new CompletableFuture<Void>();
-		sendQueue.add(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					jSession.sendMessage((WebSocketMessage<?>) new BinaryMessage(buffer, true)).handle((r, e) -> {
-						sendLock.lock();
-						try {
-							if (e != null) {
-								getLog().error("Error sending to cloud. Will close socket: {}", e, e);
-								res.completeExceptionally(e);
-								close(e, false);
-							} else {
-								res.complete(null);
-								Runnable next = sendQueue.poll();
-								if (next == null) {
-									sending.set(false);
-								} else {
-									next.run();
-								}
-							}
-							return (Void) null;
-						} finally {
-							sendLock.unlock();
-						}
-					});
-				} catch (Exception e) {
-					res.completeExceptionally(e);
-				}
+
+	/**
+	 * @return how many of max frames can be sent before running out of send
+	 *         credit, at least 1
+	 */
+	final int framesWithinSendCredit(int max) {
+		if (flowControl == null) {
+			return max;
+		}
+		long credit = flowControl.getSendCredit();
+		return (int) Math.max(1, Math.min(max, (credit + DATA_BUFFER_SIZE - 1) / DATA_BUFFER_SIZE));
+	}
+
+	/**
+	 * Called by the ws send worker
+	 */
+	final void dataFrameSent(DataFrame frame, Throwable e) {
+		Consumer<Throwable> onSent = frame.onSent;
+		frame.onSent = null;
+		releaseDataFrame(frame);
+		if (e != null) {
+			getLog().error("Error sending to cloud. Will close socket: {}", e, e);
+			close(e, false);
+			onSent.accept(e);
+		} else if (flowControl == null || !flowControl.awaitSendCredit(onSent)) {
+			onSent.accept(null);
+		}
+	}
+
+	/**
+	 * Copies the payload to a frame and sends it. Streams should fill frames
+	 * themselves with {@link #acquireDataFrame()} instead.
+	 * 
+	 * @param payload ready to be read
+	 * @return future completed when it was sent and, if there is flow control,
+	 *         there is credit to send more. Callers should wait for it before
+	 *         sending the next chunk.
+	 */
+	protected CompletableFuture<Void> sendDataMessageToCloud(ByteBuffer payload) {
+		DataFrame frame = acquireDataFrame();
+		try {
+			frame.payload().put(payload);
+		} catch (RuntimeException e) {
+			releaseDataFrame(frame);
+			throw e;
+		}
+		return sendDataFrameToCloud(frame);
+	}
+
+	/**
+	 * Deciphers in place, the plain data is a view of the same buffer
+	 */
+	private static ByteBuffer decrypt(Paired cipher, ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		ByteBuffer plain = buffer.isReadOnly() ? ByteBuffer.allocate(buffer.remaining()) : buffer.duplicate();
+		if (buffer.isReadOnly()) {
+			start = 0;
+		}
+		try {
+			cipher.decipher(buffer, plain);
+		} catch (CipherException | IllegalStateException e) {
+			throw new IOException("Can't decipher data: " + e, e);
+		}
+		plain.limit(plain.position()).position(start);
+		return plain;
+	}
+
+	/**
+	 * Like {@link #sendDataFrameToCloud(DataFrame, Consumer)} with a future
+	 */
+	final CompletableFuture<Void> sendDataFrameToCloud(DataFrame frame) {
+		CompletableFuture<Void> res = new CompletableFuture<Void>();
+		sendDataFrameToCloud(frame, e -> {
+			if (e == null) {
+				res.complete(null);
+			} else {
+				res.completeExceptionally(e);
 			}
 		});
-		if (!wasSending) {
-			// If not sending, send
-			sendQueue.remove().run();
-		}
 		return res;
 	}
 	
-	private int updatedataCRCT2W(byte[] array, int off, int len) {
-		dataCRCT2W.update(array, off, len);
-		return (int) dataCRCT2W.getValue();
-	}
-	
 	protected final BinaryMessage newTcpSocketResponse(long socketId, boolean result) {
 		ByteBuffer buffer = ByteBuffer.allocate(11);
 		buffer.clear();
@@ -173,19 +486,6 @@ public abstract class AbstractSocketConnection implements TunnelConnection {
 		return closeStatus;
 	}
 	
-	@Deprecated
-	protected final ByteBuffer allocateStandardBuffer() {
-		return ByteBuffer.allocate(MAX_HEADER_SIZE_BYTES + DATA_BUFFER_SIZE);
-	}
-	
-	protected ByteBuffer allocateHeaderAndDataBuffer() {
-		return ByteBuffer.allocate(MAX_HEADER_SIZE_BYTES + DATA_BUFFER_SIZE);
-	}
-
-	protected ByteBuffer allocateDataBuffer() {
-		return ByteBuffer.allocate(DATA_BUFFER_SIZE);
-	}
-	
 	protected final CompletableFuture<Void> notifyCantConnect() {
 		return sendMessage(newTcpSocketResponse(socketId, false));
 	}
@@ -200,20 +500,52 @@ public abstract class AbstractSocketConnection implements TunnelConnection {
 
 	protected abstract void receivedBytesFromCloud(ByteBuffer buffer) throws IOException;
 
+	private ByteBuffer decompress(ByteBuffer buffer) throws IOException {
+		FrameDecompressor d = decompressor;
+		if (d == null) {
+			if (!jSession.isCompressionEnabled()) {
+				throw new IOException("Received deflated data but compression was not negotiated");
+			}
+			synchronized (decompressorLock) {
+				if (closed.get()) {
+					throw new IOException("Socket closed");
+				}
+				d = decompressor = new FrameDecompressor(DATA_BUFFER_SIZE);
+			}
+		}
+		return d.decompress(buffer);
+	}
+
 	@Override
 	public final Runnable receivedTunnelMessage(ByteBuffer buffer, byte type) {
-		if (type == MESSAGE_SOCKET_DATA) {
+		if (type == MESSAGE_SOCKET_DATA || type == MESSAGE_SOCKET_DATA_DEFLATE) {
 			try {
 				long crc32Field = buffer.getInt() & 0xFFFFFFFFL;
-				receivedWsTcpMessage(buffer, crc32Field); // It's ok to call it with lock
+				int wireLen = buffer.remaining();
+				bytesReceived += wireLen;
+				framesReceived++;
+				TunnelStats stats = tunnelStats;
+				if (stats != null) {
+					stats.received(wireLen);
+				}
+				ByteBuffer data = type == MESSAGE_SOCKET_DATA ? buffer : decompress(buffer);
+				receivedWsTcpMessage(data, crc32Field); // Called on the WS receive thread
 				return null;
 			} catch (IOException e) {
 				getLog().warn("Error sending data to TCP: {}", e, e);
-				return ()->close(e, false); // Call it without lock
+				return ()->close(e, false); // Called by the session after dispatch
+			}
+		} else if (type == MESSAGE_SOCKET_CREDIT) {
+			int bytes = buffer.getInt();
+			if (flowControl != null) {
+				flowControl.granted(bytes);
+			} else {
+				getLog().warn("Received flow control credit but it was not negotiated: {}", socketId);
 			}
+			return null;
 		} else if (type == MESSAGE_SOCKET_CLOSE) {
 			getLog().warn("Received socket close: {}", socketId);
-			return ()->receivedWsTcpClose(); // Can be executed with lock I guess
+			return ()->receivedWsTcpClose();
 		} else {
 			RuntimeException e = new RuntimeException("Unsupported message type: " + type);
 			close(e, false);
@@ -226,9 +558,23 @@ public abstract class AbstractSocketConnection implements TunnelConnection {
 	}
 
 	public final void close(Throwable e, Boolean remote) {
+		if (!closed.compareAndSet(false, true)) {
+			getLog().debug("Already closed ({}, {}): {}", e, remote, socketId);
+			return;
+		}
 		getLog().debug("Closing because of ({}, {}): {}", e, remote, socketId, e);
+		TunnelStats stats = tunnelStats;
+		if (stats != null) {
+			stats.closed(e);
+		}
+		if (flowControl != null) {
+			flowControl.close();
+		}
 		destroy();
-		sendMessage(newTcpSocketCloseMessage()); // Tell WS
+		releaseFreeFrames();
+		endCompression();
+		endEncryption();
+		jSession.sendMessage(sendFlow, newTcpSocketCloseMessage()); // Tell WS, after the data
 		if (e == null) {
 			closeStatus.complete(remote);
 		} else {
@@ -238,12 +584,47 @@ public abstract class AbstractSocketConnection implements TunnelConnection {
 	
 	protected abstract void destroy();
 
+	private void endCompression() {
+		sendLock.lock();
+		try {
+			if (compressor != null) {
+				compressor.end();
+				compressor = null;
+				getLog().debug("Compression of {}: {}", socketId, compressionStats);
+			}
+		} finally {
+			sendLock.unlock();
+		}
+		synchronized (decompressorLock) {
+			if (decompressor != null) {
+				decompressor.end();
+			}
+		}
+	}
+
+	private void endEncryption() {
+		Paired cipher = e2eCipher;
+		if (cipher != null) {
+			sendLock.lock(); // Not while ciphering a frame
+			try {
+				cipher.close();
+			} finally {
+				sendLock.unlock();
+			}
+		}
+	}
+
 	public void assertClosed() {
 		if (!closeStatus.isDone()) {
 			AssertionError e = new AssertionError("Assertion error. Socket should be closed");
 			close(e, false);
 			throw e;
 		}
+		int lent = buffers.close();
+		if (lent > 0) {
+			// In flight. If they are never released the pool reports the leak.
+			getLog().debug("{} buffers still in use after close: {}", lent, socketId);
+		}
 	}
 	
 }
@@ -1,135 +1,378 @@
 package org.aalku.joatse.target.connection;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import org.aalku.joatse.target.JoatseSession;
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+import org.aalku.joatse.target.tools.io.DnsCache;
+import org.aalku.joatse.target.tools.io.HappyEyeballs;
 import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.SocketProfile;
+import org.aalku.joatse.target.tools.io.TcpChannelGroup;
 
 abstract class AbstractTunnelTcpConnection extends AbstractSocketConnection {
 
+	/**
+	 * Max bytes received from cloud and waiting to be written to tcp before we
+	 * close the socket, when there is no flow control to prevent it.
+	 */
+	private static final int MAX_PENDING_TCP_WRITE_BYTES = DATA_BUFFER_SIZE * 16;
+
+	private static final long TCP_CONNECT_TIMEOUT_SECONDS = 20;
+
 	protected final AtomicReference<AsynchronousSocketChannel> tcpRef;
 
+	private final TcpWriteQueue tcpWriteQueue;
+
+	/**
+	 * Bytes of the read that waits for data on an idle socket
+	 */
+	static final int PROBE_SIZE = 256;
+
+	private final boolean lazyReads;
+
+	/**
+	 * Heap, so no direct memory is held while the read waits (on most
+	 * platforms). Null if not lazyReads.
+	 */
+	private final ByteBuffer probe;
+
+	/**
+	 * The last read filled its buffer. Only for the read chain.
+	 */
+	private boolean streaming = false;
+
+	protected final SocketProfile socketProfile;
+
+	/**
+	 * Frames filled by each read while streaming, from the socket profile
+	 */
+	private final int readFrames;
+
+	/**
+	 * Of the scattering reads, when readFrames > 1. Only for the read chain.
+	 */
+	private final DataFrame[] scatterFrames;
+	private final ByteBuffer[] scatterBuffers;
+
+	/**
+	 * Frames of the last scattering read not sent yet, and the first error
+	 */
+	private final AtomicInteger scatterPending = new AtomicInteger();
+	private volatile Throwable scatterError = null;
 
 	public AbstractTunnelTcpConnection(JoatseSession manager, long socketId,
 			Consumer<Throwable> closeSession) {
+		this(manager, socketId, closeSession, SocketProfile.DEFAULT);
+	}
+
+	public AbstractTunnelTcpConnection(JoatseSession manager, long socketId,
+			Consumer<Throwable> closeSession, SocketProfile socketProfile) {
 		super(manager, socketId, closeSession);
+		this.socketProfile = socketProfile;
+		this.readFrames = socketProfile.getReadFrames(DATA_BUFFER_SIZE);
+		this.scatterFrames = readFrames > 1 ? new DataFrame[readFrames] : null;
+		this.scatterBuffers = readFrames > 1 ? new ByteBuffer[readFrames] : null;
 		// TODO use closeSession
 		this.tcpRef = new AtomicReference<AsynchronousSocketChannel>();
+		this.tcpWriteQueue = new TcpWriteQueue(tcpRef::get, buffers, this::tcpWriteFailed, this::receivedBytesConsumed,
+				isFlowControlEnabled() ? FlowControl.MAX_WINDOW + DATA_BUFFER_SIZE : MAX_PENDING_TCP_WRITE_BYTES);
+		this.lazyReads = manager.isLazyTcpReads();
+		this.probe = lazyReads ? ByteBuffer.allocate(PROBE_SIZE) : null;
 	}
 
 	/**
-	 * Recursively writes all the buffer to tcp.
+	 * Received bytes are consumed when written to tcp
 	 */
-	protected CompletableFuture<Integer> tcpWrite(ByteBuffer buffer) {
-		CompletableFuture<Integer> res = new CompletableFuture<Integer>();
-		AsynchronousSocketChannel channel = tcpRef.get();
-		channel.write(buffer, null, new CompletionHandler<Integer, Void>() {
-			@Override
-			public void completed(Integer result, Void attachment) {
-				// log.info("written to tcp: {}", IOTools.toString(buffer, p, result));
-				if (buffer.hasRemaining()) {
-					tcpWrite(buffer) // Recursively write the rest
-					.thenAccept(n -> res.complete(n + result)) // Then complete with all the written
-					.exceptionally(e -> { // Or fail
-						res.completeExceptionally(e);
-						return null;
-					});
-				} else {
-					res.complete(result);
-				}
-			}
-			@Override
-			public void failed(Throwable exc, Void attachment) {
-				if (exc instanceof AsynchronousCloseException) {
-					getLog().error("tcp write fail because the socket was closed");
-					close(null, true);
-					res.complete(0);
-				} else {
-					res.completeExceptionally(exc);
-				}
-			}
-		});
-		return res;
+	@Override
+	protected boolean consumesReceivedBytesAsync() {
+		return true;
+	}
+
+	/**
+	 * Queues the buffer to be written to tcp, in order, without waiting for it.
+	 * The buffer is consumed and can be reused as soon as this returns.
+	 */
+	protected void tcpWrite(ByteBuffer buffer) {
+		tcpWriteQueue.write(buffer);
+	}
+
+	private void tcpWriteFailed(Throwable e) {
+		if (e instanceof AsynchronousCloseException) {
+			getLog().error("tcp write fail because the socket was closed");
+			close(null, true);
+		} else {
+			close(e, false);
+		}
 	}
 	
 	/**
+	 * Reads tcp and sends it. The handlers and the callback are reused so a
+	 * stream doesn't allocate per chunk.
 	 *
-	 * @param buffer The buffer has no data. We have to clear it and use it.
+	 * With lazy reads, after a read that didn't fill its buffer (so the socket is
+	 * probably drained) we wait with a small probe read and only take a data frame
+	 * when the probe brings something, so an idle tunnel holds no pooled buffer.
+	 * After a full read there is probably more waiting, so we read straight into
+	 * a frame, or into several if the socket profile reads more at once.
 	 */
-	private void tcpToWs(ByteBuffer buffer) {
-		tcpRead(buffer).thenAccept(bytesRead->{
+	private void tcpToWs() {
+		if (lazyReads && !streaming) {
+			releaseFreeFrames(); // Probably idle for a while
+			probe.clear();
+			try {
+				this.tcpRef.get().read(probe, null, tcpProbeHandler);
+			} catch (RuntimeException e) {
+				tcpProbeHandler.failed(e, null);
+			}
+			return;
+		}
+		if (streaming && readFrames > 1) {
+			scatterRead();
+			return;
+		}
+		DataFrame frame = null;
+		try {
+			frame = acquireDataFrame(); // Fails if the pool is full
+			this.tcpRef.get().read(frame.payload(), frame, tcpReadHandler);
+		} catch (RuntimeException e) {
+			if (frame == null) {
+				tcpReadFailed(e);
+			} else {
+				tcpReadHandler.failed(e, frame);
+			}
+		}
+	}
+
+	private final CompletionHandler<Integer, DataFrame> tcpReadHandler = new CompletionHandler<Integer, DataFrame>() {
+		@Override
+		public void completed(Integer bytesRead, DataFrame frame) {
 			if (bytesRead < 0) {
+				releaseDataFrame(frame);
 				close(null, false);
 				return;
 			}
-			buffer.flip();
-			sendDataMessageToCloud(buffer).whenCompleteAsync((x, e)->{
-				if (e != null) {
-					close(e, false);
-				} else {
-					// log.info("CRC32T2W = {}", Integer.toHexString((int)dataCRCT2W.getValue()) );
-					tcpToWs(buffer);
-				}
-			});
-		}).exceptionally(e->{
-			close(e, false);
-			return null;
-		});
+			streaming = !frame.payload().hasRemaining();
+			sendDataFrameToCloud(frame, afterTcpDataSent);
+		}
+
+		@Override
+		public void failed(Throwable exc, DataFrame frame) {
+			releaseDataFrame(frame);
+			tcpReadFailed(exc);
+		}
+	};
+
+	private final CompletionHandler<Integer, Void> tcpProbeHandler = new CompletionHandler<Integer, Void>() {
+		@Override
+		public void completed(Integer bytesRead, Void a) {
+			if (bytesRead < 0) {
+				close(null, false);
+				return;
+			}
+			DataFrame frame;
+			try {
+				frame = acquireDataFrame();
+			} catch (RuntimeException e) {
+				failed(e, a);
+				return;
+			}
+			probe.flip();
+			frame.payload().put(probe);
+			streaming = bytesRead == PROBE_SIZE;
+			sendDataFrameToCloud(frame, afterTcpDataSent);
+		}
+
+		@Override
+		public void failed(Throwable exc, Void a) {
+			tcpReadFailed(exc);
+		}
+	};
+
+	/**
+	 * One read into several frames. No more than the send credit allows, so we
+	 * don't go further over it than a single frame would.
+	 */
+	private void scatterRead() {
+		int n = framesWithinSendCredit(readFrames);
+		try {
+			for (int i = 0; i < n; i++) {
+				scatterFrames[i] = acquireDataFrame();
+				scatterBuffers[i] = scatterFrames[i].payload();
+			}
+			this.tcpRef.get().read(scatterBuffers, 0, n, 0L, TimeUnit.MILLISECONDS, n, tcpScatterHandler);
+		} catch (RuntimeException e) {
+			tcpScatterHandler.failed(e, n);
+		}
 	}
 
+	private void releaseScatterFrames(int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (scatterFrames[i] != null) {
+				releaseDataFrame(scatterFrames[i]);
+				scatterFrames[i] = null;
+			}
+			scatterBuffers[i] = null;
+		}
+	}
 
-	private CompletableFuture<Integer> tcpRead(ByteBuffer readBuffer) {
-		readBuffer.clear();
-		AsynchronousSocketChannel channel = this.tcpRef.get();
-		CompletableFuture<Integer> res = new CompletableFuture<Integer>();
-		channel.read(readBuffer, null, new CompletionHandler<Integer, Void>() {
-			@Override
-			public void completed(Integer result, Void attachment) {
-				res.complete(result);
+	private final CompletionHandler<Long, Integer> tcpScatterHandler = new CompletionHandler<Long, Integer>() {
+		@Override
+		public void completed(Long bytesRead, Integer n) {
+			if (bytesRead < 0) {
+				releaseScatterFrames(0, n);
+				close(null, false);
+				return;
 			}
-			@Override
-			public void failed(Throwable exc, Void attachment) {
-				if (exc instanceof AsynchronousCloseException) {
-					getLog().error("tcp read fail because the socket was closed");
-					close(null, true);
-					res.complete(0);
-				} else {
-					res.completeExceptionally(exc);
-				}
+			int used = 0;
+			while (used < n && scatterFrames[used].payloadLength() > 0) {
+				used++;
 			}
+			streaming = !scatterFrames[n - 1].payload().hasRemaining();
+			releaseScatterFrames(used, n);
+			if (used == 0) {
+				tcpToWs();
+				return;
+			}
+			scatterError = null;
+			scatterPending.set(used);
+			for (int i = 0; i < used; i++) {
+				DataFrame frame = scatterFrames[i];
+				scatterFrames[i] = null;
+				scatterBuffers[i] = null;
+				sendDataFrameToCloud(frame, afterScatterFrameSent);
+			}
+		}
+
+		@Override
+		public void failed(Throwable exc, Integer n) {
+			releaseScatterFrames(0, n);
+			tcpReadFailed(exc);
+		}
+	};
+
+	private void tcpReadFailed(Throwable exc) {
+		if (exc instanceof AsynchronousCloseException) {
+			getLog().error("tcp read fail because the socket was closed");
+			close(null, true);
+		} else {
+			close(exc, false);
+		}
+	}
+
+	private final Consumer<Throwable> afterTcpDataSent = e -> {
+		if (e != null) {
+			close(e, false);
+		} else {
+			// log.info("CRC32T2W = {}", Integer.toHexString((int)dataCRCT2W.getValue()) );
+			tcpToWs();
+		}
+	};
+
+	/**
+	 * The next read waits for all the frames of the last one
+	 */
+	private final Consumer<Throwable> afterScatterFrameSent = e -> {
+		if (e != null && scatterError == null) {
+			scatterError = e;
+		}
+		if (scatterPending.decrementAndGet() == 0) {
+			afterTcpDataSent.accept(scatterError);
+		}
+	};
+
+	/**
+	 * Resolves the target through the DNS cache if it's a name and races its
+	 * addresses, see {@link HappyEyeballs}
+	 */
+	protected static CompletableFuture<AsynchronousSocketChannel> tcpConnectToTarget(InetSocketAddress target,
+			SocketProfile profile) {
+		CompletableFuture<InetAddress[]> addresses = target.isUnresolved()
+				? DnsCache.shared().resolve(target.getHostString())
+				: CompletableFuture.completedFuture(new InetAddress[] { target.getAddress() });
+		return addresses.thenCompose(a -> {
+			if (a.length == 0) {
+				throw new CompletionException(new UnknownHostException(target.getHostString()));
+			}
+			return HappyEyeballs.connect(a, target.getPort(), address -> tcpConnectToAddress(address, profile));
 		});
-		return res;
 	}
-	
-	protected static CompletableFuture<AsynchronousSocketChannel> tcpConnectToTarget(SocketAddress targetAddress) {
+
+	private static CompletableFuture<AsynchronousSocketChannel> tcpConnectToAddress(SocketAddress targetAddress,
+			SocketProfile profile) {
 		CompletableFuture<AsynchronousSocketChannel> res = new CompletableFuture<AsynchronousSocketChannel>();
 		try {
-			AsynchronousSocketChannel cs = AsynchronousSocketChannel.open();
+			AsynchronousSocketChannel cs = TcpChannelGroup.shared().open();
+			try {
+				profile.apply(cs);
+			} catch (IOException e) {
+				IOTools.runFailable(()->cs.close());
+				throw e;
+			}
+			TimerWheel.Timeout timeoutTask = TimerWheel.shared().schedule(()->{
+				res.completeExceptionally(new SocketTimeoutException("Timeout connecting to " + targetAddress));
+				IOTools.runFailable(()->cs.close());
+			}, TCP_CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
 			cs.connect(targetAddress, null, new CompletionHandler<Void, Void>() {
 				public void completed(Void result, Void a) {
-					res.complete(cs);
+					timeoutTask.cancel();
+					if (!res.complete(cs)) {
+						IOTools.runFailable(()->cs.close()); // Cancelled
+					}
 				}
 				public void failed(Throwable e, Void a) {
+					timeoutTask.cancel();
 					// Cleanup only the resource that will not return, then tell the caller
 					IOTools.runFailable(()->cs.close());
 					res.completeExceptionally(e);
 				}
 			});
+			res.whenComplete((r, e)->{
+				if (res.isCancelled()) { // Another attempt won
+					timeoutTask.cancel();
+					IOTools.runFailable(()->cs.close());
+				}
+			});
 		} catch (Exception e) {
 			res.completeExceptionally(e);
 		}
 		return res;
 	}
 
+	/**
+	 * Use this channel, connected to the target
+	 */
+	protected void setTcp(AsynchronousSocketChannel tcp) {
+		tcpRef.set(tcp);
+		tcpWriteQueue.channelReady(); // The cloud can send before we are connected
+		try {
+			SocketAddress remote = tcp == null ? null : tcp.getRemoteAddress();
+			if (remote instanceof InetSocketAddress) {
+				targetConnected(((InetSocketAddress) remote).getAddress());
+			}
+		} catch (IOException e) {
+			// Already closed, the first read will tell
+		}
+	}
+
 	@Override
 	protected void destroy() {
+		tcpWriteQueue.close();
 		IOTools.runFailable(()->tcpRef.get().close());
 	}
 
@@ -144,7 +387,7 @@ abstract class AbstractTunnelTcpConnection extends AbstractSocketConnection {
 	}
 
 	public void copyFromTargetToCloudForever() {
-		tcpToWs(allocateDataBuffer()); // start copying from TCP to WS
+		tcpToWs(); // start copying from TCP to WS
 	}
 
 }
@@ -5,13 +5,13 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 import org.aalku.joatse.target.JoatseSession;
 import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.SocketProfile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +19,7 @@ public class BasicTunnelTcpConnection extends AbstractTunnelTcpConnection {
 	
 	private static Logger log = LoggerFactory.getLogger(BasicTunnelTcpConnection.class);
 	private final InetSocketAddress targetAddress;
+	private final HttpBackendPool backendPool;
 
 	@Override
 	protected Logger getLog() {
@@ -27,8 +28,27 @@ public class BasicTunnelTcpConnection extends AbstractTunnelTcpConnection {
 
 	public BasicTunnelTcpConnection(JoatseSession manager, InetSocketAddress targetAddress, long socketId,
 			Consumer<Throwable> closeSession) {
-		super(manager, socketId, closeSession);
+		this(manager, targetAddress, socketId, closeSession, SocketProfile.DEFAULT);
+	}
+
+	public BasicTunnelTcpConnection(JoatseSession manager, InetSocketAddress targetAddress, long socketId,
+			Consumer<Throwable> closeSession, SocketProfile socketProfile) {
+		this(manager, targetAddress, socketId, closeSession, socketProfile, null);
+	}
+
+	/**
+	 * Takes the connection from the pool, warm if it has one
+	 */
+	public BasicTunnelTcpConnection(JoatseSession manager, HttpBackendPool backendPool, long socketId,
+			Consumer<Throwable> closeSession) {
+		this(manager, backendPool.getTarget(), socketId, closeSession, backendPool.getSocketProfile(), backendPool);
+	}
+
+	private BasicTunnelTcpConnection(JoatseSession manager, InetSocketAddress targetAddress, long socketId,
+			Consumer<Throwable> closeSession, SocketProfile socketProfile, HttpBackendPool backendPool) {
+		super(manager, socketId, closeSession, socketProfile);
 		this.targetAddress = targetAddress;
+		this.backendPool = backendPool;
 		connect();
 	}
 
@@ -38,11 +58,11 @@ public class BasicTunnelTcpConnection extends AbstractTunnelTcpConnection {
 		 */
 		AtomicBoolean newTcpSocketMessageSent = new AtomicBoolean(false);
 		
-		tcpConnectToTarget(targetAddress).exceptionally(e->{
+		(backendPool != null ? backendPool.take() : tcpConnectToTarget(targetAddress, socketProfile)).exceptionally(e->{
 			throw new RuntimeException("Exception creating connection to "
 					+ targetAddress.getHostString() + ":" + targetAddress.getPort(), e);
 		}).thenCompose((Function<AsynchronousSocketChannel, CompletableFuture<AsynchronousSocketChannel>>)(tcp)->{
-			tcpRef.set(tcp);
+			setTcp(tcp);
 			CompletableFuture<AsynchronousSocketChannel> res = new CompletableFuture<AsynchronousSocketChannel>();
 			notifyConnected().handle((x, e)->{
 				if (e != null) {
@@ -77,11 +97,7 @@ public class BasicTunnelTcpConnection extends AbstractTunnelTcpConnection {
 	
 	@Override
 	protected void receivedBytesFromCloud(ByteBuffer buffer) throws IOException {
-		try {
-			tcpWrite(buffer).get(); // This is blocking to ensure write order. TODO prepare an async version
-		} catch (InterruptedException | ExecutionException e) {
-			throw new IOException("Error writting to tcp: " + e, e);
-		}
+		tcpWrite(buffer); // Async but ordered
 	}
 	
 }
@@ -37,6 +37,8 @@ public class CommandConnection extends AbstractSocketConnection {
 	
 	private static final byte CODE_TYPE = 1;
 	private static final byte CODE_RESIZE = 2;
+
+	private static final int READ_SIZE = 16 * 1024;
 	
 	
 	private final String[] command;
@@ -45,6 +47,13 @@ public class CommandConnection extends AbstractSocketConnection {
 	
 	private final Paired sessionCipher;
 
+	private final CommandOutputPump outputPump = new CommandOutputPump(this);
+
+	/**
+	 * Typed bytes on their way to the process. Only for the ws receive thread.
+	 */
+	private byte[] typed = new byte[1024];
+
 	private static final Logger log = LoggerFactory.getLogger(CommandConnection.class);
 
 
@@ -89,30 +98,33 @@ public class CommandConnection extends AbstractSocketConnection {
 		if (data.limit() == 0) {
 			throw new IllegalArgumentException("0 length would mean EoF");
 		}
-		ByteBuffer buff = ByteBuffer.allocate(DATA_BUFFER_SIZE + MAX_HEADER_SIZE_BYTES);
-		buff.put(TERM_PROTOCOL_VERSION);
-		buff.put(stream.code);
-		buff.put(encrypt(data));
-		buff.flip();
-		return sendDataMessageToCloud(buff);
+		DataFrame frame = acquireDataFrame();
+		fillFrame(frame, stream, data);
+		return sendDataFrameToCloud(frame);
 	}
 
-	private void sendStreamEof(Stream stream) {
-		ByteBuffer buff = ByteBuffer.allocate(2);
+	/**
+	 * Fills the frame with the data of the stream, encrypted. No data means eof.
+	 */
+	void fillFrame(DataFrame frame, Stream stream, ByteBuffer data) {
+		ByteBuffer buff = frame.payload();
 		buff.put(TERM_PROTOCOL_VERSION);
 		buff.put(stream.code);
-		buff.flip();
-		try {
-			sendDataMessageToCloud(buff).get();
-		} catch (InterruptedException | ExecutionException e) {
-			// Nothing to do
+		if (data.hasRemaining()) {
+			encrypt(data, buff);
 		}
 	}
-	
-	public void write(String string) throws IOException {
-		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
-		// log.info("Bytes to pty ({}): {}", debugBytes(bytes), string);
-		process.getOutputStream().write(bytes);
+
+	/**
+	 * Types the bytes as they are, from position to limit
+	 */
+	public void write(ByteBuffer bytes) throws IOException {
+		int len = bytes.remaining();
+		if (typed.length < len) {
+			typed = new byte[Math.max(len, typed.length * 2)];
+		}
+		bytes.get(typed, 0, len);
+		process.getOutputStream().write(typed, 0, len);
 		process.getOutputStream().flush();
 	}
 
@@ -135,8 +147,12 @@ public class CommandConnection extends AbstractSocketConnection {
 				return;
 			}
 			try {
-				String text = StandardCharsets.UTF_8.decode(decrypt(buffer)).toString();
-				write(text);
+				ByteBuffer decrypted = decrypt(buffer);
+				try {
+					write(decrypted);
+				} finally {
+					releaseDecrypted(buffer, decrypted);
+				}
 			} catch (IOException e) {
 				throw new RuntimeException("Error typing text", e);
 			}
@@ -163,66 +179,71 @@ public class CommandConnection extends AbstractSocketConnection {
 	@Override
 	protected void destroy() {
 		log.info("stop");
+		outputPump.close();
 		PtyProcess p = this.process;
 		if (p != null) {
 			p.destroyForcibly();
 		}
 	}
 	
+	/**
+	 * A platform thread even on Java 21+: pty4j reads block in native code and
+	 * would hold the carrier of a virtual thread.
+	 */
 	private Thread stdOutThread(InputStream out, Stream stream) {
 		return new Thread(stream.toString() + "_Handler") {
 			public void run() {
-				byte[] buff = new byte[1024];
+				byte[] buff = new byte[READ_SIZE];
 				try {
-					try {
-						while (true) {
-							int n = out.read(buff);
-							if (n < 0) {
-								break;
-							} else if (n > 0){
-								synchronized (CommandConnection.this) {
-									sendStreamData(ByteBuffer.wrap(copyBuff(buff, n)), stream).get();
-								}
-							}
-						}
-					} catch (Exception e) {
-						e.printStackTrace();
-					} finally {
-						synchronized (CommandConnection.this) {
-							sendStreamEof(stream);
+					while (true) {
+						int n = out.read(buff);
+						if (n < 0) {
+							break;
 						}
+						outputPump.write(stream, buff, n);
 					}
 				} catch (Exception e) {
-					e.printStackTrace();
+					log.debug("Command {} stopped reading {}: {}", getSocketId(), stream, e.toString());
+				} finally {
+					try {
+						outputPump.eof(stream);
+					} catch (InterruptedException e) {
+						// Nothing to do
+					}
 				}
 			}
 
-			private byte[] copyBuff(byte[] buff, int n) {
-				byte[] b = new byte[n];
-				System.arraycopy(buff, 0, b, 0, n);
-				return b;
-			};
 		};
 	}
 
+	/**
+	 * @return the plain text. Release it with {@link #releaseDecrypted(ByteBuffer, ByteBuffer)}
+	 */
 	private ByteBuffer decrypt(ByteBuffer buffer) throws IOException {
 		if (sessionCipher == null) {
 			return buffer;
 		}
-		ByteBuffer res = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+		ByteBuffer res = buffers.acquire(DATA_BUFFER_SIZE);
 		sessionCipher.decipher(buffer, res);
 		res.flip();
 		return res;
 	}
+
+	private void releaseDecrypted(ByteBuffer buffer, ByteBuffer decrypted) {
+		if (decrypted != buffer) {
+			buffers.release(decrypted);
+		}
+	}
 	
-	private ByteBuffer encrypt(ByteBuffer buffer) {
+	/**
+	 * Encrypts (or copies) data into out
+	 */
+	private void encrypt(ByteBuffer data, ByteBuffer out) {
 		if (sessionCipher == null) {
-			return buffer;
+			out.put(data);
+		} else {
+			sessionCipher.cipher(data, out);
 		}
-		ByteBuffer res = ByteBuffer.allocate(DATA_BUFFER_SIZE + MAX_HEADER_SIZE_BYTES);
-		sessionCipher.cipher(buffer, res);
-		res.flip();
-		return res;
 	}
 
 }
@@ -0,0 +1,218 @@
+package org.aalku.joatse.target.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.aalku.joatse.target.connection.CommandConnection.Stream;
+import org.aalku.joatse.target.tools.concurrent.Threads;
+
+/**
+ * Sends the stdout and stderr of a command to the cloud, in the order they are
+ * read, coalescing small reads into bigger frames.
+ *
+ * The readers stage what they read in a reusable buffer. It's sent when there
+ * is a frame worth of it, or {@link #FLUSH_WINDOW_MICROS} after the first byte,
+ * or when the frame in flight is sent, whatever comes first. Only one frame is
+ * in flight at a time and readers wait while the buffer is full, so a command
+ * with a lot of output goes at the pace of the cloud.
+ */
+final class CommandOutputPump {
+
+	/** Max plain bytes per frame. The cipher adds up to 33. */
+	static final int MAX_CHUNK = AbstractSocketConnection.DATA_BUFFER_SIZE - 2 - 64;
+	static final int STAGING_SIZE = 2 * MAX_CHUNK;
+	static final long FLUSH_WINDOW_MICROS = 2000;
+	/** Streams switch rarely, this is plenty */
+	private static final int MAX_SEGMENTS = 64;
+
+	private static final ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = Threads.newThread("command_flush", r);
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final CommandConnection connection;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition space = lock.newCondition();
+
+	/** What the readers read and is not sent yet. Use with lock */
+	private final byte[] staging = new byte[STAGING_SIZE];
+	private final ByteBuffer stagingView = ByteBuffer.wrap(staging);
+	private int staged = 0;
+	/**
+	 * Runs of the same stream in staging, in order. An eof is a run of 0 bytes at
+	 * the end. Use with lock
+	 */
+	private final Stream[] segmentStream = new Stream[MAX_SEGMENTS];
+	private final int[] segmentEnd = new int[MAX_SEGMENTS];
+	private final boolean[] segmentEof = new boolean[MAX_SEGMENTS];
+	private int segments = 0;
+
+	/** Use with lock */
+	private boolean inFlight = false;
+	/** Use with lock */
+	private boolean flushScheduled = false;
+	/** Use with lock */
+	private boolean closed = false;
+
+	private final Consumer<Throwable> onSent = this::sent;
+
+	private final Runnable timedFlush = () -> {
+		lock.lock();
+		try {
+			flushScheduled = false;
+			flush();
+		} finally {
+			lock.unlock();
+		}
+	};
+
+	CommandOutputPump(CommandConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Stages what a reader read. Waits while there is no room.
+	 *
+	 * @throws IOException if the connection closed
+	 */
+	void write(Stream stream, byte[] data, int len) throws IOException, InterruptedException {
+		if (len == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			while (!closed && !fits(stream, len)) {
+				space.await();
+			}
+			if (closed) {
+				throw new AsynchronousCloseException();
+			}
+			System.arraycopy(data, 0, staging, staged, len);
+			staged += len;
+			if (segments > 0 && segmentStream[segments - 1] == stream && !segmentEof[segments - 1]) {
+				segmentEnd[segments - 1] = staged;
+			} else {
+				addSegment(stream, false);
+			}
+			if (staged >= MAX_CHUNK) {
+				flush();
+			} else if (!flushScheduled && !inFlight) {
+				flushScheduled = true;
+				flushTimer.schedule(timedFlush, FLUSH_WINDOW_MICROS, TimeUnit.MICROSECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The stream ended. Sent after the data already staged.
+	 */
+	void eof(Stream stream) throws InterruptedException {
+		lock.lock();
+		try {
+			while (!closed && segments == MAX_SEGMENTS) {
+				space.await();
+			}
+			if (closed) {
+				return;
+			}
+			addSegment(stream, true);
+			flush();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes up and fails the readers waiting for room. Staged data is dropped.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			staged = 0;
+			segments = 0;
+			space.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean fits(Stream stream, int len) {
+		if (staged + len > STAGING_SIZE) {
+			return false;
+		}
+		return segments < MAX_SEGMENTS
+				|| (segmentStream[segments - 1] == stream && !segmentEof[segments - 1]);
+	}
+
+	private void addSegment(Stream stream, boolean eof) {
+		segmentStream[segments] = stream;
+		segmentEnd[segments] = staged;
+		segmentEof[segments] = eof;
+		segments++;
+	}
+
+	/**
+	 * Sends a frame with the first run, if nothing is in flight. Use with lock.
+	 */
+	private void flush() {
+		if (inFlight || closed || segments == 0) {
+			return;
+		}
+		Stream stream = segmentStream[0];
+		int len = Math.min(segmentEnd[0], MAX_CHUNK);
+		DataFrame frame = connection.acquireDataFrame();
+		stagingView.limit(len).position(0);
+		connection.fillFrame(frame, stream, stagingView);
+		consume(len);
+		inFlight = true;
+		connection.sendDataFrameToCloud(frame, onSent);
+	}
+
+	/**
+	 * Removes len bytes from the head of staging, and the first run if that was
+	 * all of it
+	 */
+	private void consume(int len) {
+		System.arraycopy(staging, len, staging, 0, staged - len);
+		staged -= len;
+		int done = segmentEnd[0] == len ? 1 : 0;
+		segments -= done;
+		System.arraycopy(segmentStream, done, segmentStream, 0, segments);
+		System.arraycopy(segmentEof, done, segmentEof, 0, segments);
+		for (int i = 0; i < segments; i++) {
+			segmentEnd[i] = segmentEnd[i + done] - len;
+		}
+		space.signalAll();
+	}
+
+	/**
+	 * Called once the frame is sent and there is credit for more
+	 */
+	private void sent(Throwable e) {
+		lock.lock();
+		try {
+			inFlight = false;
+			if (e != null) {
+				closed = true;
+				space.signalAll();
+				return;
+			}
+			flush(); // It waited long enough
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.aalku.joatse.target.connection;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the compression of the data sent to the cloud, of a socket or of
+ * all the sockets of a tunnel type. Updated live.
+ */
+public final class CompressionStats {
+
+	private final LongAdder plainBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder bypassedBytes = new LongAdder();
+	private final LongAdder deflateNanos = new LongAdder();
+
+	void compressed(long plain, long compressed, long nanos) {
+		plainBytes.add(plain);
+		compressedBytes.add(compressed);
+		deflateNanos.add(nanos);
+	}
+
+	void bypassed(long plain) {
+		bypassedBytes.add(plain);
+	}
+
+	/**
+	 * Bytes that went through the compressor
+	 */
+	public long getPlainBytes() {
+		return plainBytes.sum();
+	}
+
+	/**
+	 * What they became on the wire
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	/**
+	 * Bytes sent as they were because the compressor was off
+	 */
+	public long getBypassedBytes() {
+		return bypassedBytes.sum();
+	}
+
+	/**
+	 * Time spent compressing. It's all CPU.
+	 */
+	public long getDeflateNanos() {
+		return deflateNanos.sum();
+	}
+
+	/**
+	 * Wire bytes per data byte sent, bypassed included. 1.0 if nothing was sent.
+	 */
+	public double getRatio() {
+		long bypassed = getBypassedBytes();
+		long plain = getPlainBytes() + bypassed;
+		return plain == 0 ? 1.0 : (double) (getCompressedBytes() + bypassed) / plain;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ratio=%.3f, compressed=%d->%d, bypassed=%d, cpu=%dms", getRatio(), getPlainBytes(),
+				getCompressedBytes(), getBypassedBytes(), getDeflateNanos() / 1000000);
+	}
+
+}
@@ -0,0 +1,144 @@
+package org.aalku.joatse.target.connection;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import org.aalku.joatse.target.tools.cipher.JoatseCipher.Paired;
+import org.aalku.joatse.target.tools.io.FrameChecksum;
+import org.aalku.joatse.target.tools.io.QueuedMessage;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * Reusable DATA message of one socket.
+ *
+ * Producers read straight into {@link #payload()}, which starts after
+ * {@link AbstractSocketConnection#MAX_HEADER_SIZE_BYTES} of head room, so the
+ * header is written in place right before the payload and nothing is copied.
+ * The same {@link BinaryMessage} wraps the frame every time it's sent.
+ *
+ * The buffer is borrowed from the owner's buffer pool tracker.
+ */
+final class DataFrame extends QueuedMessage {
+
+	/** version + type + socketId + checksum */
+	static final int DATA_HEADER_SIZE = 1 + 1 + 8 + 4;
+
+	private final AbstractSocketConnection owner;
+	private final int headRoom;
+	/** Left free after the payload for the e2e cipher tag */
+	private final int tailRoom;
+	private final ByteBuffer buffer;
+	private final ByteBuffer payload;
+	private final ByteBuffer dataView;
+	private final ByteBuffer wire;
+	private final BinaryMessage message;
+
+	/**
+	 * What to do once sent. Set by the owner for each send.
+	 */
+	Consumer<Throwable> onSent;
+
+	/**
+	 * @param buffer where the frame lives, from position zero to its limit
+	 */
+	DataFrame(AbstractSocketConnection owner, int headRoom, int tailRoom, ByteBuffer buffer) {
+		this.owner = owner;
+		this.headRoom = headRoom;
+		this.tailRoom = tailRoom;
+		this.buffer = buffer;
+		this.payload = buffer.duplicate();
+		this.dataView = buffer.duplicate();
+		this.wire = buffer.duplicate();
+		this.message = new BinaryMessage(wire, true);
+		clear();
+	}
+
+	/**
+	 * Where the producer puts the data, from its position.
+	 */
+	ByteBuffer payload() {
+		return payload;
+	}
+
+	void clear() {
+		payload.limit(buffer.limit() - tailRoom).position(headRoom);
+	}
+
+	int payloadLength() {
+		return payload.position() - headRoom;
+	}
+
+	/**
+	 * @return the checksum updated with the payload
+	 */
+	int updateChecksum(FrameChecksum checksum) {
+		if (!checksum.isEnabled()) {
+			return 0;
+		}
+		dataView.limit(payload.position()).position(headRoom);
+		checksum.update(dataView);
+		return (int) checksum.getValue();
+	}
+
+	/**
+	 * Ciphers the payload in place. It grows by the tag.
+	 */
+	void encrypt(Paired cipher) {
+		dataView.limit(payload.position()).position(headRoom);
+		if (buffer.limit() - headRoom < dataView.remaining() + cipher.getMaxOverhead()) {
+			throw new IllegalStateException("No room to cipher the frame");
+		}
+		payload.limit(buffer.limit()).position(headRoom);
+		cipher.cipher(dataView, payload);
+	}
+
+	/**
+	 * Replaces the payload with its compressed version, if the compressor wants to
+	 * 
+	 * @return true if it did
+	 */
+	boolean compress(FrameCompressor compressor) {
+		dataView.limit(payload.position()).position(headRoom);
+		int n = compressor.compress(dataView);
+		if (n < 0) {
+			return false;
+		}
+		if (n > buffer.limit() - headRoom) { // Can't happen, it's never bigger than the payload
+			throw new IllegalStateException("No room for the compressed frame: " + n);
+		}
+		payload.limit(buffer.limit()).position(headRoom);
+		payload.put(compressor.output(), 0, n);
+		return true;
+	}
+
+	/**
+	 * The whole buffer, to give it back
+	 */
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Writes the header before the payload and prepares the message.
+	 */
+	void writeHeader(byte version, byte type, long socketId, int crc) {
+		int start = headRoom - DATA_HEADER_SIZE;
+		wire.limit(payload.position()).position(start);
+		wire.put(start, version);
+		wire.put(start + 1, type);
+		wire.putLong(start + 2, socketId);
+		wire.putInt(start + 10, crc);
+	}
+
+	@Override
+	public WebSocketMessage<?> getMessage() {
+		return message;
+	}
+
+	@Override
+	public void sent(Throwable error) {
+		owner.dataFrameSent(this, error);
+	}
+
+}
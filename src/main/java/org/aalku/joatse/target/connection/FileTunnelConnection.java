@@ -24,6 +24,17 @@ public class FileTunnelConnection extends AbstractSocketConnection {
 	private final long offset;
 	private final long length;
 	private RandomAccessFile raf;
+	/** Bytes still to stream. Only one chunk is in flight at a time. */
+	private long remaining;
+
+	private final Consumer<Throwable> afterChunkSent = e -> {
+		if (e != null) {
+			log.error("Error sending file chunk", e);
+			close(e, false);
+		} else {
+			streamNextChunk();
+		}
+	};
 
 	public FileTunnelConnection(JoatseSession manager, long socketId, Consumer<Throwable> closeSession,
 			String filePath, ByteBuffer payload) throws IOException {
@@ -134,7 +145,6 @@ public class FileTunnelConnection extends AbstractSocketConnection {
 			raf.seek(offset);
 			
 			// Calculate bytes to read
-			long remaining;
 			if (length == -1) {
 				// Read entire file from offset
 				remaining = raf.length() - offset;
@@ -145,7 +155,7 @@ public class FileTunnelConnection extends AbstractSocketConnection {
 			
 			log.debug("Will stream {} bytes from file", remaining);
 			// Stream file in chunks
-			streamNextChunk(remaining);
+			streamNextChunk();
 			
 		} catch (IOException e) {
 			log.error("Error streaming file content", e);
@@ -153,7 +163,8 @@ public class FileTunnelConnection extends AbstractSocketConnection {
 		}
 	}
 
-	private void streamNextChunk(long remaining) {
+	private void streamNextChunk() {
+		DataFrame frame = null;
 		try {
 			if (remaining <= 0) {
 				log.debug("Streaming complete, closing connection");
@@ -161,34 +172,33 @@ public class FileTunnelConnection extends AbstractSocketConnection {
 				return;
 			}
 			
-			// Use the standard buffer from AbstractSocketConnection
-			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(DATA_BUFFER_SIZE, remaining));
-			int toRead = buffer.capacity();
-			byte[] tempBuffer = new byte[toRead];
-			int read = raf.read(tempBuffer, 0, toRead);
+			// Read straight into the frame that will be sent
+			frame = acquireDataFrame();
+			ByteBuffer buffer = frame.payload();
+			buffer.limit((int) Math.min(buffer.limit(), buffer.position() + remaining));
+			int read = raf.getChannel().read(buffer);
 			
-			log.debug("Read {} bytes from file ({} remaining)", read, remaining);
+			if (log.isDebugEnabled()) {
+				log.debug("Read {} bytes from file ({} remaining)", read, remaining);
+			}
 			
 			if (read <= 0) {
 				log.debug("No more data to read, closing connection");
+				releaseDataFrame(frame);
 				close(null, false);
 				return;
 			}
 			
-			buffer.put(tempBuffer, 0, read);
-			buffer.flip();
+			remaining -= read;
 			
 			// Send with CRC32 validation
-			sendDataMessageToCloud(buffer).thenRun(() -> {
-				streamNextChunk(remaining - read);
-			}).exceptionally(e -> {
-				log.error("Error sending file chunk", e);
-				close(e, false);
-				return null;
-			});
+			sendDataFrameToCloud(frame, afterChunkSent);
 			
 		} catch (IOException e) {
 			log.error("Error reading file chunk", e);
+			if (frame != null) {
+				releaseDataFrame(frame);
+			}
 			close(e, false);
 		}
 	}
@@ -0,0 +1,156 @@
+package org.aalku.joatse.target.connection;
+
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Credit based flow control of one socket, both directions.
+ *
+ * Each side may have at most one window of DATA payload bytes in flight. The
+ * receiver returns credit with {@link TunnelConnection#MESSAGE_SOCKET_CREDIT}
+ * as it consumes data (for tcp that means written to the target socket), so
+ * memory stays bounded per socket.
+ *
+ * The receive window starts at {@link #INITIAL_WINDOW} and grows (never
+ * shrinks) to twice the measured bandwidth-delay product, like TCP receive
+ * window auto tuning, so a single tunnel can still fill the link.
+ */
+class FlowControl {
+
+	static final int INITIAL_WINDOW = 256 * 1024;
+	static final int MAX_WINDOW = 16 * 1024 * 1024;
+
+	private final LongSupplier rttNanos;
+	private final IntConsumer sendGrant;
+
+	// Receive side. Use with this monitor.
+	private long window = INITIAL_WINDOW;
+	private long unacked = 0;
+	private long epochStartNanos = System.nanoTime();
+	private long epochBytes = 0;
+
+	// Send side. Use with this monitor.
+	private long sendCredit = INITIAL_WINDOW;
+	private final List<Consumer<Throwable>> waitingCredit = new ArrayList<>();
+	private boolean closed = false;
+
+	/**
+	 * @param rttNanos  current smoothed round trip time of the session
+	 * @param sendGrant sends a credit message to the peer. Called without lock.
+	 */
+	FlowControl(LongSupplier rttNanos, IntConsumer sendGrant) {
+		this.rttNanos = rttNanos;
+		this.sendGrant = sendGrant;
+	}
+
+	/**
+	 * We are about to send len payload bytes.
+	 */
+	synchronized void consumeSendCredit(int len) {
+		sendCredit -= len;
+	}
+
+	/**
+	 * @return a future completed as soon as there is send credit left, maybe
+	 *         already completed. Exceptionally if closed while waiting.
+	 */
+	CompletableFuture<Void> sendCreditAvailable() {
+		CompletableFuture<Void> res = new CompletableFuture<>();
+		if (!awaitSendCredit(e -> {
+			if (e == null) {
+				res.complete(null);
+			} else {
+				res.completeExceptionally(e);
+			}
+		})) {
+			res.complete(null);
+		}
+		return res;
+	}
+
+	/**
+	 * Like {@link #sendCreditAvailable()} without allocating anything.
+	 * 
+	 * @return false if there is credit already, then the callback is not called.
+	 *         True if the callback will be called later, with null or with an
+	 *         exception if closed while waiting.
+	 */
+	synchronized boolean awaitSendCredit(Consumer<Throwable> callback) {
+		if (sendCredit > 0 || closed) {
+			return false;
+		}
+		waitingCredit.add(callback);
+		return true;
+	}
+
+	/**
+	 * The peer granted us more credit.
+	 */
+	void granted(int bytes) {
+		List<Consumer<Throwable>> ready;
+		synchronized (this) {
+			sendCredit += bytes;
+			if (sendCredit <= 0 || waitingCredit.isEmpty()) {
+				return;
+			}
+			ready = new ArrayList<>(waitingCredit);
+			waitingCredit.clear();
+		}
+		ready.forEach(f -> f.accept(null));
+	}
+
+	/**
+	 * We consumed bytes received from the peer, so it can send more.
+	 */
+	void consumed(long bytes) {
+		int grant = 0;
+		synchronized (this) {
+			unacked += bytes;
+			epochBytes += bytes;
+			long now = System.nanoTime();
+			long rtt = Math.max(rttNanos.getAsLong(), TimeUnit.MILLISECONDS.toNanos(1));
+			long elapsed = now - epochStartNanos;
+			if (elapsed >= rtt) {
+				// bytes per rtt * 2 like TCP DRS. Being window limited means we'd grow next time.
+				long target = Math.min(MAX_WINDOW, 2 * epochBytes * rtt / elapsed);
+				if (target > window) {
+					unacked += target - window; // The extra credit is the growth
+					window = target;
+				}
+				epochStartNanos = now;
+				epochBytes = 0;
+			}
+			if (unacked >= window / 2) {
+				grant = (int) unacked;
+				unacked = 0;
+			}
+		}
+		if (grant > 0) {
+			sendGrant.accept(grant);
+		}
+	}
+
+	synchronized long getWindow() {
+		return window;
+	}
+
+	synchronized long getSendCredit() {
+		return sendCredit;
+	}
+
+	void close() {
+		List<Consumer<Throwable>> waiting;
+		synchronized (this) {
+			closed = true;
+			waiting = new ArrayList<>(waitingCredit);
+			waitingCredit.clear();
+		}
+		waiting.forEach(f -> f.accept(new AsynchronousCloseException()));
+	}
+}
@@ -33,8 +33,9 @@ public class FolderTunnelConnection extends AbstractSocketConnection {
 	private final String requestedPath;
 	private final ByteBuffer operationPayload;
 	
-	// For READ operation - stores the RandomAccessFile across async callbacks
+	// For READ operation - stores the RandomAccessFile and bytes still to stream across async callbacks
 	private RandomAccessFile raf;
+	private long remaining;
 	
 	// For WRITE operation - stores state across async data reception
 	private RandomAccessFile writeRaf;
@@ -745,13 +746,9 @@ public class FolderTunnelConnection extends AbstractSocketConnection {
 			int bytesToWrite = buffer.remaining();
 			log.debug("WRITE: Received {} bytes, total so far: {}/{}", bytesToWrite, writeBytesReceived, writeExpectedLength);
 			
-			// Write data to file
-			if (buffer.hasArray()) {
-				writeRaf.write(buffer.array(), buffer.arrayOffset() + buffer.position(), bytesToWrite);
-			} else {
-				byte[] temp = new byte[bytesToWrite];
-				buffer.get(temp);
-				writeRaf.write(temp);
+			// Write data to file, heap or direct buffer without a temporary copy
+			while (buffer.hasRemaining()) {
+				writeRaf.getChannel().write(buffer);
 			}
 			
 			writeBytesReceived += bytesToWrite;
@@ -1162,7 +1159,8 @@ public class FolderTunnelConnection extends AbstractSocketConnection {
 			
 			log.debug("Will stream {} bytes from file", length);
 			// Stream file in chunks
-			streamNextChunk(length);
+			remaining = length;
+			streamNextChunk();
 			
 		} catch (IOException e) {
 			log.error("Error streaming file content", e);
@@ -1171,10 +1169,11 @@ public class FolderTunnelConnection extends AbstractSocketConnection {
 	}
 
 	/**
-	 * Stream next chunk of file content.
-	 * Uses the instance field 'raf' which is closed by destroy().
+	 * Stream next chunk of file content straight into a pooled frame.
+	 * Uses the instance fields 'raf' and 'remaining', raf is closed by destroy().
 	 */
-	private void streamNextChunk(long remaining) {
+	private void streamNextChunk() {
+		DataFrame frame = null;
 		try {
 			if (remaining <= 0) {
 				log.debug("Streaming complete, closing connection");
@@ -1188,40 +1187,45 @@ public class FolderTunnelConnection extends AbstractSocketConnection {
 				return;
 			}
 			
-			// Use the standard buffer size
-			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(DATA_BUFFER_SIZE, remaining));
-			int toRead = buffer.capacity();
-			byte[] tempBuffer = new byte[toRead];
-			int read = raf.read(tempBuffer, 0, toRead);
+			frame = acquireDataFrame();
+			ByteBuffer buffer = frame.payload();
+			buffer.limit((int) Math.min(buffer.limit(), buffer.position() + remaining));
+			int read = raf.getChannel().read(buffer);
 			
-			log.debug("Read {} bytes from file ({} remaining)", read, remaining);
+			if (log.isDebugEnabled()) {
+				log.debug("Read {} bytes from file ({} remaining)", read, remaining);
+			}
 			
 			if (read <= 0) {
 				log.debug("No more data to read, closing connection");
+				releaseDataFrame(frame);
 				close(null, false);
 				return;
 			}
 			
-			buffer.put(tempBuffer, 0, read);
-			buffer.flip();
-			
-			final int bytesRead = read;
+			remaining -= read;
 			
 			// Send with CRC32 validation
-			sendDataMessageToCloud(buffer).thenRun(() -> {
-				streamNextChunk(remaining - bytesRead);
-			}).exceptionally(e -> {
-				log.error("Error sending file chunk", e);
-				close(e, false);
-				return null;
-			});
+			sendDataFrameToCloud(frame, afterChunkSent);
 			
 		} catch (IOException e) {
 			log.error("Error reading file chunk", e);
+			if (frame != null) {
+				releaseDataFrame(frame);
+			}
 			close(e, false);
 		}
 	}
 
+	private final Consumer<Throwable> afterChunkSent = e -> {
+		if (e != null) {
+			log.error("Error sending file chunk", e);
+			close(e, false);
+		} else {
+			streamNextChunk();
+		}
+	};
+
 	@Override
 	protected void destroy() {
 		// Clean up any resources
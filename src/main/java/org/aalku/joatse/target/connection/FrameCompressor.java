@@ -0,0 +1,123 @@
+package org.aalku.joatse.target.connection;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the data frames of a socket as one stream, each frame ending with a
+ * sync flush so the cloud can inflate it on arrival.
+ *
+ * It measures the ratio every {@link #SAMPLE_BYTES} and if it's not worth it
+ * (already compressed data) it turns itself off for a while, longer each time.
+ * Frames sent while off don't go through the deflater so the stream stays valid.
+ *
+ * Use with the send lock of the socket.
+ */
+final class FrameCompressor {
+
+	/** Smaller frames are not worth it */
+	static final int MIN_FRAME_SIZE = 64;
+	static final int SAMPLE_BYTES = 256 * 1024;
+	/** Compressed/plain over this and it's not worth the CPU */
+	static final double MAX_RATIO = 0.9;
+	static final long MIN_BACKOFF_BYTES = 1024 * 1024;
+	static final long MAX_BACKOFF_BYTES = 64 * 1024 * 1024;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private final byte[] in;
+	private final byte[] out;
+	private final CompressionStats socketStats;
+	private final CompressionStats tunnelStats;
+
+	private long samplePlain = 0;
+	private long sampleCompressed = 0;
+	/** Bytes to send before trying again */
+	private long offBytes = 0;
+	private long backoffBytes = MIN_BACKOFF_BYTES;
+
+	/**
+	 * @param maxFrameSize biggest payload to compress
+	 */
+	FrameCompressor(int maxFrameSize, CompressionStats socketStats, CompressionStats tunnelStats) {
+		this.in = new byte[maxFrameSize];
+		this.out = new byte[maxOutputSize(maxFrameSize)];
+		this.socketStats = socketStats;
+		this.tunnelStats = tunnelStats;
+	}
+
+	/**
+	 * Deflate might expand it a little: 5 bytes per stored block + the flush
+	 */
+	static int maxOutputSize(int plainSize) {
+		return plainSize + 64 + plainSize / 1024;
+	}
+
+	/**
+	 * @param plain the payload, from position to limit. It's consumed only if it
+	 *              was compressed.
+	 * @return the size of the compressed payload in {@link #output()}, or -1 to
+	 *         send it as it is. Never more than the payload.
+	 */
+	int compress(ByteBuffer plain) {
+		int len = plain.remaining();
+		if (offBytes > 0 || len < MIN_FRAME_SIZE) {
+			offBytes = Math.max(0, offBytes - len);
+			socketStats.bypassed(len);
+			tunnelStats.bypassed(len);
+			return -1;
+		}
+		long t0 = System.nanoTime();
+		plain.duplicate().get(in, 0, len);
+		deflater.setInput(in, 0, len);
+		int n = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+		if (n == out.length) { // Maybe not all flushed. Can't happen.
+			throw new IllegalStateException("Deflate output bigger than expected: " + len + " -> " + n);
+		}
+		long nanos = System.nanoTime() - t0;
+		sample(len, n);
+		if (n >= len) {
+			/*
+			 * It grew, send it as it is. The cloud won't see this output, so the next
+			 * frames must not refer to it: a raw deflater starts over without writing
+			 * anything and the cloud's inflater is at a block boundary.
+			 */
+			deflater.reset();
+			socketStats.compressed(len, len, nanos);
+			tunnelStats.compressed(len, len, nanos);
+			return -1;
+		}
+		plain.position(plain.limit());
+		socketStats.compressed(len, n, nanos);
+		tunnelStats.compressed(len, n, nanos);
+		return n;
+	}
+
+	private void sample(int plain, int compressed) {
+		samplePlain += plain;
+		sampleCompressed += compressed;
+		if (samplePlain < SAMPLE_BYTES) {
+			return;
+		}
+		if (sampleCompressed > samplePlain * MAX_RATIO) {
+			offBytes = backoffBytes;
+			backoffBytes = Math.min(MAX_BACKOFF_BYTES, backoffBytes * 2);
+		} else {
+			backoffBytes = MIN_BACKOFF_BYTES;
+		}
+		samplePlain = 0;
+		sampleCompressed = 0;
+	}
+
+	byte[] output() {
+		return out;
+	}
+
+	boolean isOff() {
+		return offBytes > 0;
+	}
+
+	void end() {
+		deflater.end();
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.aalku.joatse.target.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the deflated data frames received for a socket, the other end of a
+ * {@link FrameCompressor}.
+ */
+final class FrameDecompressor {
+
+	private final Inflater inflater = new Inflater(true);
+	private final byte[] in;
+	private final byte[] out;
+	private final ByteBuffer outBuffer;
+	private boolean ended = false;
+
+	/**
+	 * @param maxFrameSize biggest payload once inflated
+	 */
+	FrameDecompressor(int maxFrameSize) {
+		this.in = new byte[FrameCompressor.maxOutputSize(maxFrameSize)];
+		this.out = new byte[maxFrameSize + 1];
+		this.outBuffer = ByteBuffer.wrap(out);
+	}
+
+	/**
+	 * @return the plain payload. Valid until the next call.
+	 * @throws IOException if the frame is wrong or too big
+	 */
+	synchronized ByteBuffer decompress(ByteBuffer compressed) throws IOException {
+		if (ended) {
+			throw new IOException("Socket closed");
+		}
+		int len = compressed.remaining();
+		if (compressed.hasArray()) {
+			inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(), len);
+		} else {
+			if (len > in.length) {
+				throw new IOException("Deflated frame too big: " + len);
+			}
+			compressed.get(in, 0, len);
+			inflater.setInput(in, 0, len);
+		}
+		int n;
+		try {
+			n = inflater.inflate(out, 0, out.length);
+		} catch (DataFormatException e) {
+			throw new IOException("Bad deflated frame: " + e, e);
+		}
+		if (n == out.length) {
+			throw new IOException("Deflated frame too big once inflated");
+		} else if (!inflater.needsInput() || inflater.finished()) {
+			throw new IOException("Deflated frame not sync flushed");
+		}
+		compressed.position(compressed.limit()); // Consumed
+		outBuffer.limit(n).position(0);
+		return outBuffer;
+	}
+
+	synchronized void end() {
+		ended = true;
+		inflater.end();
+	}
+
+}
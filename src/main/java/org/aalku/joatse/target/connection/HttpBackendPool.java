@@ -0,0 +1,286 @@
+package org.aalku.joatse.target.connection;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.SocketProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connections to the backend of an http tunnel opened in advance, so a new
+ * cloud socket doesn't wait for the name lookup and the TCP connect.
+ *
+ * Only fresh connections are handed out: a connection that carried a request is
+ * closed with its cloud socket as always. A fresh one is at a request boundary
+ * for sure, a used one would need parsing the traffic (and it can be TLS, which
+ * goes end to end from the cloud). For the same reason TLS handshakes are not
+ * saved, only what comes before them.
+ *
+ * Idle connections are replaced after a while (-Djoatse.httpPoolIdleSeconds, 15
+ * by default), before servers drop them: Apache waits 20 seconds for the first
+ * request by default, nginx 60. When {@link #IDLE_ROUNDS} rounds of them expire
+ * with no take, the pool stops replacing them until the next take, so an unused
+ * tunnel doesn't keep opening connections forever.
+ */
+public final class HttpBackendPool {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpBackendPool.class);
+
+	public static final int MAX_WARM_CONNECTIONS = 64;
+
+	private static final long IDLE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("joatse.httpPoolIdleSeconds", 15));
+
+	/**
+	 * Expiries of all the warm connections with no take in between before the
+	 * pool stops replacing them
+	 */
+	static final int IDLE_ROUNDS = 2;
+
+	/**
+	 * Wait before trying again when the backend can't be reached
+	 */
+	private static final long RETRY_MILLIS = 5000;
+
+	private final InetSocketAddress target;
+	private final SocketProfile socketProfile;
+	private final int warm;
+	private final long idleMillis;
+	private final TimerWheel timer;
+
+	private static final class Idle {
+		final AsynchronousSocketChannel channel;
+		TimerWheel.Timeout expiry;
+
+		Idle(AsynchronousSocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/* With this monitor */
+	private final Deque<Idle> idle = new ArrayDeque<>();
+	private int connecting = 0;
+	private boolean started = false;
+	private boolean closed = false;
+	private TimerWheel.Timeout retry = null;
+	/** Since the last take */
+	private int expiredUntaken = 0;
+	/** Not replacing expired ones until the next take */
+	private boolean paused = false;
+
+	private final LongAdder warmTakes = new LongAdder();
+	private final LongAdder coldTakes = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder connectFailures = new LongAdder();
+
+	/**
+	 * @param target may be unresolved, it's resolved for each connection
+	 * @param warm   idle connections to keep, 1 to {@link #MAX_WARM_CONNECTIONS}
+	 */
+	public HttpBackendPool(InetSocketAddress target, SocketProfile socketProfile, int warm) {
+		this(target, socketProfile, warm, IDLE_MILLIS, TimerWheel.shared());
+	}
+
+	HttpBackendPool(InetSocketAddress target, SocketProfile socketProfile, int warm, long idleMillis,
+			TimerWheel timer) {
+		if (warm < 1 || warm > MAX_WARM_CONNECTIONS) {
+			throw new IllegalArgumentException("Warm connections must be 1 to " + MAX_WARM_CONNECTIONS + ": " + warm);
+		}
+		this.target = target;
+		this.socketProfile = socketProfile;
+		this.warm = warm;
+		this.idleMillis = idleMillis;
+		this.timer = timer;
+	}
+
+	/**
+	 * Opens the warm connections. Again does nothing.
+	 */
+	public void start() {
+		synchronized (this) {
+			if (started || closed) {
+				return;
+			}
+			started = true;
+		}
+		log.info("Keeping {} warm connections to {}:{}", warm, target.getHostString(), target.getPort());
+		refill();
+	}
+
+	/**
+	 * A connection to the target: a warm one if there is one, a new one otherwise.
+	 * Either way the pool starts a replacement.
+	 */
+	public CompletableFuture<AsynchronousSocketChannel> take() {
+		Idle i;
+		synchronized (this) {
+			i = idle.pollFirst();
+			expiredUntaken = 0;
+			paused = false;
+		}
+		if (i != null) {
+			i.expiry.cancel();
+			warmTakes.increment();
+			refill();
+			return CompletableFuture.completedFuture(i.channel);
+		}
+		coldTakes.increment();
+		refill();
+		return AbstractTunnelTcpConnection.tcpConnectToTarget(target, socketProfile);
+	}
+
+	private void refill() {
+		int n;
+		synchronized (this) {
+			if (!started || closed || retry != null || paused) {
+				return;
+			}
+			n = warm - idle.size() - connecting;
+			connecting += Math.max(0, n);
+		}
+		for (int k = 0; k < n; k++) {
+			AbstractTunnelTcpConnection.tcpConnectToTarget(target, socketProfile).whenComplete(this::connected);
+		}
+	}
+
+	private void connected(AsynchronousSocketChannel channel, Throwable e) {
+		Idle i = null;
+		boolean scheduleRetry = false;
+		synchronized (this) {
+			connecting--;
+			if (e != null) {
+				connectFailures.increment();
+				if (retry == null && !closed) {
+					scheduleRetry = true;
+					retry = timer.schedule(this::retry, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			} else if (!closed) {
+				i = new Idle(channel);
+				idle.addLast(i);
+				final Idle expiring = i;
+				// Set before anyone can take it, take() cancels it
+				i.expiry = timer.schedule(() -> expire(expiring), idleMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (e != null) {
+			if (scheduleRetry) {
+				log.warn("Can't open warm connections to {}:{}, trying again in {}ms: {}", target.getHostString(),
+						target.getPort(), RETRY_MILLIS, e.toString());
+			}
+		} else if (i == null) {
+			IOTools.runFailable(() -> channel.close()); // Closed meanwhile
+		}
+	}
+
+	private void retry() {
+		synchronized (this) {
+			retry = null;
+		}
+		refill();
+	}
+
+	private void expire(Idle i) {
+		boolean removed;
+		boolean pausing = false;
+		synchronized (this) {
+			removed = idle.remove(i);
+			if (removed && !paused && ++expiredUntaken >= warm * IDLE_ROUNDS) {
+				paused = pausing = true;
+			}
+		}
+		if (removed) {
+			expired.increment();
+			IOTools.runFailable(() -> i.channel.close());
+			if (pausing) {
+				log.info("No requests to {}:{} for a while, warm connections paused until the next one",
+						target.getHostString(), target.getPort());
+			}
+			refill();
+		}
+	}
+
+	/**
+	 * Closes the idle connections and stops opening them. Connections already
+	 * taken are not affected.
+	 */
+	public void close() {
+		List<Idle> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<>(idle);
+			idle.clear();
+			if (retry != null) {
+				retry.cancel();
+				retry = null;
+			}
+		}
+		for (Idle i : toClose) {
+			i.expiry.cancel();
+			IOTools.runFailable(() -> i.channel.close());
+		}
+	}
+
+	public InetSocketAddress getTarget() {
+		return target;
+	}
+
+	public SocketProfile getSocketProfile() {
+		return socketProfile;
+	}
+
+	public int getWarm() {
+		return warm;
+	}
+
+	public synchronized int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * If expired connections are not being replaced, because nothing took any
+	 */
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * Sockets that got a warm connection
+	 */
+	public long getWarmTakes() {
+		return warmTakes.sum();
+	}
+
+	/**
+	 * Sockets that found the pool empty and connected on their own
+	 */
+	public long getColdTakes() {
+		return coldTakes.sum();
+	}
+
+	/**
+	 * Idle connections replaced because of age
+	 */
+	public long getExpired() {
+		return expired.sum();
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "HttpBackendPool[" + target.getHostString() + ":" + target.getPort() + ", warm=" + warm + ", idle="
+				+ getIdle() + ", warmTakes=" + getWarmTakes() + ", coldTakes=" + getColdTakes() + ", expired="
+				+ getExpired() + ", connectFailures=" + getConnectFailures() + ", paused=" + isPaused() + "]";
+	}
+}
@@ -1,27 +1,36 @@
 package org.aalku.joatse.target.connection;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
-import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+import org.aalku.joatse.target.tools.io.AddressAllowlist;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.aalku.joatse.target.tools.io.DnsCache;
+import org.aalku.joatse.target.tools.io.HappyEyeballs;
 import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.SocketProfile;
+import org.aalku.joatse.target.tools.io.TcpChannelGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,10 +38,19 @@ public class Socks5Proxy {
 	
 	private static final byte REP_CONNECTION_REFUSED = 5;
 
+	private static final byte REP_HOST_UNREACHABLE = 4;
+
 	private static final byte REP_TARGET_NOT_ALLOWED = 2;
 
 	private static final byte REP_SUCCESS = 0;
 
+	private static final byte REP_GENERAL_FAILURE = 1;
+
+	/**
+	 * CONNECTs being resolved or connected, of all the proxies
+	 */
+	public static final int MAX_PENDING_CONNECTS = 512;
+
 	private static final int BUFFER_CAPACITY = 1024*64;
 	
 	private enum State { NEW, CONNECTED, CLOSED, IDLE, CONNECTING };
@@ -40,14 +58,20 @@ public class Socks5Proxy {
 	private AtomicReference<Socks5Proxy.State> state = new AtomicReference<Socks5Proxy.State>(State.NEW);
 	
 	/**
-	 * For exclusive use of receivedWsBytes() on connect phase
+	 * For exclusive use of receivedWsBytes() on connect phase. Borrowed from the
+	 * pool when bytes arrive and grown as needed up to BUFFER_CAPACITY. Use with
+	 * this monitor.
 	 */
-	private AtomicReference<ByteBuffer> receivedWsBytesBuffer = new AtomicReference<>(ByteBuffer.allocate(BUFFER_CAPACITY));
+	private final AtomicReference<ByteBuffer> receivedWsBytesBuffer = new AtomicReference<>(null);
+
+	private final BufferPool.Tracker buffers;
 
 
 	private static Logger log = LoggerFactory.getLogger(Socks5Proxy.class);
 
-	private final Collection<String> allowedAddressess;
+	private final AddressAllowlist allowlist;
+
+	private final DnsCache dns;
 	
 	private final Consumer<String> closedEvent;
 
@@ -55,20 +79,85 @@ public class Socks5Proxy {
 	
 	private final CompletableFuture<AsynchronousSocketChannel> result = new CompletableFuture<>();
 	
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-
 	private long tcpConnectTimeoutSeconds = 20;
 
 	private long socks5TimeoutSeconds = 30;
 
-	private ScheduledFuture<?> socks5timeoutTask;
+	private final TimerWheel.Timeout socks5timeoutTask;
+
+	/**
+	 * Caps the CONNECTs in progress, so a burst of them to a slow resolver
+	 * doesn't queue without end. Over the cap they fail right away.
+	 */
+	static final class PendingLimit {
+		private static final PendingLimit SHARED = new PendingLimit(MAX_PENDING_CONNECTS);
+
+		private final int max;
+		private final AtomicInteger pending = new AtomicInteger();
+
+		PendingLimit(int max) {
+			this.max = max;
+		}
 
-	public Socks5Proxy(Collection<String> allowedAddressess, Consumer<String> closedEvent, Consumer<ByteBuffer> senderToWs) {
-		this.allowedAddressess = allowedAddressess;
+		boolean tryAcquire() {
+			if (pending.incrementAndGet() > max) {
+				pending.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		void release() {
+			pending.decrementAndGet();
+		}
+
+		int getPending() {
+			return pending.get();
+		}
+	}
+
+	private final PendingLimit pendingLimit;
+
+	private final SocketProfile socketProfile;
+
+	/**
+	 * This CONNECT counts in pendingLimit
+	 */
+	private final AtomicBoolean pendingConnect = new AtomicBoolean(false);
+
+	/**
+	 * @param dns to resolve the targets given by name. The allowlist has its own.
+	 */
+	public Socks5Proxy(AddressAllowlist allowlist, DnsCache dns, Consumer<String> closedEvent,
+			Consumer<ByteBuffer> senderToWs, BufferPool.Tracker buffers) {
+		this(allowlist, dns, closedEvent, senderToWs, buffers, SocketProfile.DEFAULT);
+	}
+
+	/**
+	 * @param socketProfile of the sockets to the targets
+	 */
+	public Socks5Proxy(AddressAllowlist allowlist, DnsCache dns, Consumer<String> closedEvent,
+			Consumer<ByteBuffer> senderToWs, BufferPool.Tracker buffers, SocketProfile socketProfile) {
+		this(allowlist, dns, closedEvent, senderToWs, buffers, socketProfile, PendingLimit.SHARED);
+	}
+
+	Socks5Proxy(AddressAllowlist allowlist, DnsCache dns, Consumer<String> closedEvent,
+			Consumer<ByteBuffer> senderToWs, BufferPool.Tracker buffers, PendingLimit pendingLimit) {
+		this(allowlist, dns, closedEvent, senderToWs, buffers, SocketProfile.DEFAULT, pendingLimit);
+	}
+
+	Socks5Proxy(AddressAllowlist allowlist, DnsCache dns, Consumer<String> closedEvent,
+			Consumer<ByteBuffer> senderToWs, BufferPool.Tracker buffers, SocketProfile socketProfile,
+			PendingLimit pendingLimit) {
+		this.pendingLimit = pendingLimit;
+		this.socketProfile = socketProfile;
+		this.allowlist = allowlist;
+		this.dns = dns;
+		this.buffers = buffers;
 		this.closedEvent = closedEvent;
 		this.senderToWs = senderToWs;
 		// handle timeout
-		this.socks5timeoutTask = scheduler.schedule(()->{
+		this.socks5timeoutTask = TimerWheel.shared().schedule(()->{
 			State state = this.state.get();
 			if (state != State.CONNECTED) {
 				close("Socks5 timeout");
@@ -76,7 +165,7 @@ public class Socks5Proxy {
 		}, this.socks5TimeoutSeconds, TimeUnit.SECONDS);
 	}
 
-	public void receivedWsBytes(ByteBuffer buffer) {
+	public synchronized void receivedWsBytes(ByteBuffer buffer) {
 		/*
 		 * Implementation notes:
 		 * 
@@ -93,7 +182,7 @@ public class Socks5Proxy {
 			throw new IllegalStateException("Don't pass data messagess to proxy once the socket is connected");
 		} else {
 			// Connecting
-			ByteBuffer receivedWsBytesBuffer = this.receivedWsBytesBuffer.get();
+			ByteBuffer receivedWsBytesBuffer = receiveBuffer(buffer.remaining());
 			receivedWsBytesBuffer.put(buffer); // It must fit. While connecting messages are small.
 			if (!checkVersion()) {
 				return; // Already closed
@@ -166,8 +255,10 @@ public class Socks5Proxy {
 					for (int i = 0; i < clen; i++) {
 						sb.append((char)receivedWsBytesBuffer.get(4 + 1 + i));
 					}
-					target = new InetSocketAddress(sb.toString(), (receivedWsBytesBuffer.get(4 + 1 + clen) & 0xFF) * 256
-							+ (receivedWsBytesBuffer.get(4 + 1 + clen + 1) & 0xFF));
+					// Resolved later, not on this thread
+					target = InetSocketAddress.createUnresolved(sb.toString(),
+							(receivedWsBytesBuffer.get(4 + 1 + clen) & 0xFF) * 256
+									+ (receivedWsBytesBuffer.get(4 + 1 + clen + 1) & 0xFF));
 				} else if (aType == 4) { // IPV6
 					byte[] addr = new byte[16];
 					for (int i = 0; i < addr.length; i++) {
@@ -186,52 +277,28 @@ public class Socks5Proxy {
 					close("Unsupported CMD: " + cmd);
 					return;
 				}
-				// Check target against allowed
-				
-				boolean allowed = false;
-				for (String allowedAddress: allowedAddressess) {
-					if (IOTools.testInetAddressPatternMatch(allowedAddress, target)) {
-						allowed = true;
-						break;
-					}
-				}
-				if (!allowed) {
-					sendCommandResponse(REP_TARGET_NOT_ALLOWED);
-					close("Target now allowed: " + target);
-					return;
-				}
-				
-				// Connect
 				updateBufferState(messageLen);
 				if (receivedWsBytesBuffer.position() > 0) {
 					log.warn("Received bytes after command (discarded): " + receivedWsBytesBuffer.position());
 					receivedWsBytesBuffer.clear();
 				}
 				this.state.set(State.CONNECTING);
-				tcpConnectToTarget(target).handle((AsynchronousSocketChannel s,Throwable e)->{
-					State state2 = this.state.get();
-					if (state2 != State.CONNECTING) {
-						String msg = "Illegal state. Expected " + State.CONNECTING + " but it is " + state2;
-						log.error(msg);
-						close(msg);
-						if (s != null) {
-							IOTools.runFailable(()->s.close());
-						}
-					}
-					if (receivedWsBytesBuffer.position() != 0) {
-						log.warn("Received bytes during connection (discarded): " + receivedWsBytesBuffer.position());
-					}
-					this.receivedWsBytesBuffer.set(null);
-					if (e != null) {
-						sendCommandResponse(REP_CONNECTION_REFUSED); // TODO more detailed
-						close("Error connecting to target: " + e.getMessage());
-					} else {
-						sendCommandResponse(REP_SUCCESS);
-						this.state.set(State.CONNECTED);
-						success();
-						this.result.complete(s);
+				if (!pendingLimit.tryAcquire()) {
+					sendCommandResponse(REP_GENERAL_FAILURE);
+					close("Too many SOCKS5 connects in progress: " + target);
+					return;
+				}
+				pendingConnect.set(true);
+				// Check target against allowed, resolve it and connect, without holding this
+				// thread. Only waits for DNS on a cache miss.
+				allowlist.isAllowed(target).whenComplete((allowed, e) -> {
+					if (e != null || !allowed) {
+						sendCommandResponse(REP_TARGET_NOT_ALLOWED);
+						close("Target now allowed: " + target);
+						return;
 					}
-					return null;
+					resolve(target).thenCompose(a -> HappyEyeballs.connect(a, target.getPort(), this::tcpConnectToTarget))
+							.handle(this::connected);
 				});
 			} else {
 				log.error("Unexpected message on current state " + state);
@@ -239,28 +306,95 @@ public class Socks5Proxy {
 		}
 	}
 	
+	private Void connected(AsynchronousSocketChannel s, Throwable e) {
+		releasePendingConnect();
+		synchronized (this) {
+			ByteBuffer b = this.receivedWsBytesBuffer.get();
+			if (b != null && b.position() != 0) {
+				log.warn("Received bytes during connection (discarded): " + b.position());
+			}
+			releaseReceiveBuffer();
+		}
+		State state2 = this.state.get();
+		if (state2 != State.CONNECTING) {
+			String msg = "Illegal state. Expected " + State.CONNECTING + " but it is " + state2;
+			log.error(msg);
+			close(msg);
+			if (s != null) {
+				IOTools.runFailable(()->s.close());
+			}
+		}
+		if (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		if (e instanceof UnknownHostException) {
+			sendCommandResponse(REP_HOST_UNREACHABLE);
+			close("Unknown target host: " + e.getMessage());
+		} else if (e != null) {
+			sendCommandResponse(REP_CONNECTION_REFUSED); // TODO more detailed
+			close("Error connecting to target: " + e.getMessage());
+		} else {
+			sendCommandResponse(REP_SUCCESS);
+			this.state.set(State.CONNECTED);
+			success();
+			this.result.complete(s);
+		}
+		return null;
+	}
+
+	/**
+	 * Through the DNS cache if it's a name
+	 */
+	private CompletableFuture<InetAddress[]> resolve(InetSocketAddress target) {
+		if (!target.isUnresolved()) {
+			return CompletableFuture.completedFuture(new InetAddress[] { target.getAddress() });
+		}
+		return dns.resolve(target.getHostString()).thenApply(addresses -> {
+			if (addresses.length == 0) {
+				throw new CompletionException(new UnknownHostException(target.getHostString()));
+			}
+			return addresses;
+		});
+	}
+
+	/**
+	 * One address of the target. Cancelling the result closes the channel.
+	 */
 	protected CompletableFuture<AsynchronousSocketChannel> tcpConnectToTarget(SocketAddress targetAddress) {
 		CompletableFuture<AsynchronousSocketChannel> res = new CompletableFuture<AsynchronousSocketChannel>();
 		try {
-			AsynchronousSocketChannel cs = AsynchronousSocketChannel.open();
-			cs.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
-			ScheduledFuture<?> timeoutTask = scheduler.schedule(()->{
+			AsynchronousSocketChannel cs = TcpChannelGroup.shared().open();
+			try {
+				socketProfile.apply(cs);
+			} catch (IOException e) {
+				IOTools.runFailable(()->cs.close());
+				throw e;
+			}
+			TimerWheel.Timeout timeoutTask = TimerWheel.shared().schedule(()->{
 				// Connection timeout
 				res.completeExceptionally(new SocketTimeoutException("Timeout connecting to " + targetAddress));
 				IOTools.runFailable(()->cs.close());
 			}, this.tcpConnectTimeoutSeconds, TimeUnit.SECONDS);
 			cs.connect(targetAddress, null, new CompletionHandler<Void, Void>() {
 				public void completed(Void result, Void a) {
-					timeoutTask.cancel(true);
-					res.complete(cs);
+					timeoutTask.cancel();
+					if (!res.complete(cs)) {
+						IOTools.runFailable(()->cs.close()); // Cancelled
+					}
 				}
 				public void failed(Throwable e, Void a) {
-					timeoutTask.cancel(true);
+					timeoutTask.cancel();
 					// Cleanup only the resource that will not return, then tell the caller
 					IOTools.runFailable(()->cs.close());
 					res.completeExceptionally(e);
 				}
 			});
+			res.whenComplete((r, e)->{
+				if (res.isCancelled()) { // Another attempt won
+					timeoutTask.cancel();
+					IOTools.runFailable(()->cs.close());
+				}
+			});
 		} catch (Exception e) {
 			res.completeExceptionally(e);
 		}
@@ -276,14 +410,48 @@ public class Socks5Proxy {
 
 	private void updateBufferState(int processed) {
 		ByteBuffer buffer = receivedWsBytesBuffer.get();
-		buffer.position(buffer.position() - processed);
-		byte[] a = buffer.array();
-		System.arraycopy(a, processed, a, 0, buffer.position());
+		buffer.flip();
+		buffer.position(processed);
+		buffer.compact();
+	}
+
+	/**
+	 * Use with this monitor
+	 * 
+	 * @return the receive buffer with room for len more bytes
+	 */
+	private ByteBuffer receiveBuffer(int len) {
+		ByteBuffer current = receivedWsBytesBuffer.get();
+		if (current != null && current.remaining() >= len) {
+			return current;
+		}
+		int needed = (current == null ? 0 : current.position()) + len;
+		if (needed > BUFFER_CAPACITY) {
+			throw new BufferOverflowException();
+		}
+		ByteBuffer bigger = buffers.acquire(needed);
+		if (current != null) {
+			current.flip();
+			bigger.put(current);
+			buffers.release(current);
+		}
+		receivedWsBytesBuffer.set(bigger);
+		return bigger;
+	}
+
+	/**
+	 * Use with this monitor
+	 */
+	private void releaseReceiveBuffer() {
+		ByteBuffer b = receivedWsBytesBuffer.getAndSet(null);
+		if (b != null) {
+			buffers.release(b);
+		}
 	}
 
 	private boolean checkVersion() {
 		ByteBuffer receivedWsBytesBuffer = this.receivedWsBytesBuffer.get();
-		if (receivedWsBytesBuffer.position() > 0) {
+		if (receivedWsBytesBuffer != null && receivedWsBytesBuffer.position() > 0) {
 			int version = receivedWsBytesBuffer.get(0) & 0xFF;
 			if (version != 5) {
 				close("Unsupported protocol version " + version);
@@ -314,15 +482,24 @@ public class Socks5Proxy {
 		return result;
 	}
 
+	private void releasePendingConnect() {
+		if (pendingConnect.compareAndSet(true, false)) {
+			pendingLimit.release();
+		}
+	}
+
 	public void close(String msg) {
-		this.socks5timeoutTask.cancel(true);
+		this.socks5timeoutTask.cancel();
+		releasePendingConnect();
 		this.state.set(State.CLOSED);
+		synchronized (this) {
+			releaseReceiveBuffer();
+		}
 		this.result.complete(null);
 		this.closedEvent.accept(msg);
-		this.scheduler.shutdown();
 	}
 
 	private void success() {
-		this.socks5timeoutTask.cancel(true);
+		this.socks5timeoutTask.cancel();
 	}
 }
@@ -2,11 +2,11 @@ package org.aalku.joatse.target.connection;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
 import org.aalku.joatse.target.JoatseClient.TunnelRequestItemSocks5;
 import org.aalku.joatse.target.JoatseSession;
+import org.aalku.joatse.target.tools.io.DnsCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,15 +17,17 @@ public class Socks5TunnelTcpConnection extends AbstractTunnelTcpConnection {
 	private Socks5Proxy proxy;
 	
 	public Socks5TunnelTcpConnection(JoatseSession session, long socketId, Consumer<Throwable> closeSession, TunnelRequestItemSocks5 req) {
-		super(session, socketId, closeSession);
-		this.proxy = new Socks5Proxy(req.getAuthorizedTargets(), s->closeSocket(s), bb->{try {
-			super.sendDataMessageToCloud(bb).get();
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}});
+		super(session, socketId, closeSession, req.getSocketProfile());
+		// Replies can come from resolver or connect threads, they don't wait for the send
+		this.proxy = new Socks5Proxy(req.getAllowlist(), DnsCache.shared(), s->closeSocket(s),
+				bb->super.sendDataMessageToCloud(bb).whenComplete((r, e) -> {
+					if (e != null) {
+						close(e, false);
+					}
+				}), buffers, req.getSocketProfile());
 		super.notifyConnected();
 		this.proxy.getResult().thenAccept(s->{
-			super.tcpRef.set(s);
+			super.setTcp(s);
 			super.copyFromTargetToCloudForever();
 		});
 	}
@@ -44,13 +46,11 @@ public class Socks5TunnelTcpConnection extends AbstractTunnelTcpConnection {
 	protected void receivedBytesFromCloud(ByteBuffer buffer) throws IOException {
 		synchronized (this) {
 			if (super.tcpRef.get() == null) {
+				int len = buffer.remaining();
 				this.proxy.receivedWsBytes(buffer);
+				receivedBytesConsumed(len);
 			} else {
-				try {
-					tcpWrite(buffer).get(); // This is blocking to ensure write order. TODO prepare an async version
-				} catch (InterruptedException | ExecutionException e) {
-					throw new IOException("Error writting to tcp: " + e, e);
-				}
+				tcpWrite(buffer); // Async but ordered
 			}
 		}
 	}
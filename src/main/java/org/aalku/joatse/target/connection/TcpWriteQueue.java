@@ -0,0 +1,212 @@
+package org.aalku.joatse.target.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+import org.aalku.joatse.target.tools.io.BufferPool;
+
+/**
+ * Ordered, non blocking writer to an {@link AsynchronousSocketChannel}.
+ *
+ * Data is copied into pooled buffers so the caller can reuse its buffer as soon
+ * as {@link #write(ByteBuffer)} returns. They go back to the pool once written. Only one channel write is in flight at a
+ * time and it gathers up to {@link #MAX_GATHER} queued frames. A single
+ * completion handler instance resubmits until the queue is empty, so there is
+ * no future chain per partial write.
+ *
+ * It never waits: it's called by the thread receiving from the websocket, and a
+ * target that doesn't read must not stall the other sockets of the session.
+ * With flow control the peer can't send more than a window anyway. Without it,
+ * a socket that goes over its limit is closed.
+ */
+class TcpWriteQueue {
+
+	private static final int MAX_GATHER = 16;
+
+	private final Supplier<AsynchronousSocketChannel> channel;
+	private final BufferPool.Tracker buffers;
+	private final Consumer<Throwable> onError;
+	private final LongConsumer onWritten;
+	/**
+	 * Over this amount of queued bytes the queue fails. With flow control it's
+	 * just a safety net, the peer can't have more than a window in flight.
+	 */
+	private final long maxPendingBytes;
+
+	/** Use with this monitor */
+	private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+	/** Use with this monitor */
+	private long pendingBytes = 0;
+	/** Use with this monitor. A channel write is in flight */
+	private boolean writing = false;
+	/** Use with this monitor */
+	private boolean closed = false;
+
+	/** Only touched by the thread owning the in flight write */
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	private final CompletionHandler<Long, Void> handler = new CompletionHandler<Long, Void>() {
+		@Override
+		public void completed(Long result, Void attachment) {
+			synchronized (TcpWriteQueue.this) {
+				if (!closed) {
+					pendingBytes -= result;
+				}
+			}
+			onWritten.accept(result);
+			writeNext();
+		}
+
+		@Override
+		public void failed(Throwable exc, Void attachment) {
+			boolean wasClosed;
+			synchronized (TcpWriteQueue.this) {
+				wasClosed = closed;
+				writing = false;
+				discard();
+			}
+			if (!wasClosed) {
+				onError.accept(exc);
+			}
+		}
+	};
+
+	/**
+	 * @param onError called once if a write fails while the queue is open. The
+	 *                exception is {@link AsynchronousCloseException} if the
+	 *                channel was closed by someone else, {@link IOException} if
+	 *                more than maxPendingBytes are queued.
+	 * @param onWritten called with the number of bytes that reached the channel
+	 */
+	TcpWriteQueue(Supplier<AsynchronousSocketChannel> channel, BufferPool.Tracker buffers, Consumer<Throwable> onError,
+			LongConsumer onWritten, long maxPendingBytes) {
+		this.channel = channel;
+		this.buffers = buffers;
+		this.onError = onError;
+		this.onWritten = onWritten;
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * Queue the remaining bytes of data. It consumes the buffer. It doesn't wait.
+	 */
+	void write(ByteBuffer data) {
+		boolean start = false;
+		long overflow = 0;
+		while (data.hasRemaining()) {
+			ByteBuffer copy = buffers.acquire(Math.min(data.remaining(), BufferPool.MAX_SIZE));
+			int limit = data.limit();
+			data.limit(data.position() + Math.min(data.remaining(), copy.remaining()));
+			copy.put(data).flip();
+			data.limit(limit);
+			synchronized (this) {
+				if (closed) {
+					buffers.release(copy);
+					return;
+				}
+				queue.add(copy);
+				pendingBytes += copy.remaining();
+				start |= !writing;
+				writing = true;
+			}
+		}
+		synchronized (this) {
+			if (!closed && pendingBytes > maxPendingBytes) {
+				overflow = pendingBytes;
+				if (start) {
+					writing = false; // Not submitted, nothing in flight
+				}
+				discard();
+			}
+		}
+		if (overflow > 0) {
+			onError.accept(new IOException("Target not reading, " + overflow + " bytes queued"));
+		} else if (start) {
+			writeNext();
+		}
+	}
+
+	/**
+	 * The channel is set, write what came before it.
+	 */
+	void channelReady() {
+		synchronized (this) {
+			if (writing || closed || queue.isEmpty()) {
+				return;
+			}
+			writing = true;
+		}
+		writeNext();
+	}
+
+	private void writeNext() {
+		int n = 0;
+		AsynchronousSocketChannel ch;
+		synchronized (this) {
+			ch = channel.get(); // In here, so channelReady() can't be missed
+			while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+				buffers.release(queue.poll());
+			}
+			if (closed || queue.isEmpty()) {
+				writing = false;
+				releaseQueued();
+				return;
+			}
+			if (ch == null) { // Not connected yet, channelReady() goes on
+				writing = false;
+				return;
+			}
+			for (ByteBuffer b : queue) {
+				gather[n++] = b;
+				if (n == MAX_GATHER) {
+					break;
+				}
+			}
+		}
+		try {
+			ch.write(gather, 0, n, 0L, TimeUnit.MILLISECONDS, null, handler);
+		} catch (RuntimeException e) {
+			handler.failed(e, null);
+		}
+	}
+
+	synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * Drop anything pending. Later writes are ignored and a failure of the in
+	 * flight write is not reported.
+	 */
+	synchronized void close() {
+		discard();
+	}
+
+	/**
+	 * Use with this monitor. The buffers of a write in flight are released when
+	 * it ends.
+	 */
+	private void discard() {
+		closed = true;
+		if (!writing) {
+			releaseQueued();
+		}
+		pendingBytes = 0;
+	}
+
+	/** Use with this monitor */
+	private void releaseQueued() {
+		ByteBuffer b;
+		while ((b = queue.poll()) != null) {
+			buffers.release(b);
+		}
+	}
+}
@@ -12,8 +12,17 @@ public interface TunnelConnection {
 	static final byte MESSAGE_SOCKET_DATA = 2;
 	static final byte MESSAGE_SOCKET_CLOSE = 3;
 	static final byte MESSAGE_PUBLIC_KEY = 4;
+	/**
+	 * Flow control credit (int bytes). Only if negotiated. See {@link FlowControl}
+	 */
+	static final byte MESSAGE_SOCKET_CREDIT = 5;
+	/**
+	 * Like {@link #MESSAGE_SOCKET_DATA} with the data deflated, continuing the
+	 * deflate stream of the socket. Only if negotiated. See {@link FrameCompressor}
+	 */
+	static final byte MESSAGE_SOCKET_DATA_DEFLATE = 6;
 	
-	public static final Set<Byte> supportedMessages = new HashSet<>(Arrays.asList(MESSAGE_SOCKET_DATA, MESSAGE_SOCKET_CLOSE));
+	public static final Set<Byte> supportedMessages = new HashSet<>(Arrays.asList(MESSAGE_SOCKET_DATA, MESSAGE_SOCKET_CLOSE, MESSAGE_SOCKET_CREDIT, MESSAGE_SOCKET_DATA_DEFLATE));
 
 	long getSocketId();
 
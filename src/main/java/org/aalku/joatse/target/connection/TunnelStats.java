@@ -0,0 +1,132 @@
+package org.aalku.joatse.target.connection;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of all the sockets of a tunnel type: data each way, sockets opened
+ * and closed, and why they failed. Updated live from every socket, so they are
+ * adders.
+ */
+public final class TunnelStats {
+
+	private final String tunnelType;
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder framesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder framesReceived = new LongAdder();
+	private final LongAdder opened = new LongAdder();
+	private final LongAdder closed = new LongAdder();
+	/** Sockets that connected to their target, by address family */
+	private final LongAdder connectedIpv4 = new LongAdder();
+	private final LongAdder connectedIpv6 = new LongAdder();
+	/** By exception class */
+	private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+	public TunnelStats(String tunnelType) {
+		this.tunnelType = tunnelType;
+	}
+
+	void sent(int bytes) {
+		bytesSent.add(bytes);
+		framesSent.increment();
+	}
+
+	void received(int bytes) {
+		bytesReceived.add(bytes);
+		framesReceived.increment();
+	}
+
+	void opened() {
+		opened.increment();
+	}
+
+	void targetConnected(InetAddress address) {
+		(address instanceof Inet6Address ? connectedIpv6 : connectedIpv4).increment();
+	}
+
+	/**
+	 * @param error why, or null if it was a normal close
+	 */
+	void closed(Throwable error) {
+		closed.increment();
+		if (error != null) {
+			errors.computeIfAbsent(error.getClass().getSimpleName(), k -> new LongAdder()).increment();
+		}
+	}
+
+	public String getTunnelType() {
+		return tunnelType;
+	}
+
+	/**
+	 * Data sent to the cloud, as it goes in the frames (ciphered, not compressed)
+	 */
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getFramesSent() {
+		return framesSent.sum();
+	}
+
+	/**
+	 * Data received from the cloud, as it came in the frames
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getFramesReceived() {
+		return framesReceived.sum();
+	}
+
+	public long getOpened() {
+		return opened.sum();
+	}
+
+	public long getClosed() {
+		return closed.sum();
+	}
+
+	/**
+	 * Connections to the target that went over IPv4, with several addresses
+	 * that's the one that won the race
+	 */
+	public long getConnectedIpv4() {
+		return connectedIpv4.sum();
+	}
+
+	public long getConnectedIpv6() {
+		return connectedIpv6.sum();
+	}
+
+	/**
+	 * Sockets closed because of an error, by exception class
+	 */
+	public Map<String, Long> getErrors() {
+		Map<String, Long> res = new TreeMap<>();
+		errors.forEach((k, v) -> res.put(k, v.sum()));
+		return res;
+	}
+
+	public long getErrorCount() {
+		long n = 0;
+		for (LongAdder a : errors.values()) {
+			n += a.sum();
+		}
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: sent=%d/%df, received=%d/%df, opened=%d, closed=%d, ipv4=%d, ipv6=%d, errors=%s",
+				tunnelType, getBytesSent(), getFramesSent(), getBytesReceived(), getFramesReceived(), getOpened(),
+				getClosed(), getConnectedIpv4(), getConnectedIpv6(), getErrors());
+	}
+
+}
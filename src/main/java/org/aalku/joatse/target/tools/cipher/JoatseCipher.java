@@ -12,10 +12,14 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.MGF1ParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -23,7 +27,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyAgreement;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.OAEPParameterSpec;
 import javax.crypto.spec.PSource;
@@ -94,9 +98,9 @@ public abstract class JoatseCipher {
 			Cipher c = Cipher.getInstance(KEY_EXCHANGE_ALGORITHM);
 			c.init(javax.crypto.Cipher.DECRYPT_MODE, myRSAKeyPair.getPrivate(), oaepParams);
 			// log.info("cipheredKey: {}", HexUtils.toHexString(cipheredKey));
-			byte[] secretKey = c.doFinal(cipheredKey);
+			byte[] sessionKey = c.doFinal(cipheredKey);
 			// log.info("secretKey: {}", HexUtils.toHexString(secretKey));
-			return new Paired(new SecretKeySpec(secretKey, CIPHER_ALGORITHM.split("/", 2)[0]));
+			return Paired.forSessionKey(sessionKey);
 		}
 
 	}
@@ -154,49 +158,221 @@ public abstract class JoatseCipher {
 	private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
 	private static final int CIPHER_KEY_SIZE = 128;
 
+	/**
+	 * How the session key is used. The peer picks one of the ones we list in the
+	 * CONNECTION request and tells us with the session key, see
+	 * {@link Paired#forSessionKey(byte[])}.
+	 */
+	public enum Mode {
+		/**
+		 * AES/CBC/PKCS5Padding, a random IV per message sent before it: [ivLen][iv][ciphertext]
+		 */
+		CBC("aes-cbc", 1, "AES/CBC/PKCS5Padding"),
+		/**
+		 * AES/GCM/NoPadding: [ciphertext][16 byte tag]. The 12 byte nonce is not
+		 * sent, it's the direction (4 bytes, 1 from us, 2 to us) and the count of
+		 * messages sent in that direction (8 bytes) so a message replayed, dropped
+		 * or out of order fails. Authenticated, no padding.
+		 */
+		GCM("aes-gcm", 2, "AES/GCM/NoPadding");
+
+		private final String wireName;
+		private final byte id;
+		private final String transformation;
+
+		Mode(String wireName, int id, String transformation) {
+			this.wireName = wireName;
+			this.id = (byte) id;
+			this.transformation = transformation;
+		}
+
+		public String getWireName() {
+			return wireName;
+		}
+	}
+
+	/**
+	 * Cipher instances are expensive to get (provider lookup, key schedule
+	 * tables) and sockets come and go, so they are kept for the next one.
+	 */
+	private static final class CipherPool {
+		private static final int MAX_IDLE = 256;
+
+		private static final Map<String, Queue<Cipher>> idle = new ConcurrentHashMap<>();
+		private static final Map<String, AtomicInteger> idleCount = new ConcurrentHashMap<>();
+
+		static Cipher acquire(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+			Cipher c = idle.computeIfAbsent(transformation, k -> new ConcurrentLinkedQueue<>()).poll();
+			if (c == null) {
+				return Cipher.getInstance(transformation);
+			}
+			idleCount.get(transformation).decrementAndGet();
+			return c;
+		}
+
+		static void release(String transformation, Cipher c) {
+			AtomicInteger n = idleCount.computeIfAbsent(transformation, k -> new AtomicInteger());
+			if (n.incrementAndGet() > MAX_IDLE) {
+				n.decrementAndGet();
+				return;
+			}
+			idle.computeIfAbsent(transformation, k -> new ConcurrentLinkedQueue<>()).add(c);
+		}
+	}
+
 	public static class Paired {
-		private javax.crypto.Cipher cipherC;
-		private javax.crypto.Cipher cipherD;
-		private SecretKey secret;
+		private static final int GCM_TAG_BITS = 128;
+		private static final int GCM_NONCE_SIZE = 12;
+		private static final int DIRECTION_FROM_TARGET = 1;
+		private static final int DIRECTION_TO_TARGET = 2;
+
+		private final Mode mode;
+		private final javax.crypto.Cipher cipherC;
+		private final javax.crypto.Cipher cipherD;
+		private final SecretKey secret;
+		/** GCM nonces. Use with the cipher. */
+		private final byte[] nonceC = new byte[GCM_NONCE_SIZE];
+		private final byte[] nonceD = new byte[GCM_NONCE_SIZE];
+		private long counterC = 0;
+		private long counterD = 0;
+		/** Ciphers given back. Use with both. */
+		private boolean closed = false;
+
 		public Paired(SecretKey secret) {
+			this(secret, Mode.CBC, false);
+		}
+
+		/**
+		 * @param reverse the other end: it sends what we receive
+		 */
+		private Paired(SecretKey secret, Mode mode, boolean reverse) {
+			this.mode = mode;
 			this.secret = secret;
+			ByteBuffer.wrap(nonceC).putInt(reverse ? DIRECTION_TO_TARGET : DIRECTION_FROM_TARGET);
+			ByteBuffer.wrap(nonceD).putInt(reverse ? DIRECTION_FROM_TARGET : DIRECTION_TO_TARGET);
 			try {
-				this.cipherC = javax.crypto.Cipher.getInstance(CIPHER_ALGORITHM);
-				this.cipherD = javax.crypto.Cipher.getInstance(CIPHER_ALGORITHM);
+				this.cipherC = CipherPool.acquire(mode.transformation);
+				this.cipherD = CipherPool.acquire(mode.transformation);
 			} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
 				throw new CipherException(e);
 			}
 		}
+
+		/**
+		 * The session key as the peer sends it: the bare AES key for CBC (old
+		 * peers), or [mode id][AES key].
+		 */
+		public static Paired forSessionKey(byte[] sessionKey) {
+			int len = sessionKey.length;
+			if (len == 16 || len == 24 || len == 32) {
+				return new Paired(aesKey(sessionKey, 0, len), Mode.CBC, false);
+			}
+			for (Mode m : Mode.values()) {
+				if (m.id == sessionKey[0]) {
+					return new Paired(aesKey(sessionKey, 1, len - 1), m, false);
+				}
+			}
+			throw new IllegalArgumentException("Unsupported cipher mode: " + sessionKey[0]);
+		}
+
+		private static SecretKey aesKey(byte[] key, int offset, int len) {
+			return new SecretKeySpec(key, offset, len, "AES");
+		}
+
+		public Mode getMode() {
+			return mode;
+		}
+
+		/**
+		 * The other end of this, with the same key. For tests.
+		 */
+		public Paired reverse() {
+			return new Paired(secret, mode, true);
+		}
+
+		/**
+		 * Max bytes {@link #cipher(ByteBuffer, ByteBuffer)} adds
+		 */
+		public int getMaxOverhead() {
+			return mode == Mode.GCM ? GCM_TAG_BITS / 8 : 1 + 16 + 16;
+		}
+
+		/**
+		 * Gives the cipher instances back to the pool. It can't be used after this.
+		 */
+		public void close() {
+			synchronized (cipherC) {
+				synchronized (cipherD) {
+					if (closed) {
+						return;
+					}
+					closed = true;
+				}
+			}
+			CipherPool.release(mode.transformation, cipherC);
+			CipherPool.release(mode.transformation, cipherD);
+		}
+
+		/**
+		 * Ciphers in (position to limit) into out, in one go. With GCM out can be a
+		 * view of the same memory starting at the same position (in place).
+		 */
 		public void cipher(ByteBuffer in, ByteBuffer out) {
 			synchronized (cipherC) {
+				checkOpen();
 				try {
-					cipherC.init(javax.crypto.Cipher.ENCRYPT_MODE, secret);
-					ByteBuffer temp = ByteBuffer.allocate(out.capacity());
-					cipherC.doFinal(in, temp);
-					byte[] iv = cipherC.getParameters().getParameterSpec(IvParameterSpec.class).getIV();
-					out.put((byte) iv.length);
-					out.put(iv);
-					temp.flip();
-					out.put(temp);
-				} catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | ShortBufferException | InvalidParameterSpecException e ) {
+					if (mode == Mode.GCM) {
+						cipherC.init(javax.crypto.Cipher.ENCRYPT_MODE, secret, nextNonce(nonceC, counterC++));
+					} else {
+						cipherC.init(javax.crypto.Cipher.ENCRYPT_MODE, secret);
+						byte[] iv = cipherC.getIV();
+						out.put((byte) iv.length);
+						out.put(iv);
+					}
+					cipherC.doFinal(in, out);
+				} catch (GeneralSecurityException e) {
 					throw new CipherException(e);
 				}
 			}
 		}
 		
+		/**
+		 * Deciphers in (position to limit) into out.
+		 * 
+		 * @throws CipherException if it's wrong. With GCM also if it was tampered
+		 *                         with or it's not the next message.
+		 */
 		public void decipher(ByteBuffer in, ByteBuffer out) {
 			synchronized (cipherD) {
+				checkOpen();
 				try {
-					int ivLen = in.get() & 0xFF;
-					byte[] iv = new byte[ivLen];
-					in.get(iv);
-					cipherD.init(javax.crypto.Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
+					if (mode == Mode.GCM) {
+						cipherD.init(javax.crypto.Cipher.DECRYPT_MODE, secret, nextNonce(nonceD, counterD++));
+					} else {
+						int ivLen = in.get() & 0xFF;
+						byte[] iv = new byte[ivLen];
+						in.get(iv);
+						cipherD.init(javax.crypto.Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
+					}
 					cipherD.doFinal(in, out);
-				} catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | ShortBufferException | InvalidAlgorithmParameterException e ) {
+				} catch (GeneralSecurityException e) {
 					throw new CipherException(e);
 				}
 			}
 		}
+
+		private void checkOpen() {
+			if (closed) {
+				throw new IllegalStateException("Cipher closed");
+			}
+		}
+
+		private static GCMParameterSpec nextNonce(byte[] nonce, long counter) {
+			for (int i = 0; i < 8; i++) {
+				nonce[GCM_NONCE_SIZE - 1 - i] = (byte) (counter >>> (8 * i));
+			}
+			return new GCMParameterSpec(GCM_TAG_BITS, nonce);
+		}
 	}
 
 	public static KeyExchange forDHKeyExchange() throws NoSuchAlgorithmException {
@@ -208,6 +384,10 @@ public abstract class JoatseCipher {
 		return new Paired(secret);
 	}
 
+	public static Paired forPredefinedSecret(byte[] key, Mode mode) {
+		return new Paired(new SecretKeySpec(key, "AES"), mode, false);
+	}
+
 	public static KeyExchange forRSAKeyExchange() throws NoSuchAlgorithmException {
 		return new RSAKeyExchange();
 	}
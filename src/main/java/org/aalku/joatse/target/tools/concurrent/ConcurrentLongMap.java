@@ -0,0 +1,321 @@
+package org.aalku.joatse.target.tools.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent map keyed by primitive long, so lookups don't box the key.
+ *
+ * The key space is split in stripes, each one an open addressing table (linear
+ * probing, backward shift deletion) guarded by its own {@link StampedLock}.
+ * Reads are optimistic and only fall back to a read lock if a writer touched
+ * the same stripe meanwhile, so dispatch never blocks on add/remove of other
+ * keys. Null values are not allowed.
+ */
+public class ConcurrentLongMap<V> {
+
+	private static final int DEFAULT_STRIPES = 16;
+	private static final int INITIAL_STRIPE_CAPACITY = 8;
+
+	private static final class Table {
+		final long[] keys;
+		final Object[] values;
+		final int mask;
+
+		Table(int capacity) {
+			this.keys = new long[capacity];
+			this.values = new Object[capacity];
+			this.mask = capacity - 1;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class Stripe extends StampedLock {
+		/** Replaced (never mutated in size) on resize. Written with write lock */
+		private Table table = new Table(INITIAL_STRIPE_CAPACITY);
+		/** Use with lock */
+		private int size = 0;
+
+		private Object find(long key, long hash) {
+			Table t = this.table;
+			int mask = t.mask;
+			// Bounded so a torn optimistic read can't spin forever
+			for (int i = (int) hash & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+				Object v = t.values[i];
+				if (v == null) {
+					return null;
+				} else if (t.keys[i] == key) {
+					return v;
+				}
+			}
+			return null;
+		}
+
+		/** Use with write lock */
+		private int indexOf(long key, long hash) {
+			Table t = this.table;
+			int mask = t.mask;
+			for (int i = (int) hash & mask;; i = (i + 1) & mask) {
+				if (t.values[i] == null) {
+					return -1 - i; // Where it would go
+				} else if (t.keys[i] == key) {
+					return i;
+				}
+			}
+		}
+
+		/** Use with write lock */
+		private Object put(long key, long hash, Object value, boolean onlyIfAbsent) {
+			int i = indexOf(key, hash);
+			if (i >= 0) {
+				Object old = table.values[i];
+				if (!onlyIfAbsent) {
+					table.values[i] = value;
+				}
+				return old;
+			}
+			if ((size + 1) * 2 > table.values.length) {
+				resize(table.values.length * 2);
+				i = indexOf(key, hash);
+			}
+			i = -1 - i;
+			table.keys[i] = key;
+			table.values[i] = value;
+			size++;
+			return null;
+		}
+
+		/** Use with write lock */
+		private void resize(int capacity) {
+			Table old = this.table;
+			Table t = new Table(capacity);
+			for (int j = 0; j < old.values.length; j++) {
+				Object v = old.values[j];
+				if (v != null) {
+					long k = old.keys[j];
+					int i = (int) mix(k) & t.mask;
+					while (t.values[i] != null) {
+						i = (i + 1) & t.mask;
+					}
+					t.keys[i] = k;
+					t.values[i] = v;
+				}
+			}
+			this.table = t;
+		}
+
+		/** Use with write lock */
+		private void removeAt(int i) {
+			Table t = this.table;
+			int mask = t.mask;
+			t.values[i] = null;
+			size--;
+			// Backward shift so no tombstones are needed
+			for (int j = (i + 1) & mask; t.values[j] != null; j = (j + 1) & mask) {
+				int ideal = (int) mix(t.keys[j]) & mask;
+				boolean stays = i <= j ? (i < ideal && ideal <= j) : (i < ideal || ideal <= j);
+				if (!stays) {
+					t.keys[i] = t.keys[j];
+					t.values[i] = t.values[j];
+					t.values[j] = null;
+					i = j;
+				}
+			}
+		}
+	}
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+
+	public ConcurrentLongMap() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param concurrency expected number of concurrent writers. Rounded up to a
+	 *                    power of two.
+	 */
+	public ConcurrentLongMap(int concurrency) {
+		int n = 1;
+		while (n < concurrency) {
+			n <<= 1;
+		}
+		this.stripes = new Stripe[n];
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new Stripe();
+		}
+		this.stripeMask = n - 1;
+	}
+
+	/**
+	 * MurmurHash3 finalizer. Socket ids are random-ish but we don't trust them to
+	 * be.
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private Stripe stripeFor(long hash) {
+		return stripes[(int) (hash >>> 40) & stripeMask];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		long hash = mix(key);
+		Stripe s = stripeFor(hash);
+		long stamp = s.tryOptimisticRead();
+		Object v = s.find(key, hash);
+		if (!s.validate(stamp)) {
+			stamp = s.readLock();
+			try {
+				v = s.find(key, hash);
+			} finally {
+				s.unlockRead(stamp);
+			}
+		}
+		return (V) v;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return the previous value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		return (V) doPut(key, value, false);
+	}
+
+	/**
+	 * @return the current value if there was one (and nothing was changed) or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(long key, V value) {
+		return (V) doPut(key, value, true);
+	}
+
+	private Object doPut(long key, V value, boolean onlyIfAbsent) {
+		if (value == null) {
+			throw new NullPointerException("Null values are not supported");
+		}
+		long hash = mix(key);
+		Stripe s = stripeFor(hash);
+		long stamp = s.writeLock();
+		try {
+			return s.put(key, hash, value, onlyIfAbsent);
+		} finally {
+			s.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the removed value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		long hash = mix(key);
+		Stripe s = stripeFor(hash);
+		long stamp = s.writeLock();
+		try {
+			int i = s.indexOf(key, hash);
+			if (i < 0) {
+				return null;
+			}
+			Object old = s.table.values[i];
+			s.removeAt(i);
+			return (V) old;
+		} finally {
+			s.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the entry only if it's currently mapped to that very value
+	 * (identity).
+	 */
+	public boolean remove(long key, V value) {
+		long hash = mix(key);
+		Stripe s = stripeFor(hash);
+		long stamp = s.writeLock();
+		try {
+			int i = s.indexOf(key, hash);
+			if (i < 0 || s.table.values[i] != value) {
+				return false;
+			}
+			s.removeAt(i);
+			return true;
+		} finally {
+			s.unlockWrite(stamp);
+		}
+	}
+
+	public int size() {
+		int n = 0;
+		for (Stripe s : stripes) {
+			long stamp = s.readLock();
+			try {
+				n += s.size;
+			} finally {
+				s.unlockRead(stamp);
+			}
+		}
+		return n;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Weakly consistent: each stripe is consistent but the whole isn't a snapshot.
+	 *
+	 * @return a copy of the values, so the caller can mutate the map while
+	 *         iterating them
+	 */
+	public List<V> values() {
+		List<V> res = new ArrayList<>();
+		forEach(res::add);
+		return res;
+	}
+
+	/**
+	 * The action is called with the stripe read lock held so it must not modify
+	 * this map. Use {@link #values()} for that.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Consumer<? super V> action) {
+		for (Stripe s : stripes) {
+			long stamp = s.readLock();
+			try {
+				for (Object v : s.table.values) {
+					if (v != null) {
+						action.accept((V) v);
+					}
+				}
+			} finally {
+				s.unlockRead(stamp);
+			}
+		}
+	}
+
+	public void clear() {
+		for (Stripe s : stripes) {
+			long stamp = s.writeLock();
+			try {
+				s.table = new Table(INITIAL_STRIPE_CAPACITY);
+				s.size = 0;
+			} finally {
+				s.unlockWrite(stamp);
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.aalku.joatse.target.tools.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for loops that spend their life blocked in Java code: parked,
+ * sleeping, waiting for a future or in JDK socket I/O.
+ *
+ * On Java 21+ they are virtual threads, unless -Djoatse.virtualThreads=false.
+ * Thread.ofVirtual() is looked up when the class loads, so it doesn't matter
+ * which JDK built the jar. Code that blocks in native calls (pty4j reads
+ * through JNA) would hold a carrier thread, so it must not use this.
+ */
+public final class Threads {
+
+	/** Thread.ofVirtual(), or null if platform threads */
+	private static final Method OF_VIRTUAL;
+	/** Thread.Builder methods */
+	private static final Method NAME, NAME_COUNTER, UNSTARTED, FACTORY;
+	static {
+		Method ofVirtual = null, name = null, nameCounter = null, unstarted = null, factory = null;
+		if (!"false".equals(System.getProperty("joatse.virtualThreads"))) {
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				name = builder.getMethod("name", String.class);
+				nameCounter = builder.getMethod("name", String.class, long.class);
+				unstarted = builder.getMethod("unstarted", Runnable.class);
+				factory = builder.getMethod("factory");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+			} catch (ClassNotFoundException | NoSuchMethodException e) {
+				ofVirtual = null; // Before Java 21
+			}
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		NAME_COUNTER = nameCounter;
+		UNSTARTED = unstarted;
+		FACTORY = factory;
+	}
+
+	private Threads() {
+	}
+
+	/**
+	 * @return a new unstarted thread
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		if (OF_VIRTUAL == null) {
+			return new Thread(task, name);
+		}
+		return (Thread) invoke(UNSTARTED, invoke(NAME, invoke(OF_VIRTUAL, null), name), task);
+	}
+
+	/**
+	 * For executors. Threads are named name_0, name_1...
+	 */
+	public static ThreadFactory factory(String name) {
+		if (OF_VIRTUAL == null) {
+			AtomicInteger n = new AtomicInteger();
+			return task -> newThread(name + "_" + n.getAndIncrement(), task);
+		}
+		return (ThreadFactory) invoke(FACTORY, invoke(NAME_COUNTER, invoke(OF_VIRTUAL, null), name + "_", 0L));
+	}
+
+	/**
+	 * If {@link #newThread(String, Runnable)} makes virtual threads
+	 */
+	public static boolean isVirtual() {
+		return OF_VIRTUAL != null;
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,244 @@
+package org.aalku.joatse.target.tools.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed wheel timer: one thread for the timeouts of all the connections
+ * (SOCKS5 handshakes, TCP connects, heartbeats...). Most of them are cancelled
+ * long before they expire, so scheduling and cancelling are O(1) and don't
+ * wake the thread. Expiration is rounded up to the tick.
+ *
+ * Tasks run on the timer thread: they must be short and not block. The thread
+ * parks while there is nothing scheduled.
+ */
+public final class TimerWheel {
+
+	private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+
+	public static final long DEFAULT_TICK_MILLIS = 20;
+	private static final int DEFAULT_WHEEL_SIZE = 256;
+
+	private static final TimerWheel SHARED = new TimerWheel("timer_wheel", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * A scheduled task
+	 */
+	public static final class Timeout {
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "state");
+
+		private final TimerWheel wheel;
+		private final Runnable task;
+		/** Since the wheel started */
+		private final long deadline;
+		private volatile int state = PENDING;
+
+		/* Only for the timer thread */
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false if it already ran or was cancelled
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+				return false;
+			}
+			wheel.cancelled.add(this); // Taken out of its bucket on the next tick
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+	}
+
+	/**
+	 * Doubly linked, so a cancelled timeout is removed in O(1). Only for the
+	 * timer thread.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			if (head == null) {
+				head = tail = t;
+			} else {
+				tail.next = t;
+				t.prev = tail;
+				tail = t;
+			}
+		}
+
+		Timeout remove(Timeout t) {
+			Timeout next = t.next;
+			if (t.prev != null) {
+				t.prev.next = next;
+			}
+			if (t.next != null) {
+				t.next.prev = t.prev;
+			}
+			if (t == head) {
+				head = next;
+			}
+			if (t == tail) {
+				tail = t.prev;
+			}
+			t.prev = t.next = null;
+			t.bucket = null;
+			return next;
+		}
+	}
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private final AtomicLong pending = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean idle = false;
+
+	/**
+	 * @param wheelSize buckets, a power of two. A round of the wheel is
+	 *                  tickMillis * wheelSize.
+	 */
+	public TimerWheel(String name, long tickMillis, int wheelSize) {
+		if (Integer.bitCount(wheelSize) != 1) {
+			throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.wheel = new Bucket[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = wheelSize - 1;
+		this.thread = Threads.newThread(name, this::run);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public static TimerWheel shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Run the task once after the delay, on the timer thread
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout t = new Timeout(this, task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+		added.add(t);
+		pending.incrementAndGet();
+		if (idle) {
+			LockSupport.unpark(thread);
+		}
+		return t;
+	}
+
+	/**
+	 * Scheduled and not yet run nor taken out after being cancelled
+	 */
+	public long getPending() {
+		return pending.get();
+	}
+
+	private void run() {
+		long tick = 0;
+		while (true) {
+			if (pending.get() == 0) {
+				idle = true;
+				if (pending.get() == 0) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				// Nothing was in the wheel, skip the ticks we slept
+				tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+			}
+			long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+			if (sleep > 0) {
+				LockSupport.parkNanos(this, sleep);
+				if (System.nanoTime() - startTime < (tick + 1) * tickNanos) {
+					continue; // Early, maybe woken by schedule()
+				}
+			}
+			removeCancelled();
+			transferAdded(tick);
+			expire(wheel[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout t;
+		while ((t = cancelled.poll()) != null) {
+			if (t.bucket != null) {
+				t.bucket.remove(t);
+				pending.decrementAndGet();
+			}
+			// Else still in added, transferAdded() drops it
+		}
+	}
+
+	private void transferAdded(long tick) {
+		Timeout t;
+		while ((t = added.poll()) != null) {
+			if (t.state != PENDING) {
+				pending.decrementAndGet();
+				continue;
+			}
+			long ticks = (t.deadline + tickNanos - 1) / tickNanos; // Never early
+			long index = Math.max(ticks, tick);
+			t.remainingRounds = (index - tick) / wheel.length;
+			wheel[(int) (index & mask)].add(t);
+		}
+	}
+
+	private void expire(Bucket bucket) {
+		Timeout t = bucket.head;
+		while (t != null) {
+			if (t.remainingRounds > 0) {
+				t.remainingRounds--;
+				t = t.next;
+				continue;
+			}
+			Timeout next = bucket.remove(t);
+			pending.decrementAndGet();
+			if (Timeout.STATE.compareAndSet(t, PENDING, EXPIRED)) {
+				try {
+					t.task.run();
+				} catch (Throwable e) {
+					log.warn("Exception running timer task: {}", e, e);
+				}
+			}
+			t = next;
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/**
+ * The targets a SOCKS5 tunnel can connect to, as "host:port" where both can be
+ * globs and the port is optional. Parsed once, then checked for every
+ * connection.
+ *
+ * A target matches an allowed address if the port matches and the host
+ * matches the glob, or, when the allowed host is not a glob, if it resolves to
+ * one of the addresses of the target. Resolution goes through a
+ * {@link DnsCache} and only happens if no glob matched.
+ */
+public class AddressAllowlist {
+
+	private static final class Allowed {
+		private final String host;
+		/** Null for any host */
+		private final Pattern hostPattern;
+		private final boolean glob;
+		/** Null for any port */
+		private final Integer port;
+
+		Allowed(String allowedAddress) {
+			// TODO IPv6 support
+			String[] split = allowedAddress.split(":", 2);
+			host = split[0];
+			port = split.length > 1 ? split[1].equals("*") ? null : Integer.parseInt(split[1]) : null;
+			hostPattern = host.equals("*") ? null : IOTools.globToRegex(host, false);
+			glob = host.contains("*");
+		}
+
+		boolean portMatches(int targetPort) {
+			return port == null || port == targetPort;
+		}
+
+		boolean hostMatches(String targetHost) {
+			return hostPattern == null || hostPattern.matcher(targetHost).matches();
+		}
+	}
+
+	private final List<Allowed> allowed = new ArrayList<>();
+
+	private final DnsCache dns;
+
+	public AddressAllowlist(Collection<String> allowedAddresses, DnsCache dns) {
+		for (String a : allowedAddresses) {
+			allowed.add(new Allowed(a));
+		}
+		this.dns = dns;
+	}
+
+	/**
+	 * Completes on this thread unless it has to resolve something that is not in
+	 * the cache.
+	 */
+	public CompletableFuture<Boolean> isAllowed(InetSocketAddress target) {
+		String targetHost = target.getHostString();
+		List<Allowed> toResolve = new ArrayList<>(0);
+		for (Allowed a : allowed) {
+			if (!a.portMatches(target.getPort())) {
+				continue;
+			}
+			if (a.hostMatches(targetHost)) {
+				return CompletableFuture.completedFuture(true);
+			}
+			if (!a.glob) {
+				toResolve.add(a);
+			}
+		}
+		if (toResolve.isEmpty()) {
+			return CompletableFuture.completedFuture(false);
+		}
+		CompletableFuture<InetAddress[]> targetAddresses = target.isUnresolved() ? dns.resolve(targetHost)
+				: CompletableFuture.completedFuture(new InetAddress[] { target.getAddress() });
+		return targetAddresses.thenCompose(t -> anyResolvesTo(toResolve, 0, Arrays.asList(t)));
+	}
+
+	private CompletableFuture<Boolean> anyResolvesTo(List<Allowed> toResolve, int index, List<InetAddress> target) {
+		if (target.isEmpty() || index == toResolve.size()) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return dns.resolve(toResolve.get(index).host).thenCompose(addresses -> {
+			for (InetAddress a : addresses) {
+				if (target.contains(a)) {
+					return CompletableFuture.completedFuture(true);
+				}
+			}
+			return anyResolvesTo(toResolve, index + 1, target);
+		});
+	}
+
+}
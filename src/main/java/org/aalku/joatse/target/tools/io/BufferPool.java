@@ -0,0 +1,280 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Direct buffers shared by all the connections, in power of two size classes
+ * from {@link #MIN_SIZE} to {@link #MAX_SIZE}.
+ *
+ * Buffers are borrowed through a {@link Tracker}, one per owner (connection),
+ * that knows what the owner still holds. A tracker that is garbage collected
+ * while holding buffers is reported as a leak and its buffers are taken out of
+ * the accounting (the GC frees their memory).
+ *
+ * The direct memory held by the pool, lent or free, never goes over
+ * {@link #getMaxBytes()}. Free buffers are dropped to make room and if there is
+ * still no room {@link #acquire(int)} fails.
+ */
+public class BufferPool {
+
+	private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+	private static final int MIN_SHIFT = 9;
+	public static final int MIN_SIZE = 1 << MIN_SHIFT;
+	public static final int MAX_SIZE = 64 * 1024;
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+	private static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_BYTES);
+
+	/**
+	 * Free buffers by size class, LIFO so the hot ones are reused. Use each with
+	 * its monitor.
+	 */
+	private final ArrayDeque<ByteBuffer>[] free;
+
+	/** Direct memory of the pool, lent or free */
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong lentBytes = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	private volatile long maxBytes;
+
+	private final ReferenceQueue<Tracker> collected = new ReferenceQueue<>();
+	/** Keeps the references reachable until they are done */
+	private final Set<TrackerRef> trackers = ConcurrentHashMap.newKeySet();
+
+	public static BufferPool shared() {
+		return SHARED;
+	}
+
+	@SuppressWarnings("unchecked")
+	public BufferPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.free = new ArrayDeque[CLASSES];
+		for (int i = 0; i < CLASSES; i++) {
+			free[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * Accounting of a tracker. It must outlive it to report the leak.
+	 */
+	private static class TrackerRef extends WeakReference<Tracker> {
+		private final String name;
+		/** Use with the tracker monitor while it's alive */
+		private int count = 0;
+		/** Use with the tracker monitor while it's alive */
+		private long bytes = 0;
+
+		TrackerRef(Tracker tracker, String name, ReferenceQueue<Tracker> queue) {
+			super(tracker, queue);
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Buffers lent to one owner.
+	 */
+	public final class Tracker {
+
+		private final TrackerRef ref;
+		/** Use with this monitor */
+		private final IdentityHashMap<ByteBuffer, Boolean> lent = new IdentityHashMap<>();
+		/** Use with this monitor */
+		private boolean closed = false;
+
+		private Tracker(String name) {
+			this.ref = new TrackerRef(this, name, collected);
+			trackers.add(ref);
+		}
+
+		/**
+		 * @return a cleared buffer with at least that capacity. The limit is the
+		 *         capacity, which may be more than asked.
+		 * @throws IllegalStateException if the pool is full
+		 */
+		public ByteBuffer acquire(int capacity) {
+			ByteBuffer b = BufferPool.this.acquire(capacity);
+			synchronized (this) {
+				lent.put(b, Boolean.TRUE);
+				ref.count++;
+				ref.bytes += b.capacity();
+			}
+			return b;
+		}
+
+		/**
+		 * Give it back. It must not be used after this.
+		 */
+		public void release(ByteBuffer b) {
+			synchronized (this) {
+				if (lent.remove(b) == null) {
+					throw new IllegalArgumentException("Buffer not lent by this tracker: " + ref.name);
+				}
+				ref.count--;
+				ref.bytes -= b.capacity();
+				if (closed && ref.count == 0) {
+					trackers.remove(ref);
+				}
+			}
+			BufferPool.this.release(b);
+		}
+
+		/**
+		 * The owner is done. Buffers still lent can be released later, like the ones
+		 * of a send in flight.
+		 *
+		 * @return number of buffers still lent
+		 */
+		public int close() {
+			synchronized (this) {
+				closed = true;
+				if (ref.count == 0) {
+					trackers.remove(ref);
+				}
+				return ref.count;
+			}
+		}
+
+		public synchronized int getLentCount() {
+			return ref.count;
+		}
+
+		@Override
+		public String toString() {
+			return ref.name;
+		}
+	}
+
+	public Tracker tracker(String name) {
+		expungeLeaks();
+		return new Tracker(name);
+	}
+
+	static int sizeClass(int capacity) {
+		if (capacity <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+	}
+
+	private ByteBuffer acquire(int capacity) {
+		if (capacity > MAX_SIZE) {
+			throw new IllegalArgumentException("Buffer too big: " + capacity);
+		}
+		int c = sizeClass(capacity);
+		ByteBuffer b;
+		synchronized (free[c]) {
+			b = free[c].pollLast();
+		}
+		if (b == null) {
+			int size = MIN_SIZE << c;
+			reserve(size);
+			b = ByteBuffer.allocateDirect(size);
+		}
+		lentBytes.addAndGet(b.capacity());
+		b.clear();
+		return b;
+	}
+
+	private void release(ByteBuffer b) {
+		lentBytes.addAndGet(-b.capacity());
+		int c = sizeClass(b.capacity());
+		synchronized (free[c]) {
+			free[c].addLast(b);
+		}
+	}
+
+	private void reserve(int size) {
+		while (true) {
+			long allocated = allocatedBytes.get();
+			long over = allocated + size - maxBytes;
+			if (over > 0) {
+				if (expungeLeaks() || trim(over)) {
+					continue;
+				}
+				throw new IllegalStateException("Buffer pool is full: " + allocated + " bytes of " + maxBytes);
+			}
+			if (allocatedBytes.compareAndSet(allocated, allocated + size)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Drops free buffers for the GC, biggest first.
+	 *
+	 * @return true if anything was dropped
+	 */
+	private boolean trim(long bytes) {
+		long dropped = 0;
+		for (int c = CLASSES - 1; c >= 0 && dropped < bytes; c--) {
+			synchronized (free[c]) {
+				while (dropped < bytes && free[c].pollFirst() != null) {
+					dropped += MIN_SIZE << c;
+				}
+			}
+		}
+		allocatedBytes.addAndGet(-dropped);
+		return dropped > 0;
+	}
+
+	/**
+	 * @return true if a leak was found
+	 */
+	private boolean expungeLeaks() {
+		boolean found = false;
+		Reference<? extends Tracker> r;
+		while ((r = collected.poll()) != null) {
+			TrackerRef ref = (TrackerRef) r;
+			if (!trackers.remove(ref)) {
+				continue; // It was done
+			}
+			if (ref.count > 0) {
+				found = true;
+				leaks.incrementAndGet();
+				lentBytes.addAndGet(-ref.bytes);
+				allocatedBytes.addAndGet(-ref.bytes);
+				log.error("LEAK: {} buffers ({} bytes) of {} were never released", ref.count, ref.bytes, ref.name);
+			}
+		}
+		return found;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	public long getLentBytes() {
+		return lentBytes.get();
+	}
+
+	/**
+	 * Number of leaks found so far. Found when the GC collects the tracker.
+	 */
+	public long getLeakCount() {
+		expungeLeaks();
+		return leaks.get();
+	}
+
+}
@@ -0,0 +1,131 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the one of iSCSI and SCTP.
+ *
+ * On Java 9+ it's java.util.zip.CRC32C, which is an intrinsic. It's looked up
+ * when the class loads, so it doesn't matter which JDK built the jar. On Java 8
+ * it's table driven, slicing by 8.
+ */
+final class Crc32c {
+
+	/** new CRC32C() as ()Checksum, null on Java 8 */
+	private static final MethodHandle JDK_NEW;
+	/** CRC32C.update(ByteBuffer) as (Checksum,ByteBuffer)void */
+	private static final MethodHandle JDK_UPDATE;
+	static {
+		MethodHandle create = null, update = null;
+		try {
+			Class<?> c = Class.forName("java.util.zip.CRC32C");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			create = lookup.findConstructor(c, MethodType.methodType(void.class))
+					.asType(MethodType.methodType(Checksum.class));
+			update = lookup.findVirtual(c, "update", MethodType.methodType(void.class, ByteBuffer.class))
+					.asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+			create = null; // Java 8
+		}
+		JDK_NEW = create;
+		JDK_UPDATE = update;
+	}
+
+	private static final int POLY = 0x82F63B78; // Reversed 0x1EDC6F41
+
+	private static final int[][] TABLE = new int[8][256];
+	static {
+		for (int n = 0; n < 256; n++) {
+			int c = n;
+			for (int k = 0; k < 8; k++) {
+				c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+			}
+			TABLE[0][n] = c;
+		}
+		for (int n = 0; n < 256; n++) {
+			int c = TABLE[0][n];
+			for (int t = 1; t < 8; t++) {
+				c = TABLE[0][c & 0xFF] ^ (c >>> 8);
+				TABLE[t][n] = c;
+			}
+		}
+	}
+
+	/** Null if table driven */
+	private final Checksum jdk;
+
+	/** Inverted */
+	private int crc = 0xFFFFFFFF;
+
+	Crc32c() {
+		this(isIntrinsic());
+	}
+
+	/**
+	 * @param intrinsic false for the table even on Java 9+, for tests
+	 */
+	Crc32c(boolean intrinsic) {
+		if (!intrinsic) {
+			jdk = null;
+			return;
+		}
+		try {
+			jdk = (Checksum) JDK_NEW.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * If new instances use java.util.zip.CRC32C
+	 */
+	static boolean isIntrinsic() {
+		return JDK_NEW != null;
+	}
+
+	void update(ByteBuffer buffer) {
+		if (jdk != null) {
+			try {
+				JDK_UPDATE.invokeExact(jdk, buffer);
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+			return;
+		}
+		int c = crc;
+		int pos = buffer.position();
+		int limit = buffer.limit();
+		int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3];
+		int[] t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+		boolean swap = buffer.order() == ByteOrder.BIG_ENDIAN; // Little endian words
+		for (; limit - pos >= 8; pos += 8) {
+			int lo = buffer.getInt(pos);
+			int hi = buffer.getInt(pos + 4);
+			if (swap) {
+				lo = Integer.reverseBytes(lo);
+				hi = Integer.reverseBytes(hi);
+			}
+			lo ^= c;
+			c = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+					^ t3[hi & 0xFF] ^ t2[(hi >>> 8) & 0xFF] ^ t1[(hi >>> 16) & 0xFF] ^ t0[hi >>> 24];
+		}
+		for (; pos < limit; pos++) {
+			c = t0[(c ^ buffer.get(pos)) & 0xFF] ^ (c >>> 8);
+		}
+		crc = c;
+		buffer.position(limit);
+	}
+
+	long getValue() {
+		if (jdk != null) {
+			return jdk.getValue();
+		}
+		return (~crc) & 0xFFFFFFFFL;
+	}
+
+}
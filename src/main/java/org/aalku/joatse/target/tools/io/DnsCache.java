@@ -0,0 +1,123 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+/**
+ * Host name resolution with its own TTLs, so a burst of SOCKS5 connections to
+ * the same hosts resolves each one once. Unknown hosts are remembered too, for
+ * less time.
+ *
+ * Lookups run on a few threads of their own, never on the caller's thread.
+ * They are platform threads: the JDK resolver blocks in native code. Requests
+ * for a host being resolved wait for that lookup.
+ */
+public class DnsCache {
+
+	public static final long DEFAULT_POSITIVE_TTL_SECONDS = 60;
+	public static final long DEFAULT_NEGATIVE_TTL_SECONDS = 10;
+	private static final int MAX_HOSTS = 10000;
+	private static final int THREADS = 4;
+
+	private static final InetAddress[] UNKNOWN = new InetAddress[0];
+
+	private static final DnsCache SHARED = new DnsCache(TimeUnit.SECONDS.toNanos(DEFAULT_POSITIVE_TTL_SECONDS),
+			TimeUnit.SECONDS.toNanos(DEFAULT_NEGATIVE_TTL_SECONDS), InetAddress::getAllByName, newExecutor(),
+			Ticker.systemTicker());
+
+	public interface Resolver {
+		InetAddress[] resolve(String host) throws UnknownHostException;
+	}
+
+	private final AsyncLoadingCache<String, InetAddress[]> cache;
+
+	/**
+	 * @param positiveTtlNanos how long addresses are used. 0 to not cache.
+	 * @param negativeTtlNanos how long an unknown host stays unknown
+	 */
+	DnsCache(long positiveTtlNanos, long negativeTtlNanos, Resolver resolver, Executor executor, Ticker ticker) {
+		this.cache = Caffeine.newBuilder().maximumSize(MAX_HOSTS).executor(executor).ticker(ticker)
+				.expireAfter(new Expiry<String, InetAddress[]>() {
+					@Override
+					public long expireAfterCreate(String host, InetAddress[] addresses, long currentTime) {
+						return addresses.length == 0 ? negativeTtlNanos : positiveTtlNanos;
+					}
+
+					@Override
+					public long expireAfterUpdate(String host, InetAddress[] addresses, long currentTime,
+							long currentDuration) {
+						return expireAfterCreate(host, addresses, currentTime);
+					}
+
+					@Override
+					public long expireAfterRead(String host, InetAddress[] addresses, long currentTime,
+							long currentDuration) {
+						return currentDuration;
+					}
+				}).buildAsync(host -> {
+					try {
+						return resolver.resolve(host);
+					} catch (UnknownHostException e) {
+						return UNKNOWN;
+					}
+				});
+	}
+
+	/**
+	 * A cache with its own lookup threads. See {@link #shared()}.
+	 */
+	public DnsCache(long positiveTtl, long negativeTtl, TimeUnit unit) {
+		this(positiveTtl, negativeTtl, unit, InetAddress::getAllByName);
+	}
+
+	/**
+	 * Same but resolving with the given resolver, on the lookup threads
+	 */
+	public DnsCache(long positiveTtl, long negativeTtl, TimeUnit unit, Resolver resolver) {
+		this(unit.toNanos(positiveTtl), unit.toNanos(negativeTtl), resolver, newExecutor(), Ticker.systemTicker());
+	}
+
+	public static DnsCache shared() {
+		return SHARED;
+	}
+
+	private static ExecutorService newExecutor() {
+		AtomicInteger n = new AtomicInteger();
+		ThreadPoolExecutor e = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread t = new Thread(r, "dns_" + n.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				});
+		e.allowCoreThreadTimeOut(true);
+		return e;
+	}
+
+	/**
+	 * @return the addresses of the host, shared: don't modify them. Empty if it's
+	 *         unknown.
+	 */
+	public CompletableFuture<InetAddress[]> resolve(String host) {
+		return cache.get(host);
+	}
+
+	/**
+	 * Hosts in the cache, resolved, being resolved or unknown
+	 */
+	public long size() {
+		return cache.synchronous().estimatedSize();
+	}
+
+}
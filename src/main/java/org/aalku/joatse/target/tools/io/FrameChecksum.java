@@ -0,0 +1,118 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Running checksum of the data of a socket in one direction, carried in every
+ * DATA frame. Which one is negotiated with the cloud per session. Not thread
+ * safe.
+ */
+public abstract class FrameChecksum {
+
+	public enum Type {
+		CRC32("crc32"), CRC32C("crc32c"), NONE("none");
+
+		private final String wireName;
+
+		private Type(String wireName) {
+			this.wireName = wireName;
+		}
+
+		/**
+		 * Name in the CONNECTION and RUNNING messages
+		 */
+		public String getWireName() {
+			return wireName;
+		}
+
+		/**
+		 * @return null if unknown
+		 */
+		public static Type forWireName(String wireName) {
+			for (Type t : values()) {
+				if (t.wireName.equals(wireName)) {
+					return t;
+				}
+			}
+			return null;
+		}
+
+		public FrameChecksum create() {
+			switch (this) {
+			case CRC32:
+				return new Crc32Checksum();
+			case CRC32C:
+				return new Crc32cChecksum();
+			default:
+				return NO_CHECKSUM;
+			}
+		}
+	}
+
+	/**
+	 * Updates with the buffer from its position to its limit. The position ends at
+	 * the limit, unless {@link #isEnabled()} is false, then it's not touched.
+	 */
+	public abstract void update(ByteBuffer buffer);
+
+	/**
+	 * The 32 bit value, like {@link java.util.zip.Checksum#getValue()}
+	 */
+	public abstract long getValue();
+
+	/**
+	 * False if there is nothing to check. The value is always zero then.
+	 */
+	public boolean isEnabled() {
+		return true;
+	}
+
+	private static final class Crc32Checksum extends FrameChecksum {
+		private final CRC32 crc = new CRC32();
+
+		@Override
+		public void update(ByteBuffer buffer) {
+			crc.update(buffer);
+		}
+
+		@Override
+		public long getValue() {
+			return crc.getValue();
+		}
+	}
+
+	private static final class Crc32cChecksum extends FrameChecksum {
+		private final Crc32c crc = new Crc32c();
+
+		@Override
+		public void update(ByteBuffer buffer) {
+			crc.update(buffer);
+		}
+
+		@Override
+		public long getValue() {
+			return crc.getValue();
+		}
+	}
+
+	/**
+	 * Stateless, so shared
+	 */
+	private static final FrameChecksum NO_CHECKSUM = new FrameChecksum() {
+		@Override
+		public void update(ByteBuffer buffer) {
+		}
+
+		@Override
+		public long getValue() {
+			return 0L;
+		}
+
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+	};
+
+}
@@ -0,0 +1,178 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+
+/**
+ * Connects to a host with several addresses like RFC 8305 (Happy Eyeballs):
+ * the addresses are tried in order, alternating families, and each attempt
+ * starts when the previous one fails or after a short delay, whatever comes
+ * first. The first channel that connects is used and the rest are closed. So a
+ * broken IPv6 route costs 250ms instead of the whole connect timeout.
+ */
+public final class HappyEyeballs {
+
+	/**
+	 * Connection Attempt Delay, as recommended by the RFC
+	 */
+	public static final long ATTEMPT_DELAY_MILLIS = 250;
+
+	private HappyEyeballs() {
+	}
+
+	/**
+	 * The addresses alternating families, starting with the family of the first
+	 * one. Otherwise in the resolver order.
+	 */
+	public static List<InetAddress> interleave(InetAddress[] addresses) {
+		List<InetAddress> first = new ArrayList<>();
+		List<InetAddress> second = new ArrayList<>();
+		for (InetAddress a : addresses) {
+			if (first.isEmpty() || (a instanceof Inet6Address) == (first.get(0) instanceof Inet6Address)) {
+				first.add(a);
+			} else {
+				second.add(a);
+			}
+		}
+		List<InetAddress> res = new ArrayList<>(addresses.length);
+		for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+			if (i < first.size()) {
+				res.add(first.get(i));
+			}
+			if (i < second.size()) {
+				res.add(second.get(i));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @param connect one attempt, with its own timeout. Cancelling its future
+	 *                must close the channel.
+	 * @return the first channel that connected, or the error of the first attempt
+	 *         if all of them failed
+	 */
+	public static CompletableFuture<AsynchronousSocketChannel> connect(InetAddress[] addresses, int port,
+			Function<InetSocketAddress, CompletableFuture<AsynchronousSocketChannel>> connect) {
+		return connect(addresses, port, connect, ATTEMPT_DELAY_MILLIS, TimerWheel.shared());
+	}
+
+	static CompletableFuture<AsynchronousSocketChannel> connect(InetAddress[] addresses, int port,
+			Function<InetSocketAddress, CompletableFuture<AsynchronousSocketChannel>> connect, long delayMillis,
+			TimerWheel timer) {
+		if (addresses.length == 0) {
+			throw new IllegalArgumentException("No addresses");
+		}
+		if (addresses.length == 1) {
+			return connect.apply(new InetSocketAddress(addresses[0], port));
+		}
+		Race race = new Race(interleave(addresses), port, connect, delayMillis, timer);
+		race.startNext();
+		return race.result;
+	}
+
+	private static final class Race {
+		private final List<InetAddress> addresses;
+		private final int port;
+		private final Function<InetSocketAddress, CompletableFuture<AsynchronousSocketChannel>> connect;
+		private final long delayMillis;
+		private final TimerWheel timer;
+		private final CompletableFuture<AsynchronousSocketChannel> result = new CompletableFuture<>();
+
+		/* With this monitor */
+		private final List<CompletableFuture<AsynchronousSocketChannel>> attempts = new ArrayList<>();
+		private int running = 0;
+		/** Won or all failed. The result is completed after the losers are cancelled. */
+		private boolean decided = false;
+		private Throwable error = null;
+		private TimerWheel.Timeout nextAttempt = null;
+
+		Race(List<InetAddress> addresses, int port,
+				Function<InetSocketAddress, CompletableFuture<AsynchronousSocketChannel>> connect, long delayMillis,
+				TimerWheel timer) {
+			this.addresses = addresses;
+			this.port = port;
+			this.connect = connect;
+			this.delayMillis = delayMillis;
+			this.timer = timer;
+		}
+
+		private void startNext() {
+			CompletableFuture<AsynchronousSocketChannel> attempt;
+			synchronized (this) {
+				if (decided || attempts.size() == addresses.size()) {
+					return;
+				}
+				if (nextAttempt != null) {
+					nextAttempt.cancel();
+					nextAttempt = null;
+				}
+				InetSocketAddress address = new InetSocketAddress(addresses.get(attempts.size()), port);
+				try {
+					attempt = connect.apply(address);
+				} catch (RuntimeException e) {
+					attempt = new CompletableFuture<>();
+					attempt.completeExceptionally(e);
+				}
+				attempts.add(attempt);
+				running++;
+				if (attempts.size() < addresses.size()) {
+					nextAttempt = timer.schedule(this::startNext, delayMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			// Outside the monitor, it can be already done
+			attempt.whenComplete(this::attemptDone);
+		}
+
+		private void attemptDone(AsynchronousSocketChannel channel, Throwable e) {
+			boolean next = false;
+			boolean won = false;
+			boolean failed = false;
+			List<CompletableFuture<AsynchronousSocketChannel>> losers = null;
+			synchronized (this) {
+				running--;
+				if (decided) {
+					if (e == null && channel != null) {
+						IOTools.runFailable(() -> channel.close()); // Lost the race
+					}
+				} else if (e == null) {
+					decided = won = true;
+					if (nextAttempt != null) {
+						nextAttempt.cancel();
+					}
+					losers = new ArrayList<>(attempts);
+				} else {
+					if (error == null) {
+						error = e;
+					} else if (error != e) {
+						error.addSuppressed(e);
+					}
+					if (attempts.size() < addresses.size()) {
+						next = true; // Don't wait for the delay
+					} else if (running == 0) {
+						decided = failed = true;
+					}
+				}
+			}
+			if (won) {
+				for (CompletableFuture<AsynchronousSocketChannel> a : losers) {
+					a.cancel(false); // Closes the ones still connecting
+				}
+				result.complete(channel);
+			} else if (failed) {
+				result.completeExceptionally(error);
+			} else if (next) {
+				startNext();
+			}
+		}
+	}
+}
@@ -2,13 +2,10 @@ package org.aalku.joatse.target.tools.io;
 
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,6 +57,41 @@ public interface IOTools {
 		return toString(data, data.position(), data.limit() - data.position());
 	}
 
+	/**
+	 * Writes an unsigned LEB128 varint (7 bits per byte, low first)
+	 */
+	public static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	public static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (shift >= 64) {
+				throw new IllegalArgumentException("Malformed varint");
+			}
+			b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	public static int varLongSize(long value) {
+		int n = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
 	public static Pattern globToRegex(String allowedAddress, boolean caseSensitive) {
 		StringBuffer sb = new StringBuffer();
 		int flags = caseSensitive ? 0 : Pattern.CASE_INSENSITIVE;
@@ -73,41 +105,12 @@ public interface IOTools {
 		return Pattern.compile(sb.toString());
 	}
 
+	/**
+	 * One allowed address, see {@link AddressAllowlist}. Blocks if it has to
+	 * resolve.
+	 */
 	static boolean testInetAddressPatternMatch(String allowedAddress, InetSocketAddress target) {
-		// TODO IPv6 support
-		final String allowedHost;
-		final Integer allowedPort;
-		String[] split = allowedAddress.split(":", 2);
-		allowedHost = split[0];
-		allowedPort = split.length > 1 ? split[1].equals("*") ? null : Integer.parseInt(split[1]) : null;
-		
-		if (allowedPort != null && !allowedPort.equals(target.getPort())) {
-			// Ports don't match
-			return false;
-		}		
-		// Ports do match
-		
-		if (allowedHost.equals("*")) {
-			return true;
-		}
-		
-		String targetHost = target.getHostString();
-		Pattern p = IOTools.globToRegex(allowedHost, false);
-		boolean matches = p.matcher(targetHost).matches();
-		
-		if (!matches) {
-			/* Let's see if any is a host and can ve resolver to addresses and match that way */
-			try {
-				HashSet<InetAddress> t = new HashSet<>(Arrays.asList(InetAddress.getAllByName(targetHost)));
-				matches = (allowedHost.contains("*") ? Arrays.asList(allowedHost)
-						: Arrays.asList(InetAddress.getAllByName(allowedHost))).stream().filter(x -> t.contains(x))
-						.findAny().isPresent();
-			} catch (UnknownHostException e) {
-				return false;
-			}
-		}
-		
-		return matches;
+		return new AddressAllowlist(Collections.singleton(allowedAddress), DnsCache.shared()).isAllowed(target).join();
 	}
 	
 }
\ No newline at end of file
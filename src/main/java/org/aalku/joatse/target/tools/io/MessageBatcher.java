@@ -0,0 +1,31 @@
+package org.aalku.joatse.target.tools.io;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * Packs several queued messages into one, for {@link WebSocketSendWorker}.
+ * Not thread safe, each worker has its own.
+ */
+public interface MessageBatcher {
+
+	/**
+	 * Adds the message to the batch being built.
+	 * 
+	 * @return false if it can't be batched or doesn't fit. Then the batch is not
+	 *         changed.
+	 */
+	boolean add(WebSocketMessage<?> message);
+
+	/**
+	 * @return the message with everything added since the last call. Then it
+	 *         starts a new batch. The message may wrap a buffer reused by the
+	 *         next batch, so send it first.
+	 */
+	WebSocketMessage<?> build();
+
+	/**
+	 * How long we may wait for more messages once a batch is started.
+	 */
+	long getLatencyBudgetNanos();
+
+}
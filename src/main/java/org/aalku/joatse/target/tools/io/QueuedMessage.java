@@ -0,0 +1,36 @@
+package org.aalku.joatse.target.tools.io;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * Something to send with {@link WebSocketSendWorker#send(QueuedMessage)}.
+ *
+ * The worker links instances in its queue without allocating anything, so an
+ * instance can be queued only once at a time. It can be reused (queued again)
+ * once {@link #sent(Throwable)} is called.
+ */
+public abstract class QueuedMessage {
+
+	/**
+	 * Queue link. Only for the worker.
+	 */
+	QueuedMessage next;
+
+	/**
+	 * When it was queued, for the send latency. Only for the worker.
+	 */
+	long queuedNanos;
+
+	/**
+	 * Called by the worker to schedule it and right before sending it.
+	 */
+	public abstract WebSocketMessage<?> getMessage();
+
+	/**
+	 * Called on the worker thread once it was sent or failed.
+	 *
+	 * @param error null if it was sent
+	 */
+	public abstract void sent(Throwable error);
+
+}
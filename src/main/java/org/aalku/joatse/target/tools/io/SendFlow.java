@@ -0,0 +1,85 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Messages of one socket, sent in order and scheduled fairly with the other
+ * sockets by {@link WebSocketSendWorker} with deficit round robin. Each turn a
+ * flow can send up to weight * {@link #QUANTUM} bytes.
+ *
+ * The state is only for the worker the flow is queued in, with its lock.
+ */
+public final class SendFlow {
+
+	/**
+	 * Bytes per turn and unit of weight. More than a data frame so a flow with
+	 * weight 1 sends at least one per turn.
+	 */
+	public static final int QUANTUM = 64 * 1024 + 64;
+
+	private static final AtomicReferenceFieldUpdater<SendFlow, WebSocketSendWorker> SENDER = AtomicReferenceFieldUpdater
+			.newUpdater(SendFlow.class, WebSocketSendWorker.class, "sender");
+
+	private final long socketId;
+	private volatile int weight;
+
+	/**
+	 * Worker that sends all the messages of the socket, see
+	 * {@link #compareAndSetSender(WebSocketSendWorker, WebSocketSendWorker)}
+	 */
+	private volatile WebSocketSendWorker sender;
+
+	/** Worker where the flow is queued, if it is. Read by other workers too. */
+	volatile WebSocketSendWorker worker;
+	QueuedMessage head;
+	QueuedMessage tail;
+	/** Next active flow in the worker */
+	SendFlow nextActive;
+	/** Bytes it can still send this turn */
+	long deficit;
+	/** The quantum of the current turn was added */
+	boolean inTurn;
+
+	public SendFlow(long socketId, int weight) {
+		this.socketId = socketId;
+		setWeight(weight);
+	}
+
+	public long getSocketId() {
+		return socketId;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	public void setWeight(int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("Weight must be positive: " + weight);
+		}
+		this.weight = weight;
+	}
+
+	/**
+	 * @return null until the session picks one
+	 */
+	public WebSocketSendWorker getSender() {
+		return sender;
+	}
+
+	/**
+	 * The session picks the worker of the socket on its first message and keeps
+	 * it while it's open, so the messages of the socket never take two websocks
+	 * and arrive out of order.
+	 * 
+	 * @return false if another one was set meanwhile
+	 */
+	public boolean compareAndSetSender(WebSocketSendWorker expect, WebSocketSendWorker update) {
+		return SENDER.compareAndSet(this, expect, update);
+	}
+
+	long quantum() {
+		return (long) weight * QUANTUM;
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of what the {@link WebSocketSendWorker}s of a session sent. Several
+ * workers can share one (shards). Updated live.
+ */
+public final class SendStats {
+
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder wsMessages = new LongAdder();
+	private final LongAdder wsBytes = new LongAdder();
+	private final LongAdder latencyNanos = new LongAdder();
+
+	/**
+	 * @param items      queued messages that went in the ws message
+	 * @param bytes      of the ws message
+	 * @param waitNanos  from queued to sent, summed for the items
+	 */
+	void sent(int items, int bytes, long waitNanos, boolean error) {
+		if (error) {
+			failed.add(items);
+			return;
+		}
+		messages.add(items);
+		wsMessages.increment();
+		wsBytes.add(bytes);
+		latencyNanos.add(waitNanos);
+	}
+
+	/**
+	 * Queued messages sent. With batching several go in one ws message.
+	 */
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	/**
+	 * Queued messages that failed to be sent
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getWsMessages() {
+		return wsMessages.sum();
+	}
+
+	public long getWsBytes() {
+		return wsBytes.sum();
+	}
+
+	/**
+	 * Time from queued to sent of all the messages sent
+	 */
+	public long getLatencyNanos() {
+		return latencyNanos.sum();
+	}
+
+	@Override
+	public String toString() {
+		long m = getMessages();
+		return String.format("messages=%d, failed=%d, ws=%d/%dB, latency=%dus", m, getFailed(), getWsMessages(),
+				getWsBytes(), m == 0 ? 0 : getLatencyNanos() / m / 1000);
+	}
+
+}
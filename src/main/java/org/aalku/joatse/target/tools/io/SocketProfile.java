@@ -0,0 +1,186 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Options of the sockets a tunnel opens to its target, and how much it reads
+ * from them at once.
+ *
+ * <ul>
+ * <li>default: keepalive, the rest as the OS likes.</li>
+ * <li>interactive: keepalive and TCP_NODELAY, so keystrokes aren't held back
+ * (SSH, terminals).</li>
+ * <li>bulk: keepalive, 4MB socket buffers and reads of 256KB (database dumps,
+ * file copies).</li>
+ * <li>custom: a preset and/or options, comma separated: nodelay=true,
+ * keepalive=false, rcvbuf=4M, sndbuf=1M, read=512K. Sizes in bytes, K or M.
+ * Example: bulk,nodelay=true.</li>
+ * </ul>
+ */
+public final class SocketProfile {
+
+	public static final SocketProfile DEFAULT = new SocketProfile("default", false, true, 0, 0, 0);
+	public static final SocketProfile INTERACTIVE = new SocketProfile("interactive", true, true, 0, 0, 0);
+	public static final SocketProfile BULK = new SocketProfile("bulk", false, true, 4 * 1024 * 1024,
+			4 * 1024 * 1024, 256 * 1024);
+
+	private static final Pattern OPTION = Pattern.compile("^(nodelay|keepalive|rcvbuf|sndbuf|read)=(.+)$");
+	private static final Pattern SIZE = Pattern.compile("^([1-9][0-9]*)([KkMm]?)$");
+
+	private final String name;
+	private final boolean tcpNoDelay;
+	private final boolean keepAlive;
+	/** 0 for the OS default */
+	private final int receiveBuffer;
+	private final int sendBuffer;
+	/** Bytes to read at once while data keeps coming. 0 for one frame. */
+	private final int readSize;
+
+	private SocketProfile(String name, boolean tcpNoDelay, boolean keepAlive, int receiveBuffer, int sendBuffer,
+			int readSize) {
+		this.name = name;
+		this.tcpNoDelay = tcpNoDelay;
+		this.keepAlive = keepAlive;
+		this.receiveBuffer = receiveBuffer;
+		this.sendBuffer = sendBuffer;
+		this.readSize = readSize;
+	}
+
+	/**
+	 * @param spec a preset name or a custom profile, see the class doc
+	 */
+	public static SocketProfile parse(String spec) throws IllegalArgumentException {
+		String[] items = spec.trim().split(",");
+		SocketProfile p = preset(items[0].trim());
+		int first = p == null ? 0 : 1;
+		if (p == null) {
+			p = DEFAULT;
+		} else if (items.length == 1) {
+			return p;
+		}
+		boolean tcpNoDelay = p.tcpNoDelay;
+		boolean keepAlive = p.keepAlive;
+		int receiveBuffer = p.receiveBuffer;
+		int sendBuffer = p.sendBuffer;
+		int readSize = p.readSize;
+		for (int i = first; i < items.length; i++) {
+			Matcher m = OPTION.matcher(items[i].trim());
+			if (!m.matches()) {
+				throw new IllegalArgumentException("Unknown socket profile or option: " + items[i]);
+			}
+			String value = m.group(2);
+			switch (m.group(1)) {
+			case "nodelay":
+				tcpNoDelay = parseBoolean(value);
+				break;
+			case "keepalive":
+				keepAlive = parseBoolean(value);
+				break;
+			case "rcvbuf":
+				receiveBuffer = parseSize(value);
+				break;
+			case "sndbuf":
+				sendBuffer = parseSize(value);
+				break;
+			default:
+				readSize = parseSize(value);
+			}
+		}
+		return new SocketProfile(spec.trim(), tcpNoDelay, keepAlive, receiveBuffer, sendBuffer, readSize);
+	}
+
+	private static SocketProfile preset(String name) {
+		switch (name) {
+		case "default":
+			return DEFAULT;
+		case "interactive":
+			return INTERACTIVE;
+		case "bulk":
+			return BULK;
+		default:
+			return null;
+		}
+	}
+
+	private static boolean parseBoolean(String value) {
+		if (!value.equals("true") && !value.equals("false")) {
+			throw new IllegalArgumentException("Expected true or false: " + value);
+		}
+		return Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * 65536, 64K or 1M
+	 */
+	static int parseSize(String value) {
+		Matcher m = SIZE.matcher(value);
+		if (!m.matches()) {
+			throw new IllegalArgumentException("Expected a size like 65536, 64K or 4M: " + value);
+		}
+		long n = Long.parseLong(m.group(1));
+		String unit = m.group(2).toUpperCase();
+		n *= unit.equals("M") ? 1024 * 1024 : unit.equals("K") ? 1024 : 1;
+		if (n > 1024 * 1024 * 1024) {
+			throw new IllegalArgumentException("Too big: " + value);
+		}
+		return (int) n;
+	}
+
+	/**
+	 * Set the options of a socket that is not connected yet
+	 */
+	public void apply(AsynchronousSocketChannel socket) throws IOException {
+		socket.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+		if (tcpNoDelay) {
+			socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		// Before connecting, so the window scale is negotiated for them
+		if (receiveBuffer > 0) {
+			socket.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+		}
+		if (sendBuffer > 0) {
+			socket.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+		}
+	}
+
+	/**
+	 * @return frames to fill with each read, at least 1
+	 */
+	public int getReadFrames(int frameSize) {
+		return Math.max(1, (readSize + frameSize - 1) / frameSize);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public int getReceiveBuffer() {
+		return receiveBuffer;
+	}
+
+	public int getSendBuffer() {
+		return sendBuffer;
+	}
+
+	public int getReadSize() {
+		return readSize;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
@@ -0,0 +1,210 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The channel group of the TCP sockets of the tunnels, instead of the JVM
+ * default one, so its threads have a name, a size and stats.
+ *
+ * The completion handlers of all the sockets run on a few threads, one per
+ * core by default (-Djoatse.tcpThreads=N to change it). They must not block:
+ * a handler that waits holds the data of other sockets. Whatever can block
+ * (name lookups, waiting for the websocket) goes elsewhere. Handlers that take
+ * long are counted and logged.
+ *
+ * Platform threads, the group polls in native code.
+ */
+public final class TcpChannelGroup implements TcpChannelGroupMXBean {
+
+	private static final Logger log = LoggerFactory.getLogger(TcpChannelGroup.class);
+
+	public static final long SLOW_TASK_MILLIS = 50;
+
+	private static final long SLOW_TASK_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private static final TcpChannelGroup SHARED = new TcpChannelGroup("tcp_io",
+			Integer.getInteger("joatse.tcpThreads", defaultThreads()));
+
+	static {
+		SHARED.register();
+	}
+
+	private final HandlerPool executor;
+
+	private final AsynchronousChannelGroup group;
+
+	private final LongAdder tasks = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder runNanos = new LongAdder();
+	private final LongAdder slowTasks = new LongAdder();
+	private final AtomicLong lastSlowLog = new AtomicLong(System.nanoTime() - SLOW_TASK_LOG_INTERVAL_NANOS);
+
+	/**
+	 * Measures the handlers. The group uses it only to run them: the polling
+	 * is done by its own thread.
+	 */
+	private final class HandlerPool extends ThreadPoolExecutor {
+		HandlerPool(String name, int threads) {
+			super(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedThreads(name));
+			allowCoreThreadTimeOut(true);
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			super.execute(new Timed(task));
+		}
+	}
+
+	private static final class NamedThreads implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger n = new AtomicInteger();
+
+		NamedThreads(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "_" + n.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	private final class Timed implements Runnable {
+		private final Runnable task;
+		private final long queued = System.nanoTime();
+
+		Timed(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			try {
+				task.run();
+			} finally {
+				ran(start - queued, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * @param threads handler threads, at least 1
+	 */
+	public TcpChannelGroup(String name, int threads) {
+		this.executor = new HandlerPool(name, Math.max(1, threads));
+		try {
+			this.group = AsynchronousChannelGroup.withThreadPool(executor);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * The group of the tunnels, published in JMX
+	 */
+	public static TcpChannelGroup shared() {
+		return SHARED;
+	}
+
+	/**
+	 * One per core, at least 2 so one slow handler doesn't stop the rest
+	 */
+	static int defaultThreads() {
+		return Math.max(2, Runtime.getRuntime().availableProcessors());
+	}
+
+	private void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("org.aalku.joatse.target:type=TcpChannelGroup"));
+		} catch (Exception e) {
+			log.warn("TCP channel group stats not published in JMX: {}", e.toString());
+		}
+	}
+
+	/**
+	 * A new unconnected socket of this group
+	 */
+	public AsynchronousSocketChannel open() throws IOException {
+		return AsynchronousSocketChannel.open(group);
+	}
+
+	private void ran(long waited, long took) {
+		tasks.increment();
+		waitNanos.add(waited);
+		runNanos.add(took);
+		if (took > TimeUnit.MILLISECONDS.toNanos(SLOW_TASK_MILLIS)) {
+			slowTasks.increment();
+			long now = System.nanoTime();
+			long last = lastSlowLog.get();
+			if (now - last >= SLOW_TASK_LOG_INTERVAL_NANOS && lastSlowLog.compareAndSet(last, now)) {
+				log.warn("A TCP completion handler took {}ms on {}. Something blocks or works too long on the TCP threads.",
+						TimeUnit.NANOSECONDS.toMillis(took), Thread.currentThread().getName());
+			}
+		}
+	}
+
+	/**
+	 * Closes the sockets of the group and stops its threads
+	 */
+	public void shutdownNow() throws IOException {
+		group.shutdownNow();
+	}
+
+	@Override
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	@Override
+	public int getActiveThreads() {
+		return executor.getActiveCount();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	@Override
+	public long getTasks() {
+		return tasks.sum();
+	}
+
+	@Override
+	public long getAverageWaitMicros() {
+		long n = tasks.sum();
+		return n == 0 ? 0 : waitNanos.sum() / n / 1000;
+	}
+
+	@Override
+	public long getAverageRunMicros() {
+		long n = tasks.sum();
+		return n == 0 ? 0 : runNanos.sum() / n / 1000;
+	}
+
+	@Override
+	public long getSlowTasks() {
+		return slowTasks.sum();
+	}
+
+}
@@ -0,0 +1,34 @@
+package org.aalku.joatse.target.tools.io;
+
+/**
+ * Threads that run the completion handlers of the TCP sockets of the tunnels,
+ * in JMX as org.aalku.joatse.target:type=TcpChannelGroup. Times are since
+ * start.
+ */
+public interface TcpChannelGroupMXBean {
+
+	int getThreads();
+
+	int getActiveThreads();
+
+	/**
+	 * Handlers waiting for a thread
+	 */
+	int getQueueDepth();
+
+	long getTasks();
+
+	/**
+	 * Average time from ready to running
+	 */
+	long getAverageWaitMicros();
+
+	long getAverageRunMicros();
+
+	/**
+	 * Handlers that took more than {@link TcpChannelGroup#SLOW_TASK_MILLIS}.
+	 * Should be 0, they mean something blocks on these threads.
+	 */
+	long getSlowTasks();
+
+}
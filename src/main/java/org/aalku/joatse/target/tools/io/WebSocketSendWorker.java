@@ -1,68 +1,366 @@
 package org.aalku.joatse.target.tools.io;
 
-import java.util.concurrent.BlockingQueue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 
+import org.aalku.joatse.target.tools.concurrent.Threads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
-public class WebSocketSendWorker extends Thread {
+/**
+ * Sends messages to a websocket session from its own thread.
+ *
+ * Control messages go first, in order. The messages of each socket go in order
+ * in its {@link SendFlow}, and flows share what is left with weighted deficit
+ * round robin, so a bulk transfer doesn't delay an interactive socket.
+ *
+ * The queues are linked through the {@link QueuedMessage} and {@link SendFlow}
+ * instances themselves and the worker parks instead of waiting on a condition,
+ * so streaming with recycled messages doesn't allocate.
+ *
+ * The thread is virtual on Java 21+, see {@link Threads}.
+ */
+public class WebSocketSendWorker implements Runnable {
 
 	private Logger log = LoggerFactory.getLogger(WebSocketSendWorker.class);
 
-	private static class Item {
+	private static class FutureMessage extends QueuedMessage {
 
 		private final WebSocketMessage<?> message;
 		private final CompletableFuture<Void> future;
 
-		public Item(WebSocketMessage<?> message) {
+		public FutureMessage(WebSocketMessage<?> message) {
 			this.message = message;
 			this.future = new CompletableFuture<Void>();
 		}
 
+		@Override
+		public WebSocketMessage<?> getMessage() {
+			return message;
+		}
+
+		@Override
+		public void sent(Throwable error) {
+			if (error == null) {
+				future.complete(null);
+			} else {
+				future.completeExceptionally(error);
+			}
+		}
+
 	}
 
-	private BlockingQueue<Item> queue;
+	private final Object queueLock = new Object();
+	/** Control messages. Use with queueLock */
+	private QueuedMessage head = null;
+	/** Use with queueLock */
+	private QueuedMessage tail = null;
+	/** Flows with messages, in round robin order. Use with queueLock */
+	private SendFlow activeHead = null;
+	/** Use with queueLock */
+	private SendFlow activeTail = null;
+	/** The worker is parked or about to park */
+	private volatile boolean waiting = false;
+	/** Messages queued, control and flows. Updated with queueLock. */
+	private volatile int queued = 0;
+
 	private WebSocketSession session;
+	private final SendStats stats;
+	private final Thread thread;
+	private volatile boolean closed = false;
+
+	/**
+	 * Null means one ws message per queued message
+	 */
+	private volatile MessageBatcher batcher = null;
+
+	/**
+	 * Items taken from the queue but not sent yet. Only for the worker thread.
+	 */
+	private final List<QueuedMessage> inFlight = new ArrayList<>();
 
 	public WebSocketSendWorker(WebSocketSession session) {
+		this(session, new SendStats());
+	}
+
+	/**
+	 * @param stats where to count what is sent, maybe shared with other workers
+	 */
+	public WebSocketSendWorker(WebSocketSession session, SendStats stats) {
 		this.session = session;
-		this.queue = new LinkedBlockingQueue<>();
-		this.setName("wssw_" + session.getId());
-		this.start();
+		this.stats = stats;
+		this.thread = Threads.newThread("wssw_" + session.getId(), this);
+		this.thread.start();
 	}
 
 	public CompletableFuture<Void> sendMessage(WebSocketMessage<?> message) {
-		Item item = new Item(message);
-		queue.add(item);
+		return sendMessage(message, null);
+	}
+
+	public CompletableFuture<Void> sendMessage(WebSocketMessage<?> message, SendFlow flow) {
+		FutureMessage item = new FutureMessage(message);
+		send(item, flow);
 		return item.future;
 	}
-	
+
+	/**
+	 * Queue a control message. It must not be queued already.
+	 */
+	public void send(QueuedMessage item) {
+		send(item, null);
+	}
+
+	/**
+	 * Queue a message. It must not be queued already.
+	 * 
+	 * @param flow where to queue it, or null for a control message
+	 */
+	public void send(QueuedMessage item, SendFlow flow) {
+		item.queuedNanos = System.nanoTime();
+		synchronized (queueLock) {
+			item.next = null;
+			queued++;
+			if (flow == null || (flow.worker != null && flow.worker != this)) {
+				// Control, or the flow is still queued in a worker that was closed
+				if (tail == null) {
+					head = item;
+				} else {
+					tail.next = item;
+				}
+				tail = item;
+			} else if (flow.tail == null) {
+				flow.head = flow.tail = item;
+				flow.worker = this;
+				if (activeTail == null) {
+					activeHead = flow;
+				} else {
+					activeTail.nextActive = flow;
+				}
+				activeTail = flow;
+			} else {
+				flow.tail.next = item;
+				flow.tail = item;
+			}
+		}
+		if (closed) {
+			failPending(); // Nobody will send it
+		} else if (waiting) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private QueuedMessage poll() {
+		synchronized (queueLock) {
+			QueuedMessage item = head;
+			if (item != null) {
+				head = item.next;
+				if (head == null) {
+					tail = null;
+				}
+				item.next = null;
+			} else {
+				item = pollFlows();
+			}
+			if (item != null) {
+				queued--;
+			}
+			return item;
+		}
+	}
+
+	/**
+	 * Deficit round robin. The flow at the head of the active list gets its
+	 * quantum when its turn starts and keeps the turn while its next message fits
+	 * in what is left. Use with queueLock.
+	 */
+	private QueuedMessage pollFlows() {
+		SendFlow flow;
+		while ((flow = activeHead) != null) {
+			if (!flow.inTurn) {
+				flow.deficit += flow.quantum();
+				flow.inTurn = true;
+			}
+			QueuedMessage item = flow.head;
+			int size = item.getMessage().getPayloadLength();
+			if (size <= flow.deficit) {
+				flow.deficit -= size;
+				flow.head = item.next;
+				item.next = null;
+				if (flow.head == null) {
+					// Done, an idle flow doesn't save credit
+					flow.tail = null;
+					flow.deficit = 0;
+					flow.inTurn = false;
+					flow.worker = null;
+					activeHead = flow.nextActive;
+					flow.nextActive = null;
+					if (activeHead == null) {
+						activeTail = null;
+					}
+				}
+				return item;
+			}
+			// Turn over. It keeps the deficit for the next one.
+			flow.inTurn = false;
+			if (flow.nextActive != null) {
+				activeHead = flow.nextActive;
+				flow.nextActive = null;
+				activeTail.nextActive = flow;
+				activeTail = flow;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param timeoutNanos negative to wait forever
+	 * @return null on timeout
+	 */
+	private QueuedMessage poll(long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (true) {
+			QueuedMessage item = poll();
+			if (item != null) {
+				return item;
+			}
+			waiting = true;
+			try {
+				item = poll(); // Again, a sender might have missed waiting=true
+				if (item != null) {
+					return item;
+				}
+				if (timeoutNanos < 0) {
+					LockSupport.park(this);
+				} else {
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0) {
+						return null;
+					}
+					LockSupport.parkNanos(this, wait);
+				}
+			} finally {
+				waiting = false;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Coalesce whatever is queued using this batcher from now on.
+	 */
+	public void setBatcher(MessageBatcher batcher) {
+		this.batcher = batcher;
+	}
+
 	@Override
 	public void run() {
-		while (session.isOpen()) {
+		QueuedMessage carried = null; // Didn't fit in the previous batch
+		while (session.isOpen() && !closed) {
 			try {
-				Item item = queue.take();
-				try {
-					session.sendMessage(item.message);
-				} catch (Exception e) {
-					item.future.completeExceptionally(e);
+				QueuedMessage item = carried != null ? carried : poll(-1L);
+				carried = null;
+				inFlight.add(item);
+				WebSocketMessage<?> message = item.getMessage();
+				MessageBatcher batcher = this.batcher;
+				if (batcher == null || !batcher.add(message)) {
+					sendNow(message);
 					continue;
 				}
-				item.future.complete(null);
+				long deadline = System.nanoTime() + batcher.getLatencyBudgetNanos();
+				while (true) {
+					QueuedMessage next = poll();
+					if (next == null) {
+						long wait = deadline - System.nanoTime();
+						if (wait <= 0 || (next = poll(wait)) == null) {
+							break;
+						}
+					}
+					if (!batcher.add(next.getMessage())) {
+						carried = next;
+						break;
+					}
+					inFlight.add(next);
+				}
+				sendNow(batcher.build());
 			} catch (InterruptedException e) {
-				log.error("{} thread {} interrupted. Closing session.", WebSocketSendWorker.class.getSimpleName(), this);
+				log.error("{} thread {} interrupted. Closing session.", WebSocketSendWorker.class.getSimpleName(), thread);
+				if (carried != null) {
+					inFlight.add(carried);
+				}
+				fail(inFlight);
 				this.close();
 			}
 		}
+		closed = true;
+		fail(inFlight);
+		failPending();
+	}
+
+	/**
+	 * Sends the message and reports it to the items in flight.
+	 */
+	private void sendNow(WebSocketMessage<?> message) {
+		Exception error = null;
+		try {
+			session.sendMessage(message);
+		} catch (Exception e) {
+			error = e;
+		}
+		long now = System.nanoTime();
+		long waited = 0;
+		int items = inFlight.size();
+		for (int i = 0; i < items; i++) {
+			QueuedMessage item = inFlight.get(i);
+			waited += now - item.queuedNanos;
+			item.sent(error);
+		}
+		inFlight.clear();
+		stats.sent(items, message.getPayloadLength(), waited, error != null);
+	}
+
+	/**
+	 * Messages waiting to be sent
+	 */
+	public int getQueueDepth() {
+		return queued;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public SendStats getStats() {
+		return stats;
 	}
-	
+
 	public void close() {
+		closed = true;
 		IOTools.runFailable(()->this.session.close());
-		this.interrupt();
+		thread.interrupt();
+		failPending();
+	}
+
+	private void fail(List<QueuedMessage> items) {
+		for (QueuedMessage i : items) {
+			i.sent(new IOException("Websocket session closed: " + session.getId()));
+		}
+		stats.sent(items.size(), 0, 0, true);
+		items.clear();
+	}
+
+	private void failPending() {
+		QueuedMessage item;
+		while ((item = poll()) != null) {
+			item.sent(new IOException("Websocket session closed: " + session.getId()));
+			stats.sent(1, 0, 0, true);
+		}
 	}
 
 }
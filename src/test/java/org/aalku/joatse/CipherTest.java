@@ -191,6 +191,88 @@ class CipherTest {
         
 	}
 
+	@Test
+	void testGcm() throws Exception {
+		byte[] key = new byte[16];
+		new java.security.SecureRandom().nextBytes(key);
+		byte[] sessionKey = new byte[17];
+		sessionKey[0] = 2;
+		System.arraycopy(key, 0, sessionKey, 1, 16);
+		Paired me = Paired.forSessionKey(sessionKey);
+		Assertions.assertEquals(JoatseCipher.Mode.GCM, me.getMode());
+		Assertions.assertEquals(JoatseCipher.Mode.CBC, Paired.forSessionKey(key).getMode());
+		Paired peer = me.reverse();
+
+		ByteBuffer plain = ByteBuffer.allocateDirect(64 * 1024);
+		ByteBuffer ciphered = ByteBuffer.allocateDirect(64 * 1024 + me.getMaxOverhead());
+		ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+		String[] messages = { "Hola", "Adios", "Hola" };
+		ByteBuffer first = null;
+		for (String m : messages) {
+			plain.clear();
+			plain.put(m.getBytes()).flip();
+			ciphered.clear();
+			me.cipher(plain, ciphered);
+			ciphered.flip();
+			Assertions.assertEquals(m.length() + me.getMaxOverhead(), ciphered.remaining());
+			if (first == null) {
+				first = ByteBuffer.allocate(ciphered.remaining()).put(ciphered.duplicate());
+				first.flip();
+			} else {
+				Assertions.assertNotEquals(first, ciphered, "Same message, different nonce");
+			}
+			out.clear();
+			peer.decipher(ciphered, out);
+			out.flip();
+			Assertions.assertEquals(ByteBuffer.wrap(m.getBytes()), out);
+		}
+		// Replayed, it's not the next one
+		ByteBuffer replayed = first;
+		Assertions.assertThrows(JoatseCipher.CipherException.class, () -> peer.decipher(replayed, ByteBuffer.allocate(100)));
+
+		// The other way, tampered
+		ByteBuffer fromPeer = ByteBuffer.allocate(100);
+		peer.cipher(ByteBuffer.wrap("Hola".getBytes()), fromPeer);
+		fromPeer.flip();
+		fromPeer.put(0, (byte) (fromPeer.get(0) ^ 1));
+		Assertions.assertThrows(JoatseCipher.CipherException.class, () -> me.decipher(fromPeer, ByteBuffer.allocate(100)));
+	}
+
+	@Test
+	void testGcmInPlace() throws Exception {
+		byte[] sessionKey = new byte[33];
+		new java.security.SecureRandom().nextBytes(sessionKey);
+		sessionKey[0] = 2;
+		Paired me = Paired.forSessionKey(sessionKey);
+		Paired peer = me.reverse();
+		byte[] data = new byte[63 * 1024];
+		new java.util.Random(1).nextBytes(data);
+
+		// Like a socket frame: head room, payload, then room for the tag
+		ByteBuffer frame = ByteBuffer.allocateDirect(14 + data.length + me.getMaxOverhead());
+		frame.position(14);
+		frame.put(data);
+		ByteBuffer in = frame.duplicate();
+		in.limit(frame.position()).position(14);
+		ByteBuffer out = frame.duplicate();
+		out.limit(out.capacity()).position(14);
+		me.cipher(in, out);
+		Assertions.assertEquals(out.capacity(), out.position());
+
+		// Received in a heap buffer and deciphered in place
+		ByteBuffer wire = ByteBuffer.allocate(data.length + me.getMaxOverhead());
+		out.flip().position(14);
+		wire.put(out).flip();
+		ByteBuffer plain = wire.duplicate();
+		peer.decipher(wire, plain);
+		plain.flip();
+		Assertions.assertEquals(ByteBuffer.wrap(data), plain);
+
+		me.close();
+		Assertions.assertThrows(IllegalStateException.class, () -> me.cipher(ByteBuffer.wrap(data), frame.duplicate()));
+		peer.close();
+	}
+
 	private void printArray(byte[] ciphered) {
 		ByteBuffer buffer = ByteBuffer.wrap(ciphered);
 		System.out.println(Stream.generate(() -> buffer.get()).limit(buffer.capacity())
@@ -0,0 +1,157 @@
+package org.aalku.joatse.target;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.connection.TunnelConnection;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Throughput of {@link JoatseSession#handleBinaryMessage(BinaryMessage)}
+ * dispatch of data frames as the number of open sockets grows, alone and while
+ * other threads open and close sockets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionDispatchBenchmark {
+
+	private static final int PAYLOAD_SIZE = 64;
+
+	@Param({ "1", "100", "1000", "10000" })
+	public int sockets;
+
+	private JoatseSession session;
+	private ByteBuffer[] frames;
+
+	/**
+	 * Does nothing with the data but touching it.
+	 */
+	static class NullConnection implements TunnelConnection {
+		private final long socketId;
+		private final CompletableFuture<Boolean> closeStatus = new CompletableFuture<>();
+		long received = 0;
+
+		NullConnection(long socketId) {
+			this.socketId = socketId;
+		}
+
+		@Override
+		public long getSocketId() {
+			return socketId;
+		}
+
+		@Override
+		public CompletableFuture<Boolean> getCloseStatus() {
+			return closeStatus;
+		}
+
+		@Override
+		public void assertClosed() {
+		}
+
+		@Override
+		public Runnable receivedTunnelMessage(ByteBuffer buffer, byte type) {
+			received += buffer.remaining();
+			return null;
+		}
+
+		@Override
+		public void close() {
+			close(null, null);
+		}
+
+		@Override
+		public void close(Throwable e, Boolean b) {
+			closeStatus.complete(b);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+		long churnId = Long.MIN_VALUE;
+	}
+
+	@Setup
+	public void setup() {
+		WebSocketSession ws = Mockito.mock(WebSocketSession.class);
+		Mockito.when(ws.getId()).thenReturn("bench");
+		session = new JoatseSession(ws);
+		Random random = new Random(0);
+		frames = new ByteBuffer[sockets];
+		for (int i = 0; i < sockets; i++) {
+			long socketId = random.nextLong() & Long.MAX_VALUE;
+			session.add(new NullConnection(socketId));
+			ByteBuffer frame = ByteBuffer.allocate(2 + 8 + PAYLOAD_SIZE);
+			frame.put(JoatseSession.PROTOCOL_VERSION);
+			frame.put(TunnelConnection.MESSAGE_SOCKET_DATA);
+			frame.putLong(socketId);
+			frame.put(new byte[PAYLOAD_SIZE]);
+			frame.flip();
+			frames[i] = frame;
+		}
+	}
+
+	private void dispatchNext(Cursor cursor) throws IOException {
+		int i = cursor.next;
+		cursor.next = i + 1 == sockets ? 0 : i + 1;
+		session.handleBinaryMessage(new BinaryMessage(frames[i].duplicate()));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void dispatch(Cursor cursor) throws IOException {
+		dispatchNext(cursor);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void dispatchConcurrent(Cursor cursor) throws IOException {
+		dispatchNext(cursor);
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(3)
+	public void dispatchWhileChurn(Cursor cursor) throws IOException {
+		dispatchNext(cursor);
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(1)
+	public void openAndClose(Cursor cursor) {
+		NullConnection c = new NullConnection(cursor.churnId++);
+		session.add(c);
+		session.remove(c);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(ConnectionDispatchBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,92 @@
+package org.aalku.joatse.target;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.aalku.joatse.target.connection.FolderTunnelConnection;
+import org.aalku.joatse.target.connection.FolderTunnelConnection.FolderOpCode;
+import org.aalku.joatse.target.connection.FolderTunnelConnection.SortBy;
+import org.aalku.joatse.target.connection.FolderTunnelConnection.SortOrder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Time to answer a folder LIST of the first page (100 entries) of a directory
+ * with 10k and 100k files, per sort field. It's the whole request: the socket,
+ * listing, sorting, the JSON and sending it to a {@link CountingWebSocketSession}.
+ *
+ * The directory is created in the temp dir and takes a while for 100k.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FolderListBenchmark {
+
+	private static final int PAGE = 100;
+
+	@Param({ "10000", "100000" })
+	public int entries;
+
+	@Param({ "NONE", "NAME", "SIZE" })
+	public SortBy sortBy;
+
+	private Path root;
+	private JoatseSession session;
+	private long socketId = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("joatse-list-bench");
+		for (int i = 0; i < entries; i++) {
+			Files.write(root.resolve("file-" + i + ".txt"), new byte[i % 100]);
+		}
+		session = new JoatseSession(new CountingWebSocketSession("bench"));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		session.close();
+		try (Stream<Path> s = Files.walk(root)) {
+			s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public Boolean list() throws Exception {
+		byte[] path = "/".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(1 + 4 + path.length + 18);
+		payload.put(FolderOpCode.LIST.getCode()).putInt(path.length).put(path);
+		payload.putLong(0).putLong(PAGE).put(sortBy.getCode()).put(SortOrder.ASCENDING.getCode());
+		payload.flip();
+		FolderTunnelConnection c = new FolderTunnelConnection(session, ++socketId, e -> {}, root.toString(), true,
+				payload);
+		c.start();
+		return c.getCloseStatus().get(1, TimeUnit.MINUTES);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(FolderListBenchmark.class.getSimpleName()).build()).run();
+	}
+}
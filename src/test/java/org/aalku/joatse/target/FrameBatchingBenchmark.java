@@ -0,0 +1,119 @@
+package org.aalku.joatse.target;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aalku.joatse.target.connection.TunnelConnection;
+import org.aalku.joatse.target.tools.io.WebSocketSendWorker;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Socket messages per second through {@link WebSocketSendWorker} with and
+ * without protocol v2 batching, for many sockets sending small chunks at once.
+ * The aux counters report websocket messages and bytes on the wire per socket
+ * message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBatchingBenchmark {
+
+	private static final int BURST = 64;
+
+	@Param({ "false", "true" })
+	public boolean batching;
+
+	@Param({ "16", "1024" })
+	public int payloadSize;
+
+	private WebSocketSendWorker worker;
+	private ByteBuffer[] frames;
+	private final AtomicLong wsMessages = new AtomicLong();
+	private final AtomicLong wireBytes = new AtomicLong();
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Wire {
+		public long wsMessages;
+		public long wireBytes;
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		WebSocketSession ws = Mockito.mock(WebSocketSession.class);
+		Mockito.when(ws.getId()).thenReturn("bench");
+		Mockito.when(ws.isOpen()).thenReturn(true);
+		Mockito.doAnswer(inv -> {
+			WebSocketMessage<?> m = inv.getArgument(0);
+			wsMessages.incrementAndGet();
+			wireBytes.addAndGet(m.getPayloadLength());
+			return null;
+		}).when(ws).sendMessage(Mockito.any());
+		worker = new WebSocketSendWorker(ws);
+		if (batching) {
+			worker.setBatcher(new SocketFrameBatcher());
+		}
+		frames = new ByteBuffer[BURST];
+		for (int i = 0; i < BURST; i++) {
+			ByteBuffer frame = ByteBuffer.allocate(2 + 8 + 4 + payloadSize);
+			frame.put(JoatseSession.PROTOCOL_VERSION);
+			frame.put(TunnelConnection.MESSAGE_SOCKET_DATA);
+			frame.putLong(1000 + i);
+			frame.putInt(0); // crc
+			frame.put(new byte[payloadSize]);
+			frame.flip();
+			frames[i] = frame;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		worker.close();
+	}
+
+	/**
+	 * Every socket sends one chunk, then we wait like the sockets do.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void burst(Wire wire) throws Exception {
+		long m0 = wsMessages.get();
+		long b0 = wireBytes.get();
+		CompletableFuture<Void> last = null;
+		for (ByteBuffer frame : frames) {
+			last = worker.sendMessage(new BinaryMessage(frame.duplicate(), true));
+		}
+		last.get(10, TimeUnit.SECONDS);
+		wire.wsMessages += wsMessages.get() - m0;
+		wire.wireBytes += wireBytes.get() - b0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(FrameBatchingBenchmark.class.getSimpleName()).build()).run();
+	}
+}
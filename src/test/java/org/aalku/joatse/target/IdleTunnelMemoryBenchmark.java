@@ -0,0 +1,148 @@
+package org.aalku.joatse.target;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.connection.BasicTunnelTcpConnection;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.aalku.joatse.target.tools.io.IOTools;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Memory held by thousands of idle tcp tunnels, with and without lazy reads.
+ * Each invocation opens the tunnels to a local server that never sends and
+ * waits until all of them are reading. The aux counters report the pooled and
+ * the direct memory per tunnel. Needs twice as many file descriptors as
+ * tunnels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = { "-XX:MaxDirectMemorySize=2g" })
+public class IdleTunnelMemoryBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean lazyTcpReads;
+
+	@Param({ "1000", "5000" })
+	public int tunnels;
+
+	private ServerSocketChannel server;
+	private Thread acceptor;
+	private final List<SocketChannel> accepted = new ArrayList<>();
+	private CountingWebSocketSession ws;
+	private JoatseSession session;
+	private final List<BasicTunnelTcpConnection> connections = new ArrayList<>();
+	private BufferPoolMXBean direct;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Memory {
+		public long pooledBytesPerTunnel;
+		public long directBytesPerTunnel;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BufferPool.shared().setMaxBytes(Long.MAX_VALUE);
+		for (BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (b.getName().equals("direct")) {
+				direct = b;
+			}
+		}
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), tunnels);
+		acceptor = new Thread(() -> {
+			try {
+				while (true) {
+					SocketChannel c = server.accept();
+					synchronized (accepted) {
+						accepted.add(c);
+					}
+				}
+			} catch (Exception e) {
+				// Closed
+			}
+		}, "idle-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@Setup(Level.Invocation)
+	public void newSession() {
+		ws = new CountingWebSocketSession("idle");
+		session = new JoatseSession(ws);
+		session.setLazyTcpReads(lazyTcpReads);
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeTunnels() {
+		for (BasicTunnelTcpConnection c : connections) {
+			c.close();
+		}
+		connections.clear();
+		synchronized (accepted) {
+			for (SocketChannel c : accepted) {
+				IOTools.runFailable(() -> c.close());
+			}
+			accepted.clear();
+		}
+		session.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		server.close();
+		acceptor.join();
+	}
+
+	@Benchmark
+	public void openIdleTunnels(Memory memory) throws Exception {
+		long pooled0 = BufferPool.shared().getLentBytes();
+		long direct0 = direct.getMemoryUsed();
+		InetSocketAddress target = (InetSocketAddress) server.getLocalAddress();
+		for (int i = 0; i < tunnels; i++) {
+			connections.add(new BasicTunnelTcpConnection(session, target, i + 1, e -> {}));
+		}
+		// One "connected" message each, then they start reading
+		while (ws.getMessages() < tunnels) {
+			Thread.sleep(1);
+		}
+		long pooled;
+		long last = -1;
+		while ((pooled = BufferPool.shared().getLentBytes()) != last) {
+			last = pooled;
+			Thread.sleep(50);
+		}
+		memory.pooledBytesPerTunnel = (pooled - pooled0) / tunnels;
+		memory.directBytesPerTunnel = (direct.getMemoryUsed() - direct0) / tunnels;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(IdleTunnelMemoryBenchmark.class.getSimpleName()).build()).run();
+	}
+}
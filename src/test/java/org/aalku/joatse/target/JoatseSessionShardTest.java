@@ -0,0 +1,183 @@
+package org.aalku.joatse.target;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.connection.AbstractSocketConnection;
+import org.aalku.joatse.target.tools.QrGenerator.QrMode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+class JoatseSessionShardTest {
+
+	/**
+	 * Records the type, socket and first data byte of what is sent. Sends wait
+	 * for the gate so the test can queue first.
+	 */
+	private static class GatedSession extends CountingWebSocketSession {
+		private final CountDownLatch gate = new CountDownLatch(1);
+		private final List<String> sent = new ArrayList<>();
+
+		GatedSession(String id) {
+			super(id);
+		}
+
+		@Override
+		public void sendMessage(WebSocketMessage<?> message) throws IOException {
+			try {
+				gate.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			ByteBuffer b = ((ByteBuffer) message.getPayload()).duplicate();
+			b.get(); // version
+			byte type = b.get();
+			long socketId = b.getLong();
+			String s = type + ":" + socketId;
+			if (type == 2) { // data, after the checksum
+				b.getInt();
+				s += ":" + b.get();
+			}
+			synchronized (sent) {
+				sent.add(s);
+			}
+			super.sendMessage(message);
+		}
+
+		List<String> sent() {
+			synchronized (sent) {
+				return new ArrayList<>(sent);
+			}
+		}
+	}
+
+	private static class StreamConnection extends AbstractSocketConnection {
+		private final Logger log = LoggerFactory.getLogger(StreamConnection.class);
+
+		StreamConnection(JoatseSession manager, long socketId) {
+			super(manager, socketId, e -> {});
+		}
+
+		void connected() {
+			notifyConnected();
+		}
+
+		CompletableFuture<Void> send(int b) {
+			ByteBuffer payload = ByteBuffer.allocate(100);
+			payload.put(0, (byte) b);
+			return sendDataMessageToCloud(payload);
+		}
+
+		@Override
+		protected Logger getLog() {
+			return log;
+		}
+
+		@Override
+		protected void receivedBytesFromCloud(ByteBuffer buffer) throws IOException {
+		}
+
+		@Override
+		protected void destroy() {
+		}
+	}
+
+	private static void await(GatedSession ws, int messages) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (ws.getMessages() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	void socketStaysOnItsWebsockWhenItsShardJoins() throws Exception {
+		GatedSession main = new GatedSession("main");
+		GatedSession shard = new GatedSession("shard1");
+		JoatseSession session = new JoatseSession(main, 2);
+		session.setShards(2);
+		try {
+			// Socket 1 is of shard 1, which is not there yet
+			StreamConnection c = new StreamConnection(session, 1L);
+			c.connected();
+			c.send(1);
+			c.send(2);
+			session.attachShard(1, shard);
+			c.send(3);
+			c.close();
+			// Opened after the join, it goes through the shard
+			StreamConnection d = new StreamConnection(session, 3L);
+			d.send(7);
+			d.close();
+			main.gate.countDown();
+			shard.gate.countDown();
+			await(main, 5);
+			await(shard, 2);
+			Assertions.assertEquals(Arrays.asList("1:1", "2:1:1", "2:1:2", "2:1:3", "3:1"), main.sent());
+			Assertions.assertEquals(Arrays.asList("2:3:7", "3:3"), shard.sent());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	void socketMovesOnlyIfItsWebsockIsLost() throws Exception {
+		GatedSession main = new GatedSession("main");
+		GatedSession shard = new GatedSession("shard1");
+		JoatseSession session = new JoatseSession(main, 2);
+		session.setShards(2);
+		try {
+			session.attachShard(1, shard);
+			StreamConnection c = new StreamConnection(session, 1L);
+			CompletableFuture<Void> queued = c.send(1);
+			session.detachShard(1); // Closes the socket too
+			Assertions.assertThrows(Exception.class, () -> queued.get(10, TimeUnit.SECONDS));
+			main.gate.countDown();
+			await(main, 1);
+			Assertions.assertEquals(Arrays.asList("3:1"), main.sent(), "The close goes through the main one");
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	void shardThatReceivesIsNotTimedOut() throws Exception {
+		List<WebSocketHandler> handlers = new ArrayList<>();
+		List<CountingWebSocketSession> sessions = new ArrayList<>();
+		JoatseClient client = new JoatseClient("ws://localhost:1/connection", QrMode.NONE) {
+			@Override
+			ListenableFuture<WebSocketSession> handshake(WebSocketHandler handler) {
+				CountingWebSocketSession ws = new CountingWebSocketSession("shard" + sessions.size());
+				handlers.add(handler);
+				sessions.add(ws);
+				SettableListenableFuture<WebSocketSession> f = new SettableListenableFuture<>();
+				f.set(ws);
+				return f;
+			}
+		};
+		client.setHeartbeat(20, 200);
+		client.connectShard(1, "token");
+		client.connectShard(2, "token");
+		WebSocketHandler busy = handlers.get(0);
+		long end = System.currentTimeMillis() + 1000; // Five pong timeouts
+		while (System.currentTimeMillis() < end) {
+			busy.handleMessage(sessions.get(0), new PongMessage());
+			Thread.sleep(20);
+		}
+		Assertions.assertTrue(sessions.get(0).isOpen(), "Receiving, it stays");
+		Assertions.assertFalse(sessions.get(1).isOpen(), "Silent, it's closed");
+	}
+}
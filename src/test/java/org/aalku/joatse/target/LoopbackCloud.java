@@ -0,0 +1,751 @@
+package org.aalku.joatse.target;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.websocket.DeploymentException;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.aalku.joatse.target.connection.FolderTunnelConnection.FolderOpCode;
+import org.aalku.joatse.target.connection.FolderTunnelConnection.SortBy;
+import org.aalku.joatse.target.connection.FolderTunnelConnection.SortOrder;
+import org.aalku.joatse.target.tools.cipher.JoatseCipher.Paired;
+import org.aalku.joatse.target.tools.io.FrameChecksum;
+import org.aalku.joatse.target.tools.io.IOTools;
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.standard.StandardWebSocketHandlerAdapter;
+import org.springframework.web.socket.adapter.standard.StandardWebSocketSession;
+
+/**
+ * Stand-in for the Joatse cloud, for tests: a websocket server on localhost
+ * that speaks the cloud side of the protocol with one {@link JoatseClient}.
+ *
+ * It answers CONNECTION with RUNNING (preconfirmed requests only), opens
+ * sockets to the requested tunnels with NEW_SOCKET and carries DATA both ways
+ * with the negotiated checksum and flow control. Command sessions are ciphered
+ * with a key sent with the target public key, like the cloud does, and so are
+ * the other sockets if {@link #setE2eSockets(boolean)}. Every socket is a byte
+ * stream, see {@link CloudSocket}.
+ *
+ * It's an independent implementation of the wire format, so it doesn't use the
+ * constants of the target. No compression and no shards.
+ */
+public class LoopbackCloud implements WebSocketHandler, AutoCloseable {
+
+	private static final String PATH = "/connection";
+
+	private static final byte PROTOCOL_VERSION = 1;
+	private static final byte NEW_SOCKET = 1;
+	private static final byte DATA = 2;
+	private static final byte CLOSE = 3;
+	private static final byte PUBLIC_KEY = 4;
+	private static final byte CREDIT = 5;
+	private static final byte TERM_PROTOCOL_VERSION = 1;
+	private static final byte TERM_TYPE = 1;
+
+	private static final int MESSAGE_SIZE_LIMIT = 64 * 1024;
+	/** Payload of a DATA frame, like the target */
+	private static final int MAX_DATA = 63 * 1024;
+	/** What the target may have in flight before we grant more, and the other way */
+	private static final int WINDOW = 256 * 1024;
+	private static final int GRANT_EVERY = 64 * 1024;
+	private static final int GCM_TAG = 16;
+
+	private final Logger log = LoggerFactory.getLogger(LoopbackCloud.class);
+
+	private boolean flowControl = true;
+	private boolean batching = false;
+	private String integrity = FrameChecksum.Type.CRC32.getWireName();
+	private boolean e2eSockets = false;
+
+	private Tomcat tomcat;
+	private int port;
+
+	private volatile WebSocketSession target;
+	private final Object sendLock = new Object();
+
+	private final CompletableFuture<JSONObject> running = new CompletableFuture<>();
+	private volatile boolean flowControlOn;
+	private volatile boolean e2eSocketsOn;
+	private volatile FrameChecksum.Type checksumType;
+	private volatile CompletableFuture<byte[]> publicKey = new CompletableFuture<>();
+
+	private final Map<Long, CloudSocket> sockets = new ConcurrentHashMap<>();
+	private final AtomicLong nextSocketId = new AtomicLong(1);
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Offer flow control to the target. On by default.
+	 */
+	public void setFlowControl(boolean flowControl) {
+		this.flowControl = flowControl;
+	}
+
+	/**
+	 * Let the target send protocol v2 batches. Off by default.
+	 */
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+	}
+
+	/**
+	 * Checksum to pick if the target offers it, by wire name. CRC32 by default.
+	 */
+	public void setIntegrity(String integrity) {
+		this.integrity = integrity;
+	}
+
+	/**
+	 * Cipher every socket end to end, not only commands. Off by default.
+	 */
+	public void setE2eSockets(boolean e2eSockets) {
+		this.e2eSockets = e2eSockets;
+	}
+
+	public void start() throws Exception {
+		tomcat = new Tomcat();
+		tomcat.setBaseDir(Files.createTempDirectory("loopback-cloud").toString());
+		tomcat.setHostname("127.0.0.1");
+		tomcat.setPort(0);
+		Context ctx = tomcat.addContext("", null);
+		ctx.addServletContainerInitializer(new WsSci(), null);
+		ctx.addServletContainerInitializer((classes, servletContext) -> {
+			ServerContainer container = (ServerContainer) servletContext.getAttribute(ServerContainer.class.getName());
+			try {
+				container.addEndpoint(ServerEndpointConfig.Builder.create(StandardWebSocketHandlerAdapter.class, PATH)
+						.configurator(new ServerEndpointConfig.Configurator() {
+							@Override
+							public <T> T getEndpointInstance(Class<T> endpointClass) {
+								StandardWebSocketSession session = new StandardWebSocketSession(new HttpHeaders(),
+										new HashMap<>(), null, null);
+								return endpointClass.cast(new StandardWebSocketHandlerAdapter(LoopbackCloud.this, session));
+							}
+						}).build());
+			} catch (DeploymentException e) {
+				throw new ServletException(e);
+			}
+		}, null);
+		// The upgrade filter only runs on mapped requests
+		Tomcat.addServlet(ctx, "none", new HttpServlet() {
+			private static final long serialVersionUID = 1L;
+		});
+		ctx.addServletMappingDecoded("/", "none");
+		tomcat.getConnector(); // Creates it
+		tomcat.start();
+		port = tomcat.getConnector().getLocalPort();
+		log.info("Loopback cloud listening on {}", getUrl());
+	}
+
+	public String getUrl() {
+		return "ws://127.0.0.1:" + port + PATH;
+	}
+
+	@Override
+	public void close() throws Exception {
+		for (CloudSocket s : sockets.values()) {
+			s.failed(new IOException("Cloud closed"));
+		}
+		WebSocketSession t = target;
+		if (t != null) {
+			IOTools.runFailable(() -> t.close(CloseStatus.GOING_AWAY));
+		}
+		if (tomcat != null) {
+			tomcat.stop();
+			tomcat.destroy();
+		}
+	}
+
+	/**
+	 * Connects the client to this and waits until its tunnels are running.
+	 *
+	 * @param createTunnel calls {@link JoatseClient#createTunnel} with a
+	 *                     preconfirm uuid
+	 * @return the CONNECTION request of the target
+	 */
+	public JSONObject connect(JoatseClient client, Consumer<JoatseClient> createTunnel) throws Exception {
+		client.connect().waitUntilConnected();
+		createTunnel.accept(client);
+		return awaitRunning(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return the CONNECTION request of the target, once it's running
+	 */
+	public JSONObject awaitRunning(long timeout, TimeUnit unit) throws Exception {
+		return running.get(timeout, unit);
+	}
+
+	/**
+	 * Opens a socket of a tcp, http, socks5, file or folder tunnel.
+	 *
+	 * @param request what goes after the target id, like {@link #fileRequest}, or
+	 *                null
+	 */
+	public CloudSocket open(long targetId, byte[] request) throws Exception {
+		Paired cipher = null;
+		byte[] wrappedKey = new byte[0];
+		if (e2eSocketsOn) {
+			byte[] key = newSessionKey();
+			wrappedKey = wrapKey(key);
+			cipher = cloudCipher(key);
+		}
+		ByteBuffer extra = ByteBuffer.allocate((e2eSocketsOn ? 2 + wrappedKey.length : 0) + (request == null ? 0 : request.length));
+		if (e2eSocketsOn) {
+			extra.putShort((short) wrappedKey.length).put(wrappedKey);
+		}
+		if (request != null) {
+			extra.put(request);
+		}
+		return open(targetId, extra.array(), cipher, false);
+	}
+
+	/**
+	 * Opens a command session. What is written is typed, what is read is stdout
+	 * and stderr mixed.
+	 */
+	public CloudSocket openCommand(long targetId) throws Exception {
+		byte[] key = newSessionKey();
+		return open(targetId, wrapKey(key), cloudCipher(key), true);
+	}
+
+	private CloudSocket open(long targetId, byte[] extra, Paired cipher, boolean terminal) throws IOException {
+		CloudSocket s = new CloudSocket(nextSocketId.getAndIncrement(), cipher, terminal);
+		sockets.put(s.socketId, s);
+		ByteBuffer m = ByteBuffer.allocate(2 + 8 + 8 + extra.length);
+		m.put(PROTOCOL_VERSION).put(NEW_SOCKET).putLong(s.socketId).putLong(targetId).put(extra);
+		m.flip();
+		send(m);
+		return s;
+	}
+
+	/**
+	 * Payload of a file tunnel socket
+	 *
+	 * @param length -1 for the rest of the file
+	 */
+	public static byte[] fileRequest(long offset, long length) {
+		return ByteBuffer.allocate(16).putLong(offset).putLong(length).array();
+	}
+
+	/**
+	 * Payload of a folder tunnel socket listing a folder, by name
+	 */
+	public static byte[] folderListRequest(String path, long offset, long length) {
+		byte[] p = path.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer b = ByteBuffer.allocate(1 + 4 + p.length + 18);
+		b.put(FolderOpCode.LIST.getCode()).putInt(p.length).put(p);
+		b.putLong(offset).putLong(length).put(SortBy.NAME.getCode()).put(SortOrder.ASCENDING.getCode());
+		return b.array();
+	}
+
+	private byte[] newSessionKey() {
+		byte[] key = new byte[1 + 16];
+		random.nextBytes(key);
+		key[0] = 2; // GCM
+		return key;
+	}
+
+	private static Paired cloudCipher(byte[] sessionKey) {
+		Paired targetEnd = Paired.forSessionKey(sessionKey);
+		try {
+			return targetEnd.reverse();
+		} finally {
+			targetEnd.close();
+		}
+	}
+
+	/**
+	 * Ciphers a session key with the target public key, asking for it the first
+	 * time
+	 */
+	private byte[] wrapKey(byte[] sessionKey) throws Exception {
+		CompletableFuture<byte[]> pk = publicKey;
+		if (!pk.isDone()) {
+			ByteBuffer m = ByteBuffer.allocate(2);
+			m.put(PROTOCOL_VERSION).put(PUBLIC_KEY).flip();
+			send(m);
+		}
+		PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(pk.get(10, TimeUnit.SECONDS)));
+		Cipher c = Cipher.getInstance("RSA/ECB/OAEPPadding");
+		c.init(Cipher.ENCRYPT_MODE, key, new OAEPParameterSpec("SHA-256", "MGF1", new MGF1ParameterSpec("SHA-256"),
+				PSource.PSpecified.DEFAULT));
+		return c.doFinal(sessionKey);
+	}
+
+	private void send(ByteBuffer message) throws IOException {
+		WebSocketSession t = target;
+		if (t == null) {
+			throw new IOException("No target connected");
+		}
+		synchronized (sendLock) {
+			t.sendMessage(new BinaryMessage(message, true));
+		}
+	}
+
+	@Override
+	public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+		session.setBinaryMessageSizeLimit(MESSAGE_SIZE_LIMIT);
+		session.setTextMessageSizeLimit(MESSAGE_SIZE_LIMIT);
+		if (target != null) {
+			log.warn("Only one target. Rejecting {}", session.getId());
+			session.close(CloseStatus.POLICY_VIOLATION);
+			return;
+		}
+		target = session;
+	}
+
+	@Override
+	public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+		if (session != target) {
+			return;
+		}
+		if (message instanceof TextMessage) {
+			handleConnection(new JSONObject(((TextMessage) message).getPayload()));
+		} else if (message instanceof BinaryMessage) {
+			try {
+				handleBinaryMessage(((BinaryMessage) message).getPayload());
+			} catch (RuntimeException | IOException e) {
+				log.error("Bad message from target: " + e, e);
+				session.close(CloseStatus.PROTOCOL_ERROR);
+			}
+		}
+	}
+
+	private void handleConnection(JSONObject js) throws IOException {
+		JSONObject res = new JSONObject();
+		res.put("request", "CONNECTION");
+		if (!"CONNECTION".equals(js.optString("request")) || !js.has("preconfirmed")) {
+			res.put("response", "REJECTED");
+			res.put("rejectionCause", "The loopback cloud only takes preconfirmed CONNECTION requests");
+			target.sendMessage(new TextMessage(res.toString()));
+			return;
+		}
+		flowControlOn = flowControl && js.optBoolean("flowControl", false);
+		e2eSocketsOn = e2eSockets && js.optBoolean("e2eSockets", false);
+		JSONArray offered = js.optJSONArray("integrity");
+		String picked = FrameChecksum.Type.CRC32.getWireName();
+		for (int i = 0; offered != null && i < offered.length(); i++) {
+			if (offered.getString(i).equals(integrity)) {
+				picked = integrity;
+			}
+		}
+		checksumType = FrameChecksum.Type.forWireName(picked);
+		res.put("response", "RUNNING");
+		res.put("flowControl", flowControlOn);
+		res.put("batching", batching && js.optBoolean("batching", false));
+		res.put("integrity", picked);
+		res.put("e2eSockets", e2eSocketsOn);
+		synchronized (sendLock) {
+			target.sendMessage(new TextMessage(res.toString()));
+		}
+		running.complete(js);
+	}
+
+	private void handleBinaryMessage(ByteBuffer buffer) throws IOException {
+		byte version = buffer.get();
+		if (version == SocketFrameBatcher.PROTOCOL_VERSION_BATCH) {
+			while (buffer.hasRemaining()) {
+				byte type = buffer.get();
+				long socketId = IOTools.getVarLong(buffer);
+				int len = (int) IOTools.getVarLong(buffer);
+				ByteBuffer body = buffer.slice();
+				body.limit(len);
+				buffer.position(buffer.position() + len);
+				handleSocketMessage(type, socketId, body);
+			}
+			return;
+		} else if (version != PROTOCOL_VERSION) {
+			throw new IOException("Unsupported protocol version: " + version);
+		}
+		byte type = buffer.get();
+		if (type == PUBLIC_KEY) {
+			byte[] pk = new byte[buffer.remaining()];
+			buffer.get(pk);
+			publicKey.complete(pk);
+			return;
+		}
+		handleSocketMessage(type, buffer.getLong(), buffer);
+	}
+
+	private void handleSocketMessage(byte type, long socketId, ByteBuffer body) throws IOException {
+		CloudSocket s = sockets.get(socketId);
+		if (s == null) {
+			return; // Closed by us, the target didn't know yet
+		}
+		if (type == NEW_SOCKET) {
+			s.connected.complete(body.get() != 0);
+		} else if (type == DATA) {
+			try {
+				s.received(body);
+			} catch (RuntimeException e) { // Deciphering
+				s.failed(new IOException("Bad data on socket " + socketId + ": " + e, e));
+				s.close();
+			}
+		} else if (type == CREDIT) {
+			s.granted(body.getInt());
+		} else if (type == CLOSE) {
+			s.closedByTarget();
+		} else {
+			s.failed(new IOException("Unexpected message type " + type));
+			s.close();
+		}
+	}
+
+	@Override
+	public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
+		log.warn("Transport error: {}", exception.toString());
+	}
+
+	@Override
+	public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+		if (session != target) {
+			return;
+		}
+		for (CloudSocket s : sockets.values()) {
+			s.failed(new IOException("Target disconnected: " + closeStatus));
+		}
+		target = null;
+	}
+
+	@Override
+	public boolean supportsPartialMessages() {
+		return false;
+	}
+
+	/**
+	 * Cloud end of a socket, a byte stream each way. One writer and one reader at
+	 * a time.
+	 */
+	public final class CloudSocket {
+		private final long socketId;
+		/** For commands the session cipher, otherwise the e2e one or null */
+		private final Paired cipher;
+		private final boolean terminal;
+		private final FrameChecksum sendChecksum;
+		private final FrameChecksum receiveChecksum;
+
+		// Receive side. Use with this monitor.
+		private final ArrayDeque<ByteBuffer> received = new ArrayDeque<>();
+		private boolean eof = false;
+		private IOException error = null;
+		private int unacked = 0;
+		private long receivedBytes = 0;
+
+		// Send side. Use with sendMonitor.
+		private final Object sendMonitor = new Object();
+		private long credit = WINDOW;
+		private long sentBytes = 0;
+
+		private final CompletableFuture<Boolean> connected = new CompletableFuture<>();
+		private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+		private CloudSocket(long socketId, Paired cipher, boolean terminal) {
+			this.socketId = socketId;
+			this.cipher = cipher;
+			this.terminal = terminal;
+			this.sendChecksum = checksumType.create();
+			this.receiveChecksum = checksumType.create();
+		}
+
+		public long getSocketId() {
+			return socketId;
+		}
+
+		/**
+		 * Completed with the result of the tcp connection, for tcp and socks5 sockets
+		 */
+		public CompletableFuture<Boolean> getConnected() {
+			return connected;
+		}
+
+		/**
+		 * Completed when the socket is closed by either side
+		 */
+		public CompletableFuture<Void> getClosed() {
+			return closed;
+		}
+
+		/**
+		 * Payload bytes received from the target so far, plain
+		 */
+		public synchronized long getReceivedBytes() {
+			return receivedBytes;
+		}
+
+		public long getSentBytes() {
+			synchronized (sendMonitor) {
+				return sentBytes;
+			}
+		}
+
+		/**
+		 * Sends it in frames, waiting for credit like the cloud does
+		 */
+		public void write(byte[] data, int off, int len) throws IOException, InterruptedException {
+			int max = terminal ? MAX_DATA - 6 - cipher.getMaxOverhead() : cipher != null ? MAX_DATA - GCM_TAG : MAX_DATA;
+			synchronized (sendMonitor) {
+				while (len > 0) {
+					int n = Math.min(len, max);
+					sendFrame(ByteBuffer.wrap(data, off, n));
+					sentBytes += n;
+					off += n;
+					len -= n;
+				}
+			}
+		}
+
+		public void write(byte[] data) throws IOException, InterruptedException {
+			write(data, 0, data.length);
+		}
+
+		/**
+		 * Use with sendMonitor
+		 */
+		private void sendFrame(ByteBuffer plain) throws IOException, InterruptedException {
+			ByteBuffer m = ByteBuffer.allocate(2 + 8 + 4 + MAX_DATA);
+			m.put(PROTOCOL_VERSION).put(DATA).putLong(socketId).putInt(0);
+			int start = m.position();
+			if (terminal) {
+				ByteBuffer ciphered = ByteBuffer.allocate(plain.remaining() + cipher.getMaxOverhead());
+				cipher.cipher(plain, ciphered);
+				ciphered.flip();
+				m.put(TERM_PROTOCOL_VERSION).put(TERM_TYPE).putInt(ciphered.remaining()).put(ciphered);
+			} else if (cipher != null) {
+				cipher.cipher(plain, m);
+			} else {
+				m.put(plain);
+			}
+			m.flip();
+			int wireLen = m.limit() - start;
+			if (sendChecksum.isEnabled()) {
+				ByteBuffer payload = m.duplicate();
+				payload.position(start);
+				sendChecksum.update(payload);
+				m.putInt(start - 4, (int) sendChecksum.getValue());
+			}
+			if (flowControlOn) {
+				while (credit <= 0) {
+					if (closed.isDone()) {
+						throw new IOException("Socket closed");
+					}
+					sendMonitor.wait(100);
+				}
+				credit -= wireLen;
+			}
+			send(m);
+		}
+
+		private void granted(int bytes) {
+			synchronized (sendMonitor) {
+				credit += bytes;
+				sendMonitor.notifyAll();
+			}
+		}
+
+		private void received(ByteBuffer body) throws IOException {
+			int crc = body.getInt();
+			int wireLen = body.remaining();
+			if (receiveChecksum.isEnabled()) {
+				receiveChecksum.update(body.duplicate());
+				if ((int) receiveChecksum.getValue() != crc) {
+					failed(new IOException("Checksum error on socket " + socketId));
+					close();
+					return;
+				}
+			}
+			ByteBuffer plain;
+			if (terminal) {
+				if (body.get() != TERM_PROTOCOL_VERSION) {
+					throw new IOException("Unsupported terminal protocol version");
+				}
+				body.get(); // stdout or stderr, mixed
+				plain = ByteBuffer.allocate(body.remaining());
+				if (body.hasRemaining()) { // Empty is eof of that stream
+					cipher.decipher(body, plain);
+				}
+				plain.flip();
+			} else if (cipher != null) {
+				plain = ByteBuffer.allocate(wireLen);
+				cipher.decipher(body, plain);
+				plain.flip();
+			} else {
+				plain = ByteBuffer.allocate(wireLen);
+				plain.put(body).flip();
+			}
+			synchronized (this) {
+				receivedBytes += plain.remaining();
+				if (plain.hasRemaining()) {
+					received.add(plain);
+				}
+				notifyAll();
+			}
+			consumed(wireLen - plain.remaining()); // Overhead, nobody will read it
+		}
+
+		/**
+		 * @return bytes read, or -1 at end of stream
+		 * @throws TimeoutException if nothing comes in time
+		 */
+		public int read(byte[] b, int off, int len, long timeout, TimeUnit unit)
+				throws IOException, InterruptedException, TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			int n = 0;
+			synchronized (this) {
+				while (received.isEmpty()) {
+					if (error != null) {
+						throw error;
+					} else if (eof) {
+						return -1;
+					}
+					long left = deadline - System.nanoTime();
+					if (left <= 0) {
+						throw new TimeoutException("Nothing received on socket " + socketId);
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, left);
+				}
+				while (n < len && !received.isEmpty()) {
+					ByteBuffer head = received.peek();
+					int c = Math.min(len - n, head.remaining());
+					head.get(b, off + n, c);
+					n += c;
+					if (!head.hasRemaining()) {
+						received.poll();
+					}
+				}
+			}
+			consumed(n);
+			return n;
+		}
+
+		/**
+		 * Reads exactly len bytes
+		 */
+		public byte[] readFully(int len, long timeout, TimeUnit unit) throws Exception {
+			byte[] b = new byte[len];
+			int n = 0;
+			while (n < len) {
+				int r = read(b, n, len - n, timeout, unit);
+				if (r < 0) {
+					throw new IOException("End of stream after " + n + " of " + len + " bytes");
+				}
+				n += r;
+			}
+			return b;
+		}
+
+		/**
+		 * Reads until the target closes it
+		 */
+		public byte[] readAll(long timeout, TimeUnit unit) throws Exception {
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			byte[] b = new byte[MAX_DATA];
+			int r;
+			while ((r = read(b, 0, b.length, timeout, unit)) >= 0) {
+				out.write(b, 0, r);
+			}
+			return out.toByteArray();
+		}
+
+		/**
+		 * Gives credit back as the bytes are read
+		 */
+		private void consumed(int bytes) throws IOException {
+			if (!flowControlOn || bytes <= 0) {
+				return;
+			}
+			int grant = 0;
+			synchronized (this) {
+				unacked += bytes;
+				if (unacked >= GRANT_EVERY) {
+					grant = unacked;
+					unacked = 0;
+				}
+			}
+			if (grant > 0 && !closed.isDone()) {
+				ByteBuffer m = ByteBuffer.allocate(2 + 8 + 4);
+				m.put(PROTOCOL_VERSION).put(CREDIT).putLong(socketId).putInt(grant).flip();
+				send(m);
+			}
+		}
+
+		private void closedByTarget() {
+			synchronized (this) {
+				eof = true;
+				notifyAll();
+			}
+			ended();
+		}
+
+		private void failed(IOException e) {
+			synchronized (this) {
+				if (error == null) {
+					error = e;
+				}
+				notifyAll();
+			}
+			ended();
+		}
+
+		private void ended() {
+			sockets.remove(socketId, this);
+			synchronized (sendMonitor) {
+				sendMonitor.notifyAll();
+			}
+			connected.complete(false);
+			closed.complete(null);
+		}
+
+		/**
+		 * Closes it on both ends
+		 */
+		public void close() throws IOException {
+			if (closed.isDone()) {
+				return;
+			}
+			synchronized (this) {
+				eof = true;
+				notifyAll();
+			}
+			ended();
+			ByteBuffer m = ByteBuffer.allocate(2 + 8);
+			m.put(PROTOCOL_VERSION).put(CLOSE).putLong(socketId).flip();
+			send(m);
+		}
+	}
+
+}
@@ -0,0 +1,230 @@
+package org.aalku.joatse.target;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemFile;
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemFolder;
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemSocks5;
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemTcp;
+import org.aalku.joatse.target.LoopbackCloud.CloudSocket;
+import org.aalku.joatse.target.tools.QrGenerator.QrMode;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A real {@link JoatseClient} against a {@link LoopbackCloud}, through a
+ * websocket on localhost, for each kind of tunnel but commands (they need ssh).
+ * More than the flow control window goes each way.
+ */
+class LoopbackCloudTest {
+
+	private static final int BIG = 600 * 1024;
+
+	private LoopbackCloud cloud;
+	private JoatseClient client;
+	private EchoServer echo;
+
+	/**
+	 * Echoes every connection, on localhost
+	 */
+	static class EchoServer implements AutoCloseable {
+		private final ServerSocket server;
+
+		EchoServer() throws IOException {
+			server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			Thread t = new Thread(() -> {
+				while (!server.isClosed()) {
+					try {
+						Socket s = server.accept();
+						Thread e = new Thread(() -> echo(s), "echo-" + s.getPort());
+						e.setDaemon(true);
+						e.start();
+					} catch (IOException e) {
+						// Closed
+					}
+				}
+			}, "echo-server");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		private static void echo(Socket s) {
+			try (Socket c = s; InputStream in = c.getInputStream(); OutputStream out = c.getOutputStream()) {
+				byte[] b = new byte[16 * 1024];
+				int n;
+				while ((n = in.read(b)) >= 0) {
+					out.write(b, 0, n);
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		@Override
+		public void close() throws IOException {
+			server.close();
+		}
+	}
+
+	@BeforeEach
+	void setUp() throws Exception {
+		cloud = new LoopbackCloud();
+		echo = new EchoServer();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		if (client != null) {
+			client.shutdown();
+		}
+		cloud.close();
+		echo.close();
+	}
+
+	private void start(Set<TunnelRequestItemTcp> tcp, Optional<TunnelRequestItemSocks5> socks5,
+			Set<TunnelRequestItemFile> files, Set<TunnelRequestItemFolder> folders) throws Exception {
+		cloud.start();
+		client = new JoatseClient(cloud.getUrl(), QrMode.NONE);
+		cloud.connect(client, c -> c.createTunnel(tcp, Collections.emptySet(), socks5, Collections.emptySet(), files,
+				folders, Optional.of(UUID.randomUUID()), false));
+	}
+
+	/**
+	 * Writes it all while reading the echo, and checks it
+	 */
+	static void assertEchoes(CloudSocket s, byte[] data) throws Exception {
+		CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> {
+			try {
+				return s.readFully(data.length, 10, TimeUnit.SECONDS);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		s.write(data);
+		Assertions.assertArrayEquals(data, read.get(20, TimeUnit.SECONDS));
+	}
+
+	private static byte[] random(int len) {
+		byte[] b = new byte[len];
+		new Random(len).nextBytes(b);
+		return b;
+	}
+
+	private void tcpEcho() throws Exception {
+		TunnelRequestItemTcp tcp = new TunnelRequestItemTcp("127.0.0.1", echo.getPort(), "echo");
+		start(Collections.singleton(tcp), Optional.empty(), Collections.emptySet(), Collections.emptySet());
+		CloudSocket s = cloud.open(tcp.targetId, null);
+		Assertions.assertTrue(s.getConnected().get(10, TimeUnit.SECONDS));
+		assertEchoes(s, random(BIG));
+		assertEchoes(s, "hello".getBytes(StandardCharsets.UTF_8));
+		s.close();
+	}
+
+	@Test
+	void testTcp() throws Exception {
+		tcpEcho();
+	}
+
+	@Test
+	void testTcpEndToEndCiphered() throws Exception {
+		cloud.setE2eSockets(true);
+		cloud.setIntegrity("crc32c");
+		tcpEcho();
+	}
+
+	@Test
+	void testSocks5() throws Exception {
+		TunnelRequestItemSocks5 socks5 = new TunnelRequestItemSocks5(Arrays.asList("127.0.0.1:" + echo.getPort()));
+		start(Collections.emptySet(), Optional.of(socks5), Collections.emptySet(), Collections.emptySet());
+		CloudSocket s = cloud.open(socks5.targetId, null);
+		s.write(new byte[] { 5, 1, 0 });
+		Assertions.assertArrayEquals(new byte[] { 5, 0 }, s.readFully(2, 10, TimeUnit.SECONDS));
+		ByteBuffer connect = ByteBuffer.allocate(10);
+		connect.put(new byte[] { 5, 1, 0, 1, 127, 0, 0, 1 }).putShort((short) echo.getPort());
+		s.write(connect.array());
+		Assertions.assertEquals(0, s.readFully(10, 10, TimeUnit.SECONDS)[1], "Socks5 reply");
+		assertEchoes(s, random(BIG));
+		s.close();
+	}
+
+	@Test
+	void testFile(@TempDir Path dir) throws Exception {
+		fileDownload(dir);
+	}
+
+	@Test
+	void testFileEndToEndCiphered(@TempDir Path dir) throws Exception {
+		cloud.setE2eSockets(true);
+		fileDownload(dir);
+	}
+
+	private void fileDownload(Path dir) throws Exception {
+		byte[] data = random(BIG);
+		Path file = dir.resolve("data.bin");
+		Files.write(file, data);
+		TunnelRequestItemFile item = new TunnelRequestItemFile(file.toString(), "data", "data.bin");
+		start(Collections.emptySet(), Optional.empty(), Collections.singleton(item), Collections.emptySet());
+
+		ByteBuffer res = ByteBuffer.wrap(cloud.open(item.targetId, LoopbackCloud.fileRequest(0, -1)).readAll(10, TimeUnit.SECONDS));
+		Assertions.assertEquals(1, res.get());
+		byte[] metadata = new byte[res.getInt()];
+		res.get(metadata);
+		Assertions.assertEquals(BIG, new JSONObject(new String(metadata, StandardCharsets.UTF_8)).getLong("fileSize"));
+		byte[] content = new byte[res.remaining()];
+		res.get(content);
+		Assertions.assertArrayEquals(data, content);
+
+		res = ByteBuffer.wrap(cloud.open(item.targetId, LoopbackCloud.fileRequest(100, 10)).readAll(10, TimeUnit.SECONDS));
+		res.get();
+		int metadataLen = res.getInt();
+		res.position(res.position() + metadataLen);
+		Assertions.assertEquals(ByteBuffer.wrap(data, 100, 10), res);
+	}
+
+	@Test
+	void testFolderList(@TempDir Path dir) throws Exception {
+		for (int i = 0; i < 5; i++) {
+			Files.write(dir.resolve("file-" + i), new byte[i]);
+		}
+		TunnelRequestItemFolder item = new TunnelRequestItemFolder(dir.toString(), "folder", true);
+		start(Collections.emptySet(), Optional.empty(), Collections.emptySet(), Collections.singleton(item));
+
+		ByteBuffer res = ByteBuffer.wrap(cloud.open(item.targetId, LoopbackCloud.folderListRequest("/", 0, 100)).readAll(10, TimeUnit.SECONDS));
+		Assertions.assertEquals(1, res.get());
+		byte[] json = new byte[res.getInt()];
+		res.get(json);
+		JSONArray items = new JSONObject(new String(json, StandardCharsets.UTF_8)).getJSONArray("items");
+		Set<String> names = new HashSet<>();
+		for (int i = 0; i < items.length(); i++) {
+			names.add(items.getJSONObject(i).getString("name"));
+		}
+		Assertions.assertTrue(names.containsAll(Arrays.asList("file-0", "file-1", "file-2", "file-3", "file-4")), names.toString());
+	}
+}
@@ -0,0 +1,359 @@
+package org.aalku.joatse.target;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemCommand;
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemFile;
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemFolder;
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemHttp;
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemSocks5;
+import org.aalku.joatse.target.JoatseClient.TunnelRequestItemTcp;
+import org.aalku.joatse.target.LoopbackCloud.CloudSocket;
+import org.aalku.joatse.target.LoopbackCloudTest.EchoServer;
+import org.aalku.joatse.target.tools.QrGenerator.QrMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Throughput, round trip latency (p50, p99) and CPU per byte of each tunnel
+ * type, end to end through a {@link LoopbackCloud}: mvn test
+ * -Dtest=LoopbackPerformanceReal. Compare the numbers before and after a
+ * change, on the same machine.
+ *
+ * CPU is of the whole process, so it includes the cloud side, the websocket
+ * and the echo server, all on localhost. Commands only measure the time to
+ * the banner: running one needs ssh with a password.
+ *
+ * Every type but commands also runs with its sockets ciphered end to end, as
+ * "name e2e", for the cost of it.
+ */
+class LoopbackPerformanceReal {
+
+	private static final int BULK = 64 * 1024 * 1024;
+	private static final int ROUND_TRIPS = 2000;
+	private static final int REQUESTS = 200;
+	private static final long TIMEOUT_S = 30;
+
+	private final com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory
+			.getOperatingSystemMXBean();
+
+	private LoopbackCloud cloud;
+	private JoatseClient client;
+	private EchoServer echo;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		cloud = new LoopbackCloud();
+		echo = new EchoServer();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		if (client != null) {
+			client.shutdown();
+		}
+		cloud.close();
+		echo.close();
+	}
+
+	private void start(TunnelRequestItemTcp tcp, TunnelRequestItemHttp http, TunnelRequestItemSocks5 socks5,
+			TunnelRequestItemCommand command, TunnelRequestItemFile file, TunnelRequestItemFolder folder)
+			throws Exception {
+		cloud.start();
+		client = new JoatseClient(cloud.getUrl(), QrMode.NONE);
+		cloud.connect(client, c -> c.createTunnel(set(tcp), set(http), Optional.ofNullable(socks5),
+				set(command), set(file), set(folder), Optional.of(UUID.randomUUID()), false));
+	}
+
+	private static <T> Set<T> set(T item) {
+		return item == null ? Collections.emptySet() : Collections.singleton(item);
+	}
+
+	/**
+	 * Time and process CPU from its creation to the report
+	 */
+	private final class Measure {
+		private final long t0 = System.nanoTime();
+		private final long cpu0 = os.getProcessCpuTime();
+
+		void report(String what, long bytes) {
+			long nanos = System.nanoTime() - t0;
+			long cpu = os.getProcessCpuTime() - cpu0;
+			System.out.println(String.format("%-12s throughput %8.1f MB/s, cpu %6.2f ns/byte (%d MB in %d ms)", what,
+					bytes / 1024d / 1024d / (nanos / 1e9), (double) cpu / bytes, bytes / 1024 / 1024,
+					TimeUnit.NANOSECONDS.toMillis(nanos)));
+		}
+	}
+
+	private static void reportLatency(String what, long[] nanos) {
+		Arrays.sort(nanos);
+		System.out.println(String.format("%-12s latency p50 %8.1f us, p99 %8.1f us (%d samples)", what,
+				nanos[nanos.length / 2] / 1000d, nanos[nanos.length * 99 / 100] / 1000d, nanos.length));
+	}
+
+	/**
+	 * Writes it all while another thread reads the echo
+	 */
+	private void bulkEcho(String what, CloudSocket s) throws Exception {
+		byte[] chunk = new byte[256 * 1024];
+		new Random(1).nextBytes(chunk);
+		Measure m = new Measure();
+		CompletableFuture<Long> read = CompletableFuture.supplyAsync(() -> {
+			byte[] b = new byte[64 * 1024];
+			long total = 0;
+			try {
+				while (total < BULK) {
+					int r = s.read(b, 0, b.length, TIMEOUT_S, TimeUnit.SECONDS);
+					if (r < 0) {
+						break;
+					}
+					total += r;
+				}
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			return total;
+		});
+		for (int sent = 0; sent < BULK; sent += chunk.length) {
+			s.write(chunk);
+		}
+		Assertions.assertEquals(BULK, read.get(TIMEOUT_S * 4, TimeUnit.SECONDS).longValue());
+		m.report(what, BULK);
+	}
+
+	private void pingPong(String what, CloudSocket s) throws Exception {
+		byte[] ping = new byte[64];
+		long[] nanos = new long[ROUND_TRIPS];
+		for (int i = -ROUND_TRIPS / 10; i < ROUND_TRIPS; i++) { // Some warmup
+			long t0 = System.nanoTime();
+			s.write(ping);
+			s.readFully(ping.length, TIMEOUT_S, TimeUnit.SECONDS);
+			if (i >= 0) {
+				nanos[i] = System.nanoTime() - t0;
+			}
+		}
+		reportLatency(what, nanos);
+	}
+
+	@Test
+	void tcp() throws Exception {
+		tcp("tcp");
+	}
+
+	@Test
+	void tcpEndToEnd() throws Exception {
+		cloud.setE2eSockets(true);
+		tcp("tcp e2e");
+	}
+
+	private void tcp(String what) throws Exception {
+		TunnelRequestItemTcp tcp = new TunnelRequestItemTcp("127.0.0.1", echo.getPort(), "echo");
+		start(tcp, null, null, null, null, null);
+		CloudSocket s = cloud.open(tcp.targetId, null);
+		Assertions.assertTrue(s.getConnected().get(TIMEOUT_S, TimeUnit.SECONDS));
+		pingPong(what, s);
+		bulkEcho(what, s);
+		s.close();
+	}
+
+	@Test
+	void socks5() throws Exception {
+		socks5("socks5");
+	}
+
+	@Test
+	void socks5EndToEnd() throws Exception {
+		cloud.setE2eSockets(true);
+		socks5("socks5 e2e");
+	}
+
+	private void socks5(String what) throws Exception {
+		TunnelRequestItemSocks5 socks5 = new TunnelRequestItemSocks5(Arrays.asList("127.0.0.1:" + echo.getPort()));
+		start(null, null, socks5, null, null, null);
+		long[] nanos = new long[REQUESTS];
+		CloudSocket s = null;
+		for (int i = 0; i < REQUESTS; i++) { // Handshakes
+			if (s != null) {
+				s.close();
+			}
+			long t0 = System.nanoTime();
+			s = cloud.open(socks5.targetId, null);
+			s.write(new byte[] { 5, 1, 0 });
+			s.readFully(2, TIMEOUT_S, TimeUnit.SECONDS);
+			ByteBuffer connect = ByteBuffer.allocate(10);
+			connect.put(new byte[] { 5, 1, 0, 1, 127, 0, 0, 1 }).putShort((short) echo.getPort());
+			s.write(connect.array());
+			Assertions.assertEquals(0, s.readFully(10, TIMEOUT_S, TimeUnit.SECONDS)[1], "Socks5 reply");
+			nanos[i] = System.nanoTime() - t0;
+		}
+		reportLatency(what + " handshake", nanos);
+		pingPong(what, s);
+		bulkEcho(what, s);
+		s.close();
+	}
+
+	@Test
+	void http() throws Exception {
+		http("http");
+	}
+
+	@Test
+	void httpEndToEnd() throws Exception {
+		cloud.setE2eSockets(true);
+		http("http e2e");
+	}
+
+	/**
+	 * One request per socket, like a browser through the cloud without keep-alive
+	 */
+	private void http(String what) throws Exception {
+		byte[] small = new byte[1024];
+		byte[] chunk = new byte[1024 * 1024];
+		new Random(1).nextBytes(chunk);
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/small", x -> {
+			x.sendResponseHeaders(200, small.length);
+			try (OutputStream out = x.getResponseBody()) {
+				out.write(small);
+			}
+		});
+		server.createContext("/bulk", x -> {
+			x.sendResponseHeaders(200, BULK);
+			try (OutputStream out = x.getResponseBody()) {
+				for (int i = 0; i < BULK / chunk.length; i++) {
+					out.write(chunk);
+				}
+			}
+		});
+		server.start();
+		try {
+			TunnelRequestItemHttp http = new TunnelRequestItemHttp(
+					new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/"), "http", false, false);
+			start(null, http, null, null, null, null);
+			long[] nanos = new long[REQUESTS];
+			for (int i = 0; i < REQUESTS; i++) {
+				long t0 = System.nanoTime();
+				Assertions.assertTrue(httpGet(http, "/small").length > small.length);
+				nanos[i] = System.nanoTime() - t0;
+			}
+			reportLatency(what + " GET 1KB", nanos);
+			Measure m = new Measure();
+			byte[] all = httpGet(http, "/bulk");
+			Assertions.assertTrue(all.length > BULK);
+			m.report(what, all.length);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private byte[] httpGet(TunnelRequestItemHttp http, String path) throws Exception {
+		CloudSocket s = cloud.open(http.targetId, null);
+		s.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII));
+		return s.readAll(TIMEOUT_S * 4, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void file(@TempDir Path dir) throws Exception {
+		file("file", dir);
+	}
+
+	@Test
+	void fileEndToEnd(@TempDir Path dir) throws Exception {
+		cloud.setE2eSockets(true);
+		file("file e2e", dir);
+	}
+
+	private void file(String what, Path dir) throws Exception {
+		Path path = dir.resolve("bulk.bin");
+		byte[] chunk = new byte[1024 * 1024];
+		new Random(1).nextBytes(chunk);
+		try (OutputStream out = Files.newOutputStream(path)) {
+			for (int i = 0; i < BULK / chunk.length; i++) {
+				out.write(chunk);
+			}
+		}
+		TunnelRequestItemFile file = new TunnelRequestItemFile(path.toString(), "bulk", "bulk.bin");
+		start(null, null, null, null, file, null);
+		long[] nanos = new long[REQUESTS];
+		for (int i = 0; i < REQUESTS; i++) {
+			long t0 = System.nanoTime();
+			cloud.open(file.targetId, LoopbackCloud.fileRequest(i * 1024, 1024)).readAll(TIMEOUT_S, TimeUnit.SECONDS);
+			nanos[i] = System.nanoTime() - t0;
+		}
+		reportLatency(what + " 1KB", nanos);
+		Measure m = new Measure();
+		byte[] all = cloud.open(file.targetId, LoopbackCloud.fileRequest(0, -1)).readAll(TIMEOUT_S * 4, TimeUnit.SECONDS);
+		Assertions.assertTrue(all.length > BULK);
+		m.report(what, all.length);
+	}
+
+	@Test
+	void folder(@TempDir Path dir) throws Exception {
+		folder("folder", dir);
+	}
+
+	@Test
+	void folderEndToEnd(@TempDir Path dir) throws Exception {
+		cloud.setE2eSockets(true);
+		folder("folder e2e", dir);
+	}
+
+	private void folder(String what, Path dir) throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			Files.write(dir.resolve("file-" + i + ".txt"), new byte[i % 100]);
+		}
+		TunnelRequestItemFolder folder = new TunnelRequestItemFolder(dir.toString(), "folder", true);
+		start(null, null, null, null, null, folder);
+		long[] nanos = new long[REQUESTS];
+		long bytes = 0;
+		Measure m = new Measure();
+		for (int i = 0; i < REQUESTS; i++) {
+			long t0 = System.nanoTime();
+			bytes += cloud.open(folder.targetId, LoopbackCloud.folderListRequest("/", 0, 100)).readAll(TIMEOUT_S,
+					TimeUnit.SECONDS).length;
+			nanos[i] = System.nanoTime() - t0;
+		}
+		m.report(what, bytes);
+		reportLatency(what + " LIST 100 of 1000", nanos);
+	}
+
+	@Test
+	void command() throws Exception {
+		// Nobody listens there, ssh fails after the banner
+		TunnelRequestItemCommand command = new TunnelRequestItemCommand(new String[] { "true" }, "nobody", "127.0.0.1", 1,
+				"banner");
+		start(null, null, null, command, null, null);
+		byte[] banner = "Running command".getBytes(StandardCharsets.UTF_8);
+		long[] nanos = new long[REQUESTS / 10];
+		for (int i = 0; i < nanos.length; i++) {
+			long t0 = System.nanoTime();
+			CloudSocket s = cloud.openCommand(command.targetId);
+			Assertions.assertArrayEquals(banner, s.readFully(banner.length, TIMEOUT_S, TimeUnit.SECONDS));
+			nanos[i] = System.nanoTime() - t0;
+			s.close();
+		}
+		reportLatency("command banner", nanos);
+	}
+}
@@ -0,0 +1,73 @@
+package org.aalku.joatse.target;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Loads classes from BOOT-INF/classes of the jar built by spring-boot-maven-plugin,
+ * the way the launcher does, to check the runtime dependent choices hold in
+ * it. Run by failsafe after package: mvn -B verify
+ */
+class PackagedJarIT {
+
+	private URLClassLoader loader;
+
+	@BeforeEach
+	void open() throws Exception {
+		File jar = new File(System.getProperty("packagedJar", "target/joatse-target-0.1.0-SNAPSHOT.jar"));
+		Assertions.assertTrue(jar.isFile(), "No packaged jar: " + jar);
+		URL classes = new URL("jar:" + jar.toURI() + "!/BOOT-INF/classes/");
+		// No parent but the JDK, so nothing comes from target/classes
+		loader = new URLClassLoader(new URL[] { classes }, ClassLoader.getSystemClassLoader().getParent());
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		loader.close();
+	}
+
+	private static int javaVersion() {
+		String v = System.getProperty("java.specification.version");
+		return Integer.parseInt(v.startsWith("1.") ? v.substring(2) : v);
+	}
+
+	@Test
+	void threadsAreVirtualOnJava21() throws Exception {
+		Class<?> threads = loader.loadClass("org.aalku.joatse.target.tools.concurrent.Threads");
+		Assertions.assertSame(loader, threads.getClassLoader());
+		boolean expected = javaVersion() >= 21 && !"false".equals(System.getProperty("joatse.virtualThreads"));
+		Assertions.assertEquals(expected, threads.getMethod("isVirtual").invoke(null));
+
+		Thread t = (Thread) threads.getMethod("newThread", String.class, Runnable.class).invoke(null, "test",
+				(Runnable) () -> {});
+		ThreadFactory f = (ThreadFactory) threads.getMethod("factory", String.class).invoke(null, "pool");
+		Thread t0 = f.newThread(() -> {});
+		Thread t1 = f.newThread(() -> {});
+		Assertions.assertEquals("test", t.getName());
+		Assertions.assertEquals("pool_0", t0.getName());
+		Assertions.assertEquals("pool_1", t1.getName());
+		if (javaVersion() >= 21) {
+			Method isVirtual = Thread.class.getMethod("isVirtual");
+			Assertions.assertEquals(expected, isVirtual.invoke(t));
+			Assertions.assertEquals(expected, isVirtual.invoke(t0));
+		}
+	}
+
+	@Test
+	void crc32cIsTheIntrinsicOnJava9() throws Exception {
+		Class<?> crc32c = loader.loadClass("org.aalku.joatse.target.tools.io.Crc32c");
+		Assertions.assertSame(loader, crc32c.getClassLoader());
+		Method isIntrinsic = crc32c.getDeclaredMethod("isIntrinsic");
+		isIntrinsic.setAccessible(true);
+		Assertions.assertEquals(javaVersion() >= 9, isIntrinsic.invoke(null));
+	}
+
+}
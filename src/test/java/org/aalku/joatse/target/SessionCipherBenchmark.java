@@ -0,0 +1,85 @@
+package org.aalku.joatse.target;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.tools.cipher.JoatseCipher;
+import org.aalku.joatse.target.tools.cipher.JoatseCipher.Paired;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Command session cipher, CBC and GCM, in messages per millisecond. A typed key
+ * (16 bytes) and a full frame of output (63KB), on direct buffers like the
+ * pooled frames.
+ *
+ * "cipher" is what the target does with command output. "roundTrip" adds the
+ * peer deciphering it, for GCM that includes checking the tag.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionCipherBenchmark {
+
+	@Param({ "aes-cbc", "aes-gcm" })
+	public String mode;
+
+	@Param({ "16", "64000" })
+	public int size;
+
+	private Paired me;
+	private Paired peer;
+	private ByteBuffer plain;
+	private ByteBuffer ciphered;
+	private ByteBuffer out;
+
+	@Setup
+	public void setup() {
+		byte[] key = new byte[16];
+		new Random(1).nextBytes(key);
+		JoatseCipher.Mode m = mode.equals("aes-gcm") ? JoatseCipher.Mode.GCM : JoatseCipher.Mode.CBC;
+		me = JoatseCipher.forPredefinedSecret(key, m);
+		peer = me.reverse();
+		byte[] data = new byte[size];
+		new Random(2).nextBytes(data);
+		plain = ByteBuffer.allocateDirect(size);
+		plain.put(data).flip();
+		ciphered = ByteBuffer.allocateDirect(size + me.getMaxOverhead());
+		out = ByteBuffer.allocateDirect(size + 16);
+	}
+
+	@Benchmark
+	public ByteBuffer cipher() {
+		plain.position(0);
+		ciphered.clear();
+		me.cipher(plain, ciphered);
+		return ciphered;
+	}
+
+	@Benchmark
+	public ByteBuffer roundTrip() {
+		cipher().flip();
+		out.clear();
+		peer.decipher(ciphered, out);
+		return out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(SessionCipherBenchmark.class.getSimpleName()).build()).run();
+	}
+}
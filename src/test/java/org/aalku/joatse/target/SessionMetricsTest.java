@@ -0,0 +1,115 @@
+package org.aalku.joatse.target;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.aalku.joatse.target.SocketSendBenchmark.SendingConnection;
+import org.aalku.joatse.target.connection.TunnelStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SessionMetricsTest {
+
+	/** DATA, see TunnelConnection */
+	private static final byte MESSAGE_SOCKET_DATA = 2;
+
+	private JoatseSession session;
+	private SessionMetrics metrics;
+
+	@BeforeEach
+	void setUp() {
+		session = new JoatseSession(new CountingWebSocketSession("metrics"));
+		metrics = session.publishMetrics(0);
+	}
+
+	@AfterEach
+	void tearDown() {
+		session.close();
+	}
+
+	private SendingConnection open(long socketId, String tunnelType) {
+		SendingConnection c = new SendingConnection(session, socketId);
+		c.setTunnelStats(session.getTunnelStats(tunnelType));
+		session.add(c);
+		return c;
+	}
+
+	private static ByteBuffer dataMessage(CRC32 crc, byte[] data) {
+		crc.update(data);
+		ByteBuffer b = ByteBuffer.allocate(4 + data.length);
+		b.putInt((int) crc.getValue()).put(data).flip();
+		return b;
+	}
+
+	@Test
+	void testCounters() throws Exception {
+		SendingConnection tcp = open(1L, "tcp");
+		SendingConnection file = open(2L, "file");
+		for (int i = 0; i < 3; i++) {
+			tcp.send(ByteBuffer.wrap(new byte[100]));
+		}
+		file.send(ByteBuffer.wrap(new byte[1000]));
+		CRC32 crc = new CRC32();
+		tcp.receivedTunnelMessage(dataMessage(crc, new byte[10]), MESSAGE_SOCKET_DATA);
+		tcp.receivedTunnelMessage(dataMessage(crc, new byte[20]), MESSAGE_SOCKET_DATA);
+
+		Assertions.assertEquals(300, tcp.getBytesSent());
+		Assertions.assertEquals(3, tcp.getFramesSent());
+		Assertions.assertEquals(30, tcp.getBytesReceived());
+		Assertions.assertEquals(2, tcp.getFramesReceived());
+		TunnelStats t = session.getTunnelStats("tcp");
+		Assertions.assertEquals(300, t.getBytesSent());
+		Assertions.assertEquals(30, t.getBytesReceived());
+		Assertions.assertEquals(1000, session.getTunnelStats("file").getBytesSent());
+		Assertions.assertEquals(4, session.getSendStats().getMessages());
+
+		Map<String, Integer> active = session.getActiveConnections();
+		Assertions.assertEquals(Integer.valueOf(1), active.get("tcp"));
+		Assertions.assertEquals(Integer.valueOf(1), active.get("file"));
+
+		tcp.close();
+		file.close(new IOException("Broken"), false);
+		Assertions.assertEquals(Collections.emptyMap(), session.getActiveConnections());
+		Assertions.assertEquals(1, t.getOpened());
+		Assertions.assertEquals(1, t.getClosed());
+		Assertions.assertEquals(Collections.emptyMap(), t.getErrors());
+		Assertions.assertEquals(Collections.singletonMap("IOException", 1L), metrics.getCloseErrors());
+	}
+
+	@Test
+	void testLogLineHasDeltas() throws Exception {
+		Assertions.assertNull(metrics.formatLine(), "Nothing happened");
+		SendingConnection c = open(1L, "socks5");
+		c.send(ByteBuffer.wrap(new byte[123]));
+		String line = metrics.formatLine();
+		Assertions.assertTrue(line.contains("socks5[open=1 out=123B/1f in=0B/0f +1 -0 err=0]"), line);
+		line = metrics.formatLine();
+		Assertions.assertTrue(line.contains("socks5[open=1 out=0B/0f"), line);
+		c.close();
+		line = metrics.formatLine();
+		Assertions.assertTrue(line.contains("socks5[open=0 out=0B/0f in=0B/0f +0 -1 err=0]"), line);
+	}
+
+	@Test
+	void testJmx() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.aalku.joatse.target:type=Session,name=" + ObjectName.quote("metrics"));
+		Assertions.assertTrue(server.isRegistered(name));
+		open(1L, "tcp").send(ByteBuffer.wrap(new byte[50]));
+		TabularData bytes = (TabularData) server.getAttribute(name, "BytesSent");
+		Assertions.assertEquals(50L, bytes.get(new Object[] { "tcp" }).get("value"));
+		Assertions.assertEquals(0, server.getAttribute(name, "SendQueueDepth"));
+		session.close();
+		Assertions.assertFalse(server.isRegistered(name));
+	}
+}
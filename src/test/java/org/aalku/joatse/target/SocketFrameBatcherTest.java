@@ -0,0 +1,68 @@
+package org.aalku.joatse.target;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.aalku.joatse.target.connection.TunnelConnection;
+import org.aalku.joatse.target.tools.io.IOTools;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+class SocketFrameBatcherTest {
+
+	private static BinaryMessage v1(byte type, long socketId, byte[] body) {
+		ByteBuffer b = ByteBuffer.allocate(10 + body.length);
+		b.put(JoatseSession.PROTOCOL_VERSION);
+		b.put(type);
+		b.putLong(socketId);
+		b.put(body);
+		b.flip();
+		return new BinaryMessage(b);
+	}
+
+	@Test
+	void packsSubFramesWithVarintHeaders() {
+		SocketFrameBatcher batcher = new SocketFrameBatcher();
+		byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+		BinaryMessage m1 = v1(TunnelConnection.MESSAGE_SOCKET_DATA, 5, data);
+		BinaryMessage m2 = v1(TunnelConnection.MESSAGE_SOCKET_CLOSE, Long.MAX_VALUE, new byte[0]);
+		Assertions.assertTrue(batcher.add(m1));
+		Assertions.assertTrue(batcher.add(m2));
+		Assertions.assertEquals(10 + data.length, m1.getPayload().remaining(), "source must be untouched");
+
+		ByteBuffer b = ((BinaryMessage) batcher.build()).getPayload();
+		Assertions.assertEquals(SocketFrameBatcher.PROTOCOL_VERSION_BATCH, b.get());
+		Assertions.assertEquals(TunnelConnection.MESSAGE_SOCKET_DATA, b.get());
+		Assertions.assertEquals(5L, IOTools.getVarLong(b));
+		Assertions.assertEquals((long) data.length, IOTools.getVarLong(b));
+		byte[] got = new byte[data.length];
+		b.get(got);
+		Assertions.assertArrayEquals(data, got);
+		Assertions.assertEquals(TunnelConnection.MESSAGE_SOCKET_CLOSE, b.get());
+		Assertions.assertEquals(Long.MAX_VALUE, IOTools.getVarLong(b));
+		Assertions.assertEquals(0L, IOTools.getVarLong(b));
+		Assertions.assertFalse(b.hasRemaining());
+	}
+
+	@Test
+	void singleMessageIsSentAsIs() {
+		SocketFrameBatcher batcher = new SocketFrameBatcher();
+		BinaryMessage m = v1(TunnelConnection.MESSAGE_SOCKET_DATA, 1, new byte[3]);
+		Assertions.assertTrue(batcher.add(m));
+		Assertions.assertSame(m, batcher.build());
+	}
+
+	@Test
+	void refusesWhatItCantBatch() {
+		SocketFrameBatcher batcher = new SocketFrameBatcher();
+		Assertions.assertFalse(batcher.add(new TextMessage("{}")));
+		Assertions.assertFalse(batcher.add(v1(TunnelConnection.MESSAGE_PUBLIC_KEY, 1, new byte[0])));
+		Assertions.assertTrue(batcher.add(v1(TunnelConnection.MESSAGE_SOCKET_DATA, 1, new byte[40000])));
+		Assertions.assertFalse(batcher.add(v1(TunnelConnection.MESSAGE_SOCKET_DATA, 2, new byte[40000])), "too big");
+		WebSocketMessage<?> built = batcher.build();
+		Assertions.assertEquals(10 + 40000, built.getPayloadLength());
+	}
+}
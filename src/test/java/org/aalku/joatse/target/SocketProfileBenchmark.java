@@ -0,0 +1,143 @@
+package org.aalku.joatse.target;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.aalku.joatse.target.connection.BasicTunnelTcpConnection;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.SocketProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * One tcp tunnel to a local server per socket profile (--shareTcp=host:port;profile).
+ *
+ * bulkDownload: the server sends 16MB, done when the tunnel has sent it all to
+ * the websocket. keystrokeRoundTrip: two 1 byte DATA frames from the cloud, the
+ * server answers one byte once it has both and it's done when the answer is
+ * sent to the websocket. Without TCP_NODELAY the second byte can wait for the
+ * ACK of the first one (Nagle plus delayed ACK).
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SocketProfileBenchmark {
+
+	private static final byte MESSAGE_SOCKET_DATA = 2;
+
+	private static final int DOWNLOAD_BYTES = 16 * 1024 * 1024;
+
+	@Param({ "default", "interactive", "bulk" })
+	public String profile;
+
+	private ServerSocketChannel server;
+	private SocketChannel accepted;
+	private Thread echo;
+	private CountingWebSocketSession ws;
+	private JoatseSession session;
+	private BasicTunnelTcpConnection connection;
+	private final CRC32 crc = new CRC32();
+	private final ByteBuffer download = ByteBuffer.allocateDirect(1024 * 1024);
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BufferPool.shared().setMaxBytes(Long.MAX_VALUE);
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		ws = new CountingWebSocketSession("profile");
+		session = new JoatseSession(ws);
+		connection = new BasicTunnelTcpConnection(session, (InetSocketAddress) server.getLocalAddress(), 1, e -> {},
+				SocketProfile.parse(profile));
+		accepted = server.accept();
+		// Answers one byte for each two
+		echo = new Thread(() -> {
+			ByteBuffer in = ByteBuffer.allocate(2);
+			ByteBuffer out = ByteBuffer.allocate(1);
+			try {
+				while (true) {
+					in.clear();
+					while (in.hasRemaining()) {
+						if (accepted.read(in) < 0) {
+							return;
+						}
+					}
+					out.clear();
+					accepted.write(out);
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}, "profile-echo");
+		echo.setDaemon(true);
+		echo.start();
+		while (ws.getMessages() == 0) { // Connected
+			Thread.sleep(1);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		connection.close();
+		IOTools.runFailable(() -> accepted.close());
+		echo.join();
+		session.close();
+		server.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void bulkDownload() throws Exception {
+		long sent0 = connection.getBytesSent();
+		for (int n = 0; n < DOWNLOAD_BYTES; n += download.capacity()) {
+			download.clear();
+			while (download.hasRemaining()) {
+				accepted.write(download);
+			}
+		}
+		while (connection.getBytesSent() - sent0 < DOWNLOAD_BYTES) {
+			Thread.yield();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void keystrokeRoundTrip() throws Exception {
+		long frames0 = connection.getFramesSent();
+		for (int i = 0; i < 2; i++) {
+			crc.update('x');
+			ByteBuffer b = ByteBuffer.allocate(5);
+			b.putInt((int) crc.getValue()).put((byte) 'x').flip();
+			connection.receivedTunnelMessage(b, MESSAGE_SOCKET_DATA);
+		}
+		while (connection.getFramesSent() == frames0) {
+			Thread.yield();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(SocketProfileBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,102 @@
+package org.aalku.joatse.target;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.connection.AbstractSocketConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Data frames per millisecond through
+ * {@link AbstractSocketConnection#sendDataMessageToCloud(ByteBuffer)}: copy to
+ * a pooled frame, checksum, header and the send worker, one frame in flight
+ * like a socket. The websocket is a {@link CountingWebSocketSession}, so it
+ * runs offline and only the target side is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketSendBenchmark {
+
+	@Param({ "crc32", "crc32c", "none" })
+	public String checksum;
+
+	@Param({ "64", "1024", "64512" })
+	public int size;
+
+	private JoatseSession session;
+	private SendingConnection connection;
+	private ByteBuffer payload;
+
+	static class SendingConnection extends AbstractSocketConnection {
+		private final Logger log = LoggerFactory.getLogger(SendingConnection.class);
+
+		SendingConnection(JoatseSession manager, long socketId) {
+			super(manager, socketId, e -> {});
+		}
+
+		void send(ByteBuffer payload) throws Exception {
+			sendDataMessageToCloud(payload).get(10, TimeUnit.SECONDS);
+		}
+
+		@Override
+		protected Logger getLog() {
+			return log;
+		}
+
+		@Override
+		protected void receivedBytesFromCloud(ByteBuffer buffer) throws IOException {
+		}
+
+		@Override
+		protected void destroy() {
+		}
+	}
+
+	@Setup
+	public void setup() {
+		session = new JoatseSession(new CountingWebSocketSession("bench"));
+		session.setFrameChecksum(checksum);
+		connection = new SendingConnection(session, 1L);
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+		payload = ByteBuffer.allocateDirect(size);
+		payload.put(data).flip();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		connection.close();
+		session.close();
+	}
+
+	@Benchmark
+	public void send() throws Exception {
+		connection.send(payload.duplicate());
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(SocketSendBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,131 @@
+package org.aalku.joatse.target;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.connection.Socks5Proxy;
+import org.aalku.joatse.target.tools.io.AddressAllowlist;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.aalku.joatse.target.tools.io.DnsCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Handshakes per millisecond through {@link Socks5Proxy#receivedWsBytes}:
+ * greeting, CONNECT request parsing and the allowlist check, with the target
+ * allowed by the last of the allowed addresses. The proxy is created for each
+ * handshake, like for each SOCKS5 socket, and the TCP connect is skipped.
+ *
+ * "domain" asks for localhost. With dns=cache it is resolved once by the
+ * {@link DnsCache}. With dns=none every handshake resolves it on a DNS thread,
+ * where only the JVM cache helps (30s by default).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Socks5HandshakeBenchmark {
+
+	private static final byte[] GREETING = { 5, 1, 0 };
+
+	@Param({ "ipv4", "domain" })
+	public String addressType;
+
+	@Param({ "1", "16" })
+	public int allowed;
+
+	@Param({ "cache", "none" })
+	public String dns;
+
+	private DnsCache dnsCache;
+	private AddressAllowlist allowlist;
+	private byte[] request;
+	private BufferPool.Tracker buffers;
+	private long answers = 0;
+
+	/**
+	 * Connects to nothing
+	 */
+	static class NoConnectProxy extends Socks5Proxy {
+		NoConnectProxy(Socks5HandshakeBenchmark bench) {
+			super(bench.allowlist, bench.dnsCache, msg -> {}, bb -> bench.answers++, bench.buffers);
+		}
+
+		@Override
+		protected CompletableFuture<AsynchronousSocketChannel> tcpConnectToTarget(SocketAddress targetAddress) {
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	@Setup
+	public void setup() {
+		List<String> list = new ArrayList<>();
+		for (int i = 1; i < allowed; i++) {
+			list.add("10.0." + i + ".*:*");
+		}
+		ByteBuffer b = ByteBuffer.allocate(300);
+		b.put((byte) 5).put((byte) 1).put((byte) 0); // CONNECT
+		if (addressType.equals("ipv4")) {
+			list.add("127.0.0.*:8080");
+			b.put((byte) 1).put(new byte[] { 127, 0, 0, 1 });
+		} else {
+			list.add("localhost:8080");
+			byte[] host = "localhost".getBytes(StandardCharsets.US_ASCII);
+			b.put((byte) 3).put((byte) host.length).put(host);
+		}
+		b.putShort((short) 8080);
+		b.flip();
+		request = new byte[b.remaining()];
+		b.get(request);
+		dnsCache = dns.equals("cache") ? DnsCache.shared() : new DnsCache(0, 0, TimeUnit.SECONDS);
+		allowlist = new AddressAllowlist(list, dnsCache);
+		buffers = BufferPool.shared().tracker("socks5-bench");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		buffers.close();
+	}
+
+	@Benchmark
+	public boolean handshake() throws Exception {
+		long a0 = answers;
+		Socks5Proxy proxy = new NoConnectProxy(this);
+		try {
+			proxy.receivedWsBytes(ByteBuffer.wrap(GREETING));
+			proxy.receivedWsBytes(ByteBuffer.wrap(request));
+			proxy.getResult().toCompletableFuture().get(10, TimeUnit.SECONDS); // Maybe resolving
+			if (answers - a0 != 2) {
+				throw new IllegalStateException("Handshake failed");
+			}
+			return true;
+		} finally {
+			proxy.close("done");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(Socks5HandshakeBenchmark.class.getSimpleName()).build()).run();
+	}
+}
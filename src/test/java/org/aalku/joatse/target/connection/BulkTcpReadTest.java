@@ -0,0 +1,114 @@
+package org.aalku.joatse.target.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.BooleanSupplier;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.aalku.joatse.target.JoatseSession;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.aalku.joatse.target.tools.io.SocketProfile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+class BulkTcpReadTest {
+
+	/**
+	 * Keeps the data of the DATA frames, in order
+	 */
+	private static class DataCapture extends CountingWebSocketSession {
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private int frames = 0;
+
+		DataCapture() {
+			super("bulk");
+		}
+
+		@Override
+		public synchronized void sendMessage(WebSocketMessage<?> message) throws IOException {
+			super.sendMessage(message);
+			if (message instanceof BinaryMessage) {
+				ByteBuffer b = ((BinaryMessage) message).getPayload().duplicate();
+				if (b.get(b.position() + 1) == TunnelConnection.MESSAGE_SOCKET_DATA) {
+					b.position(b.position() + DataFrame.DATA_HEADER_SIZE);
+					while (b.hasRemaining()) {
+						data.write(b.get());
+					}
+					frames++;
+				}
+			}
+		}
+
+		synchronized byte[] getData() {
+			return data.toByteArray();
+		}
+
+		synchronized int getFrames() {
+			return frames;
+		}
+	}
+
+	private static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Timeout waiting for " + what);
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private static void stream(boolean lazyReads) throws Exception {
+		DataCapture ws = new DataCapture();
+		JoatseSession session = new JoatseSession(ws);
+		session.setLazyTcpReads(lazyReads);
+		BasicTunnelTcpConnection connection = null;
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			InetSocketAddress target = (InetSocketAddress) server.getLocalAddress();
+			long lent0 = BufferPool.shared().getLentBytes();
+			connection = new BasicTunnelTcpConnection(session, target, 1, e -> {}, SocketProfile.BULK);
+			try (SocketChannel accepted = server.accept()) {
+				// Many reads of several frames each
+				int size = 4 * 1024 * 1024 + 1000;
+				ByteBuffer data = ByteBuffer.allocate(size);
+				for (int i = 0; i < size; i++) {
+					data.put((byte) (i * 31 + (i >> 12)));
+				}
+				data.flip();
+				byte[] expected = data.array();
+				while (data.hasRemaining()) {
+					accepted.write(data);
+				}
+				waitFor("data", () -> ws.getData().length >= size);
+				Assertions.assertArrayEquals(expected, ws.getData());
+				Assertions.assertTrue(ws.getFrames() >= size / AbstractSocketConnection.DATA_BUFFER_SIZE);
+				if (lazyReads) {
+					waitFor("idle", () -> BufferPool.shared().getLentBytes() <= lent0);
+				}
+			}
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+			session.close();
+		}
+	}
+
+	@Test
+	void bulkReadsKeepTheOrder() throws Exception {
+		stream(false);
+	}
+
+	@Test
+	void bulkReadsKeepTheOrderWithLazyReads() throws Exception {
+		stream(true);
+	}
+}
@@ -0,0 +1,124 @@
+package org.aalku.joatse.target.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.aalku.joatse.target.JoatseSession;
+import org.aalku.joatse.target.connection.CommandConnection.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketMessage;
+
+class CommandOutputPumpTest {
+
+	/**
+	 * Keeps the terminal frames sent, as "1:text" (stdout) or "2:" (eof)
+	 */
+	private static class RecordingSession extends CountingWebSocketSession {
+		private final List<String> frames = new ArrayList<>();
+
+		RecordingSession() {
+			super("pump");
+		}
+
+		@Override
+		public synchronized void sendMessage(WebSocketMessage<?> message) throws IOException {
+			super.sendMessage(message);
+			ByteBuffer b = ((ByteBuffer) message.getPayload()).duplicate();
+			b.position(b.position() + DataFrame.DATA_HEADER_SIZE + 1);
+			byte stream = b.get();
+			byte[] data = new byte[b.remaining()];
+			b.get(data);
+			frames.add(stream + ":" + new String(data, StandardCharsets.US_ASCII));
+		}
+
+		synchronized List<String> frames() {
+			return new ArrayList<>(frames);
+		}
+	}
+
+	private static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Timeout waiting for " + what);
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private static void write(CommandOutputPump pump, Stream stream, String text) throws Exception {
+		byte[] b = text.getBytes(StandardCharsets.US_ASCII);
+		pump.write(stream, b, b.length);
+	}
+
+	@Test
+	void smallReadsAreCoalesced() throws Exception {
+		RecordingSession ws = new RecordingSession();
+		JoatseSession session = new JoatseSession(ws);
+		CommandConnection c = new CommandConnection(session, new String[] { "none" }, 1, e -> {}, null);
+		try {
+			int frames0 = ws.frames().size(); // "Running command..."
+			CommandOutputPump pump = new CommandOutputPump(c);
+			byte[] line = new byte[100];
+			Arrays.fill(line, (byte) 'x');
+			for (int i = 0; i < 5000; i++) {
+				pump.write(Stream.STDOUT, line, line.length);
+			}
+			pump.eof(Stream.STDOUT);
+			waitFor("eof", () -> ws.frames().get(ws.frames().size() - 1).equals("1:"));
+			List<String> frames = ws.frames().subList(frames0, ws.frames().size());
+			int bytes = 0;
+			for (String f : frames) {
+				bytes += f.length() - 2;
+				Assertions.assertTrue(f.length() - 2 <= CommandOutputPump.MAX_CHUNK);
+			}
+			Assertions.assertEquals(5000 * 100, bytes);
+			Assertions.assertTrue(frames.size() <= 5000 * 100 / CommandOutputPump.MAX_CHUNK + 10,
+					"Frames: " + frames.size());
+		} finally {
+			c.close();
+			session.close();
+		}
+	}
+
+	@Test
+	void streamsKeepTheirOrder() throws Exception {
+		RecordingSession ws = new RecordingSession();
+		JoatseSession session = new JoatseSession(ws);
+		CommandConnection c = new CommandConnection(session, new String[] { "none" }, 1, e -> {}, null);
+		try {
+			int frames0 = ws.frames().size();
+			CommandOutputPump pump = new CommandOutputPump(c);
+			write(pump, Stream.STDOUT, "out1");
+			write(pump, Stream.STDOUT, "out2");
+			write(pump, Stream.STDERR, "err1");
+			write(pump, Stream.STDOUT, "out3");
+			pump.eof(Stream.STDOUT);
+			write(pump, Stream.STDERR, "err2");
+			pump.eof(Stream.STDERR);
+			waitFor("eof", () -> ws.frames().get(ws.frames().size() - 1).equals("2:"));
+			// Frames of the same stream in a row could be split differently
+			List<String> merged = new ArrayList<>();
+			for (String f : ws.frames().subList(frames0, ws.frames().size())) {
+				int last = merged.size() - 1;
+				if (last >= 0 && f.length() > 2 && merged.get(last).length() > 2
+						&& merged.get(last).charAt(0) == f.charAt(0)) {
+					merged.set(last, merged.get(last) + f.substring(2));
+				} else {
+					merged.add(f);
+				}
+			}
+			Assertions.assertEquals(Arrays.asList("1:out1out2", "2:err1", "1:out3", "1:", "2:err2", "2:"), merged);
+		} finally {
+			c.close();
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.aalku.joatse.target.connection;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.aalku.joatse.target.JoatseSession;
+import org.aalku.joatse.target.tools.concurrent.Threads;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Platform threads and heap with hundreds of sessions and commands. Real
+ * processes, so not in the default test run: mvn test
+ * -Dtest=CommandScalingReal. Compare running it on Java 8 and 21.
+ *
+ * Virtual threads are not counted by the thread MXBean, that's the point. The
+ * two pty readers of a command stay platform threads on any Java.
+ */
+class CommandScalingReal {
+
+	private static final int COUNT = 300;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	private long usedHeap() {
+		System.gc();
+		System.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	private void report(String what, int threads0, long heap0) {
+		int threadsPer = (threads.getThreadCount() - threads0) / COUNT;
+		long heapPer = (usedHeap() - heap0) / COUNT;
+		System.out.println(String.format("%d %s, virtual threads %s: %d platform threads and %d KB heap each", COUNT,
+				what, Threads.isVirtual(), threadsPer, heapPer / 1024));
+	}
+
+	@Test
+	void sessions() throws Exception {
+		int threads0 = threads.getThreadCount();
+		long heap0 = usedHeap();
+		List<JoatseSession> sessions = new ArrayList<>();
+		try {
+			for (int i = 0; i < COUNT; i++) {
+				sessions.add(new JoatseSession(new CountingWebSocketSession("s" + i)));
+			}
+			int created = threads.getThreadCount() - threads0;
+			report("sessions", threads0, heap0);
+			if (Threads.isVirtual()) {
+				Assertions.assertTrue(created < COUNT / 10, "Platform threads: " + created);
+			} else {
+				Assertions.assertTrue(created >= COUNT, "Platform threads: " + created);
+			}
+		} finally {
+			sessions.forEach(JoatseSession::close);
+		}
+	}
+
+	@Test
+	void commands() throws Exception {
+		Assumptions.assumeFalse(System.getProperty("os.name").toLowerCase().contains("win"));
+		JoatseSession session = new JoatseSession(new CountingWebSocketSession("commands"));
+		List<CommandConnection> commands = new ArrayList<>();
+		try {
+			int threads0 = threads.getThreadCount();
+			long heap0 = usedHeap();
+			for (int i = 0; i < COUNT; i++) {
+				CommandConnection c = new CommandConnection(session, new String[] { "cat" }, i + 1, e -> {}, null);
+				Assertions.assertTrue(c.startCommand());
+				commands.add(c);
+			}
+			int created = threads.getThreadCount() - threads0;
+			report("commands", threads0, heap0);
+			Assertions.assertTrue(created <= 2 * COUNT + 10, "Platform threads: " + created);
+		} finally {
+			commands.forEach(CommandConnection::close);
+			session.close();
+		}
+	}
+}
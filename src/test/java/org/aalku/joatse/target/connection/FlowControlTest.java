@@ -0,0 +1,63 @@
+package org.aalku.joatse.target.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class FlowControlTest {
+
+	@Test
+	void sendWaitsForCredit() {
+		FlowControl fc = new FlowControl(() -> TimeUnit.MILLISECONDS.toNanos(50), n -> {});
+		fc.consumeSendCredit(FlowControl.INITIAL_WINDOW - 1);
+		Assertions.assertTrue(fc.sendCreditAvailable().isDone());
+		fc.consumeSendCredit(1);
+		CompletableFuture<Void> waiting = fc.sendCreditAvailable();
+		Assertions.assertFalse(waiting.isDone());
+		fc.granted(1000);
+		Assertions.assertTrue(waiting.isDone());
+
+		fc.consumeSendCredit(5000);
+		CompletableFuture<Void> waitingOnClose = fc.sendCreditAvailable();
+		fc.close();
+		Assertions.assertTrue(waitingOnClose.isCompletedExceptionally());
+	}
+
+	@Test
+	void grantsEveryHalfWindow() {
+		List<Integer> grants = new ArrayList<>();
+		// Huge rtt so the window doesn't grow during the test
+		FlowControl fc = new FlowControl(() -> TimeUnit.HOURS.toNanos(1), grants::add);
+		int chunk = 1000;
+		long consumed = 0;
+		while (consumed < FlowControl.INITIAL_WINDOW * 2) {
+			fc.consumed(chunk);
+			consumed += chunk;
+		}
+		Assertions.assertEquals(FlowControl.INITIAL_WINDOW, fc.getWindow());
+		Assertions.assertTrue(grants.size() >= 3, "grants: " + grants);
+		long granted = grants.stream().mapToLong(x -> x).sum();
+		Assertions.assertTrue(consumed - granted < FlowControl.INITIAL_WINDOW / 2, "pending grant must be under half window");
+	}
+
+	@Test
+	void windowGrowsToBandwidthDelayProduct() throws InterruptedException {
+		List<Integer> grants = new ArrayList<>();
+		long rtt = TimeUnit.MILLISECONDS.toNanos(5);
+		FlowControl fc = new FlowControl(() -> rtt, grants::add);
+		// ~ 4 MB per 5ms rtt is way over the initial window
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 64; j++) {
+				fc.consumed(64 * 1024);
+			}
+			Thread.sleep(6);
+			fc.consumed(1);
+		}
+		Assertions.assertTrue(fc.getWindow() > FlowControl.INITIAL_WINDOW, "window: " + fc.getWindow());
+		Assertions.assertTrue(fc.getWindow() <= FlowControl.MAX_WINDOW);
+	}
+}
@@ -0,0 +1,211 @@
+package org.aalku.joatse.target.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.aalku.joatse.target.JoatseSession;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketMessage;
+
+class FrameCompressorTest {
+
+	private static final int FRAME = 63 * 1024;
+
+	private static byte[] text(int size) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i % 97).append("\",\"ok\":true}\n");
+		}
+		return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] random(int size) {
+		byte[] b = new byte[size];
+		new Random(size).nextBytes(b);
+		return b;
+	}
+
+	/**
+	 * Sends it through the compressor and back like a frame would
+	 * 
+	 * @return wire size
+	 */
+	private static int roundTrip(FrameCompressor c, FrameDecompressor d, byte[] data) throws Exception {
+		ByteBuffer plain = ByteBuffer.allocateDirect(data.length);
+		plain.put(data).flip();
+		int n = c.compress(plain);
+		ByteBuffer received;
+		if (n < 0) {
+			Assertions.assertEquals(0, plain.position(), "Not consumed if not compressed");
+			received = plain;
+		} else {
+			Assertions.assertFalse(plain.hasRemaining());
+			byte[] wire = new byte[n];
+			System.arraycopy(c.output(), 0, wire, 0, n);
+			received = d.decompress(ByteBuffer.wrap(wire));
+		}
+		byte[] back = new byte[received.remaining()];
+		received.get(back);
+		Assertions.assertArrayEquals(data, back);
+		return n < 0 ? data.length : n;
+	}
+
+	@Test
+	void textIsCompressedAcrossFrames() throws Exception {
+		CompressionStats socket = new CompressionStats();
+		CompressionStats tunnel = new CompressionStats();
+		FrameCompressor c = new FrameCompressor(FRAME, socket, tunnel);
+		FrameDecompressor d = new FrameDecompressor(FRAME);
+		try {
+			long wire = 0;
+			for (int i = 0; i < 20; i++) {
+				wire += roundTrip(c, d, text(FRAME));
+				wire += roundTrip(c, d, text(10)); // Too small, sent as is in between
+			}
+			Assertions.assertFalse(c.isOff());
+			Assertions.assertTrue(socket.getRatio() < 0.2, "Ratio " + socket.getRatio());
+			Assertions.assertEquals(20L * FRAME, socket.getPlainBytes());
+			Assertions.assertEquals(200L, socket.getBypassedBytes());
+			Assertions.assertEquals(wire, socket.getCompressedBytes() + socket.getBypassedBytes());
+			Assertions.assertEquals(socket.getCompressedBytes(), tunnel.getCompressedBytes());
+		} finally {
+			c.end();
+			d.end();
+		}
+	}
+
+	@Test
+	void incompressibleStreamTurnsItOff() throws Exception {
+		CompressionStats socket = new CompressionStats();
+		FrameCompressor c = new FrameCompressor(FRAME, socket, new CompressionStats());
+		FrameDecompressor d = new FrameDecompressor(FRAME);
+		try {
+			int frames = 0;
+			while (!c.isOff()) {
+				roundTrip(c, d, random(FRAME - frames)); // Different data each time
+				frames++;
+				Assertions.assertTrue(frames * (long) FRAME < 2 * FrameCompressor.SAMPLE_BYTES);
+			}
+			long compressed = socket.getPlainBytes();
+			// Off for a while, and the stream is still fine when it's back
+			long sent = 0;
+			while (c.isOff()) {
+				sent += roundTrip(c, d, random(FRAME));
+			}
+			Assertions.assertEquals(FrameCompressor.MIN_BACKOFF_BYTES, sent, FRAME);
+			Assertions.assertEquals(compressed, socket.getPlainBytes());
+			roundTrip(c, d, text(FRAME));
+			Assertions.assertTrue(socket.getPlainBytes() > compressed);
+		} finally {
+			c.end();
+			d.end();
+		}
+	}
+
+	@Test
+	void garbageIsRejected() {
+		FrameDecompressor d = new FrameDecompressor(FRAME);
+		try {
+			Assertions.assertThrows(java.io.IOException.class, () -> d.decompress(ByteBuffer.wrap(random(100))));
+		} finally {
+			d.end();
+		}
+	}
+
+	/**
+	 * Keeps a copy of every message sent
+	 */
+	static class CapturingWebSocketSession extends CountingWebSocketSession {
+		final List<byte[]> sent = new ArrayList<>();
+
+		CapturingWebSocketSession(String id) {
+			super(id);
+		}
+
+		@Override
+		public synchronized void sendMessage(WebSocketMessage<?> message) throws IOException {
+			super.sendMessage(message);
+			ByteBuffer payload = ((ByteBuffer) message.getPayload()).duplicate();
+			byte[] copy = new byte[payload.remaining()];
+			payload.get(copy);
+			sent.add(copy);
+		}
+	}
+
+	static class FrameConnection extends AbstractSocketConnection {
+		private final Logger log = LoggerFactory.getLogger(FrameConnection.class);
+
+		FrameConnection(JoatseSession manager, long socketId) {
+			super(manager, socketId, e -> {});
+		}
+
+		void send(byte[] data) throws Exception {
+			DataFrame frame = acquireDataFrame();
+			frame.payload().put(data);
+			CompletableFuture<Void> sent = sendDataFrameToCloud(frame);
+			sent.get(10, TimeUnit.SECONDS);
+		}
+
+		@Override
+		protected Logger getLog() {
+			return log;
+		}
+
+		@Override
+		protected void receivedBytesFromCloud(ByteBuffer buffer) throws IOException {
+		}
+
+		@Override
+		protected void destroy() {
+		}
+	}
+
+	@Test
+	void incompressibleFullFramesAreSentAsTheyAre() throws Exception {
+		CapturingWebSocketSession ws = new CapturingWebSocketSession("deflate");
+		JoatseSession session = new JoatseSession(ws);
+		FrameDecompressor d = new FrameDecompressor(FRAME);
+		try {
+			FrameConnection c = new FrameConnection(session, 1L);
+			c.enableCompression(new CompressionStats());
+			List<byte[]> frames = new ArrayList<>();
+			frames.add(text(FRAME));
+			for (int i = 0; i < 3; i++) {
+				frames.add(random(FRAME - i)); // A full read of a zip or a TLS stream
+			}
+			frames.add(text(FRAME));
+			for (byte[] frame : frames) {
+				c.send(frame);
+			}
+			Assertions.assertEquals(frames.size(), ws.sent.size());
+			for (int i = 0; i < frames.size(); i++) {
+				ByteBuffer wire = ByteBuffer.wrap(ws.sent.get(i));
+				wire.get(); // version
+				byte type = wire.get();
+				Assertions.assertEquals(1L, wire.getLong());
+				wire.getInt(); // checksum
+				boolean plain = i > 0 && i < frames.size() - 1;
+				Assertions.assertEquals(plain ? TunnelConnection.MESSAGE_SOCKET_DATA
+						: TunnelConnection.MESSAGE_SOCKET_DATA_DEFLATE, type, "Frame " + i);
+				ByteBuffer data = plain ? wire : d.decompress(wire);
+				byte[] back = new byte[data.remaining()];
+				data.get(back);
+				Assertions.assertArrayEquals(frames.get(i), back, "Frame " + i);
+			}
+			c.close();
+		} finally {
+			d.end();
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package org.aalku.joatse.target.connection;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.aalku.joatse.target.JoatseSession;
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+import org.aalku.joatse.target.tools.io.IOTools;
+import org.aalku.joatse.target.tools.io.SocketProfile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HttpBackendPoolTest {
+
+	private ServerSocketChannel server;
+	private Thread acceptor;
+	private final List<SocketChannel> accepted = new CopyOnWriteArrayList<>();
+	private HttpBackendPool pool;
+
+	@BeforeEach
+	void listen() throws Exception {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		acceptor = new Thread(() -> {
+			try {
+				while (true) {
+					accepted.add(server.accept());
+				}
+			} catch (Exception e) {
+				// Closed
+			}
+		}, "pool-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		if (pool != null) {
+			pool.close();
+		}
+		server.close();
+		acceptor.join();
+		for (SocketChannel c : accepted) {
+			IOTools.runFailable(() -> c.close());
+		}
+	}
+
+	private InetSocketAddress target() throws Exception {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	private static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Timeout waiting for " + what);
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	void warmConnectionsAreTakenAndReplaced() throws Exception {
+		pool = new HttpBackendPool(target(), SocketProfile.DEFAULT, 2, 60000, TimerWheel.shared());
+		Assertions.assertEquals(0, pool.getIdle()); // Not started
+		pool.start();
+		waitFor("warm", () -> pool.getIdle() == 2 && accepted.size() == 2);
+
+		CompletableFuture<AsynchronousSocketChannel> c = pool.take();
+		Assertions.assertTrue(c.isDone()); // No wait at all
+		Assertions.assertTrue(c.get().isOpen());
+		Assertions.assertEquals(1, pool.getWarmTakes());
+		waitFor("replaced", () -> pool.getIdle() == 2 && accepted.size() == 3);
+
+		c.get().close();
+
+		// Faster than the refill, they connect on their own
+		for (int i = 0; i < 100 && pool.getColdTakes() == 0; i++) {
+			AsynchronousSocketChannel t = pool.take().get(5, TimeUnit.SECONDS);
+			Assertions.assertTrue(t.isOpen());
+			t.close();
+		}
+		Assertions.assertTrue(pool.getColdTakes() > 0);
+		Assertions.assertEquals(0, pool.getConnectFailures());
+	}
+
+	@Test
+	void idleConnectionsExpire() throws Exception {
+		pool = new HttpBackendPool(target(), SocketProfile.DEFAULT, 1, 300, TimerWheel.shared());
+		pool.start();
+		waitFor("expired", () -> pool.getExpired() >= 1);
+		waitFor("replaced", () -> pool.getIdle() == 1 && accepted.size() == 2);
+		// The server sees the old ones closed
+		ByteBuffer b = ByteBuffer.allocate(1);
+		Assertions.assertEquals(-1, accepted.get(0).read(b));
+	}
+
+	@Test
+	void unusedPoolStopsRefilling() throws Exception {
+		pool = new HttpBackendPool(target(), SocketProfile.DEFAULT, 2, 100, TimerWheel.shared());
+		pool.start();
+		waitFor("paused", () -> pool.isPaused());
+		Assertions.assertEquals(2 * HttpBackendPool.IDLE_ROUNDS, pool.getExpired());
+		waitFor("drained", () -> pool.getIdle() == 0);
+		int opened = accepted.size();
+		Thread.sleep(500); // Five idle times
+		Assertions.assertEquals(opened, accepted.size(), "Not refilling");
+		Assertions.assertEquals(0, pool.getIdle());
+
+		// The next take is cold and warms it up again
+		pool.take().get(5, TimeUnit.SECONDS).close();
+		Assertions.assertEquals(1, pool.getColdTakes());
+		Assertions.assertFalse(pool.isPaused());
+		waitFor("warm", () -> pool.getIdle() == 2);
+	}
+
+	@Test
+	void closeClosesTheIdleOnes() throws Exception {
+		pool = new HttpBackendPool(target(), SocketProfile.DEFAULT, 3, 60000, TimerWheel.shared());
+		pool.start();
+		waitFor("warm", () -> pool.getIdle() == 3 && accepted.size() == 3);
+		pool.close();
+		Assertions.assertEquals(0, pool.getIdle());
+		for (SocketChannel c : accepted) {
+			Assertions.assertEquals(-1, c.read(ByteBuffer.allocate(1)));
+		}
+		pool.start(); // Closed for good
+		Thread.sleep(50);
+		Assertions.assertEquals(3, accepted.size());
+	}
+
+	@Test
+	void unreachableBackendIsRetriedLater() throws Exception {
+		// Bound but not listening, so connections are refused and nobody else gets
+		// the port meanwhile
+		try (Socket closedPort = new Socket()) {
+			closedPort.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			InetSocketAddress t = (InetSocketAddress) closedPort.getLocalSocketAddress();
+			pool = new HttpBackendPool(t, SocketProfile.DEFAULT, 2, 60000, TimerWheel.shared());
+			pool.start();
+			waitFor("failures", () -> pool.getConnectFailures() == 2);
+			Thread.sleep(100);
+			Assertions.assertEquals(2, pool.getConnectFailures()); // Not in a loop
+			Assertions.assertThrows(Exception.class, () -> pool.take().get(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	void tunnelUsesAWarmConnection() throws Exception {
+		pool = new HttpBackendPool(target(), SocketProfile.DEFAULT, 1, 60000, TimerWheel.shared());
+		pool.start();
+		waitFor("warm", () -> pool.getIdle() == 1);
+		CountingWebSocketSession ws = new CountingWebSocketSession("pool");
+		JoatseSession session = new JoatseSession(ws);
+		BasicTunnelTcpConnection c = new BasicTunnelTcpConnection(session, pool, 1, e -> {});
+		try {
+			waitFor("connected", () -> ws.getMessages() == 1);
+			Assertions.assertEquals(1, pool.getWarmTakes());
+			Assertions.assertEquals(0, pool.getColdTakes());
+			accepted.get(0).write(ByteBuffer.wrap("HTTP/1.1 200 OK\r\n\r\n".getBytes()));
+			waitFor("data", () -> c.getBytesSent() == 19);
+		} finally {
+			c.close();
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.aalku.joatse.target.connection;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.aalku.joatse.target.JoatseSession;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class LazyTcpReadTest {
+
+	private static final int TUNNELS = 50;
+
+	private static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Timeout waiting for " + what);
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	void idleTunnelsDontHoldFrames() throws Exception {
+		CountingWebSocketSession ws = new CountingWebSocketSession("lazy");
+		JoatseSession session = new JoatseSession(ws);
+		session.setLazyTcpReads(true);
+		List<SocketChannel> accepted = new ArrayList<>();
+		List<BasicTunnelTcpConnection> connections = new ArrayList<>();
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			InetSocketAddress target = (InetSocketAddress) server.getLocalAddress();
+			long lent0 = BufferPool.shared().getLentBytes();
+			for (int i = 0; i < TUNNELS; i++) {
+				connections.add(new BasicTunnelTcpConnection(session, target, i + 1, e -> {}));
+				accepted.add(server.accept());
+			}
+			waitFor("connected", () -> ws.getMessages() == TUNNELS);
+			Thread.sleep(100);
+			Assertions.assertEquals(lent0, BufferPool.shared().getLentBytes());
+
+			// A burst bigger than a frame goes through the probe and then full frames
+			int size = 3 * AbstractSocketConnection.DATA_BUFFER_SIZE + 1000;
+			ByteBuffer data = ByteBuffer.allocate(size);
+			long wsBytes = ws.getBytes();
+			while (data.hasRemaining()) {
+				accepted.get(7).write(data);
+			}
+			waitFor("data", () -> ws.getBytes() - wsBytes
+					- (ws.getMessages() - TUNNELS) * DataFrame.DATA_HEADER_SIZE == size);
+
+			// Back to idle, no frame held
+			waitFor("idle", () -> BufferPool.shared().getLentBytes() == lent0);
+		} finally {
+			for (BasicTunnelTcpConnection c : connections) {
+				c.close();
+			}
+			for (SocketChannel c : accepted) {
+				c.close();
+			}
+			session.close();
+		}
+	}
+}
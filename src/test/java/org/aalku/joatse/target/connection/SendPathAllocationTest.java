@@ -0,0 +1,102 @@
+package org.aalku.joatse.target.connection;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.aalku.joatse.target.JoatseSession;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class SendPathAllocationTest {
+
+	private static final int CHUNK = 1024;
+
+	/**
+	 * Streams chunks like a tcp or file tunnel does, one in flight at a time.
+	 */
+	static class StreamConnection extends AbstractSocketConnection {
+		private final Logger log = LoggerFactory.getLogger(StreamConnection.class);
+		private final Thread producer = Thread.currentThread();
+		private volatile long sent = 0;
+		private final Consumer<Throwable> afterSent = e -> {
+			sent++;
+			LockSupport.unpark(producer);
+		};
+
+		StreamConnection(JoatseSession manager, long socketId) {
+			super(manager, socketId, e -> {});
+		}
+
+		void stream(int chunks) {
+			for (int i = 0; i < chunks; i++) {
+				long target = sent + 1;
+				DataFrame frame = acquireDataFrame();
+				ByteBuffer payload = frame.payload();
+				payload.put((byte) i);
+				payload.position(payload.position() + CHUNK - 1);
+				sendDataFrameToCloud(frame, afterSent);
+				while (sent < target) {
+					LockSupport.park(this);
+				}
+			}
+		}
+
+		@Override
+		protected Logger getLog() {
+			return log;
+		}
+
+		@Override
+		protected void receivedBytesFromCloud(ByteBuffer buffer) throws IOException {
+		}
+
+		@Override
+		protected void destroy() {
+		}
+	}
+
+	private static Thread findThread(String name) {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().equals(name)) {
+				return t;
+			}
+		}
+		throw new AssertionError("Thread not found: " + name);
+	}
+
+	@Test
+	void steadyStateStreamingDoesNotAllocate() {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		mx.setThreadAllocatedMemoryEnabled(true);
+		CountingWebSocketSession ws = new CountingWebSocketSession("alloc");
+		JoatseSession session = new JoatseSession(ws);
+		try {
+			StreamConnection c = new StreamConnection(session, 1L);
+			long producer = Thread.currentThread().getId();
+			long worker = findThread("wssw_alloc").getId();
+
+			c.stream(20000); // Warm up, let the JIT do its job
+
+			int chunks = 10000;
+			long p0 = mx.getThreadAllocatedBytes(producer);
+			long w0 = mx.getThreadAllocatedBytes(worker);
+			c.stream(chunks);
+			long p1 = mx.getThreadAllocatedBytes(producer);
+			long w1 = mx.getThreadAllocatedBytes(worker);
+
+			Assertions.assertEquals(30000L, ws.getMessages());
+			Assertions.assertEquals(30000L * (CHUNK + DataFrame.DATA_HEADER_SIZE), ws.getBytes());
+			long allocated = (p1 - p0) + (w1 - w0);
+			// Anything per chunk would be at least 16 bytes each
+			Assertions.assertTrue(allocated < chunks, "Allocated " + allocated + " bytes for " + chunks + " chunks");
+		} finally {
+			session.close();
+		}
+	}
+}
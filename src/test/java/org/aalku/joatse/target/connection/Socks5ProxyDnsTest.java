@@ -0,0 +1,155 @@
+package org.aalku.joatse.target.connection;
+
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.tools.io.AddressAllowlist;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.aalku.joatse.target.tools.io.DnsCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A slow name lookup for one SOCKS5 socket doesn't hold the thread that
+ * receives from the cloud, nor the other sockets.
+ */
+class Socks5ProxyDnsTest {
+
+	private static final byte[] GREETING = { 5, 1, 0 };
+	/** CONNECT 127.0.0.1:8080 */
+	private static final byte[] CONNECT_IPV4 = { 5, 1, 0, 1, 127, 0, 0, 1, 0x1F, (byte) 0x90 };
+
+	private final CountDownLatch slowDns = new CountDownLatch(1);
+	private final DnsCache dns = new DnsCache(60, 10, TimeUnit.SECONDS, this::resolve);
+	private final AddressAllowlist allowlist = new AddressAllowlist(Collections.singleton("*"), dns);
+	private final BufferPool.Tracker buffers = BufferPool.shared().tracker("socks5-dns");
+
+	private InetAddress[] resolve(String host) throws UnknownHostException {
+		if (host.startsWith("slow")) {
+			try {
+				slowDns.await();
+			} catch (InterruptedException e) {
+				throw new UnknownHostException(host);
+			}
+		}
+		return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 1 }) };
+	}
+
+	private class NoConnectProxy extends Socks5Proxy {
+		private final List<byte[]> answers;
+		private final CompletableFuture<String> closed = new CompletableFuture<>();
+
+		NoConnectProxy(PendingLimit limit, List<byte[]> answers) {
+			super(allowlist, dns, msg -> {}, bb -> {
+				byte[] a = new byte[bb.remaining()];
+				bb.get(a);
+				answers.add(a);
+			}, buffers, limit);
+			this.answers = answers;
+		}
+
+		@Override
+		protected CompletableFuture<AsynchronousSocketChannel> tcpConnectToTarget(SocketAddress targetAddress) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		@Override
+		public void close(String msg) {
+			closed.complete(msg);
+			super.close(msg);
+		}
+
+		/** Reply code of the last answer */
+		int lastReply() {
+			synchronized (answers) {
+				return answers.get(answers.size() - 1)[1];
+			}
+		}
+	}
+
+	private final List<NoConnectProxy> proxies = new ArrayList<>();
+
+	private NoConnectProxy proxy(Socks5Proxy.PendingLimit limit) {
+		NoConnectProxy p = new NoConnectProxy(limit, Collections.synchronizedList(new ArrayList<>()));
+		proxies.add(p);
+		return p;
+	}
+
+	private static byte[] connect(String host) {
+		byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer b = ByteBuffer.allocate(7 + name.length);
+		b.put(new byte[] { 5, 1, 0, 3, (byte) name.length }).put(name).putShort((short) 8080);
+		return b.array();
+	}
+
+	private static void receive(Socks5Proxy proxy, byte[] bytes) {
+		long t0 = System.nanoTime();
+		proxy.receivedWsBytes(ByteBuffer.wrap(bytes));
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+		Assertions.assertTrue(millis < 1000, "Receive thread held " + millis + "ms");
+	}
+
+	@AfterEach
+	void close() {
+		slowDns.countDown();
+		proxies.forEach(p -> p.close("done"));
+		buffers.close();
+	}
+
+	@Test
+	void slowLookupDoesntHoldOthers() throws Exception {
+		Socks5Proxy.PendingLimit limit = new Socks5Proxy.PendingLimit(10);
+		NoConnectProxy slow = proxy(limit);
+		receive(slow, GREETING);
+		receive(slow, connect("slow.example"));
+		Assertions.assertEquals(1, limit.getPending());
+
+		NoConnectProxy ipv4 = proxy(limit);
+		receive(ipv4, GREETING);
+		receive(ipv4, CONNECT_IPV4);
+		ipv4.getResult().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+		NoConnectProxy fast = proxy(limit);
+		receive(fast, GREETING);
+		receive(fast, connect("fast.example"));
+		fast.getResult().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+		Assertions.assertFalse(slow.getResult().toCompletableFuture().isDone());
+		Assertions.assertEquals(1, limit.getPending());
+		slowDns.countDown();
+		slow.getResult().toCompletableFuture().get(5, TimeUnit.SECONDS);
+		Assertions.assertEquals(0, slow.lastReply());
+		Assertions.assertEquals(0, limit.getPending());
+	}
+
+	@Test
+	void connectsOverTheLimitFail() throws Exception {
+		Socks5Proxy.PendingLimit limit = new Socks5Proxy.PendingLimit(2);
+		for (int i = 0; i < 2; i++) {
+			NoConnectProxy p = proxy(limit);
+			receive(p, GREETING);
+			receive(p, connect("slow" + i + ".example"));
+		}
+		Assertions.assertEquals(2, limit.getPending());
+		NoConnectProxy over = proxy(limit);
+		receive(over, GREETING);
+		receive(over, connect("fast.example"));
+		Assertions.assertTrue(over.closed.get(5, TimeUnit.SECONDS).startsWith("Too many"));
+		Assertions.assertEquals(1, over.lastReply(), "General failure");
+		Assertions.assertEquals(2, limit.getPending());
+		// Closing a pending one frees its place
+		proxies.get(0).close("gone");
+		Assertions.assertEquals(1, limit.getPending());
+	}
+}
@@ -0,0 +1,81 @@
+package org.aalku.joatse.target.connection;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+import org.aalku.joatse.target.tools.io.AddressAllowlist;
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.aalku.joatse.target.tools.io.DnsCache;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A browser through the SOCKS5 tunnel opens and closes hundreds of sockets.
+ * Their timeouts go to the shared timer, so that doesn't create threads.
+ */
+class Socks5ProxyThreadsTest {
+
+	private static final byte[] GREETING = { 5, 1, 0 };
+	/** CONNECT 127.0.0.1:8080 */
+	private static final byte[] CONNECT = { 5, 1, 0, 1, 127, 0, 0, 1, 0x1F, (byte) 0x90 };
+
+	private final AddressAllowlist allowlist = new AddressAllowlist(Collections.singleton("127.0.0.1:8080"),
+			DnsCache.shared());
+	private final BufferPool.Tracker buffers = BufferPool.shared().tracker("socks5-threads");
+	private final AtomicInteger answers = new AtomicInteger();
+
+	private class NoConnectProxy extends Socks5Proxy {
+		NoConnectProxy() {
+			super(allowlist, DnsCache.shared(), msg -> {}, bb -> answers.incrementAndGet(), buffers);
+		}
+
+		@Override
+		protected CompletableFuture<AsynchronousSocketChannel> tcpConnectToTarget(SocketAddress targetAddress) {
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	/**
+	 * Half of them connect, the other half are closed in the middle of the
+	 * handshake
+	 */
+	private void churn(int sockets) throws Exception {
+		for (int i = 0; i < sockets; i++) {
+			Socks5Proxy proxy = new NoConnectProxy();
+			proxy.receivedWsBytes(ByteBuffer.wrap(GREETING));
+			if (i % 2 == 0) {
+				proxy.receivedWsBytes(ByteBuffer.wrap(CONNECT));
+				proxy.getResult().toCompletableFuture().get(5, TimeUnit.SECONDS);
+			}
+			proxy.close("done");
+		}
+	}
+
+	@Test
+	void constantThreadCountUnderChurn() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		churn(100); // Shared timer and the like started
+		long pending = TimerWheel.shared().getPending();
+		int before = threads.getThreadCount();
+		answers.set(0);
+		churn(2000);
+		int after = threads.getThreadCount();
+		Assertions.assertEquals(2000 + 1000, answers.get(), "Greeting replies plus CONNECT replies");
+		Assertions.assertTrue(after <= before + 2, "Threads before " + before + ", after " + after);
+		// Cancelled handshake timeouts don't stay in the timer
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (TimerWheel.shared().getPending() > pending && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Assertions.assertTrue(TimerWheel.shared().getPending() <= pending, "Pending " + TimerWheel.shared().getPending());
+		buffers.close();
+	}
+}
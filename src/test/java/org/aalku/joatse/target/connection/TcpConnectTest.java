@@ -0,0 +1,46 @@
+package org.aalku.joatse.target.connection;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.aalku.joatse.target.JoatseSession;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TcpConnectTest {
+
+	/**
+	 * The target name is resolved when connecting and the family of the address
+	 * that connected is counted
+	 */
+	@Test
+	void connectsByNameAndCountsTheFamily() throws Exception {
+		CountingWebSocketSession ws = new CountingWebSocketSession("connect");
+		JoatseSession session = new JoatseSession(ws);
+		TunnelStats stats = new TunnelStats("tcp");
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+			int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+			BasicTunnelTcpConnection c = new BasicTunnelTcpConnection(session,
+					InetSocketAddress.createUnresolved("localhost", port), 1, e -> {});
+			c.setTunnelStats(stats);
+			try (SocketChannel accepted = server.accept()) {
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+				while (c.getTargetAddress() == null && System.nanoTime() < deadline) {
+					Thread.sleep(5);
+				}
+				Assertions.assertEquals(InetAddress.getByName("127.0.0.1"), c.getTargetAddress());
+				Assertions.assertEquals(1, stats.getConnectedIpv4());
+				Assertions.assertEquals(0, stats.getConnectedIpv6());
+			} finally {
+				c.close();
+			}
+		} finally {
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.aalku.joatse.target.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.aalku.joatse.target.tools.io.BufferPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TcpWriteQueueTest {
+
+	@Test
+	void writesInOrderAndBufferIsReusable() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+			channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort())).get(5, TimeUnit.SECONDS);
+			AtomicReference<Throwable> error = new AtomicReference<>();
+			BufferPool.Tracker buffers = new BufferPool(64L * 1024 * 1024).tracker("test");
+			TcpWriteQueue queue = new TcpWriteQueue(() -> channel, buffers, error::set, n -> {}, 1024 * 1024);
+
+			Random random = new Random(42);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			try (Socket peer = server.accept()) {
+				CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+					try (InputStream in = peer.getInputStream()) {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						byte[] b = new byte[8192];
+						int n;
+						while ((n = in.read(b)) >= 0) {
+							out.write(b, 0, n);
+						}
+						return out.toByteArray();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				});
+				ByteBuffer reused = ByteBuffer.allocate(64 * 1024);
+				for (int i = 0; i < 2000; i++) {
+					byte[] chunk = new byte[1 + random.nextInt(40000)];
+					random.nextBytes(chunk);
+					expected.write(chunk);
+					reused.clear();
+					reused.put(chunk).flip();
+					// Like a peer with a window, write() doesn't wait
+					while (queue.getPendingBytes() > 512 * 1024) {
+						Thread.sleep(1);
+					}
+					queue.write(reused);
+					// Caller scribbles over its buffer right away
+					reused.clear();
+					reused.put(new byte[reused.capacity()]);
+				}
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+				while (queue.getPendingBytes() > 0 && System.nanoTime() < deadline) {
+					Thread.sleep(10);
+				}
+				Assertions.assertEquals(0L, queue.getPendingBytes());
+				channel.shutdownOutput();
+				Assertions.assertArrayEquals(expected.toByteArray(), received.get(30, TimeUnit.SECONDS));
+			}
+			Assertions.assertNull(error.get());
+			Assertions.assertEquals(0, buffers.getLentCount(), "written buffers go back to the pool");
+			queue.close();
+			channel.close();
+		}
+	}
+
+	@Test
+	void stalledTargetDoesNotBlockWrite() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+			channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort())).get(5, TimeUnit.SECONDS);
+			AtomicReference<Throwable> error = new AtomicReference<>();
+			BufferPool.Tracker buffers = new BufferPool(64L * 1024 * 1024).tracker("test");
+			TcpWriteQueue queue = new TcpWriteQueue(() -> channel, buffers, error::set, n -> {}, 1024 * 1024);
+			try (Socket peer = server.accept()) { // Never reads
+				ByteBuffer chunk = ByteBuffer.allocate(60 * 1024);
+				Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+					// Far more than the socket buffers and the limit
+					for (int i = 0; i < 1000; i++) {
+						chunk.clear();
+						queue.write(chunk);
+					}
+				});
+				Assertions.assertTrue(error.get() instanceof IOException, "Reported once over the limit: " + error.get());
+				Assertions.assertEquals(0L, queue.getPendingBytes(), "Dropped");
+				channel.close(); // Like the socket does on the error
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+				while (buffers.getLentCount() > 0 && System.nanoTime() < deadline) {
+					Thread.sleep(10);
+				}
+				Assertions.assertEquals(0, buffers.getLentCount(), "The in flight write gives its buffers back");
+			}
+		}
+	}
+
+	@Test
+	void underTheLimitNothingFails() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+			channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort())).get(5, TimeUnit.SECONDS);
+			AtomicReference<Throwable> error = new AtomicReference<>();
+			BufferPool.Tracker buffers = new BufferPool(64L * 1024 * 1024).tracker("test");
+			TcpWriteQueue queue = new TcpWriteQueue(() -> channel, buffers, error::set, n -> {}, 64L * 1024 * 1024);
+			try (Socket peer = server.accept()) { // Not reading yet
+				ByteBuffer chunk = ByteBuffer.allocate(60 * 1024);
+				for (int i = 0; i < 200; i++) {
+					chunk.clear();
+					queue.write(chunk);
+				}
+				Assertions.assertTrue(queue.getPendingBytes() > 0, "Queued, not waited for");
+				Assertions.assertNull(error.get());
+				InputStream in = peer.getInputStream();
+				byte[] b = new byte[64 * 1024];
+				long total = 0;
+				while (total < 200 * 60 * 1024) {
+					total += in.read(b);
+				}
+				Assertions.assertEquals(200 * 60 * 1024, total);
+				Assertions.assertNull(error.get());
+			}
+			queue.close();
+			channel.close();
+		}
+	}
+
+	@Test
+	void dataBeforeTheChannelWaitsForIt() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			AtomicReference<AsynchronousSocketChannel> channel = new AtomicReference<>();
+			AtomicReference<Throwable> error = new AtomicReference<>();
+			BufferPool.Tracker buffers = new BufferPool(64L * 1024 * 1024).tracker("test");
+			TcpWriteQueue queue = new TcpWriteQueue(channel::get, buffers, error::set, n -> {}, 1024 * 1024);
+			queue.write(ByteBuffer.wrap("GET / HTTP/1.1\r\n".getBytes()));
+			Assertions.assertNull(error.get());
+			Assertions.assertEquals(16L, queue.getPendingBytes());
+
+			AsynchronousSocketChannel c = AsynchronousSocketChannel.open();
+			c.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort())).get(5, TimeUnit.SECONDS);
+			channel.set(c);
+			queue.channelReady();
+			queue.write(ByteBuffer.wrap("\r\n".getBytes()));
+			try (Socket peer = server.accept()) {
+				byte[] b = new byte[18];
+				int n = 0;
+				InputStream in = peer.getInputStream();
+				while (n < b.length) {
+					n += in.read(b, n, b.length - n);
+				}
+				Assertions.assertEquals("GET / HTTP/1.1\r\n\r\n", new String(b));
+			}
+			Assertions.assertNull(error.get());
+			queue.close();
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package org.aalku.joatse.target.tools.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ConcurrentLongMapTest {
+
+	@Test
+	void basicOperations() {
+		ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+		Assertions.assertTrue(map.isEmpty());
+		Assertions.assertNull(map.put(1L, "a"));
+		Assertions.assertEquals("a", map.put(1L, "b"));
+		Assertions.assertEquals("b", map.putIfAbsent(1L, "c"));
+		Assertions.assertEquals("b", map.get(1L));
+		Assertions.assertNull(map.get(2L));
+		Assertions.assertNull(map.putIfAbsent(-7L, "x"));
+		Assertions.assertEquals(2, map.size());
+
+		Assertions.assertFalse(map.remove(1L, new String("b")), "remove(k, v) is by identity");
+		Assertions.assertEquals("b", map.remove(1L));
+		Assertions.assertNull(map.remove(1L));
+		Assertions.assertEquals(1, map.size());
+		map.clear();
+		Assertions.assertTrue(map.isEmpty());
+		Assertions.assertThrows(NullPointerException.class, () -> map.put(3L, null));
+	}
+
+	@Test
+	void randomOperationsMatchHashMap() {
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<>(4);
+		Map<Long, Long> expected = new HashMap<>();
+		Random random = new Random(1234);
+		for (int i = 0; i < 200_000; i++) {
+			// Small key space so there are plenty of collisions and removals
+			long key = random.nextInt(5000) * 0x100000000L;
+			Long value = random.nextLong();
+			switch (random.nextInt(3)) {
+			case 0:
+				Assertions.assertEquals(expected.put(key, value), map.put(key, value));
+				break;
+			case 1:
+				Assertions.assertEquals(expected.remove(key), map.remove(key));
+				break;
+			default:
+				Assertions.assertEquals(expected.get(key), map.get(key));
+			}
+		}
+		Assertions.assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, Long> e : expected.entrySet()) {
+			Assertions.assertEquals(e.getValue(), map.get(e.getKey()));
+		}
+		Assertions.assertEquals(expected.size(), map.values().size());
+	}
+
+	@Test
+	void readersSeeStableKeysWhileOthersChurn() throws InterruptedException {
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+		for (long k = 0; k < 1000; k++) {
+			map.put(k, k);
+		}
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		CountDownLatch done = new CountDownLatch(4);
+		for (int t = 0; t < 4; t++) {
+			final int writer = t;
+			new Thread(() -> {
+				try {
+					for (int i = 0; i < 100_000; i++) {
+						if (writer % 2 == 0) {
+							long k = 1000 + writer * 1_000_000L + (i % 5000);
+							map.put(k, k);
+							map.remove(k);
+						} else {
+							long k = i % 1000;
+							if (map.get(k) == null || map.get(k) != k) {
+								throw new AssertionError("Lost key " + k);
+							}
+						}
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		Assertions.assertNull(error.get());
+		Assertions.assertEquals(1000, map.size());
+	}
+}
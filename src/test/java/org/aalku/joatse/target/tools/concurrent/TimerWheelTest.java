@@ -0,0 +1,90 @@
+package org.aalku.joatse.target.tools.concurrent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+
+	private static void waitUntil(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			Assertions.assertTrue(System.nanoTime() < deadline, what);
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	void runsInOrderAndNeverEarly() throws Exception {
+		TimerWheel wheel = new TimerWheel("test_wheel", 5, 8); // 40ms a round, so some wait several rounds
+		List<Integer> ran = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(4);
+		long t0 = System.nanoTime();
+		long[] late = new long[4];
+		int[] delays = { 150, 10, 60, 0 };
+		for (int i = 0; i < delays.length; i++) {
+			int n = i;
+			wheel.schedule(() -> {
+				late[n] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) - delays[n];
+				ran.add(delays[n]);
+				done.countDown();
+			}, delays[i], TimeUnit.MILLISECONDS);
+		}
+		Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assertions.assertEquals(Arrays.asList(0, 10, 60, 150), ran);
+		for (long l : late) {
+			Assertions.assertTrue(l >= 0, "Early by " + -l + "ms");
+		}
+		waitUntil("Nothing pending", () -> wheel.getPending() == 0);
+	}
+
+	@Test
+	void cancelledDontRunAndAreRemoved() throws Exception {
+		TimerWheel wheel = new TimerWheel("test_wheel", 5, 8);
+		AtomicInteger ran = new AtomicInteger();
+		TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[1000];
+		for (int i = 0; i < timeouts.length; i++) {
+			timeouts[i] = wheel.schedule(ran::incrementAndGet, 30, TimeUnit.SECONDS);
+		}
+		TimerWheel.Timeout soon = wheel.schedule(ran::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+		for (TimerWheel.Timeout t : timeouts) {
+			Assertions.assertTrue(t.cancel());
+			Assertions.assertFalse(t.cancel());
+			Assertions.assertTrue(t.isCancelled());
+		}
+		// Taken out on the next ticks, long before they would expire
+		waitUntil("Cancelled removed", () -> wheel.getPending() == 0);
+		Assertions.assertTrue(soon.isExpired());
+		Assertions.assertFalse(soon.cancel());
+		Assertions.assertEquals(1, ran.get());
+	}
+
+	@Test
+	void wakesUpWhenIdle() throws Exception {
+		TimerWheel wheel = new TimerWheel("test_wheel", 5, 8);
+		Thread.sleep(50); // Parked, nothing scheduled
+		CountDownLatch done = new CountDownLatch(1);
+		long t0 = System.nanoTime();
+		wheel.schedule(done::countDown, 10, TimeUnit.MILLISECONDS);
+		Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assertions.assertTrue(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(10));
+	}
+
+	@Test
+	void failingTaskDoesntStopTheTimer() throws Exception {
+		TimerWheel wheel = new TimerWheel("test_wheel", 5, 8);
+		CountDownLatch done = new CountDownLatch(1);
+		wheel.schedule(() -> {
+			throw new IllegalStateException("Expected");
+		}, 0, TimeUnit.MILLISECONDS);
+		wheel.schedule(done::countDown, 10, TimeUnit.MILLISECONDS);
+		Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+}
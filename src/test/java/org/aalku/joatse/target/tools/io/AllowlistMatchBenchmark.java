@@ -0,0 +1,89 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * One allowed address against one SOCKS5 target with a parsed
+ * {@link AddressAllowlist}, in nanoseconds:
+ * <ul>
+ * <li>ip-glob: "192.168.*:*" matches 192.168.1.20</li>
+ * <li>host-glob: "*.example.com:443" matches www.example.com</li>
+ * <li>port-miss: "*:22" doesn't match port 443</li>
+ * <li>resolve: "127.0.0.1" matches localhost after resolving it</li>
+ * </ul>
+ * With dns=none "resolve" goes to a DNS thread every time, where only the JVM
+ * cache helps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllowlistMatchBenchmark {
+
+	@Param({ "ip-glob", "host-glob", "port-miss", "resolve" })
+	public String match;
+
+	@Param({ "cache", "none" })
+	public String dns;
+
+	private AddressAllowlist allowlist;
+	private InetSocketAddress target;
+
+	@Setup
+	public void setup() throws Exception {
+		String allowedAddress;
+		switch (match) {
+		case "ip-glob":
+			allowedAddress = "192.168.*:*";
+			target = new InetSocketAddress(InetAddress.getByAddress(new byte[] { (byte) 192, (byte) 168, 1, 20 }), 80);
+			break;
+		case "host-glob":
+			allowedAddress = "*.example.com:443";
+			target = InetSocketAddress.createUnresolved("www.example.com", 443);
+			break;
+		case "port-miss":
+			allowedAddress = "*:22";
+			target = InetSocketAddress.createUnresolved("www.example.com", 443);
+			break;
+		case "resolve":
+			allowedAddress = "127.0.0.1";
+			target = InetSocketAddress.createUnresolved("localhost", 80);
+			break;
+		default:
+			throw new IllegalArgumentException(match);
+		}
+		allowlist = new AddressAllowlist(Collections.singleton(allowedAddress),
+				dns.equals("cache") ? DnsCache.shared() : new DnsCache(0, 0, TimeUnit.SECONDS));
+		if (test() == match.equals("port-miss")) {
+			throw new IllegalStateException("Unexpected result for " + match);
+		}
+	}
+
+	@Benchmark
+	public boolean test() {
+		return allowlist.isAllowed(target).join();
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(AllowlistMatchBenchmark.class.getSimpleName()).build()).run();
+	}
+}
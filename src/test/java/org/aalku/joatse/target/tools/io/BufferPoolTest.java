@@ -0,0 +1,82 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.nio.ByteBuffer;
+
+import org.aalku.joatse.target.tools.io.BufferPool.Tracker;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+
+	@Test
+	void sizeClassesAndReuse() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		Tracker t = pool.tracker("t");
+		ByteBuffer small = t.acquire(1);
+		Assertions.assertTrue(small.isDirect());
+		Assertions.assertEquals(BufferPool.MIN_SIZE, small.capacity());
+		ByteBuffer b = t.acquire(1000);
+		Assertions.assertEquals(1024, b.capacity());
+		Assertions.assertEquals(1024, b.limit());
+		Assertions.assertEquals(BufferPool.MAX_SIZE, t.acquire(BufferPool.MAX_SIZE).capacity());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> t.acquire(BufferPool.MAX_SIZE + 1));
+
+		b.put((byte) 1);
+		t.release(b);
+		ByteBuffer again = t.acquire(600);
+		Assertions.assertSame(b, again);
+		Assertions.assertEquals(0, again.position());
+		Assertions.assertEquals(3, t.getLentCount());
+		Assertions.assertEquals(BufferPool.MIN_SIZE + 1024 + BufferPool.MAX_SIZE, pool.getAllocatedBytes());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> pool.tracker("other").release(small));
+	}
+
+	@Test
+	void capIsEnforced() {
+		BufferPool pool = new BufferPool(2 * BufferPool.MAX_SIZE);
+		Tracker t = pool.tracker("t");
+		ByteBuffer a = t.acquire(BufferPool.MAX_SIZE);
+		ByteBuffer b = t.acquire(BufferPool.MAX_SIZE);
+		Assertions.assertThrows(IllegalStateException.class, () -> t.acquire(1));
+
+		// Free buffers are dropped to make room for other sizes
+		t.release(a);
+		t.acquire(1024);
+		Assertions.assertEquals(BufferPool.MAX_SIZE + 1024, pool.getAllocatedBytes());
+		Assertions.assertEquals(BufferPool.MAX_SIZE + 1024, pool.getLentBytes());
+
+		pool.setMaxBytes(4 * BufferPool.MAX_SIZE);
+		t.release(b);
+		t.acquire(BufferPool.MAX_SIZE);
+		t.acquire(BufferPool.MAX_SIZE);
+	}
+
+	@Test
+	void closedTrackerCanStillRelease() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		Tracker t = pool.tracker("t");
+		ByteBuffer b = t.acquire(100);
+		Assertions.assertEquals(1, t.close());
+		t.release(b);
+		Assertions.assertEquals(0, t.getLentCount());
+		Assertions.assertEquals(0, pool.getLentBytes());
+		Assertions.assertEquals(0, pool.getLeakCount());
+	}
+
+	@Test
+	void leakIsDetected() throws InterruptedException {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		Tracker released = pool.tracker("released");
+		released.release(released.acquire(100));
+		released = null;
+		pool.tracker("leaking").acquire(2000);
+		Assertions.assertEquals(2048, pool.getLentBytes());
+		for (int i = 0; i < 100 && pool.getLeakCount() == 0; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals(1, pool.getLeakCount());
+		Assertions.assertEquals(0, pool.getLentBytes());
+		Assertions.assertEquals(BufferPool.MIN_SIZE, pool.getAllocatedBytes());
+	}
+}
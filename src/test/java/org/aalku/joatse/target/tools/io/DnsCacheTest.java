@@ -0,0 +1,88 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class DnsCacheTest {
+
+	private static final long POSITIVE_TTL = TimeUnit.SECONDS.toNanos(60);
+	private static final long NEGATIVE_TTL = TimeUnit.SECONDS.toNanos(10);
+
+	private final AtomicLong now = new AtomicLong();
+	private final List<String> lookups = new CopyOnWriteArrayList<>();
+
+	private InetAddress[] resolve(String host) throws UnknownHostException {
+		lookups.add(host);
+		if (host.equals("unknown.invalid")) {
+			throw new UnknownHostException(host);
+		}
+		return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 0, 0, (byte) host.length() }) };
+	}
+
+	private DnsCache cache() {
+		return new DnsCache(POSITIVE_TTL, NEGATIVE_TTL, this::resolve, Runnable::run, now::get);
+	}
+
+	@Test
+	void testPositiveTtl() throws Exception {
+		DnsCache dns = cache();
+		InetAddress a = dns.resolve("a.example").get()[0];
+		Assertions.assertSame(a, dns.resolve("a.example").get()[0]);
+		now.addAndGet(POSITIVE_TTL - 1);
+		dns.resolve("a.example").get();
+		Assertions.assertEquals(Arrays.asList("a.example"), lookups);
+		now.addAndGet(1);
+		Assertions.assertEquals(a, dns.resolve("a.example").get()[0]);
+		Assertions.assertEquals(Arrays.asList("a.example", "a.example"), lookups);
+	}
+
+	@Test
+	void testNegativeTtl() throws Exception {
+		DnsCache dns = cache();
+		Assertions.assertEquals(0, dns.resolve("unknown.invalid").get().length);
+		now.addAndGet(NEGATIVE_TTL - 1);
+		Assertions.assertEquals(0, dns.resolve("unknown.invalid").get().length);
+		Assertions.assertEquals(1, lookups.size());
+		now.addAndGet(1);
+		dns.resolve("unknown.invalid").get();
+		Assertions.assertEquals(2, lookups.size());
+	}
+
+	@Test
+	void testOneLookupForConcurrentRequests() throws Exception {
+		CompletableFuture<Runnable> pending = new CompletableFuture<>();
+		DnsCache dns = new DnsCache(POSITIVE_TTL, NEGATIVE_TTL, this::resolve, pending::complete, now::get);
+		CompletableFuture<InetAddress[]> r1 = dns.resolve("a.example");
+		CompletableFuture<InetAddress[]> r2 = dns.resolve("a.example");
+		Assertions.assertFalse(r1.isDone(), "Not on the caller's thread");
+		pending.get(5, TimeUnit.SECONDS).run();
+		Assertions.assertSame(r1.get(), r2.get());
+		Assertions.assertEquals(1, lookups.size());
+	}
+
+	@Test
+	void testAllowlistResolvesOnlyIfNoGlobMatches() throws Exception {
+		DnsCache dns = cache();
+		AddressAllowlist allowlist = new AddressAllowlist(Arrays.asList("*.example:443", "b.example:80"), dns);
+		Assertions.assertTrue(allowlist.isAllowed(InetSocketAddress.createUnresolved("a.example", 443)).get());
+		Assertions.assertEquals(Collections.emptyList(), lookups);
+		Assertions.assertFalse(allowlist.isAllowed(InetSocketAddress.createUnresolved("a.example", 22)).get());
+		Assertions.assertEquals(Collections.emptyList(), lookups);
+		// Same address, see resolve()
+		Assertions.assertTrue(allowlist.isAllowed(InetSocketAddress.createUnresolved("c.example", 80)).get());
+		Assertions.assertFalse(allowlist.isAllowed(InetSocketAddress.createUnresolved("unknown.invalid", 80)).get());
+		Assertions.assertFalse(allowlist.isAllowed(InetSocketAddress.createUnresolved("cc.example", 80)).get());
+		Assertions.assertEquals(Arrays.asList("c.example", "b.example", "unknown.invalid", "cc.example"), lookups);
+	}
+}
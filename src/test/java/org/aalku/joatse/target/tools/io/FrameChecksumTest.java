@@ -0,0 +1,86 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class FrameChecksumTest {
+
+	private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+	private static long checksum(FrameChecksum.Type type, byte[] data, boolean direct, int... splits) {
+		FrameChecksum c = type.create();
+		ByteBuffer b = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+		b.put(data).flip();
+		int from = 0;
+		for (int to : splits) {
+			b.limit(to).position(from);
+			c.update(b);
+			Assertions.assertEquals(to, b.position());
+			from = to;
+		}
+		b.limit(data.length).position(from);
+		c.update(b);
+		return c.getValue();
+	}
+
+	@Test
+	void knownValues() {
+		Assertions.assertEquals(0xCBF43926L, checksum(FrameChecksum.Type.CRC32, CHECK, false));
+		Assertions.assertEquals(0xE3069283L, checksum(FrameChecksum.Type.CRC32C, CHECK, false));
+		Assertions.assertEquals(0xE3069283L, checksum(FrameChecksum.Type.CRC32C, CHECK, true, 3));
+		Assertions.assertEquals(0L, checksum(FrameChecksum.Type.NONE, CHECK, false));
+		Assertions.assertFalse(FrameChecksum.Type.NONE.create().isEnabled());
+	}
+
+	@Test
+	void crc32cIsRunningAcrossFrames() throws Exception {
+		byte[] data = new byte[100_000];
+		new Random(1).nextBytes(data);
+		long whole = checksum(FrameChecksum.Type.CRC32C, data, false);
+		Assertions.assertEquals(whole, checksum(FrameChecksum.Type.CRC32C, data, true, 1, 9, 64_512, 64_513));
+		Class<?> jdk;
+		try {
+			jdk = Class.forName("java.util.zip.CRC32C");
+		} catch (ClassNotFoundException e) {
+			return; // Java 8
+		}
+		Checksum expected = (Checksum) jdk.getDeclaredConstructor().newInstance();
+		expected.update(data, 0, data.length);
+		Assertions.assertEquals(expected.getValue(), whole);
+	}
+
+	@Test
+	void crc32cTableIsTheIntrinsic() {
+		Assertions.assertEquals(!System.getProperty("java.specification.version").startsWith("1."),
+				Crc32c.isIntrinsic());
+		byte[] data = new byte[100_000];
+		new Random(2).nextBytes(data);
+		ByteBuffer b = ByteBuffer.allocateDirect(data.length);
+		b.put(data).flip();
+		Crc32c table = new Crc32c(false);
+		Crc32c c = new Crc32c();
+		for (int to : new int[] { 3, 11, 64_512, data.length }) {
+			b.limit(to);
+			int from = b.position();
+			table.update(b);
+			Assertions.assertEquals(to, b.position());
+			b.position(from);
+			c.update(b);
+			Assertions.assertEquals(to, b.position());
+			Assertions.assertEquals(table.getValue(), c.getValue());
+		}
+	}
+
+	@Test
+	void wireNames() {
+		for (FrameChecksum.Type t : FrameChecksum.Type.values()) {
+			Assertions.assertSame(t, FrameChecksum.Type.forWireName(t.getWireName()));
+		}
+		Assertions.assertNull(FrameChecksum.Type.forWireName("md5"));
+	}
+}
@@ -0,0 +1,170 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.tools.concurrent.TimerWheel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class HappyEyeballsTest {
+
+	private static final InetAddress V4A = address("v4a", 10, 0, 0, 1);
+	private static final InetAddress V4B = address("v4b", 10, 0, 0, 2);
+	private static final InetAddress V6A = address("v6a", 0xfd, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1);
+	private static final InetAddress V6B = address("v6b", 0xfd, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2);
+
+	/** The attempts by address, completed by the test */
+	private final Map<InetAddress, CompletableFuture<AsynchronousSocketChannel>> attempts = new ConcurrentHashMap<>();
+	private final Map<InetAddress, Long> started = new ConcurrentHashMap<>();
+	private final long t0 = System.nanoTime();
+	private final TimerWheel timer = new TimerWheel("test_eyeballs", 5, 64);
+
+	private static InetAddress address(String host, int... bytes) {
+		byte[] b = new byte[bytes.length];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) bytes[i];
+		}
+		try {
+			return InetAddress.getByAddress(host, b);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private CompletableFuture<AsynchronousSocketChannel> attempt(InetSocketAddress address) {
+		started.put(address.getAddress(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+		return attempts.computeIfAbsent(address.getAddress(), k -> new CompletableFuture<>());
+	}
+
+	private CompletableFuture<AsynchronousSocketChannel> attemptOf(InetAddress a) {
+		return attempts.computeIfAbsent(a, k -> new CompletableFuture<>());
+	}
+
+	private static ConnectException refused() {
+		return new ConnectException("Connection refused");
+	}
+
+	@AfterEach
+	void closeAll() {
+		attempts.values().forEach(a -> a.thenAccept(c -> IOTools.runFailable(() -> c.close())));
+	}
+
+	@Test
+	void interleavesFamilies() {
+		Assertions.assertEquals(Arrays.asList(V6A, V4A, V6B, V4B),
+				HappyEyeballs.interleave(new InetAddress[] { V6A, V6B, V4A, V4B }));
+		Assertions.assertEquals(Arrays.asList(V4A, V6A, V4B),
+				HappyEyeballs.interleave(new InetAddress[] { V4A, V4B, V6A }));
+		Assertions.assertEquals(Arrays.asList(V4A, V4B), HappyEyeballs.interleave(new InetAddress[] { V4A, V4B }));
+	}
+
+	@Test
+	void brokenFirstFamilyCostsTheDelay() throws Exception {
+		AsynchronousSocketChannel v4 = AsynchronousSocketChannel.open();
+		attemptOf(V4A).complete(v4); // The IPv6 one never connects
+		CompletableFuture<AsynchronousSocketChannel> res = HappyEyeballs.connect(new InetAddress[] { V6A, V4A }, 80,
+				this::attempt, 50, timer);
+		Assertions.assertSame(v4, res.get(5, TimeUnit.SECONDS));
+		Assertions.assertTrue(started.get(V4A) >= 50, "Started at " + started.get(V4A) + "ms");
+		Assertions.assertTrue(attemptOf(V6A).isCancelled(), "Loser cancelled, so closed");
+		Assertions.assertTrue(v4.isOpen());
+	}
+
+	@Test
+	void failureStartsTheNextWithoutDelay() throws Exception {
+		attemptOf(V6A).completeExceptionally(refused());
+		AsynchronousSocketChannel v4 = AsynchronousSocketChannel.open();
+		attemptOf(V4A).complete(v4);
+		CompletableFuture<AsynchronousSocketChannel> res = HappyEyeballs.connect(new InetAddress[] { V6A, V4A }, 80,
+				this::attempt, TimeUnit.SECONDS.toMillis(30), timer);
+		Assertions.assertSame(v4, res.get(5, TimeUnit.SECONDS));
+		// The delay was cancelled
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (timer.getPending() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		Assertions.assertEquals(0, timer.getPending());
+	}
+
+	@Test
+	void slowAttemptIsCancelled() throws Exception {
+		CompletableFuture<AsynchronousSocketChannel> res = HappyEyeballs.connect(new InetAddress[] { V4A, V6A }, 80,
+				this::attempt, 10, timer);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!started.containsKey(V6A) && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		Assertions.assertTrue(started.containsKey(V6A), "Both running");
+		AsynchronousSocketChannel v6 = AsynchronousSocketChannel.open();
+		attemptOf(V6A).complete(v6);
+		Assertions.assertSame(v6, res.get(5, TimeUnit.SECONDS));
+		Assertions.assertTrue(attemptOf(V4A).isCancelled());
+	}
+
+	@Test
+	void allFailWithTheFirstError() throws Exception {
+		ConnectException first = refused();
+		attemptOf(V6A).completeExceptionally(first);
+		attemptOf(V4A).completeExceptionally(refused());
+		attemptOf(V6B).completeExceptionally(refused());
+		CompletableFuture<AsynchronousSocketChannel> res = HappyEyeballs.connect(
+				new InetAddress[] { V6A, V6B, V4A }, 80, this::attempt, 30000, timer);
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+				() -> res.get(5, TimeUnit.SECONDS));
+		Assertions.assertSame(first, e.getCause());
+		Assertions.assertEquals(2, first.getSuppressed().length);
+	}
+
+	private static CompletableFuture<AsynchronousSocketChannel> realAttempt(InetSocketAddress address) {
+		CompletableFuture<AsynchronousSocketChannel> res = new CompletableFuture<>();
+		try {
+			AsynchronousSocketChannel s = AsynchronousSocketChannel.open();
+			s.connect(address, null, new CompletionHandler<Void, Void>() {
+				public void completed(Void result, Void a) {
+					res.complete(s);
+				}
+
+				public void failed(Throwable e, Void a) {
+					IOTools.runFailable(() -> s.close());
+					res.completeExceptionally(e);
+				}
+			});
+		} catch (IOException e) {
+			res.completeExceptionally(e);
+		}
+		return res;
+	}
+
+	/**
+	 * Nothing listens on the IPv6 loopback, or there is no IPv6. The IPv4 one
+	 * wins.
+	 */
+	@Test
+	void realSockets() throws Exception {
+		InetAddress v4 = InetAddress.getByName("127.0.0.1");
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(v4, 0));
+			int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+			try (AsynchronousSocketChannel c = HappyEyeballs
+					.connect(new InetAddress[] { InetAddress.getByName("::1"), v4 }, port,
+							HappyEyeballsTest::realAttempt, 50, timer)
+					.get(5, TimeUnit.SECONDS)) {
+				Assertions.assertEquals(v4, ((InetSocketAddress) c.getRemoteAddress()).getAddress());
+			}
+		}
+	}
+}
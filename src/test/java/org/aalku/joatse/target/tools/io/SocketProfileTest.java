@@ -0,0 +1,59 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousSocketChannel;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class SocketProfileTest {
+
+	private static final int FRAME = 63 * 1024;
+
+	@Test
+	void presets() {
+		Assertions.assertSame(SocketProfile.INTERACTIVE, SocketProfile.parse("interactive"));
+		Assertions.assertSame(SocketProfile.BULK, SocketProfile.parse(" bulk "));
+		Assertions.assertSame(SocketProfile.DEFAULT, SocketProfile.parse("default"));
+		Assertions.assertTrue(SocketProfile.INTERACTIVE.isTcpNoDelay());
+		Assertions.assertFalse(SocketProfile.BULK.isTcpNoDelay());
+		Assertions.assertEquals(1, SocketProfile.DEFAULT.getReadFrames(FRAME));
+		Assertions.assertEquals(1, SocketProfile.INTERACTIVE.getReadFrames(FRAME));
+		Assertions.assertEquals(5, SocketProfile.BULK.getReadFrames(FRAME));
+	}
+
+	@Test
+	void custom() {
+		SocketProfile p = SocketProfile.parse("bulk,nodelay=true,read=1M");
+		Assertions.assertTrue(p.isTcpNoDelay());
+		Assertions.assertEquals(4 * 1024 * 1024, p.getReceiveBuffer());
+		Assertions.assertEquals(1024 * 1024, p.getReadSize());
+		Assertions.assertEquals("bulk,nodelay=true,read=1M", p.toString());
+
+		p = SocketProfile.parse("rcvbuf=65536,keepalive=false");
+		Assertions.assertFalse(p.isTcpNoDelay());
+		Assertions.assertFalse(p.isKeepAlive());
+		Assertions.assertEquals(65536, p.getReceiveBuffer());
+		Assertions.assertEquals(0, p.getSendBuffer());
+		Assertions.assertEquals(1, p.getReadFrames(FRAME));
+	}
+
+	@Test
+	void invalid() {
+		for (String spec : new String[] { "", "fast", "bulk,nodelay=yes", "rcvbuf=0", "read=2G", "read=-1",
+				"nodelay" }) {
+			Assertions.assertThrows(IllegalArgumentException.class, () -> SocketProfile.parse(spec));
+		}
+	}
+
+	@Test
+	void applied() throws Exception {
+		try (AsynchronousSocketChannel c = AsynchronousSocketChannel.open()) {
+			SocketProfile.parse("interactive,sndbuf=256K").apply(c);
+			Assertions.assertTrue(c.getOption(StandardSocketOptions.TCP_NODELAY));
+			Assertions.assertTrue(c.getOption(StandardSocketOptions.SO_KEEPALIVE));
+			// The OS may round it or double it
+			Assertions.assertTrue(c.getOption(StandardSocketOptions.SO_SNDBUF) >= 128 * 1024);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TcpChannelGroupTest {
+
+	private final TcpChannelGroup group = new TcpChannelGroup("test_tcp", 2);
+
+	@AfterEach
+	void shutdown() throws Exception {
+		group.shutdownNow();
+	}
+
+	/**
+	 * @param handler run in the connect completion handler
+	 * @return the name of the thread that ran it
+	 */
+	private String connect(Runnable handler) throws Exception {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			CompletableFuture<String> thread = new CompletableFuture<>();
+			try (AsynchronousSocketChannel c = group.open()) {
+				c.connect(server.getLocalAddress(), null, new CompletionHandler<Void, Void>() {
+					public void completed(Void result, Void a) {
+						handler.run();
+						thread.complete(Thread.currentThread().getName());
+					}
+
+					public void failed(Throwable e, Void a) {
+						thread.completeExceptionally(e);
+					}
+				});
+				return thread.get(5, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	@Test
+	void handlersRunOnTheGroupThreads() throws Exception {
+		Assertions.assertEquals(2, group.getThreads());
+		Assertions.assertTrue(connect(() -> {}).startsWith("test_tcp_"));
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (group.getTasks() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		Assertions.assertTrue(group.getTasks() > 0);
+		Assertions.assertEquals(0, group.getSlowTasks());
+	}
+
+	@Test
+	void blockingHandlersAreCounted() throws Exception {
+		connect(() -> {
+			try {
+				Thread.sleep(TcpChannelGroup.SLOW_TASK_MILLIS + 20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (group.getSlowTasks() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		Assertions.assertEquals(1, group.getSlowTasks());
+		Assertions.assertTrue(group.getAverageRunMicros() > 0);
+	}
+}
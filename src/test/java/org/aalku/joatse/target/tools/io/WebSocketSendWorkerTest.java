@@ -0,0 +1,102 @@
+package org.aalku.joatse.target.tools.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.target.CountingWebSocketSession;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+class WebSocketSendWorkerTest {
+
+	private static final int FRAME = 64 * 1024;
+
+	/**
+	 * Records what is sent. The first send waits for the gate so the test can
+	 * queue everything first.
+	 */
+	private static class GatedSession extends CountingWebSocketSession {
+		private final CountDownLatch gate = new CountDownLatch(1);
+		private final List<String> sent = new ArrayList<>();
+
+		GatedSession() {
+			super("sched");
+		}
+
+		@Override
+		public void sendMessage(WebSocketMessage<?> message) throws IOException {
+			try {
+				gate.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			ByteBuffer b = ((BinaryMessage) message).getPayload();
+			synchronized (sent) {
+				sent.add(new String(b.array(), 0, 2));
+			}
+			super.sendMessage(message);
+		}
+
+		List<String> sent() {
+			synchronized (sent) {
+				return new ArrayList<>(sent);
+			}
+		}
+	}
+
+	private static BinaryMessage message(String name, int size) {
+		byte[] b = new byte[size];
+		b[0] = (byte) name.charAt(0);
+		b[1] = (byte) name.charAt(1);
+		return new BinaryMessage(b);
+	}
+
+	private static List<String> run(int weightA, int weightB) throws Exception {
+		GatedSession ws = new GatedSession();
+		WebSocketSendWorker worker = new WebSocketSendWorker(ws);
+		try {
+			SendFlow a = new SendFlow(1, weightA);
+			SendFlow b = new SendFlow(2, weightB);
+			SendFlow c = new SendFlow(3, 1);
+			worker.sendMessage(message("X0", 10)); // Takes the worker until the gate opens
+			Thread.sleep(50);
+			for (int i = 1; i <= 4; i++) {
+				worker.sendMessage(message("A" + i, FRAME), a);
+			}
+			for (int i = 1; i <= 4; i++) {
+				worker.sendMessage(message("B" + i, FRAME), b);
+			}
+			worker.sendMessage(message("C1", 10), c);
+			worker.sendMessage(message("C2", 10), c);
+			worker.sendMessage(message("X1", 10));
+			worker.sendMessage(message("X2", 10));
+			ws.gate.countDown();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (ws.getMessages() < 13 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			return ws.sent();
+		} finally {
+			worker.close();
+		}
+	}
+
+	@Test
+	void controlFirstThenRoundRobin() throws Exception {
+		Assertions.assertEquals(Arrays.asList("X0", "X1", "X2", "A1", "B1", "C1", "C2", "A2", "B2", "A3", "B3", "A4", "B4"),
+				run(1, 1));
+	}
+
+	@Test
+	void weightsShareTheTurns() throws Exception {
+		Assertions.assertEquals(Arrays.asList("X0", "X1", "X2", "A1", "A2", "B1", "C1", "C2", "A3", "A4", "B2", "B3", "B4"),
+				run(2, 1));
+	}
+}